@@ -0,0 +1,159 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * The key types (and their {@link KeyAnalyzer}s) the benchmarks are
+ * run against. Each type knows how to create random keys with a
+ * distribution that resembles what we see in practice.
+ */
+public enum KeyType {
+
+    /**
+     * Word-like {@link String}s with a skewed syllable distribution,
+     * so that keys share prefixes the way dictionary words do.
+     */
+    STRING(StringKeyAnalyzer.INSTANCE, 2 * StringKeyAnalyzer.LENGTH) {
+        @Override
+        Object createKey(Random random) {
+            return createWord(random);
+        }
+    },
+
+    /**
+     * The same word-like keys as {@link #STRING} but as {@code char[]}s
+     */
+    CHAR_ARRAY(CharArrayKeyAnalyzer.INSTANCE, 2 * CharArrayKeyAnalyzer.LENGTH) {
+        @Override
+        Object createKey(Random random) {
+            return createWord(random).toCharArray();
+        }
+    },
+
+    /**
+     * Uniformly distributed 160-bit content hashes (SHA-1 sized)
+     */
+    BYTE_ARRAY(new ByteArrayKeyAnalyzer(160), 16) {
+        @Override
+        Object createKey(Random random) {
+            byte[] key = new byte[20];
+            random.nextBytes(key);
+            return key;
+        }
+    },
+
+    /**
+     * Uniformly distributed {@link Integer}s
+     */
+    INTEGER(IntegerKeyAnalyzer.INSTANCE, 16) {
+        @Override
+        Object createKey(Random random) {
+            return random.nextInt();
+        }
+    },
+
+    /**
+     * Uniformly distributed {@link Long}s
+     */
+    LONG(LongKeyAnalyzer.INSTANCE, 16) {
+        @Override
+        Object createKey(Random random) {
+            return random.nextLong();
+        }
+    },
+
+    /**
+     * Uniformly distributed 160-bit {@link BigInteger}s (Kademlia-style IDs)
+     */
+    BIG_INTEGER(BigIntegerKeyAnalyzer.INSTANCE, 16) {
+        @Override
+        Object createKey(Random random) {
+            return new BigInteger(160, random);
+        }
+    };
+
+    /**
+     * Syllables for {@link #createWord(Random)}, roughly ordered
+     * from the most to the least frequent one.
+     */
+    private static final String[] SYLLABLES = {
+        "the", "an", "in", "er", "re", "on", "at", "en",
+        "es", "or", "te", "ti", "al", "ar", "st", "to",
+        "nt", "ng", "se", "ha", "as", "ou", "io", "le",
+        "is", "it", "ra", "co", "me", "de", "ne", "ve",
+        "ro", "li", "ri", "ta", "ma", "ch", "ca", "si",
+        "pro", "con", "com", "per", "ex", "un", "dis", "sub",
+        "ing", "ion", "ent", "ous", "ive", "ly", "ful", "less",
+        "ness", "ment", "able", "ward", "ship", "hood", "dom", "ism"
+    };
+
+    private final KeyAnalyzer<?> keyAnalyzer;
+
+    private final int prefixLengthInBits;
+
+    private KeyType(KeyAnalyzer<?> keyAnalyzer, int prefixLengthInBits) {
+        this.keyAnalyzer = keyAnalyzer;
+        this.prefixLengthInBits = prefixLengthInBits;
+    }
+
+    /**
+     * Returns the {@link KeyAnalyzer} for the key type
+     */
+    @SuppressWarnings("unchecked")
+    <K> KeyAnalyzer<K> getKeyAnalyzer() {
+        return (KeyAnalyzer<K>)keyAnalyzer;
+    }
+
+    /**
+     * Returns the number of bits that are used for the
+     * {@link Trie#getPrefixedByBits(Object, int)} benchmarks
+     */
+    int getPrefixLengthInBits() {
+        return prefixLengthInBits;
+    }
+
+    /**
+     * Creates and returns a random key
+     */
+    abstract Object createKey(Random random);
+
+    /**
+     * Creates and returns a word-like {@link String} that is made
+     * of two to six syllables and an optional numeric suffix.
+     */
+    private static String createWord(Random random) {
+        StringBuilder buffer = new StringBuilder();
+
+        int syllables = 2 + random.nextInt(5);
+        for (int i = 0; i < syllables; i++) {
+            // Squaring the uniform value skews the
+            // distribution towards the first syllables
+            double skew = random.nextDouble();
+            int index = (int)(skew * skew * SYLLABLES.length);
+            buffer.append(SYLLABLES[index]);
+        }
+
+        if (random.nextInt(4) == 0) {
+            buffer.append(random.nextInt(1000));
+        }
+
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks for the hot paths of the {@link PatriciaTrie}.
+ *
+ * <p>Every benchmark runs for each {@link KeyType} and for tries with
+ * 1K, 1M and 10M keys. Point operations are measured in nanoseconds
+ * per operation, whereas full scans and bulk operations are measured
+ * in milliseconds per scan. Use JMH's <tt>-p</tt> option to limit the
+ * parameter space, e.g. <tt>-p keyType=STRING -p size=1000</tt>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms8g", "-Xmx8g" })
+public class PatriciaTrieBenchmark {
+
+    /**
+     * The number of pre-computed keys the point operations cycle through
+     */
+    private static final int PROBES = 1 << 16;
+
+    private static final Object VALUE = new Object();
+
+    /**
+     * The benchmark parameters and the keys that are generated from them
+     */
+    @State(Scope.Benchmark)
+    public static class Keys {
+
+        @Param({ "STRING", "CHAR_ARRAY", "BYTE_ARRAY", "INTEGER", "LONG", "BIG_INTEGER" })
+        public KeyType keyType;
+
+        @Param({ "1000", "1000000", "10000000" })
+        public int size;
+
+        Object[] keys;
+
+        @Setup(Level.Trial)
+        public void setupKeys() {
+            Random random = new Random(size);
+            PatriciaTrie<Object, Object> unique = createTrie();
+
+            keys = new Object[size];
+            for (int i = 0; i < keys.length; ) {
+                Object key = keyType.createKey(random);
+                if (unique.put(key, VALUE) == null) {
+                    keys[i++] = key;
+                }
+            }
+        }
+
+        /**
+         * Creates and returns an empty {@link PatriciaTrie}
+         * for the current {@link KeyType}
+         */
+        PatriciaTrie<Object, Object> createTrie() {
+            KeyAnalyzer<Object> keyAnalyzer = keyType.getKeyAnalyzer();
+            return new PatriciaTrie<Object, Object>(keyAnalyzer);
+        }
+
+        /**
+         * Creates and returns a {@link PatriciaTrie} with all keys
+         */
+        PatriciaTrie<Object, Object> createFullTrie() {
+            PatriciaTrie<Object, Object> trie = createTrie();
+            for (Object key : keys) {
+                trie.put(key, VALUE);
+            }
+            return trie;
+        }
+    }
+
+    /**
+     * A fully populated {@link PatriciaTrie} plus keys that are
+     * known to be in it and keys that are known to be absent
+     */
+    @State(Scope.Benchmark)
+    public static class Populated {
+
+        PatriciaTrie<Object, Object> trie;
+
+        Object[] present;
+
+        Object[] absent;
+
+        int prefixLengthInBits;
+
+        @Setup(Level.Trial)
+        public void setupTrie(Keys keys) {
+            Random random = new Random(~keys.size);
+            trie = keys.createFullTrie();
+            prefixLengthInBits = keys.keyType.getPrefixLengthInBits();
+
+            present = new Object[PROBES];
+            for (int i = 0; i < present.length; i++) {
+                present[i] = keys.keys[random.nextInt(keys.keys.length)];
+            }
+
+            absent = new Object[PROBES];
+            for (int i = 0; i < absent.length; ) {
+                Object key = keys.keyType.createKey(random);
+                if (!trie.containsKey(key)) {
+                    absent[i++] = key;
+                }
+            }
+        }
+    }
+
+    /**
+     * A fresh {@link PatriciaTrie} for each invocation of the
+     * bulk {@link PatriciaTrieBenchmark#remove(Keys, Emptied)}
+     */
+    @State(Scope.Benchmark)
+    public static class Emptied {
+
+        PatriciaTrie<Object, Object> trie;
+
+        @Setup(Level.Invocation)
+        public void setupTrie(Keys keys) {
+            trie = keys.createFullTrie();
+        }
+    }
+
+    /**
+     * The position of each thread in the probe arrays
+     */
+    @State(Scope.Thread)
+    public static class Probe {
+
+        /**
+         * The number of entries the {@link PatriciaTrieBenchmark#selectNearest(Populated, Probe)} 
+         * benchmark is selecting (Kademlia's k)
+         */
+        private static final int NEAREST = 20;
+
+        final List<Map.Entry<Object, Object>> nearest
+            = new ArrayList<Map.Entry<Object, Object>>(NEAREST);
+
+        private int index = 0;
+
+        int next() {
+            return (index++) & (PROBES - 1);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public Object put(Keys keys) {
+        return keys.createFullTrie();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public Object remove(Keys keys, Emptied emptied) {
+        PatriciaTrie<Object, Object> trie = emptied.trie;
+        for (Object key : keys.keys) {
+            trie.remove(key);
+        }
+        return trie;
+    }
+
+    /**
+     * Inserts an absent key and removes it again. This keeps the
+     * {@link PatriciaTrie} at a steady size and measures a single
+     * insert and delete at the full depth of the {@link Trie}.
+     */
+    @Benchmark
+    public Object putAndRemove(Populated populated, Probe probe) {
+        Object key = populated.absent[probe.next()];
+        populated.trie.put(key, VALUE);
+        return populated.trie.remove(key);
+    }
+
+    @Benchmark
+    public Object get(Populated populated, Probe probe) {
+        return populated.trie.get(populated.present[probe.next()]);
+    }
+
+    @Benchmark
+    public Object getAbsent(Populated populated, Probe probe) {
+        return populated.trie.get(populated.absent[probe.next()]);
+    }
+
+    @Benchmark
+    public Object select(Populated populated, Probe probe) {
+        return populated.trie.select(populated.absent[probe.next()]);
+    }
+
+    @Benchmark
+    public Object selectNearest(Populated populated, Probe probe) {
+        List<Map.Entry<Object, Object>> nearest = probe.nearest;
+        nearest.clear();
+        populated.trie.selectNearest(populated.absent[probe.next()], 
+                Probe.NEAREST, nearest);
+        return nearest;
+    }
+
+    @Benchmark
+    public Object ceilingEntry(Populated populated, Probe probe) {
+        return populated.trie.ceilingEntry(populated.absent[probe.next()]);
+    }
+
+    @Benchmark
+    public Object floorEntry(Populated populated, Probe probe) {
+        return populated.trie.floorEntry(populated.absent[probe.next()]);
+    }
+
+    @Benchmark
+    public Object higherEntry(Populated populated, Probe probe) {
+        return populated.trie.higherEntry(populated.absent[probe.next()]);
+    }
+
+    @Benchmark
+    public Object lowerEntry(Populated populated, Probe probe) {
+        return populated.trie.lowerEntry(populated.absent[probe.next()]);
+    }
+
+    /**
+     * Creates a prefix view for a present key and iterates over it
+     */
+    @Benchmark
+    public void getPrefixedBy(Populated populated, Probe probe, Blackhole bh) {
+        Object key = populated.present[probe.next()];
+        Map<Object, Object> view = populated.trie.getPrefixedByBits(
+                key, populated.prefixLengthInBits);
+
+        for (Map.Entry<Object, Object> entry : view.entrySet()) {
+            bh.consume(entry);
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void traverse(Populated populated, final Blackhole bh) {
+        populated.trie.traverse(new Cursor<Object, Object>() {
+            @Override
+            public Decision select(Map.Entry<? extends Object, ? extends Object> entry) {
+                bh.consume(entry);
+                return Decision.CONTINUE;
+            }
+        });
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void iterate(Populated populated, Blackhole bh) {
+        for (Map.Entry<Object, Object> entry : populated.trie.entrySet()) {
+            bh.consume(entry);
+        }
+    }
+}
@@ -75,6 +75,24 @@ abstract class AbstractTrie<K, V> extends AbstractMap<K, V>
         return entry.getValue();
     }
     
+    /**
+     * {@inheritDoc}
+     */
+    public Map.Entry<K, V> longestPrefixEntry(K key) {
+        return longestPrefixEntry(key, lengthInBits(key));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public K longestPrefixOf(K key) {
+        Map.Entry<K, V> entry = longestPrefixEntry(key);
+        if (entry == null) {
+            return null;
+        }
+        return entry.getKey();
+    }
+    
     /**
      * {@inheritDoc}
      */
@@ -137,7 +155,16 @@ abstract class AbstractTrie<K, V> extends AbstractMap<K, V>
      * Utility method for calling {@link KeyAnalyzer#bitIndex(Object, int, int, Object, int, int)}
      */
     final int bitIndex(K key, K foundKey) {
-        return keyAnalyzer.bitIndex(key, 0, lengthInBits(key), 
+        return bitIndex(key, 0, lengthInBits(key), foundKey);
+    }
+    
+    /**
+     * Utility method for calling {@link KeyAnalyzer#bitIndex(Object, int, int, Object, int, int)}
+     * with the given bits of the key and all bits of the found key. All 
+     * searches for a bit index of the {@link Trie} go through this method.
+     */
+    int bitIndex(K key, int offsetInBits, int lengthInBits, K foundKey) {
+        return keyAnalyzer.bitIndex(key, offsetInBits, lengthInBits, 
                 foundKey, 0, lengthInBits(foundKey));
     }
     
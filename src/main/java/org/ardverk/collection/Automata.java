@@ -0,0 +1,740 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Compiles glob and regular expression patterns into {@link Automaton}s.
+ * 
+ * <p>A pattern is turned into a nondeterministic automaton first. Its
+ * deterministic states are the sets of nondeterministic states and they
+ * are built the first time they're stepped into. An {@link Automaton}
+ * can be used by more than one thread.
+ */
+public class Automata {
+    
+    private Automata() {}
+    
+    /**
+     * Returns an {@link Automaton} that accepts the {@link String}s the
+     * given glob pattern matches: A '*' is any number of chars, a '?' is 
+     * a single char and a '[...]' is one of the chars or ranges of chars 
+     * in the brackets (or none of them if it starts with '!' or '^'). A 
+     * '\' escapes the char after it.
+     * 
+     * @throws PatternSyntaxException if the pattern isn't valid
+     */
+    public static Automaton glob(String pattern) {
+        if (pattern == null) {
+            throw new NullPointerException("pattern");
+        }
+        
+        return compile(new Parser(pattern, true).glob());
+    }
+    
+    /**
+     * Returns an {@link Automaton} that accepts the {@link String}s the
+     * given regular expression matches like {@link String#matches(String)}.
+     * It supports alternations, groups, the quantifiers '*', '+', '?' and 
+     * '{n,m}', the '.', char classes and the escapes \d, \w and \s (and
+     * their negations) but no anchors, back references, lookarounds or
+     * flags.
+     * 
+     * @throws PatternSyntaxException if the pattern isn't valid or 
+     * isn't supported
+     */
+    public static Automaton regex(String pattern) {
+        if (pattern == null) {
+            throw new NullPointerException("pattern");
+        }
+        
+        return compile(new Parser(pattern, false).regex());
+    }
+    
+    /**
+     * Returns true if the given {@link Automaton} accepts the given input
+     */
+    public static boolean matches(Automaton automaton, CharSequence input) {
+        if (automaton == null) {
+            throw new NullPointerException("automaton");
+        }
+        
+        if (input == null) {
+            throw new NullPointerException("input");
+        }
+        
+        int state = automaton.getInitialState();
+        for (int i = 0; i < input.length() && state != Automaton.REJECT; i++) {
+            state = automaton.step(state, input.charAt(i));
+        }
+        
+        return state != Automaton.REJECT && automaton.isAccept(state);
+    }
+    
+    private static Automaton compile(Node node) {
+        Nfa nfa = new Nfa();
+        int start = nfa.compile(node, Nfa.ACCEPT);
+        return new LazyDfa(nfa, start);
+    }
+    
+    /**
+     * A set of chars
+     */
+    private static class CharClass {
+        
+        private static final CharClass ANY = new CharClass(true);
+        
+        private static final CharClass DIGIT = new CharClass(false)
+            .add('0', '9');
+        
+        private static final CharClass WORD = new CharClass(false)
+            .add('a', 'z').add('A', 'Z').add('0', '9').add('_', '_');
+        
+        private static final CharClass SPACE = new CharClass(false)
+            .add(' ', ' ').add('\t', '\r');
+        
+        private final boolean negated;
+        
+        /**
+         * The first and last char of each range
+         */
+        private final StringBuilder ranges = new StringBuilder();
+        
+        private final List<CharClass> classes = new ArrayList<CharClass>();
+        
+        private CharClass(boolean negated) {
+            this.negated = negated;
+        }
+        
+        private static CharClass of(char ch) {
+            return new CharClass(false).add(ch, ch);
+        }
+        
+        private CharClass add(char from, char to) {
+            ranges.append(from).append(to);
+            return this;
+        }
+        
+        private CharClass add(CharClass other) {
+            classes.add(other);
+            return this;
+        }
+        
+        /**
+         * Returns true if the class is a single char
+         */
+        private boolean isChar() {
+            return !negated && classes.isEmpty() && ranges.length() == 2 
+                && ranges.charAt(0) == ranges.charAt(1);
+        }
+        
+        private boolean matches(char ch) {
+            return contains(ch) != negated;
+        }
+        
+        private boolean contains(char ch) {
+            for (int i = 0; i < ranges.length(); i += 2) {
+                if (ranges.charAt(i) <= ch && ch <= ranges.charAt(i + 1)) {
+                    return true;
+                }
+            }
+            
+            for (CharClass other : classes) {
+                if (other.matches(ch)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * A node of the syntax tree of a pattern
+     */
+    private static class Node {
+        
+        private static final int CHARS = 0;
+        
+        private static final int CONCAT = 1;
+        
+        private static final int ALTERNATION = 2;
+        
+        private static final int REPEAT = 3;
+        
+        /**
+         * The max of a repetition without a maximum
+         */
+        private static final int UNBOUNDED = -1;
+        
+        private final int type;
+        
+        private final CharClass chars;
+        
+        private final List<Node> children;
+        
+        private final int min;
+        
+        private final int max;
+        
+        private Node(int type, CharClass chars, List<Node> children, int min, int max) {
+            this.type = type;
+            this.chars = chars;
+            this.children = children;
+            this.min = min;
+            this.max = max;
+        }
+        
+        private static Node chars(CharClass chars) {
+            return new Node(CHARS, chars, null, 0, 0);
+        }
+        
+        private static Node concat(List<Node> children) {
+            return new Node(CONCAT, null, children, 0, 0);
+        }
+        
+        private static Node alternation(List<Node> children) {
+            return new Node(ALTERNATION, null, children, 0, 0);
+        }
+        
+        private static Node repeat(Node child, int min, int max) {
+            return new Node(REPEAT, null, Arrays.asList(child), min, max);
+        }
+    }
+    
+    /**
+     * A recursive descent parser for glob and regular expression patterns
+     */
+    private static class Parser {
+        
+        /**
+         * The largest number of a '{n,m}' quantifier
+         */
+        private static final int MAX_REPEAT = 1000;
+        
+        private final String pattern;
+        
+        private final boolean glob;
+        
+        private int index = 0;
+        
+        private Parser(String pattern, boolean glob) {
+            this.pattern = pattern;
+            this.glob = glob;
+        }
+        
+        private Node glob() {
+            List<Node> nodes = new ArrayList<Node>();
+            while (hasNext()) {
+                char ch = next();
+                switch (ch) {
+                    case '*':
+                        nodes.add(Node.repeat(Node.chars(CharClass.ANY), 
+                                0, Node.UNBOUNDED));
+                        break;
+                    case '?':
+                        nodes.add(Node.chars(CharClass.ANY));
+                        break;
+                    case '[':
+                        nodes.add(Node.chars(charClass()));
+                        break;
+                    case '\\':
+                        nodes.add(Node.chars(CharClass.of(escaped())));
+                        break;
+                    default:
+                        nodes.add(Node.chars(CharClass.of(ch)));
+                        break;
+                }
+            }
+            return Node.concat(nodes);
+        }
+        
+        private Node regex() {
+            Node node = alternation();
+            if (hasNext()) {
+                throw error("Unmatched closing ')'", index);
+            }
+            return node;
+        }
+        
+        private Node alternation() {
+            List<Node> nodes = new ArrayList<Node>();
+            nodes.add(concat());
+            while (hasNext() && peek() == '|') {
+                ++index;
+                nodes.add(concat());
+            }
+            return nodes.size() == 1 ? nodes.get(0) : Node.alternation(nodes);
+        }
+        
+        private Node concat() {
+            List<Node> nodes = new ArrayList<Node>();
+            while (hasNext() && peek() != '|' && peek() != ')') {
+                nodes.add(quantified(atom()));
+            }
+            return Node.concat(nodes);
+        }
+        
+        private Node quantified(Node node) {
+            while (hasNext()) {
+                char ch = peek();
+                if (ch == '*') {
+                    node = Node.repeat(node, 0, Node.UNBOUNDED);
+                } else if (ch == '+') {
+                    node = Node.repeat(node, 1, Node.UNBOUNDED);
+                } else if (ch == '?') {
+                    node = Node.repeat(node, 0, 1);
+                } else if (ch == '{') {
+                    int start = index++;
+                    int min = number(start);
+                    int max = min;
+                    if (hasNext() && peek() == ',') {
+                        ++index;
+                        max = (hasNext() && peek() == '}') 
+                            ? Node.UNBOUNDED : number(start);
+                    }
+                    
+                    if (!hasNext() || peek() != '}') {
+                        throw error("Unclosed counted closure", start);
+                    }
+                    
+                    if (max != Node.UNBOUNDED && max < min) {
+                        throw error("Illegal repetition range", start);
+                    }
+                    node = Node.repeat(node, min, max);
+                } else {
+                    break;
+                }
+                
+                ++index;
+                
+                // Possessive and reluctant quantifiers match the 
+                // same Strings if the whole input must match
+                if (hasNext() && (peek() == '?' || peek() == '+')) {
+                    ++index;
+                }
+            }
+            return node;
+        }
+        
+        private int number(int start) {
+            int from = index;
+            while (hasNext() && '0' <= peek() && peek() <= '9') {
+                ++index;
+            }
+            
+            if (from == index) {
+                throw error("Illegal repetition", start);
+            }
+            
+            String digits = pattern.substring(from, index);
+            int value = digits.length() <= 4 ? Integer.parseInt(digits) : Integer.MAX_VALUE;
+            if (value > MAX_REPEAT) {
+                throw error("Repetition is too large", start);
+            }
+            return value;
+        }
+        
+        private Node atom() {
+            int start = index;
+            char ch = next();
+            switch (ch) {
+                case '(':
+                    if (pattern.startsWith("?:", index)) {
+                        index += 2;
+                    } else if (hasNext() && peek() == '?') {
+                        throw error("Unsupported group", start);
+                    }
+                    
+                    Node node = alternation();
+                    if (!hasNext() || next() != ')') {
+                        throw error("Unclosed group", start);
+                    }
+                    return node;
+                case '[':
+                    return Node.chars(charClass());
+                case '.':
+                    return Node.chars(CharClass.ANY);
+                case '\\':
+                    return Node.chars(escape());
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                    throw error("Dangling meta character '" + ch + "'", start);
+                case '^':
+                case '$':
+                    throw error("Unsupported anchor", start);
+                default:
+                    return Node.chars(CharClass.of(ch));
+            }
+        }
+        
+        /**
+         * Parses the chars after a '['
+         */
+        private CharClass charClass() {
+            int start = index - 1;
+            boolean negated = false;
+            if (hasNext() && (peek() == '^' || (glob && peek() == '!'))) {
+                negated = true;
+                ++index;
+            }
+            
+            CharClass chars = new CharClass(negated);
+            boolean first = true;
+            while (true) {
+                if (!hasNext()) {
+                    throw error("Unclosed character class", start);
+                }
+                
+                char ch = next();
+                if (ch == ']' && !first) {
+                    return chars;
+                }
+                first = false;
+                
+                if (ch == '[' && !glob) {
+                    throw error("Unsupported nested character class", index - 1);
+                }
+                
+                if (ch == '\\') {
+                    CharClass escaped = glob ? CharClass.of(escaped()) : escape();
+                    if (!escaped.isChar()) {
+                        chars.add(escaped);
+                        continue;
+                    }
+                    ch = escaped.ranges.charAt(0);
+                }
+                
+                char to = ch;
+                if (hasNext() && peek() == '-' && index + 1 < pattern.length() 
+                        && pattern.charAt(index + 1) != ']') {
+                    ++index;
+                    to = next();
+                    if (to == '\\') {
+                        CharClass escaped = glob ? CharClass.of(escaped()) : escape();
+                        if (!escaped.isChar()) {
+                            throw error("Illegal character range", index - 1);
+                        }
+                        to = escaped.ranges.charAt(0);
+                    }
+                    
+                    if (to < ch) {
+                        throw error("Illegal character range", index - 1);
+                    }
+                }
+                chars.add(ch, to);
+            }
+        }
+        
+        /**
+         * Parses the chars after a '\' of a regular expression
+         */
+        private CharClass escape() {
+            int start = index - 1;
+            if (!hasNext()) {
+                throw error("Unexpected internal error", start);
+            }
+            
+            char ch = next();
+            switch (ch) {
+                case 'd':
+                    return CharClass.DIGIT;
+                case 'D':
+                    return new CharClass(true).add(CharClass.DIGIT);
+                case 'w':
+                    return CharClass.WORD;
+                case 'W':
+                    return new CharClass(true).add(CharClass.WORD);
+                case 's':
+                    return CharClass.SPACE;
+                case 'S':
+                    return new CharClass(true).add(CharClass.SPACE);
+                case 't':
+                    return CharClass.of('\t');
+                case 'n':
+                    return CharClass.of('\n');
+                case 'r':
+                    return CharClass.of('\r');
+                case 'f':
+                    return CharClass.of('\f');
+                case '0':
+                    return CharClass.of('\0');
+                case 'x':
+                    return CharClass.of(hex(2, start));
+                case 'u':
+                    return CharClass.of(hex(4, start));
+                default:
+                    if (Character.isLetterOrDigit(ch)) {
+                        throw error("Unsupported escape sequence", start);
+                    }
+                    return CharClass.of(ch);
+            }
+        }
+        
+        /**
+         * Parses the given number of hex digits of an escape sequence
+         */
+        private char hex(int digits, int start) {
+            if (index + digits > pattern.length()) {
+                throw error("Illegal hexadecimal escape sequence", start);
+            }
+            
+            int value = 0;
+            for (int i = 0; i < digits; i++) {
+                int digit = Character.digit(next(), 16);
+                if (digit < 0) {
+                    throw error("Illegal hexadecimal escape sequence", start);
+                }
+                value = (value << 4) | digit;
+            }
+            return (char)value;
+        }
+        
+        /**
+         * Returns the char after a '\' of a glob pattern
+         */
+        private char escaped() {
+            if (!hasNext()) {
+                throw error("Unexpected internal error", index - 1);
+            }
+            return next();
+        }
+        
+        private boolean hasNext() {
+            return index < pattern.length();
+        }
+        
+        private char peek() {
+            return pattern.charAt(index);
+        }
+        
+        private char next() {
+            return pattern.charAt(index++);
+        }
+        
+        private PatternSyntaxException error(String message, int index) {
+            return new PatternSyntaxException(message, pattern, index);
+        }
+    }
+    
+    /**
+     * A nondeterministic automaton. A state either has a set of chars
+     * and a next state or it has a list of states it goes to without
+     * a char (and is built backwards from the accepting state).
+     */
+    private static class Nfa {
+        
+        private static final int ACCEPT = 0;
+        
+        private final List<CharClass> chars = new ArrayList<CharClass>();
+        
+        private final List<int[]> next = new ArrayList<int[]>();
+        
+        private Nfa() {
+            add(null, new int[0]);
+        }
+        
+        private int size() {
+            return next.size();
+        }
+        
+        private int add(CharClass chars, int[] next) {
+            this.chars.add(chars);
+            this.next.add(next);
+            return this.next.size() - 1;
+        }
+        
+        /**
+         * Adds the states of the given {@link Node} and returns the 
+         * first one. The last ones go to the given state.
+         */
+        private int compile(Node node, int next) {
+            switch (node.type) {
+                case Node.CHARS:
+                    return add(node.chars, new int[] { next });
+                case Node.CONCAT:
+                    for (int i = node.children.size() - 1; i >= 0; --i) {
+                        next = compile(node.children.get(i), next);
+                    }
+                    return next;
+                case Node.ALTERNATION:
+                    int[] states = new int[node.children.size()];
+                    for (int i = 0; i < states.length; i++) {
+                        states[i] = compile(node.children.get(i), next);
+                    }
+                    return add(null, states);
+                case Node.REPEAT:
+                    Node child = node.children.get(0);
+                    
+                    if (node.max == Node.UNBOUNDED) {
+                        // The loop's links are set after its body
+                        int[] loop = new int[2];
+                        int state = add(null, loop);
+                        loop[0] = compile(child, state);
+                        loop[1] = next;
+                        next = state;
+                    } else {
+                        int tail = next;
+                        for (int i = node.min; i < node.max; i++) {
+                            next = add(null, new int[] { compile(child, next), tail });
+                        }
+                    }
+                    
+                    for (int i = 0; i < node.min; i++) {
+                        next = compile(child, next);
+                    }
+                    return next;
+                default:
+                    throw new IllegalStateException("type=" + node.type);
+            }
+        }
+        
+        /**
+         * Adds the given state and all states it goes to without a char
+         * to the given set. Only states with chars and the accepting state
+         * are added.
+         */
+        private void closure(int state, BitSet set, BitSet visited) {
+            if (visited.get(state)) {
+                return;
+            }
+            visited.set(state);
+            
+            if (state == ACCEPT || chars.get(state) != null) {
+                set.set(state);
+                return;
+            }
+            
+            for (int other : next.get(state)) {
+                closure(other, set, visited);
+            }
+        }
+    }
+    
+    /**
+     * A deterministic {@link Automaton} whose states are built from 
+     * the sets of states of a {@link Nfa} as they're needed.
+     */
+    private static class LazyDfa implements Automaton {
+        
+        /**
+         * A transition that hasn't been built yet
+         */
+        private static final int UNKNOWN = -2;
+        
+        /**
+         * The transitions of the ASCII chars are in arrays
+         */
+        private static final int ASCII = 128;
+        
+        private final Nfa nfa;
+        
+        private final Map<BitSet, Integer> states = new HashMap<BitSet, Integer>();
+        
+        private final List<BitSet> sets = new ArrayList<BitSet>();
+        
+        private final List<int[]> ascii = new ArrayList<int[]>();
+        
+        private final List<Map<Character, Integer>> others 
+            = new ArrayList<Map<Character, Integer>>();
+        
+        private final int initialState;
+        
+        private LazyDfa(Nfa nfa, int start) {
+            this.nfa = nfa;
+            
+            BitSet set = new BitSet(nfa.size());
+            nfa.closure(start, set, new BitSet(nfa.size()));
+            initialState = state(set);
+        }
+        
+        @Override
+        public int getInitialState() {
+            return initialState;
+        }
+        
+        @Override
+        public synchronized int step(int state, char ch) {
+            if (ch < ASCII) {
+                int[] transitions = ascii.get(state);
+                int next = transitions[ch];
+                if (next == UNKNOWN) {
+                    next = transition(state, ch);
+                    transitions[ch] = next;
+                }
+                return next;
+            }
+            
+            Map<Character, Integer> transitions = others.get(state);
+            Integer next = transitions.get(ch);
+            if (next == null) {
+                next = transition(state, ch);
+                transitions.put(ch, next);
+            }
+            return next;
+        }
+        
+        @Override
+        public synchronized boolean isAccept(int state) {
+            return sets.get(state).get(Nfa.ACCEPT);
+        }
+        
+        /**
+         * Builds the state after the given state and char
+         */
+        private int transition(int state, char ch) {
+            BitSet set = sets.get(state);
+            BitSet next = new BitSet(nfa.size());
+            BitSet visited = new BitSet(nfa.size());
+            
+            for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+                CharClass chars = nfa.chars.get(i);
+                if (chars != null && chars.matches(ch)) {
+                    nfa.closure(nfa.next.get(i)[0], next, visited);
+                }
+            }
+            
+            return next.isEmpty() ? REJECT : state(next);
+        }
+        
+        /**
+         * Returns the state of the given set of {@link Nfa} states
+         */
+        private int state(BitSet set) {
+            Integer state = states.get(set);
+            if (state == null) {
+                state = sets.size();
+                states.put(set, state);
+                sets.add(set);
+                
+                int[] transitions = new int[ASCII];
+                Arrays.fill(transitions, UNKNOWN);
+                ascii.add(transitions);
+                others.add(new HashMap<Character, Integer>());
+            }
+            return state;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+/**
+ * A deterministic finite automaton over the chars of {@link String}s.
+ * The states are non-negative ints and {@link #REJECT} is the state
+ * from which no input is accepted.
+ * 
+ * @see Automata
+ * @see Tries#match(Trie, Automaton)
+ */
+public interface Automaton {
+    
+    /**
+     * The state that accepts nothing
+     */
+    public static final int REJECT = -1;
+    
+    /**
+     * Returns the state before the first char
+     */
+    public int getInitialState();
+    
+    /**
+     * Returns the state after the given char or {@link #REJECT}
+     * if no input that starts with it is accepted. The state is
+     * never {@link #REJECT}.
+     */
+    public int step(int state, char ch);
+    
+    /**
+     * Returns true if the input that leads to the given state
+     * is accepted
+     */
+    public boolean isAccept(int state);
+}
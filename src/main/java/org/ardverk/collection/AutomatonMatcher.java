@@ -0,0 +1,79 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the keys of a {@link PatriciaTrie} with {@link String} keys
+ * that an {@link Automaton} accepts.
+ *
+ * <p>The matcher keeps the state of the {@link Automaton} after each
+ * char of the nodes it walks down and skips the subtree if the state
+ * is {@link Automaton#REJECT}.
+ *
+ * @see Tries#match(Trie, Automaton)
+ */
+final class AutomatonMatcher extends StringTrieWalker {
+
+    private final Automaton automaton;
+
+    /**
+     * The state after the first i chars of the keys is at index i
+     */
+    private int[] states;
+
+    private AutomatonMatcher(Automaton automaton) {
+        this.automaton = automaton;
+
+        states = new int[16];
+        states[0] = automaton.getInitialState();
+    }
+
+    /**
+     * Returns the entries of the given {@link PatriciaTrie} whose keys
+     * the given {@link Automaton} accepts in the order of their keys
+     */
+    static <V> List<Map.Entry<String, V>> match(
+            PatriciaTrieBase<String, V> trie, Automaton automaton) {
+        return new AutomatonMatcher(automaton).walk(trie);
+    }
+
+    @Override
+    protected void step(int index, char ch) {
+        if (index + 1 >= states.length) {
+            states = Arrays.copyOf(states, states.length * 2);
+        }
+
+        int state = states[index];
+        states[index + 1] = (state != Automaton.REJECT)
+            ? automaton.step(state, ch) : Automaton.REJECT;
+    }
+
+    @Override
+    protected boolean isLive(int length) {
+        return states[length] != Automaton.REJECT;
+    }
+
+    @Override
+    protected boolean isMatch(int length) {
+        int state = states[length];
+        return state != Automaton.REJECT && automaton.isAccept(state);
+    }
+}
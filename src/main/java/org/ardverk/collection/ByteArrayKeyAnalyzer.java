@@ -120,7 +120,6 @@ public class ByteArrayKeyAnalyzer extends AbstractKeyAnalyzer<byte[]> {
             other = NULL;
         }
         
-        boolean allNull = true;
         int length = Math.max(lengthInBits, otherLengthInBits);
         int prefix = maxLengthInBits - length;
         
@@ -128,29 +127,86 @@ public class ByteArrayKeyAnalyzer extends AbstractKeyAnalyzer<byte[]> {
             return KeyAnalyzer.OUT_OF_BOUNDS_BIT_KEY;
         }
         
-        for (int i = 0; i < length; i++) {
-            int index = prefix + (offsetInBits + i);
-            boolean value = isBitSet(key, index, lengthInBits);
-                
-            if (value) {
-                allNull = false;
-            }
+        // The shorter key is right-aligned to the longer one, 
+        // it's as if it was padded with leading zero bits.
+        int keyStart = offsetInBits - (length - lengthInBits);
+        int otherStart = otherOffsetInBits - (length - otherLengthInBits);
+        
+        // Compare 64 bits at a time rather than calling isBitSet() 
+        // for each individual bit of the two keys.
+        long allBits = 0L;
+        for (int i = 0; i < length; i += Long.SIZE) {
+            long value = bits(key, keyStart + i, lengthInBits);
+            long otherValue = bits(other, otherStart + i, otherLengthInBits);
             
-            int otherIndex = prefix + (otherOffsetInBits + i);
-            boolean otherValue = isBitSet(other, otherIndex, otherLengthInBits);
+            int remaining = length - i;
+            if (remaining < Long.SIZE) {
+                long mask = -1L << (Long.SIZE - remaining);
+                value &= mask;
+                otherValue &= mask;
+            }
             
-            if (value != otherValue) {
-                return index;
+            long diff = value ^ otherValue;
+            if (diff != 0L) {
+                return prefix + offsetInBits + i 
+                    + Long.numberOfLeadingZeros(diff);
             }
+            
+            allBits |= value;
         }
         
-        if (allNull) {
+        if (allBits == 0L) {
             return KeyAnalyzer.NULL_BIT_KEY;
         }
         
         return KeyAnalyzer.EQUAL_BIT_KEY;
     }
     
+    /**
+     * Returns the 64 bits of the given key that start at the given 
+     * bit position (the first of them is the MSB of the returned value). 
+     * Bits that are outside of the key's range of 0 to lengthInBits 
+     * are zero.
+     */
+    private static long bits(byte[] key, int startInBits, int lengthInBits) {
+        if (key == null) {
+            return 0L;
+        }
+        
+        // The common case: A full 64 bit word that is byte aligned
+        if (startInBits >= 0 && (startInBits & 0x07) == 0 
+                && startInBits <= lengthInBits - Long.SIZE) {
+            int index = startInBits >>> 3;
+            return ((long)key[index] << 56)
+                | ((key[index + 1] & 0xFFL) << 48)
+                | ((key[index + 2] & 0xFFL) << 40)
+                | ((key[index + 3] & 0xFFL) << 32)
+                | ((key[index + 4] & 0xFFL) << 24)
+                | ((key[index + 5] & 0xFFL) << 16)
+                | ((key[index + 6] & 0xFFL) <<  8)
+                | ((key[index + 7] & 0xFFL));
+        }
+        
+        int endInBits = startInBits + Long.SIZE;
+        int from = Math.max(startInBits, 0);
+        int to = Math.min(endInBits, lengthInBits);
+        
+        // Copy the bits byte by byte. Each step takes the bits from 
+        // the current position to the end of the byte (or the end 
+        // of the range) and moves them to their position in the word.
+        long value = 0L;
+        for (int bit = from; bit < to; ) {
+            int shift = bit & 0x07;
+            int count = Math.min(LENGTH - shift, to - bit);
+            
+            int chunk = ((key[bit >>> 3] << shift) & 0xFF) >>> (LENGTH - count);
+            value |= (long)chunk << (endInBits - bit - count);
+            bit += count;
+        }
+        
+        return value;
+    }
+    
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+/**
+ * A {@link KeyAnalyzer} for byte[]s that are left-aligned like 
+ * {@link String}s: A shorter key is a prefix of the longer keys 
+ * that start with the same bytes and the keys are sorted by their 
+ * unsigned bytes.
+ * 
+ * <p>It's meant for network addresses and prefixes, such as a routing
+ * table of IPv4 CIDR blocks where 10.0.0.0/8 is {@code {10}} and 
+ * 10.1.0.0/16 is {@code {10, 1}}. The longest prefix of an address is
+ * found with {@link Trie#longestPrefixEntry(Object)}. A block whose
+ * length isn't a multiple of 8 bits must be stored as the blocks of 
+ * the next multiple of 8 bits it consists of (172.16.0.0/12 is the 16 
+ * blocks 172.16/16 to 172.31/16).
+ * 
+ * <p>Each byte is preceded by a bit that is always set. It tells 
+ * {@code {10}} and {@code {10, 0}} apart, which would otherwise have
+ * the same bits. A key of n bytes is therefore n * {@link #LENGTH} 
+ * bits long.
+ * 
+ * <p>{@link ByteArrayKeyAnalyzer} on the other hand right-aligns the 
+ * keys like numbers.
+ */
+public class ByteArrayPrefixKeyAnalyzer extends AbstractKeyAnalyzer<byte[]> {
+    
+    private static final long serialVersionUID = -2918265640287634723L;
+    
+    /**
+     * A singleton instance of {@link ByteArrayPrefixKeyAnalyzer}
+     */
+    public static final ByteArrayPrefixKeyAnalyzer INSTANCE 
+        = new ByteArrayPrefixKeyAnalyzer();
+    
+    /**
+     * The number of bits per byte: The bit that marks the
+     * end of the key and the bits of the {@link Byte}
+     */
+    public static final int LENGTH = Byte.SIZE + 1;
+    
+    /**
+     * The bits of an element
+     */
+    private static final int MASK = (1 << LENGTH) - 1;
+    
+    /**
+     * The bit that precedes each byte
+     */
+    private static final int PRESENT = 1 << Byte.SIZE;
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int bitsPerElement() {
+        return LENGTH;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int lengthInBits(byte[] key) {
+        return (key != null ? key.length * LENGTH : 0);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isBitSet(byte[] key, int bitIndex, int lengthInBits) {
+        if (key == null || bitIndex >= lengthInBits) {
+            return false;
+        }
+        
+        int value = element(key, bitIndex / LENGTH);
+        return (value & (PRESENT >>> (bitIndex % LENGTH))) != 0;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int bitIndex(byte[] key, int offsetInBits, int lengthInBits, 
+            byte[] other, int otherOffsetInBits, int otherLengthInBits) {
+        
+        boolean allNull = true;
+        int length = Math.max(lengthInBits, otherLengthInBits);
+        
+        // Compare an element at a time, the bits after 
+        // the end of the shorter key are zero.
+        for (int i = 0; i < length; i += LENGTH) {
+            int value = bits(key, offsetInBits, lengthInBits, i);
+            int otherValue = bits(other, otherOffsetInBits, otherLengthInBits, i);
+            
+            if (value != otherValue) {
+                return i + Integer.numberOfLeadingZeros(value ^ otherValue) 
+                    - (Integer.SIZE - LENGTH);
+            }
+            
+            if (value != 0) {
+                allNull = false;
+            }
+        }
+        
+        if (allNull) {
+            return KeyAnalyzer.NULL_BIT_KEY;
+        }
+        
+        return KeyAnalyzer.EQUAL_BIT_KEY;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isPrefix(byte[] prefix, int offsetInBits, 
+            int lengthInBits, byte[] key) {
+        
+        int length = lengthInBits - offsetInBits;
+        if (length > lengthInBits(key)) {
+            return false;
+        }
+        
+        for (int i = 0; i < length; i += LENGTH) {
+            if (bits(prefix, offsetInBits, length, i) != bits(key, 0, length, i)) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Returns the {@link #LENGTH} bits of the range of the given key 
+     * that starts at offsetInBits and is lengthInBits long, starting at 
+     * the given index of the range. Bits after the end of the range or 
+     * the key are zero.
+     */
+    private static int bits(byte[] key, int offsetInBits, 
+            int lengthInBits, int index) {
+        if (key == null || index >= lengthInBits) {
+            return 0;
+        }
+        
+        int start = offsetInBits + index;
+        int element = start / LENGTH;
+        int shift = start % LENGTH;
+        
+        int value = element(key, element);
+        if (shift != 0) {
+            int word = (value << LENGTH) | element(key, element + 1);
+            value = (word >>> (LENGTH - shift)) & MASK;
+        }
+        
+        int remaining = lengthInBits - index;
+        if (remaining < LENGTH) {
+            value &= (MASK << (LENGTH - remaining)) & MASK;
+        }
+        return value;
+    }
+    
+    /**
+     * Returns the bits of the byte at the given index 
+     * or zero if the key is shorter
+     */
+    private static int element(byte[] key, int index) {
+        return index < key.length ? PRESENT | (key[index] & 0xFF) : 0;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int compare(byte[] o1, byte[] o2) {
+        if (o1 == null) {
+            return (o2 == null) ? 0 : -1;
+        } else if (o2 == null) {
+            return (o1 == null) ? 0 : 1;
+        }
+        
+        int length = Math.min(o1.length, o2.length);
+        for (int i = 0; i < length; i++) {
+            int diff = (o1[i] & 0xFF) - (o2[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        
+        return o1.length - o2.length;
+    }
+}
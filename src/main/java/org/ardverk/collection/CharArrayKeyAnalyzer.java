@@ -156,4 +156,26 @@ public class CharArrayKeyAnalyzer extends AbstractKeyAnalyzer<char[]> {
         }
         return true;
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int compare(char[] o1, char[] o2) {
+        if (o1 == null) {
+            return (o2 == null) ? 0 : -1;
+        } else if (o2 == null) {
+            return 1;
+        }
+
+        int length = Math.min(o1.length, o2.length);
+        for (int i = 0; i < length; i++) {
+            int diff = o1[i] - o2[i];
+            if (diff != 0) {
+                return diff;
+            }
+        }
+
+        return o1.length - o2.length;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,1347 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.function.Predicate;
+
+import org.ardverk.collection.Cursor.Decision;
+
+/**
+ * A PATRICIA {@link Trie} that keeps its nodes in parallel arrays.
+ *
+ * <p>It's the same algorithm as in the {@link PatriciaTrie} but a node
+ * is an index into the arrays rather than an object. The left, right
+ * and parent links and the bit index are stored in int arrays and the
+ * keys and values in Object arrays. There are no per-entry objects and
+ * no predecessor links. The slots of removed nodes are kept in a free
+ * list and reused by the next insert.
+ *
+ * <p>The {@link Map.Entry}s returned by this {@link Trie} are created
+ * on demand. The {@link Iterator}s are fail-fast and the range and
+ * prefix views are backed by the {@link Trie}.
+ */
+public class CompactPatriciaTrie<K, V> extends AbstractTrie<K, V> {
+
+    private static final long serialVersionUID = -6304851322213389217L;
+
+    /**
+     * The index of the root node
+     */
+    private static final int ROOT = 0;
+
+    /**
+     * The index of a node that doesn't exist
+     */
+    private static final int NIL = -1;
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * The left and right child, the parent and
+     * the bit index of each node
+     */
+    private int[] left;
+    private int[] right;
+    private int[] parent;
+    private int[] bitIndex;
+
+    /**
+     * The key and value of each node
+     */
+    private Object[] keys;
+    private Object[] values;
+
+    /**
+     * The head of the free list. The free nodes
+     * are chained through their left links.
+     */
+    private int free = NIL;
+
+    /**
+     * The index of the first node that was never used
+     */
+    private int limit = 1;
+
+    /**
+     * The current size of the {@link Trie}
+     */
+    private int size = 0;
+
+    /**
+     * The number of times this {@link Trie} has been modified.
+     */
+    transient int modCount = 0;
+
+    /**
+     * A view of the whole {@link Trie} that does the
+     * {@link SortedMap} operations
+     */
+    private transient TrieRangeMap<K, V> view;
+
+    /**
+     * {@inheritDoc}
+     */
+    public CompactPatriciaTrie(KeyAnalyzer<? super K> keyAnalyzer) {
+        this(keyAnalyzer, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs a new {@link Trie} using the given {@link KeyAnalyzer}
+     * with room for the given number of entries.
+     */
+    public CompactPatriciaTrie(KeyAnalyzer<? super K> keyAnalyzer,
+            int initialCapacity) {
+        super(keyAnalyzer);
+
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException(
+                    "initialCapacity=" + initialCapacity);
+        }
+
+        int capacity = initialCapacity + 1;
+        left = new int[capacity];
+        right = new int[capacity];
+        parent = new int[capacity];
+        bitIndex = new int[capacity];
+        keys = new Object[capacity];
+        values = new Object[capacity];
+
+        clear();
+    }
+
+    /**
+     * Constructs a new {@link Trie} using the given {@link KeyAnalyzer}
+     * and initializes the {@link Trie} with the values from the
+     * provided {@link Map}.
+     */
+    public CompactPatriciaTrie(KeyAnalyzer<? super K> keyAnalyzer,
+            Map<? extends K, ? extends V> m) {
+        this(keyAnalyzer, m != null ? m.size() : 0);
+
+        if (m == null) {
+            throw new NullPointerException("m");
+        }
+
+        putAll(m);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        Arrays.fill(keys, 0, limit, null);
+        Arrays.fill(values, 0, limit, null);
+
+        bitIndex[ROOT] = -1;
+        parent[ROOT] = NIL;
+        left[ROOT] = ROOT;
+        right[ROOT] = NIL;
+
+        free = NIL;
+        limit = 1;
+
+        size = 0;
+        ++modCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Trims the capacity of the {@link Trie} to the highest
+     * node that is in use or on the free list.
+     */
+    public void trimToSize() {
+        if (limit < keys.length) {
+            resize(limit);
+        }
+    }
+
+    /**
+     * Resizes the arrays to the given capacity
+     */
+    private void resize(int capacity) {
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        parent = Arrays.copyOf(parent, capacity);
+        bitIndex = Arrays.copyOf(bitIndex, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        values = Arrays.copyOf(values, capacity);
+    }
+
+    /**
+     * Returns the index of a new node. It's either
+     * taken from the free list or from the end of the
+     * arrays (which grow if they're full).
+     */
+    private int allocate(K key, V value, int bitIndex) {
+        int node = free;
+        if (node != NIL) {
+            free = left[node];
+        } else {
+            if (limit == keys.length) {
+                resize(limit + (limit >> 1) + 1);
+            }
+            node = limit++;
+        }
+
+        keys[node] = key;
+        values[node] = value;
+
+        this.bitIndex[node] = bitIndex;
+        parent[node] = NIL;
+        left[node] = node;
+        right[node] = NIL;
+
+        return node;
+    }
+
+    /**
+     * Puts the given node on the free list
+     */
+    private void release(int node) {
+        keys[node] = null;
+        values[node] = null;
+
+        left[node] = free;
+        free = node;
+    }
+
+    /**
+     * Returns the key of the given node
+     */
+    @SuppressWarnings("unchecked")
+    private K keyAt(int node) {
+        return (K)keys[node];
+    }
+
+    /**
+     * Returns the value of the given node
+     */
+    @SuppressWarnings("unchecked")
+    private V valueAt(int node) {
+        return (V)values[node];
+    }
+
+    /**
+     * Replaces the key and value of the given node
+     * and returns the old value
+     */
+    private V setKeyValue(int node, K key, V value) {
+        V previous = valueAt(node);
+        keys[node] = key;
+        values[node] = value;
+        return previous;
+    }
+
+    /**
+     * Returns the child of the given node the
+     * key's bit at the node's bit index leads to
+     */
+    private int child(int node, K key, int lengthInBits) {
+        if (!isBitSet(key, bitIndex[node], lengthInBits)) {
+            return left[node];
+        }
+        return right[node];
+    }
+
+    /**
+     * Returns true if the given child is an uplink
+     * coming from a node with the given bit index
+     */
+    private boolean isUplink(int node, int fromBitIndex) {
+        return bitIndex[node] <= fromBitIndex;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V put(K key, V value) {
+        if (key == null) {
+            throw new NullPointerException("Key cannot be null");
+        }
+
+        int lengthInBits = lengthInBits(key);
+
+        // The only place to store a key with a length
+        // of zero bits is the root node
+        if (lengthInBits == 0) {
+            return putRoot(key, value);
+        }
+
+        int found = getNearestEntryForKey(key, lengthInBits);
+        if (compareKeys(key, keyAt(found))) {
+            if (keys[found] == null) { // <- must be the root
+                incrementSize();
+            } else {
+                ++modCount;
+            }
+            return setKeyValue(found, key, value);
+        }
+
+        int index = bitIndex(key, keyAt(found));
+        if (!AbstractKeyAnalyzer.isOutOfBoundsIndex(index)) {
+            if (AbstractKeyAnalyzer.isValidBitIndex(index)) {
+                /* NEW KEY+VALUE TUPLE */
+                addEntry(allocate(key, value, index), lengthInBits);
+                incrementSize();
+                return null;
+            } else if (AbstractKeyAnalyzer.isNullBitKey(index)) {
+                /* NULL BIT KEY */
+                return putRoot(key, value);
+            } else if (AbstractKeyAnalyzer.isEqualBitKey(index)) {
+                /* REPLACE OLD KEY+VALUE */
+                if (found != ROOT) {
+                    ++modCount;
+                    return setKeyValue(found, key, value);
+                }
+            }
+        }
+
+        throw new IndexOutOfBoundsException("Failed to put: "
+                + key + " -> " + value + ", " + index);
+    }
+
+    /**
+     * Puts the given key and value into the root node
+     */
+    private V putRoot(K key, V value) {
+        if (keys[ROOT] == null) {
+            incrementSize();
+        } else {
+            ++modCount;
+        }
+        return setKeyValue(ROOT, key, value);
+    }
+
+    /**
+     * Adds the given node to the {@link Trie}
+     */
+    private void addEntry(int entry, int lengthInBits) {
+        K key = keyAt(entry);
+
+        int current = left[ROOT];
+        int path = ROOT;
+        while(true) {
+            if (bitIndex[current] >= bitIndex[entry]
+                    || bitIndex[current] <= bitIndex[path]) {
+
+                if (!isBitSet(key, bitIndex[entry], lengthInBits)) {
+                    left[entry] = entry;
+                    right[entry] = current;
+                } else {
+                    left[entry] = current;
+                    right[entry] = entry;
+                }
+
+                parent[entry] = path;
+                if (bitIndex[current] >= bitIndex[entry]) {
+                    parent[current] = entry;
+                }
+
+                if (path == ROOT || !isBitSet(key, bitIndex[path], lengthInBits)) {
+                    left[path] = entry;
+                } else {
+                    right[path] = entry;
+                }
+
+                return;
+            }
+
+            path = current;
+            current = child(current, key, lengthInBits);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V get(Object k) {
+        int node = getEntry(k);
+        return node != NIL ? valueAt(node) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsKey(Object k) {
+        return getEntry(k) != NIL;
+    }
+
+    /**
+     * Returns the node of the given key or {@link #NIL}
+     */
+    private int getEntry(Object k) {
+        K key = castKey(k);
+        if (key == null) {
+            return NIL;
+        }
+
+        int node = getNearestEntryForKey(key, lengthInBits(key));
+        return keys[node] != null && compareKeys(key, keyAt(node)) ? node : NIL;
+    }
+
+    /**
+     * Returns the node the search for the given key ends
+     * at. It's the root node if the key isn't in the {@link Trie}
+     * and all bits the search looked at are zero.
+     */
+    private int getNearestEntryForKey(K key, int lengthInBits) {
+        int current = left[ROOT];
+        int path = ROOT;
+        while (!isUplink(current, bitIndex[path])) {
+            path = current;
+            current = child(current, key, lengthInBits);
+        }
+        return current;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws ClassCastException if provided key is of an incompatible type
+     */
+    @Override
+    public V remove(Object k) {
+        int node = getEntry(k);
+        return node != NIL ? removeEntry(node) : null;
+    }
+
+    /**
+     * Removes the given node from the {@link Trie} and returns its value
+     */
+    private V removeEntry(int h) {
+        V value = valueAt(h);
+
+        if (h != ROOT) {
+            if (left[h] != h && right[h] != h) {
+                removeInternalEntry(h);
+            } else {
+                removeExternalEntry(h);
+            }
+            release(h);
+        } else {
+            setKeyValue(ROOT, null, null);
+        }
+
+        decrementSize();
+        return value;
+    }
+
+    /**
+     * Removes a node that has an uplink to itself. The
+     * other child takes its place.
+     */
+    private void removeExternalEntry(int h) {
+        int p = parent[h];
+        int child = (left[h] == h) ? right[h] : left[h];
+
+        if (left[p] == h) {
+            left[p] = child;
+        } else {
+            right[p] = child;
+        }
+
+        if (bitIndex[child] > bitIndex[p]) {
+            parent[child] = p;
+        }
+    }
+
+    /**
+     * Removes a node that has no uplink to itself. The node
+     * with the uplink to it takes its place.
+     *
+     * @see PatriciaTrieBase
+     */
+    private void removeInternalEntry(int h) {
+        int p = predecessor(h);
+
+        bitIndex[p] = bitIndex[h];
+
+        // Fix P's parent and child nodes
+        {
+            int pp = parent[p];
+            int child = (left[p] == h) ? right[p] : left[p];
+
+            if (left[pp] == p) {
+                left[pp] = child;
+            } else {
+                right[pp] = child;
+            }
+
+            if (bitIndex[child] > bitIndex[pp]) {
+                parent[child] = pp;
+            }
+        }
+
+        // Fix H's parent and child nodes
+        {
+            if (parent[left[h]] == h) {
+                parent[left[h]] = p;
+            }
+
+            if (parent[right[h]] == h) {
+                parent[right[h]] = p;
+            }
+
+            if (left[parent[h]] == h) {
+                left[parent[h]] = p;
+            } else {
+                right[parent[h]] = p;
+            }
+        }
+
+        parent[p] = parent[h];
+        left[p] = left[h];
+        right[p] = right[h];
+    }
+
+    /**
+     * Returns the node that has the uplink to the given node.
+     * There are no predecessor links, it's the last node on
+     * the path to the node's key.
+     */
+    private int predecessor(int node) {
+        K key = keyAt(node);
+        int lengthInBits = lengthInBits(key);
+
+        int current = left[ROOT];
+        int path = ROOT;
+        while (!isUplink(current, bitIndex[path])) {
+            path = current;
+            current = child(current, key, lengthInBits);
+        }
+        return path;
+    }
+
+    /**
+     * A helper method to increment the {@link Trie} size
+     * and the modification counter.
+     */
+    private void incrementSize() {
+        ++size;
+        ++modCount;
+    }
+
+    /**
+     * A helper method to decrement the {@link Trie} size
+     * and increment the modification counter.
+     */
+    private void decrementSize() {
+        --size;
+        ++modCount;
+    }
+
+    /**
+     * Returns the index of the first bit that is different in the
+     * given keys. Unlike {@link #bitIndex(Object, Object)} this is
+     * not {@link KeyAnalyzer#NULL_BIT_KEY} just because the first
+     * key has no bits set.
+     */
+    private int branchIndex(K key, K other) {
+        int index = bitIndex(key, other);
+        if (other != null && AbstractKeyAnalyzer.isNullBitKey(index)) {
+            index = bitIndex(other, key);
+        }
+        return index;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> select(K key) {
+        int lengthInBits = lengthInBits(key);
+
+        int h = left[ROOT];
+        int from = -1;
+
+        // The subtree of the last branch we didn't take
+        int alternative = NIL;
+        int alternativeBitIndex = -1;
+
+        while (true) {
+            if (isUplink(h, from)) {
+                if (keys[h] != null) {
+                    return new CompactEntry(h);
+                }
+
+                // The root is the only empty node and there
+                // is only one uplink to it (see PatriciaTrieBase)
+                if (alternative == NIL) {
+                    return null;
+                }
+
+                h = alternative;
+                from = alternativeBitIndex;
+                alternative = NIL;
+                continue;
+            }
+
+            from = bitIndex[h];
+            if (!isBitSet(key, from, lengthInBits)) {
+                alternative = right[h];
+                h = left[h];
+            } else {
+                alternative = left[h];
+                h = right[h];
+            }
+            alternativeBitIndex = from;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> select(K key, Cursor<? super K, ? super V> cursor) {
+        int lengthInBits = lengthInBits(key);
+
+        NodeStack stack = new NodeStack();
+        stack.push(left[ROOT], -1);
+
+        while (!stack.isEmpty()) {
+            int from = stack.peekBitIndex();
+            int h = stack.pop();
+
+            if (!isUplink(h, from)) {
+                pushNearest(stack, h, key, lengthInBits);
+                continue;
+            }
+
+            if (keys[h] == null) {
+                continue;
+            }
+
+            CompactEntry entry = new CompactEntry(h);
+            Decision decision = cursor.select(entry);
+            switch(decision) {
+                case REMOVE:
+                    throw new UnsupportedOperationException(
+                            "Cannot remove during select");
+                case EXIT:
+                    return entry;
+                case REMOVE_AND_EXIT:
+                    removeEntry(h);
+                    return entry;
+                case CONTINUE:
+                    // fall through.
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Pushes the children of the given node onto the stack,
+     * the one that is closer to the key (in terms of XOR
+     * distance) last.
+     */
+    private void pushNearest(NodeStack stack, int node,
+            K key, int lengthInBits) {
+        int from = bitIndex[node];
+        if (!isBitSet(key, from, lengthInBits)) {
+            stack.push(right[node], from);
+            stack.push(left[node], from);
+        } else {
+            stack.push(left[node], from);
+            stack.push(right[node], from);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int selectNearest(K key, int count,
+            Collection<? super Map.Entry<K, V>> entries) {
+        return selectNearestImpl(key, count, null, entries);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int selectNearest(K key, int count,
+            Predicate<? super Map.Entry<K, V>> predicate,
+            Collection<? super Map.Entry<K, V>> entries) {
+        if (predicate == null) {
+            throw new NullPointerException("predicate");
+        }
+
+        return selectNearestImpl(key, count, predicate, entries);
+    }
+
+    /**
+     * The same walk as {@link #select(Object, Cursor)} that stops
+     * as soon as it has count entries.
+     */
+    private int selectNearestImpl(K key, int count,
+            Predicate<? super Map.Entry<K, V>> predicate,
+            Collection<? super Map.Entry<K, V>> entries) {
+
+        if (count < 0) {
+            throw new IllegalArgumentException("count=" + count);
+        }
+
+        if (entries == null) {
+            throw new NullPointerException("entries");
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        int lengthInBits = lengthInBits(key);
+        int selected = 0;
+
+        NodeStack stack = new NodeStack();
+        stack.push(left[ROOT], -1);
+
+        while (!stack.isEmpty()) {
+            int from = stack.peekBitIndex();
+            int h = stack.pop();
+
+            if (!isUplink(h, from)) {
+                pushNearest(stack, h, key, lengthInBits);
+                continue;
+            }
+
+            if (keys[h] == null) {
+                continue;
+            }
+
+            CompactEntry entry = new CompactEntry(h);
+            if (predicate == null || predicate.test(entry)) {
+                entries.add(entry);
+                if (++selected == count) {
+                    break;
+                }
+            }
+        }
+
+        return selected;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see PatriciaTrieBase#longestPrefixEntry(Object, int)
+     */
+    @Override
+    public Map.Entry<K, V> longestPrefixEntry(K key, int lengthInBits) {
+        if (lengthInBits < 0 || lengthInBits > lengthInBits(key)) {
+            throw new IllegalArgumentException("lengthInBits=" + lengthInBits);
+        }
+
+        NodeStack stack = new NodeStack();
+
+        int h = left[ROOT];
+        int from = -1;
+
+        while (!isUplink(h, from)) {
+            from = bitIndex[h];
+            if (!isBitSet(key, from, lengthInBits)) {
+                h = left[h];
+            } else {
+                stack.push(h, from);
+                h = right[h];
+            }
+        }
+
+        if (isPrefixOf(h, key, lengthInBits)) {
+            return new CompactEntry(h);
+        }
+
+        while (!stack.isEmpty()) {
+            int node = stack.pop();
+
+            // Follow the zero bits to the only possible candidate
+            int candidate = left[node];
+            while (!isUplink(candidate, bitIndex[node])) {
+                node = candidate;
+                candidate = left[candidate];
+            }
+
+            if (isPrefixOf(candidate, key, lengthInBits)) {
+                return new CompactEntry(candidate);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns true if the given node's key is a prefix of the
+     * first lengthInBits bits of the given key.
+     */
+    private boolean isPrefixOf(int node, K key, int lengthInBits) {
+        K prefix = keyAt(node);
+        if (prefix == null) {
+            return false;
+        }
+
+        int prefixLength = lengthInBits(prefix);
+        return prefixLength <= lengthInBits
+            && keyAnalyzer.isPrefix(prefix, 0, prefixLength, key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> traverse(Cursor<? super K, ? super V> cursor) {
+        Iterator<Map.Entry<K, V>> it = entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<K, V> entry = it.next();
+
+            Decision decision = cursor.select(entry);
+            switch(decision) {
+                case EXIT:
+                    return entry;
+                case REMOVE:
+                    it.remove();
+                    break; // out of switch, stay in while loop
+                case REMOVE_AND_EXIT:
+                    it.remove();
+                    return entry;
+                case CONTINUE: // do nothing.
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the view of the whole {@link Trie}
+     */
+    private TrieRangeMap<K, V> view() {
+        if (view == null) {
+            view = newRangeMap(null, 0, 0);
+        }
+        return view;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return view().entrySet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<K> keySet() {
+        return view().keySet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Comparator<? super K> comparator() {
+        return keyAnalyzer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K firstKey() {
+        return view().firstKey();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K lastKey() {
+        return view().lastKey();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> headMap(K toKey) {
+        return view().headMap(toKey);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> subMap(K fromKey, K toKey) {
+        return view().subMap(fromKey, toKey);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> tailMap(K fromKey) {
+        return view().tailMap(fromKey);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedBy(K key) {
+        return getPrefixedByBits(key, 0, lengthInBits(key));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedBy(K key, int length) {
+        return getPrefixedByBits(key, 0, length * bitsPerElement());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedBy(K key, int offset, int length) {
+        int bitsPerElement = bitsPerElement();
+        return getPrefixedByBits(key, offset*bitsPerElement, length*bitsPerElement);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedByBits(K key, int lengthInBits) {
+        return getPrefixedByBits(key, 0, lengthInBits);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedByBits(K key, int offsetInBits, int lengthInBits) {
+
+        int offsetLength = offsetInBits + lengthInBits;
+        if (offsetLength > lengthInBits(key)) {
+            throw new IllegalArgumentException(offsetInBits + " + "
+                    + lengthInBits + " > " + lengthInBits(key));
+        }
+
+        if (offsetLength == 0) {
+            return this;
+        }
+
+        return newRangeMap(key, offsetInBits, lengthInBits);
+    }
+
+    /**
+     * Walks a subtree and returns its nodes in the order of their keys.
+     * Every node except the root is the target of exactly one uplink
+     * and the uplinks are in the order of the keys they point to.
+     */
+    private class NodeIterator {
+
+        private final NodeStack stack = new NodeStack();
+
+        private final boolean descending;
+
+        /**
+         * Creates a {@link NodeIterator} for the subtree that is hanging
+         * off a node with the given bit index. It starts with the node
+         * that follows the given key (or the first one if the key is null).
+         */
+        public NodeIterator(int top, int fromBitIndex,
+                K from, boolean inclusive, boolean descending) {
+            this.descending = descending;
+
+            if (top == NIL) {
+                return;
+            } else if (from == null) {
+                stack.push(top, fromBitIndex);
+            } else {
+                pushFollowing(top, fromBitIndex, from, inclusive);
+            }
+        }
+
+        /**
+         * Pushes the subtrees that follow the given key onto the
+         * stack, the closest one last.
+         */
+        private void pushFollowing(int top, int fromBitIndex,
+                K from, boolean inclusive) {
+            int lengthInBits = lengthInBits(from);
+
+            NodeStack path = new NodeStack();
+            path.push(top, fromBitIndex);
+
+            int node = top;
+            while (!isUplink(node, fromBitIndex)) {
+                fromBitIndex = bitIndex[node];
+                node = child(node, from, lengthInBits);
+                path.push(node, fromBitIndex);
+            }
+
+            // The key of the node has the same bits as the given key
+            // on the whole path (an empty root node counts as a key
+            // with no bits set). So the key branches off above the
+            // first node on the path with a greater bit index unless
+            // the bit index is invalid (the keys are equal).
+            int end = path.size() - 1;
+            boolean following = inclusive;
+
+            int index = branchIndex(from, keyAt(node));
+            if (AbstractKeyAnalyzer.isValidBitIndex(index)) {
+                end = 0;
+                while (end < path.size() - 1
+                        && bitIndex[path.nodeAt(end)] < index) {
+                    ++end;
+                }
+
+                following = (isBitSet(from, index, lengthInBits) == descending);
+            }
+
+            for (int i = 0; i < end; i++) {
+                node = path.nodeAt(i);
+                if (isBitSet(from, bitIndex[node], lengthInBits) == descending) {
+                    stack.push(descending ? left[node] : right[node], bitIndex[node]);
+                }
+            }
+
+            if (following) {
+                stack.push(path.nodeAt(end), path.bitIndexAt(end));
+            }
+        }
+
+        /**
+         * Returns the next node or {@link #NIL} if there are no more
+         */
+        public int next() {
+            while (!stack.isEmpty()) {
+                int from = stack.peekBitIndex();
+                int node = stack.pop();
+
+                if (!isUplink(node, from)) {
+                    int first = descending ? right[node] : left[node];
+                    int second = descending ? left[node] : right[node];
+
+                    stack.push(second, bitIndex[node]);
+                    stack.push(first, bitIndex[node]);
+
+                } else if (keys[node] != null) {
+                    return node;
+                }
+            }
+
+            return NIL;
+        }
+    }
+
+    /**
+     * Creates a {@link TrieRangeMap} for the keys with the given prefix
+     * (or all keys if it is null)
+     */
+    private TrieRangeMap<K, V> newRangeMap(K prefix, int offsetInBits, int lengthInBits) {
+        return new TrieRangeMap<K, V>(this, new RangeNodes(),
+                null, null, prefix, offsetInBits, lengthInBits);
+    }
+
+    /**
+     * Gives the {@link TrieRangeMap}s access to the nodes
+     */
+    private final class RangeNodes implements TrieRangeMap.Nodes<K, V> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public TrieRangeMap.Range<K, V> range(TrieRangeMap<K, V> view) {
+            return new Range(view);
+        }
+    }
+
+    /**
+     * The nodes in a {@link TrieRangeMap}. They're looked up on
+     * demand because the {@link Trie} may change.
+     */
+    private final class Range implements TrieRangeMap.Range<K, V> {
+
+        private final TrieRangeMap<K, V> view;
+
+        public Range(TrieRangeMap<K, V> view) {
+            this.view = view;
+        }
+
+        /**
+         * Returns a {@link NodeIterator} for the subtree with all keys
+         * that have the prefix (or the whole {@link Trie}).
+         */
+        private NodeIterator iterator(K from, boolean inclusive, boolean descending) {
+            int node = left[ROOT];
+            int fromBitIndex = -1;
+
+            K prefix = view.prefix;
+            if (prefix != null) {
+                int offsetInBits = view.offsetInBits;
+                int lengthInBits = view.lengthInBits;
+
+                int endIndexInBits = offsetInBits + lengthInBits;
+                while (!isUplink(node, fromBitIndex)
+                        && bitIndex[node] < lengthInBits) {
+                    fromBitIndex = bitIndex[node];
+                    node = isBitSet(prefix, offsetInBits + fromBitIndex,
+                            endIndexInBits) ? right[node] : left[node];
+                }
+
+                // All keys below the node have the same first lengthInBits
+                // bits and the node's own key is one of them.
+                K key = keyAt(node);
+                if (key == null) {
+                    node = NIL;
+                } else {
+                    int index = keyAnalyzer.bitIndex(prefix, offsetInBits,
+                            lengthInBits, key, 0, lengthInBits(key));
+                    if (index >= 0 && index < lengthInBits) {
+                        node = NIL;
+                    }
+                }
+            }
+
+            return new NodeIterator(node, fromBitIndex,
+                    from, inclusive, descending);
+        }
+
+        /**
+         * Returns the lowest node in the range or {@link #NIL}
+         */
+        private int lowestEntry() {
+            int node = iterator(view.lo, true, false).next();
+            return node != NIL && !view.tooHigh(keyAt(node)) ? node : NIL;
+        }
+
+        /**
+         * Returns the highest node in the range or {@link #NIL}
+         */
+        private int highestEntry() {
+            int node = iterator(view.hi, false, true).next();
+            return node != NIL && !view.tooLow(keyAt(node)) ? node : NIL;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int size() {
+            int size = 0;
+            for (Iterator<K> it = new KeyIterator(); it.hasNext(); it.next()) {
+                ++size;
+            }
+            return size;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isEmpty() {
+            return lowestEntry() == NIL;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K firstKey() {
+            int node = lowestEntry();
+            if (node == NIL) {
+                throw new NoSuchElementException();
+            }
+            return keyAt(node);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K lastKey() {
+            int node = highestEntry();
+            if (node == NIL) {
+                throw new NoSuchElementException();
+            }
+            return keyAt(node);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Iterator<Map.Entry<K, V>> entryIterator() {
+            return new EntryIterator();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Iterator<K> keyIterator() {
+            return new KeyIterator();
+        }
+
+        /**
+         * An {@link Iterator} over the entries in the range
+         */
+        private abstract class RangeIterator<E> implements Iterator<E> {
+
+            private int expectedModCount = modCount;
+
+            private NodeIterator nodes = iterator(view.lo, true, false);
+
+            private int next = findNext();
+
+            private K current = null;
+
+            /**
+             * Returns the next node in the range or {@link #NIL}
+             */
+            private int findNext() {
+                int node = nodes.next();
+                return node != NIL && !view.tooHigh(keyAt(node)) ? node : NIL;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean hasNext() {
+                return next != NIL;
+            }
+
+            /**
+             * Returns the next node
+             */
+            protected int nextNode() {
+                if (expectedModCount != modCount) {
+                    throw new ConcurrentModificationException();
+                }
+
+                int node = next;
+                if (node == NIL) {
+                    throw new NoSuchElementException();
+                }
+
+                current = keyAt(node);
+                next = findNext();
+                return node;
+            }
+
+            /**
+             * {@inheritDoc}
+             *
+             * The removal may move other nodes around. The
+             * {@link NodeIterator} is re-created for the keys
+             * that follow the removed one.
+             */
+            @Override
+            public void remove() {
+                if (current == null) {
+                    throw new IllegalStateException();
+                }
+
+                if (expectedModCount != modCount) {
+                    throw new ConcurrentModificationException();
+                }
+
+                K key = current;
+                current = null;
+                CompactPatriciaTrie.this.remove(key);
+
+                nodes = iterator(key, false, false);
+                next = findNext();
+                expectedModCount = modCount;
+            }
+        }
+
+        /**
+         * An {@link Iterator} that returns {@link Map.Entry}s
+         */
+        private class EntryIterator extends RangeIterator<Map.Entry<K, V>> {
+            @Override
+            public Map.Entry<K, V> next() {
+                return new CompactEntry(nextNode());
+            }
+        }
+
+        /**
+         * An {@link Iterator} that returns keys
+         */
+        private class KeyIterator extends RangeIterator<K> {
+            @Override
+            public K next() {
+                return keyAt(nextNode());
+            }
+        }
+    }
+
+    /**
+     * A {@link Map.Entry} that is created on demand for a node.
+     * Its {@link #setValue(Object)} writes through as long as
+     * the node still has the entry's key.
+     */
+    private final class CompactEntry extends BasicEntry<K, V> {
+
+        private static final long serialVersionUID = 2744216826451298571L;
+
+        private final int node;
+
+        public CompactEntry(int node) {
+            super(keyAt(node), valueAt(node));
+            this.node = node;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public V setValue(V value) {
+            if (keys[node] == key) {
+                values[node] = value;
+            }
+            return super.setValue(value);
+        }
+    }
+}
@@ -0,0 +1,2243 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import org.ardverk.collection.Cursor.Decision;
+
+/**
+ * A lock-free, thread-safe PATRICIA {@link Trie}.
+ *
+ * <p>Unlike the {@link PatriciaTrie} the keys are stored in the leaves
+ * and the internal nodes are used for branching only. Lookups follow
+ * the bits of the key down to a leaf without any locking or retrying.
+ * Each update replaces a single link with a compare-and-set. A leaf is
+ * removed by flagging the link to it first and then replacing its parent
+ * with its sibling. The link to the sibling gets tagged before so that
+ * nobody can change it in the meantime. Threads that run into a flagged
+ * or tagged link help to finish the removal and try again.
+ *
+ * <p>The iterators and views are weakly consistent. They never throw a
+ * {@link ConcurrentModificationException} and may or may not reflect
+ * changes that happen after they were created. Keys and values can't
+ * be null and the {@link Map.Entry}s are immutable snapshots. The
+ * {@link #size()} is only exact in the absence of concurrent updates.
+ */
+public class ConcurrentPatriciaTrie<K, V> extends AbstractTrie<K, V>
+        implements ConcurrentNavigableMap<K, V> {
+
+    private static final long serialVersionUID = 3514280326414545765L;
+
+    /**
+     * The bit index of the {@link Leaf}s. It's greater than
+     * the bit index of any {@link Internal} node.
+     */
+    private static final int LEAF = Integer.MAX_VALUE;
+
+    /**
+     * The link of an empty {@link Trie}
+     */
+    @SuppressWarnings("rawtypes")
+    private static final Link EMPTY = new Link<Object, Object>(null, false, false);
+
+    /**
+     * The head of the {@link Trie}. Its left link points to the
+     * actual {@link Trie} and its right link is never used.
+     */
+    private transient volatile Internal<K, V> head;
+
+    /**
+     * The number of keys in the {@link Trie}
+     */
+    private transient LongAdder size;
+
+    /**
+     * An unbounded view of the {@link Trie} that implements the
+     * {@link NavigableMap} methods for us
+     */
+    private transient SubMap view;
+
+    /**
+     * Creates a {@link ConcurrentPatriciaTrie}
+     */
+    public ConcurrentPatriciaTrie(KeyAnalyzer<? super K> keyAnalyzer) {
+        super(keyAnalyzer);
+        init();
+    }
+
+    /**
+     * Creates a {@link ConcurrentPatriciaTrie} with the mappings
+     * of the given {@link Map}
+     */
+    public ConcurrentPatriciaTrie(KeyAnalyzer<? super K> keyAnalyzer,
+            Map<? extends K, ? extends V> m) {
+        this(keyAnalyzer);
+
+        if (m == null) {
+            throw new NullPointerException("m");
+        }
+
+        putAll(m);
+    }
+
+    /**
+     * Initializes the (transient) state of an empty {@link Trie}
+     */
+    private void init() {
+        size = new LongAdder();
+        view = new SubMap(null, false, null, false, false);
+        head = new Internal<K, V>(-1, null,
+                ConcurrentPatriciaTrie.<K, V>emptyLink(),
+                ConcurrentPatriciaTrie.<K, V>emptyLink());
+    }
+
+    /**
+     * Returns the link of an empty {@link Trie}
+     */
+    @SuppressWarnings("unchecked")
+    private static <K, V> Link<K, V> emptyLink() {
+        return EMPTY;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        long size = this.size.sum();
+        if (size < 0L) {
+            return 0;
+        }
+
+        return size < Integer.MAX_VALUE ? (int)size : Integer.MAX_VALUE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmpty() {
+        return view.isEmpty();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The keys are removed one by one. Keys that are added
+     * concurrently may or may not be removed as well.
+     */
+    @Override
+    public void clear() {
+        view.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V get(Object k) {
+        Leaf<K, V> leaf = getLeaf(k);
+        return leaf != null ? leaf.value : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsKey(Object k) {
+        return getLeaf(k) != null;
+    }
+
+    /**
+     * Returns the {@link Leaf} for the given key or null if there is
+     * no such key. A lookup never retries and never writes anything.
+     */
+    private Leaf<K, V> getLeaf(Object k) {
+        if (k == null) {
+            throw new NullPointerException("key");
+        }
+
+        K key = castKey(k);
+        int lengthInBits = lengthInBits(key);
+
+        Link<K, V> link = head.left;
+        while (link.node instanceof Internal) {
+            Internal<K, V> node = (Internal<K, V>)link.node;
+            link = node.child(isBitSet(key, node.bitIndex, lengthInBits));
+        }
+
+        // A flagged Leaf is being removed and is therefore gone
+        Leaf<K, V> leaf = (Leaf<K, V>)link.node;
+        if (leaf != null && !link.flag && compareKeys(key, leaf.key)) {
+            return leaf;
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V put(K key, V value) {
+        return putImpl(key, value, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return putImpl(key, value, true);
+    }
+
+    /**
+     * Adds the given key-value pair to the {@link Trie} or replaces
+     * the value of an existing key unless onlyIfAbsent is true.
+     */
+    private V putImpl(K key, V value, boolean onlyIfAbsent) {
+        if (key == null) {
+            throw new NullPointerException("Key cannot be null");
+        }
+
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+
+        int lengthInBits = lengthInBits(key);
+
+        while (true) {
+            Seek<K, V> seek = seek(key, lengthInBits, LEAF);
+            Link<K, V> link = seek.link;
+            Leaf<K, V> leaf = (Leaf<K, V>)link.node;
+
+            if (leaf == null) {
+                // The Trie is empty
+                if (seek.parent.casChild(false, link,
+                        new Link<K, V>(new Leaf<K, V>(key, value)))) {
+                    size.increment();
+                    return null;
+                }
+                continue;
+            }
+
+            int bitIndex = branchIndex(key, leaf.key);
+            if (AbstractKeyAnalyzer.isOutOfBoundsIndex(bitIndex)) {
+                throw new IndexOutOfBoundsException("Failed to put: "
+                        + key + " -> " + value + ", " + bitIndex);
+            }
+
+            if (!AbstractKeyAnalyzer.isValidBitIndex(bitIndex)) {
+                /* REPLACE OLD KEY+VALUE */
+                if (link.flag || link.tag) {
+                    help(key, lengthInBits, seek);
+                    continue;
+                }
+
+                if (onlyIfAbsent) {
+                    return leaf.value;
+                }
+
+                if (seek.parent.casChild(seek.right, link,
+                        new Link<K, V>(new Leaf<K, V>(key, value)))) {
+                    return leaf.value;
+                }
+
+                help(key, lengthInBits, seek);
+                continue;
+            }
+
+            /* NEW KEY+VALUE TUPLE */
+
+            // The key branches off above the first node on
+            // its path that has a greater bit index
+            Seek<K, V> branch = seek(key, lengthInBits, bitIndex);
+            Link<K, V> at = branch.link;
+
+            // Make sure the subtree is still what we think it is
+            // (i.e. its keys differ from ours first at bitIndex). A
+            // concurrent insert may have put a node with the same bit
+            // index on the path in which case we start over.
+            Node<K, V> subtree = at.node;
+            if (subtree != leaf && (subtree == null
+                    || subtree.bitIndex <= bitIndex
+                    || branchIndex(key, subtree.key) != bitIndex)) {
+                continue;
+            }
+
+            if (at.flag || at.tag) {
+                help(key, lengthInBits, branch);
+                continue;
+            }
+
+            Link<K, V> added = new Link<K, V>(new Leaf<K, V>(key, value));
+            Link<K, V> other = new Link<K, V>(subtree);
+
+            Internal<K, V> node;
+            if (!isBitSet(key, bitIndex, lengthInBits)) {
+                node = new Internal<K, V>(bitIndex, key, added, other);
+            } else {
+                node = new Internal<K, V>(bitIndex, key, other, added);
+            }
+
+            if (branch.parent.casChild(branch.right, at, new Link<K, V>(node))) {
+                size.increment();
+                return null;
+            }
+
+            help(key, lengthInBits, branch);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V replace(K key, V value) {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+
+        return replaceImpl(key, null, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+
+        if (oldValue == null) {
+            throw new NullPointerException("oldValue");
+        }
+
+        if (newValue == null) {
+            throw new NullPointerException("newValue");
+        }
+
+        return replaceImpl(key, oldValue, newValue) != null;
+    }
+
+    /**
+     * Replaces the value of the given key if the key exists and its
+     * value is equal to the expected value (if not null). Returns
+     * the previous value or null if nothing was replaced.
+     */
+    private V replaceImpl(K key, Object expected, V value) {
+        int lengthInBits = lengthInBits(key);
+
+        while (true) {
+            Seek<K, V> seek = seek(key, lengthInBits, LEAF);
+            Link<K, V> link = seek.link;
+            Leaf<K, V> leaf = (Leaf<K, V>)link.node;
+
+            if (leaf == null || link.flag || !compareKeys(key, leaf.key)
+                    || (expected != null && !expected.equals(leaf.value))) {
+                return null;
+            }
+
+            if (!link.tag && seek.parent.casChild(seek.right, link,
+                    new Link<K, V>(new Leaf<K, V>(key, value)))) {
+                return leaf.value;
+            }
+
+            help(key, lengthInBits, seek);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V remove(Object k) {
+        if (k == null) {
+            throw new NullPointerException("key");
+        }
+
+        return removeImpl(castKey(k), null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean remove(Object k, Object value) {
+        if (k == null) {
+            throw new NullPointerException("key");
+        }
+
+        return value != null && removeImpl(castKey(k), value) != null;
+    }
+
+    /**
+     * Removes the given key if its value is equal to the expected
+     * value (if not null). Returns the removed value or null.
+     *
+     * <p>The key is gone as soon as we manage to flag the link to
+     * its {@link Leaf}. Everything after that is just cleaning up.
+     */
+    private V removeImpl(K key, Object expected) {
+        int lengthInBits = lengthInBits(key);
+        Leaf<K, V> removed = null;
+
+        while (true) {
+            Seek<K, V> seek = seek(key, lengthInBits, LEAF);
+            Link<K, V> link = seek.link;
+
+            if (removed != null) {
+                // Somebody else may have finished the job for us
+                if (link.node != removed
+                        || cleanup(key, lengthInBits, seek)) {
+                    return removed.value;
+                }
+                continue;
+            }
+
+            Leaf<K, V> leaf = (Leaf<K, V>)link.node;
+            if (leaf == null || link.flag || !compareKeys(key, leaf.key)
+                    || (expected != null && !expected.equals(leaf.value))) {
+                return null;
+            }
+
+            if (!link.tag && seek.parent.casChild(seek.right, link,
+                    new Link<K, V>(leaf, true, false))) {
+                size.decrement();
+
+                removed = leaf;
+                if (cleanup(key, lengthInBits, seek)) {
+                    return removed.value;
+                }
+                continue;
+            }
+
+            help(key, lengthInBits, seek);
+        }
+    }
+
+    /**
+     * Returns the index of the first bit that is different in the given
+     * keys. Unlike {@link #bitIndex(Object, Object)} this is also true if
+     * the key has no bits set. The result is {@link KeyAnalyzer#NULL_BIT_KEY}
+     * only if neither of the keys has any bits set.
+     */
+    private int branchIndex(K key, K other) {
+        int bitIndex = bitIndex(key, other);
+        if (AbstractKeyAnalyzer.isNullBitKey(bitIndex)) {
+            bitIndex = bitIndex(other, key);
+        }
+        return bitIndex;
+    }
+
+    /**
+     * Follows the given key from the head of the {@link Trie} down to
+     * the first node whose bit index is greater than or equal to the
+     * given bit index. Use {@link #LEAF} to go all the way down.
+     */
+    private Seek<K, V> seek(K key, int lengthInBits, int bitIndex) {
+        Internal<K, V> parent = head;
+        Link<K, V> link = parent.left;
+        boolean right = false;
+
+        Internal<K, V> ancestor = parent;
+        Node<K, V> successor = link.node;
+
+        while (link.node instanceof Internal
+                && link.node.bitIndex < bitIndex) {
+            Internal<K, V> node = (Internal<K, V>)link.node;
+
+            // The last untagged link on the path is where a
+            // removal will link the sibling of a Leaf to
+            if (!link.tag) {
+                ancestor = parent;
+                successor = node;
+            }
+
+            parent = node;
+            right = isBitSet(key, node.bitIndex, lengthInBits);
+            link = node.child(right);
+        }
+
+        return new Seek<K, V>(ancestor, successor, parent, right, link);
+    }
+
+    /**
+     * Helps to finish the removal that keeps us from
+     * changing the link the given {@link Seek} ended at
+     */
+    private void help(K key, int lengthInBits, Seek<K, V> seek) {
+        Link<K, V> link = seek.parent.child(seek.right);
+        if (link.node == seek.link.node && (link.flag || link.tag)) {
+            cleanup(key, lengthInBits, seek);
+        }
+    }
+
+    /**
+     * Physically removes a flagged {@link Leaf} and its parent (the
+     * {@link Seek}'s parent) from the {@link Trie}. Either the link
+     * from the parent in the direction of the key or its sibling must
+     * be flagged. Returns true if we were the ones who removed them.
+     */
+    private boolean cleanup(K key, int lengthInBits, Seek<K, V> seek) {
+        Internal<K, V> parent = seek.parent;
+
+        // The only Leaf hangs off the head and there is no sibling
+        if (parent.bitIndex < 0) {
+            Link<K, V> link = parent.left;
+            return link.flag && parent.casChild(false, link,
+                    ConcurrentPatriciaTrie.<K, V>emptyLink());
+        }
+
+        boolean right = isBitSet(key, parent.bitIndex, lengthInBits);
+        boolean siblingRight = parent.child(right).flag ? !right : right;
+
+        // Tag the link to the sibling so that nobody can change it
+        Link<K, V> sibling = parent.child(siblingRight);
+        while (!sibling.tag) {
+            Link<K, V> tagged = new Link<K, V>(sibling.node, sibling.flag, true);
+            if (parent.casChild(siblingRight, sibling, tagged)) {
+                sibling = tagged;
+            } else {
+                sibling = parent.child(siblingRight);
+            }
+        }
+
+        // Link the sibling to the ancestor. It keeps its flag because
+        // it may be a Leaf that is being removed as well.
+        Internal<K, V> ancestor = seek.ancestor;
+        boolean successorRight = ancestor.bitIndex >= 0
+            && isBitSet(key, ancestor.bitIndex, lengthInBits);
+
+        Link<K, V> link = ancestor.child(successorRight);
+        if (link.node != seek.successor || link.flag || link.tag) {
+            return false;
+        }
+
+        return ancestor.casChild(successorRight, link,
+                new Link<K, V>(sibling.node, sibling.flag, false));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> select(K key) {
+        return new LeafIterator(key).next();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The entries are visited in the same order as in
+     * {@link PatriciaTrie#select(Object, Cursor)}.
+     */
+    @Override
+    public Map.Entry<K, V> select(K key, Cursor<? super K, ? super V> cursor) {
+        LeafIterator it = new LeafIterator(key);
+
+        Leaf<K, V> leaf = null;
+        while ((leaf = it.next()) != null) {
+            Decision decision = cursor.select(leaf);
+            switch(decision) {
+                case REMOVE:
+                    throw new UnsupportedOperationException(
+                            "Cannot remove during select");
+                case EXIT:
+                    return leaf;
+                case REMOVE_AND_EXIT:
+                    removeImpl(leaf.key, leaf.value);
+                    return leaf;
+                case CONTINUE:
+                    // fall through.
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int selectNearest(K key, int count,
+            Collection<? super Map.Entry<K, V>> entries) {
+        return selectNearestImpl(key, count, null, entries);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int selectNearest(K key, int count,
+            Predicate<? super Map.Entry<K, V>> predicate,
+            Collection<? super Map.Entry<K, V>> entries) {
+        if (predicate == null) {
+            throw new NullPointerException("predicate");
+        }
+
+        return selectNearestImpl(key, count, predicate, entries);
+    }
+
+    /**
+     * The same walk as {@link #select(Object, Cursor)} that stops
+     * as soon as it has count entries. The {@link Predicate} is
+     * optional.
+     */
+    private int selectNearestImpl(K key, int count,
+            Predicate<? super Map.Entry<K, V>> predicate,
+            Collection<? super Map.Entry<K, V>> entries) {
+
+        if (count < 0) {
+            throw new IllegalArgumentException("count=" + count);
+        }
+
+        if (entries == null) {
+            throw new NullPointerException("entries");
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        LeafIterator it = new LeafIterator(key);
+        int selected = 0;
+
+        Leaf<K, V> leaf = null;
+        while ((leaf = it.next()) != null) {
+            if (predicate == null || predicate.test(leaf)) {
+                entries.add(leaf);
+                if (++selected == count) {
+                    break;
+                }
+            }
+        }
+
+        return selected;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * A key that is a prefix of the given key has the same bits up
+     * to its own length and zero bits from there on. It's either the
+     * leaf the key's path ends at or the leftmost leaf below one of
+     * the nodes where the key turns right. We look at them from the
+     * bottom up and stop at the first one that really is a prefix.
+     */
+    @Override
+    public Map.Entry<K, V> longestPrefixEntry(K key, int lengthInBits) {
+        if (lengthInBits < 0 || lengthInBits > lengthInBits(key)) {
+            throw new IllegalArgumentException("lengthInBits=" + lengthInBits);
+        }
+
+        ArrayDeque<Internal<K, V>> stack = new ArrayDeque<Internal<K, V>>();
+
+        Link<K, V> link = head.left;
+        while (link.node instanceof Internal) {
+            Internal<K, V> node = (Internal<K, V>)link.node;
+            if (!isBitSet(key, node.bitIndex, lengthInBits)) {
+                link = node.left;
+            } else {
+                stack.push(node);
+                link = node.right;
+            }
+        }
+
+        if (isPrefixOf(link, key, lengthInBits)) {
+            return (Leaf<K, V>)link.node;
+        }
+
+        while (!stack.isEmpty()) {
+            // Follow the zero bits to the only possible candidate
+            Link<K, V> candidate = stack.pop().left;
+            while (candidate.node instanceof Internal) {
+                candidate = ((Internal<K, V>)candidate.node).left;
+            }
+
+            if (isPrefixOf(candidate, key, lengthInBits)) {
+                return (Leaf<K, V>)candidate.node;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns true if the given link points to a {@link Leaf} whose
+     * key is a prefix of the first lengthInBits bits of the given key.
+     */
+    private boolean isPrefixOf(Link<K, V> link, K key, int lengthInBits) {
+        if (link.node == null || link.flag) {
+            return false;
+        }
+
+        K prefix = link.node.key;
+        int prefixLength = lengthInBits(prefix);
+        return prefixLength <= lengthInBits
+            && keyAnalyzer.isPrefix(prefix, 0, prefixLength, key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> traverse(Cursor<? super K, ? super V> cursor) {
+        LeafIterator it = new LeafIterator(head.left, null, false, false);
+
+        Leaf<K, V> leaf = null;
+        while ((leaf = it.next()) != null) {
+            Decision decision = cursor.select(leaf);
+            switch(decision) {
+                case EXIT:
+                    return leaf;
+                case REMOVE:
+                    removeImpl(leaf.key, leaf.value);
+                    break; // out of switch, stay in while loop
+                case REMOVE_AND_EXIT:
+                    removeImpl(leaf.key, leaf.value);
+                    return leaf;
+                case CONTINUE: // do nothing.
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedBy(K key) {
+        return getPrefixedByBits(key, 0, lengthInBits(key));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedBy(K key, int length) {
+        return getPrefixedByBits(key, 0, length * bitsPerElement());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedBy(K key, int offset, int length) {
+        int bitsPerElement = bitsPerElement();
+        return getPrefixedByBits(key, offset*bitsPerElement, length*bitsPerElement);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedByBits(K key, int lengthInBits) {
+        return getPrefixedByBits(key, 0, lengthInBits);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The returned {@link SortedMap} is a {@link ConcurrentNavigableMap}.
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedByBits(K key, int offsetInBits, int lengthInBits) {
+
+        int offsetLength = offsetInBits + lengthInBits;
+        if (offsetLength > lengthInBits(key)) {
+            throw new IllegalArgumentException(offsetInBits + " + "
+                    + lengthInBits + " > " + lengthInBits(key));
+        }
+
+        if (offsetLength == 0) {
+            return this;
+        }
+
+        return new SubMap(key, offsetInBits, lengthInBits);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Comparator<? super K> comparator() {
+        return keyAnalyzer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K firstKey() {
+        return view.firstKey();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K lastKey() {
+        return view.lastKey();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> firstEntry() {
+        return view.firstEntry();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> lastEntry() {
+        return view.lastEntry();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> pollFirstEntry() {
+        return view.pollFirstEntry();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> pollLastEntry() {
+        return view.pollLastEntry();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> ceilingEntry(K key) {
+        return view.ceilingEntry(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K ceilingKey(K key) {
+        return view.ceilingKey(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> floorEntry(K key) {
+        return view.floorEntry(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K floorKey(K key) {
+        return view.floorKey(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> higherEntry(K key) {
+        return view.higherEntry(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K higherKey(K key) {
+        return view.higherKey(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> lowerEntry(K key) {
+        return view.lowerEntry(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K lowerKey(K key) {
+        return view.lowerKey(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ConcurrentNavigableMap<K, V> subMap(K fromKey, K toKey) {
+        return view.subMap(fromKey, toKey);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ConcurrentNavigableMap<K, V> subMap(K fromKey, boolean fromInclusive,
+            K toKey, boolean toInclusive) {
+        return view.subMap(fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ConcurrentNavigableMap<K, V> headMap(K toKey) {
+        return view.headMap(toKey);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ConcurrentNavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+        return view.headMap(toKey, inclusive);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ConcurrentNavigableMap<K, V> tailMap(K fromKey) {
+        return view.tailMap(fromKey);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ConcurrentNavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        return view.tailMap(fromKey, inclusive);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ConcurrentNavigableMap<K, V> descendingMap() {
+        return view.descendingMap();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NavigableSet<K> keySet() {
+        return view.keySet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NavigableSet<K> navigableKeySet() {
+        return view.navigableKeySet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+        return view.descendingKeySet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return view.entrySet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<V> values() {
+        return view.values();
+    }
+
+    /**
+     * Writes the keys and values one after the other
+     * followed by a null key
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+
+        for (Map.Entry<K, V> entry : entrySet()) {
+            out.writeObject(entry.getKey());
+            out.writeObject(entry.getValue());
+        }
+        out.writeObject(null);
+    }
+
+    /**
+     * Reads the keys and values that were written by
+     * {@link #writeObject(ObjectOutputStream)}
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        init();
+
+        K key = null;
+        while ((key = (K)in.readObject()) != null) {
+            put(key, (V)in.readObject());
+        }
+    }
+
+    /**
+     * A node in the {@link Trie}. It's either an {@link Internal}
+     * node or a {@link Leaf}.
+     */
+    private abstract static class Node<K, V> {
+
+        /**
+         * The bit the node branches on or {@link #LEAF}
+         */
+        protected final int bitIndex;
+
+        /**
+         * The key of a {@link Leaf}. An {@link Internal} node
+         * has the key that created it which has the same bits
+         * as all keys below the node up to the bit index.
+         */
+        protected final K key;
+
+        public Node(int bitIndex, K key) {
+            this.bitIndex = bitIndex;
+            this.key = key;
+        }
+    }
+
+    /**
+     * An internal node with two (non-null) {@link Link}s to
+     * its children. The links are the only mutable state
+     * in the {@link Trie}.
+     */
+    private static final class Internal<K, V> extends Node<K, V> {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Internal, Link> LEFT
+            = AtomicReferenceFieldUpdater.newUpdater(Internal.class, Link.class, "left");
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Internal, Link> RIGHT
+            = AtomicReferenceFieldUpdater.newUpdater(Internal.class, Link.class, "right");
+
+        protected volatile Link<K, V> left;
+
+        protected volatile Link<K, V> right;
+
+        public Internal(int bitIndex, K key, Link<K, V> left, Link<K, V> right) {
+            super(bitIndex, key);
+            this.left = left;
+            this.right = right;
+        }
+
+        /**
+         * Returns the right or left {@link Link}
+         */
+        public Link<K, V> child(boolean right) {
+            return right ? this.right : this.left;
+        }
+
+        /**
+         * Replaces the right or left {@link Link} if it's still
+         * the expected one
+         */
+        public boolean casChild(boolean right, Link<K, V> expect, Link<K, V> update) {
+            if (right) {
+                return RIGHT.compareAndSet(this, expect, update);
+            }
+            return LEFT.compareAndSet(this, expect, update);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return "Internal[bitIndex=" + bitIndex + ", key=" + key + "]";
+        }
+    }
+
+    /**
+     * An immutable key-value pair
+     */
+    private static final class Leaf<K, V> extends Node<K, V>
+            implements Map.Entry<K, V> {
+
+        protected final V value;
+
+        public Leaf(K key, V value) {
+            super(LEAF, key);
+            this.value = value;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ value.hashCode();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            } else if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>)o;
+            return Tries.compare(key, other.getKey())
+                && Tries.compare(value, other.getValue());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    /**
+     * An immutable link to a {@link Node}. A flagged link points to
+     * a {@link Leaf} that is being removed. A tagged link belongs to
+     * an {@link Internal} node that is being removed. Neither kind
+     * of link can be replaced except by the removal itself.
+     */
+    private static final class Link<K, V> {
+
+        private final Node<K, V> node;
+
+        private final boolean flag;
+
+        private final boolean tag;
+
+        public Link(Node<K, V> node) {
+            this(node, false, false);
+        }
+
+        public Link(Node<K, V> node, boolean flag, boolean tag) {
+            this.node = node;
+            this.flag = flag;
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * The result of {@link ConcurrentPatriciaTrie#seek(Object, int, int)}
+     */
+    private static final class Seek<K, V> {
+
+        /**
+         * The parent of the successor
+         */
+        private final Internal<K, V> ancestor;
+
+        /**
+         * The highest node on the path that may be removed
+         * along with the parent
+         */
+        private final Node<K, V> successor;
+
+        /**
+         * The node the link hangs off
+         */
+        private final Internal<K, V> parent;
+
+        /**
+         * Whether or not the link is the parent's right link
+         */
+        private final boolean right;
+
+        /**
+         * The link the seek ended at
+         */
+        private final Link<K, V> link;
+
+        public Seek(Internal<K, V> ancestor, Node<K, V> successor,
+                Internal<K, V> parent, boolean right, Link<K, V> link) {
+            this.ancestor = ancestor;
+            this.successor = successor;
+            this.parent = parent;
+            this.right = right;
+            this.link = link;
+        }
+    }
+
+    /**
+     * Walks the live {@link Leaf}s of a subtree, either in the order
+     * of their keys or by their XOR distance to a given key. The walk
+     * reads every link only once which makes it weakly consistent.
+     */
+    private class LeafIterator {
+
+        private final ArrayDeque<Link<K, V>> stack = new ArrayDeque<Link<K, V>>();
+
+        /**
+         * The key for the XOR order or null
+         */
+        private final K key;
+
+        private final int lengthInBits;
+
+        private final boolean descending;
+
+        /**
+         * Creates a {@link LeafIterator} that returns the {@link Leaf}s
+         * in the order of their keys starting with the one that follows
+         * the given key (or the first one if the key is null)
+         */
+        public LeafIterator(Link<K, V> top, K from,
+                boolean inclusive, boolean descending) {
+            this.key = null;
+            this.lengthInBits = 0;
+            this.descending = descending;
+
+            if (top == null) {
+                return;
+            } else if (from == null) {
+                stack.push(top);
+            } else {
+                pushFollowing(top, from, inclusive);
+            }
+        }
+
+        /**
+         * Creates a {@link LeafIterator} that returns the {@link Leaf}s
+         * in the same order as {@link Trie#select(Object, Cursor)}
+         */
+        public LeafIterator(K key) {
+            this.key = key;
+            this.lengthInBits = lengthInBits(key);
+            this.descending = false;
+
+            stack.push(head.left);
+        }
+
+        /**
+         * Pushes the subtrees that follow the given key onto the
+         * stack, the closest one last.
+         */
+        private void pushFollowing(Link<K, V> top, K from, boolean inclusive) {
+            int lengthInBits = lengthInBits(from);
+
+            List<Link<K, V>> path = new ArrayList<Link<K, V>>();
+            Link<K, V> link = top;
+            path.add(link);
+
+            while (link.node instanceof Internal) {
+                Internal<K, V> node = (Internal<K, V>)link.node;
+                link = node.child(isBitSet(from, node.bitIndex, lengthInBits));
+                path.add(link);
+            }
+
+            if (link.node == null) {
+                return;
+            }
+
+            // The Leaf has the same key (or the same bits) as the
+            // given key unless the bit index is valid. In that case
+            // the key would branch off above the first node on its
+            // path with a greater bit index and that node's subtree
+            // is either in front or behind the key.
+            int end = path.size() - 1;
+            boolean following = inclusive;
+
+            int bitIndex = branchIndex(from, link.node.key);
+            if (AbstractKeyAnalyzer.isValidBitIndex(bitIndex)) {
+                end = 0;
+                while (path.get(end).node.bitIndex < bitIndex) {
+                    ++end;
+                }
+
+                following = (isBitSet(from, bitIndex, lengthInBits) == descending);
+            }
+
+            for (int i = 0; i < end; i++) {
+                Internal<K, V> node = (Internal<K, V>)path.get(i).node;
+                if (isBitSet(from, node.bitIndex, lengthInBits) == descending) {
+                    stack.push(node.child(!descending));
+                }
+            }
+
+            if (following) {
+                stack.push(path.get(end));
+            }
+        }
+
+        /**
+         * Returns the next {@link Leaf} or null if there are no more
+         */
+        public Leaf<K, V> next() {
+            while (!stack.isEmpty()) {
+                Link<K, V> link = stack.pop();
+
+                Node<K, V> node = link.node;
+                if (node instanceof Internal) {
+                    Internal<K, V> internal = (Internal<K, V>)node;
+
+                    boolean first = descending;
+                    if (key != null) {
+                        first = isBitSet(key, node.bitIndex, lengthInBits);
+                    }
+
+                    stack.push(internal.child(!first));
+                    stack.push(internal.child(first));
+
+                } else if (node != null && !link.flag) {
+                    return (Leaf<K, V>)node;
+                }
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * A range and/or prefix view of the {@link Trie}. The lower and
+     * upper bounds are absolute, meaning they're the same for a
+     * descending view.
+     */
+    private class SubMap extends AbstractMap<K, V>
+            implements ConcurrentNavigableMap<K, V> {
+
+        private final K lo;
+
+        private final boolean loInclusive;
+
+        private final K hi;
+
+        private final boolean hiInclusive;
+
+        private final K prefix;
+
+        private final int offsetInBits;
+
+        private final int lengthInBits;
+
+        private final boolean descending;
+
+        private transient volatile NavigableSet<K> keySet = null;
+
+        private transient volatile Set<Map.Entry<K, V>> entrySet = null;
+
+        private transient volatile Collection<V> values = null;
+
+        /**
+         * Creates a range {@link SubMap}
+         */
+        public SubMap(K lo, boolean loInclusive,
+                K hi, boolean hiInclusive, boolean descending) {
+            this(lo, loInclusive, hi, hiInclusive,
+                    null, 0, 0, descending);
+        }
+
+        /**
+         * Creates a prefix {@link SubMap}
+         */
+        public SubMap(K prefix, int offsetInBits, int lengthInBits) {
+            this(null, false, null, false,
+                    prefix, offsetInBits, lengthInBits, false);
+        }
+
+        private SubMap(K lo, boolean loInclusive, K hi, boolean hiInclusive,
+                K prefix, int offsetInBits, int lengthInBits, boolean descending) {
+
+            if (lo != null && hi != null
+                    && keyAnalyzer.compare(lo, hi) > 0) {
+                throw new IllegalArgumentException("fromKey > toKey");
+            }
+
+            this.lo = lo;
+            this.loInclusive = loInclusive;
+            this.hi = hi;
+            this.hiInclusive = hiInclusive;
+            this.prefix = prefix;
+            this.offsetInBits = offsetInBits;
+            this.lengthInBits = lengthInBits;
+            this.descending = descending;
+        }
+
+        /**
+         * Returns true if the key is below the lower bound
+         */
+        private boolean tooLow(K key) {
+            if (lo != null) {
+                int c = keyAnalyzer.compare(key, lo);
+                return c < 0 || (c == 0 && !loInclusive);
+            }
+            return false;
+        }
+
+        /**
+         * Returns true if the key is above the upper bound
+         */
+        private boolean tooHigh(K key) {
+            if (hi != null) {
+                int c = keyAnalyzer.compare(key, hi);
+                return c > 0 || (c == 0 && !hiInclusive);
+            }
+            return false;
+        }
+
+        /**
+         * Returns true if the given key is in the range of the {@link SubMap}
+         */
+        private boolean inRange(Object k) {
+            if (k == null) {
+                throw new NullPointerException("key");
+            }
+
+            K key = castKey(k);
+            return !tooLow(key) && !tooHigh(key) && (prefix == null
+                    || keyAnalyzer.isPrefix(prefix, offsetInBits, lengthInBits, key));
+        }
+
+        /**
+         * Throws an {@link IllegalArgumentException} if the
+         * given key is not in the range of the {@link SubMap}
+         */
+        private void checkKey(K key) {
+            if (!inRange(key)) {
+                throw new IllegalArgumentException(
+                        "Key is out of range: " + key);
+            }
+        }
+
+        /**
+         * Returns the link to the top of the subtree with all keys
+         * that have the prefix (or the whole {@link Trie}). Returns
+         * null if there are no such keys.
+         */
+        private Link<K, V> top() {
+            Link<K, V> link = head.left;
+            if (prefix == null) {
+                return link;
+            }
+
+            int endIndexInBits = offsetInBits + lengthInBits;
+            while (link.node instanceof Internal
+                    && link.node.bitIndex < lengthInBits) {
+                Internal<K, V> node = (Internal<K, V>)link.node;
+                link = node.child(isBitSet(prefix,
+                        offsetInBits + node.bitIndex, endIndexInBits));
+            }
+
+            Node<K, V> node = link.node;
+            if (node == null) {
+                return null;
+            }
+
+            // All keys below the node have the same first lengthInBits
+            // bits. It's enough to look at one of them.
+            int bitIndex = keyAnalyzer.bitIndex(prefix, offsetInBits,
+                    lengthInBits, node.key, 0, lengthInBits(node.key));
+            if (bitIndex >= 0 && bitIndex < lengthInBits) {
+                return null;
+            }
+
+            return link;
+        }
+
+        /**
+         * Returns the lowest {@link Leaf} in the (absolute)
+         * range or null
+         */
+        private Leaf<K, V> lowestLeaf() {
+            Leaf<K, V> leaf = new LeafIterator(top(),
+                    lo, loInclusive, false).next();
+            return leaf != null && !tooHigh(leaf.key) ? leaf : null;
+        }
+
+        /**
+         * Returns the highest {@link Leaf} in the (absolute)
+         * range or null
+         */
+        private Leaf<K, V> highestLeaf() {
+            Leaf<K, V> leaf = new LeafIterator(top(),
+                    hi, hiInclusive, true).next();
+            return leaf != null && !tooLow(leaf.key) ? leaf : null;
+        }
+
+        /**
+         * Returns the {@link Leaf} that follows the given key in the
+         * (absolute) ascending or, if reverse, descending order or null
+         */
+        private Leaf<K, V> nearLeaf(K key, boolean inclusive, boolean reverse) {
+            if (key == null) {
+                throw new NullPointerException("key");
+            }
+
+            if (!reverse) {
+                if (tooLow(key)) {
+                    return lowestLeaf();
+                }
+
+                Leaf<K, V> leaf = new LeafIterator(top(),
+                        key, inclusive, false).next();
+                return leaf != null && !tooHigh(leaf.key) ? leaf : null;
+            }
+
+            if (tooHigh(key)) {
+                return highestLeaf();
+            }
+
+            Leaf<K, V> leaf = new LeafIterator(top(),
+                    key, inclusive, true).next();
+            return leaf != null && !tooLow(leaf.key) ? leaf : null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean containsKey(Object key) {
+            return inRange(key) && ConcurrentPatriciaTrie.this.containsKey(key);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public V get(Object key) {
+            return inRange(key) ? ConcurrentPatriciaTrie.this.get(key) : null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public V put(K key, V value) {
+            checkKey(key);
+            return ConcurrentPatriciaTrie.this.put(key, value);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public V remove(Object key) {
+            return inRange(key) ? ConcurrentPatriciaTrie.this.remove(key) : null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public V putIfAbsent(K key, V value) {
+            checkKey(key);
+            return ConcurrentPatriciaTrie.this.putIfAbsent(key, value);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean remove(Object key, Object value) {
+            return inRange(key) && ConcurrentPatriciaTrie.this.remove(key, value);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean replace(K key, V oldValue, V newValue) {
+            checkKey(key);
+            return ConcurrentPatriciaTrie.this.replace(key, oldValue, newValue);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public V replace(K key, V value) {
+            checkKey(key);
+            return ConcurrentPatriciaTrie.this.replace(key, value);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int size() {
+            if (lo == null && hi == null && prefix == null) {
+                return ConcurrentPatriciaTrie.this.size();
+            }
+
+            int size = 0;
+            for (Iterator<K> it = new KeyIterator(); it.hasNext(); it.next()) {
+                ++size;
+            }
+            return size;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isEmpty() {
+            return lowestLeaf() == null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void clear() {
+            for (Leaf<K, V> leaf = lowestLeaf(); leaf != null;
+                    leaf = nearLeaf(leaf.key, false, false)) {
+                ConcurrentPatriciaTrie.this.remove(leaf.key);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Comparator<? super K> comparator() {
+            if (descending) {
+                return Collections.reverseOrder(keyAnalyzer);
+            }
+            return keyAnalyzer;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Map.Entry<K, V> firstEntry() {
+            return descending ? highestLeaf() : lowestLeaf();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Map.Entry<K, V> lastEntry() {
+            return descending ? lowestLeaf() : highestLeaf();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K firstKey() {
+            return key(firstEntry());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K lastKey() {
+            return key(lastEntry());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Map.Entry<K, V> pollFirstEntry() {
+            return poll(descending);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Map.Entry<K, V> pollLastEntry() {
+            return poll(!descending);
+        }
+
+        /**
+         * Removes and returns the lowest or highest entry. A
+         * concurrent update of the entry makes us try again.
+         */
+        private Map.Entry<K, V> poll(boolean highest) {
+            while (true) {
+                Leaf<K, V> leaf = highest ? highestLeaf() : lowestLeaf();
+                if (leaf == null) {
+                    return null;
+                }
+
+                if (removeImpl(leaf.key, leaf.value) != null) {
+                    return leaf;
+                }
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Map.Entry<K, V> ceilingEntry(K key) {
+            return nearLeaf(key, true, descending);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K ceilingKey(K key) {
+            return keyOrNull(ceilingEntry(key));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Map.Entry<K, V> higherEntry(K key) {
+            return nearLeaf(key, false, descending);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K higherKey(K key) {
+            return keyOrNull(higherEntry(key));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Map.Entry<K, V> floorEntry(K key) {
+            return nearLeaf(key, true, !descending);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K floorKey(K key) {
+            return keyOrNull(floorEntry(key));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Map.Entry<K, V> lowerEntry(K key) {
+            return nearLeaf(key, false, !descending);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K lowerKey(K key) {
+            return keyOrNull(lowerEntry(key));
+        }
+
+        /**
+         * Creates a {@link SubMap} with the given (relative) bounds.
+         * A null key means the bound of this {@link SubMap}.
+         */
+        private SubMap newSubMap(K fromKey, boolean fromInclusive,
+                K toKey, boolean toInclusive) {
+
+            if (descending) {
+                K tk = fromKey;
+                fromKey = toKey;
+                toKey = tk;
+
+                boolean ti = fromInclusive;
+                fromInclusive = toInclusive;
+                toInclusive = ti;
+            }
+
+            if (lo != null) {
+                if (fromKey == null) {
+                    fromKey = lo;
+                    fromInclusive = loInclusive;
+                } else {
+                    int c = keyAnalyzer.compare(fromKey, lo);
+                    if (c < 0 || (c == 0 && !loInclusive && fromInclusive)) {
+                        throw new IllegalArgumentException(
+                                "FromKey is out of range: " + fromKey);
+                    }
+                }
+            }
+
+            if (hi != null) {
+                if (toKey == null) {
+                    toKey = hi;
+                    toInclusive = hiInclusive;
+                } else {
+                    int c = keyAnalyzer.compare(toKey, hi);
+                    if (c > 0 || (c == 0 && !hiInclusive && toInclusive)) {
+                        throw new IllegalArgumentException(
+                                "ToKey is out of range: " + toKey);
+                    }
+                }
+            }
+
+            return new SubMap(fromKey, fromInclusive, toKey, toInclusive,
+                    prefix, offsetInBits, lengthInBits, descending);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public ConcurrentNavigableMap<K, V> subMap(K fromKey, K toKey) {
+            return subMap(fromKey, true, toKey, false);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public ConcurrentNavigableMap<K, V> subMap(K fromKey, boolean fromInclusive,
+                K toKey, boolean toInclusive) {
+            if (fromKey == null) {
+                throw new NullPointerException("fromKey");
+            }
+
+            if (toKey == null) {
+                throw new NullPointerException("toKey");
+            }
+
+            return newSubMap(fromKey, fromInclusive, toKey, toInclusive);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public ConcurrentNavigableMap<K, V> headMap(K toKey) {
+            return headMap(toKey, false);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public ConcurrentNavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+            if (toKey == null) {
+                throw new NullPointerException("toKey");
+            }
+
+            return newSubMap(null, false, toKey, inclusive);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public ConcurrentNavigableMap<K, V> tailMap(K fromKey) {
+            return tailMap(fromKey, true);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public ConcurrentNavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+            if (fromKey == null) {
+                throw new NullPointerException("fromKey");
+            }
+
+            return newSubMap(fromKey, inclusive, null, false);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public ConcurrentNavigableMap<K, V> descendingMap() {
+            return new SubMap(lo, loInclusive, hi, hiInclusive,
+                    prefix, offsetInBits, lengthInBits, !descending);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public NavigableSet<K> keySet() {
+            return navigableKeySet();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public NavigableSet<K> navigableKeySet() {
+            if (keySet == null) {
+                keySet = new KeySet(this);
+            }
+            return keySet;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public NavigableSet<K> descendingKeySet() {
+            return descendingMap().navigableKeySet();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            if (entrySet == null) {
+                entrySet = new EntrySet();
+            }
+            return entrySet;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Collection<V> values() {
+            if (values == null) {
+                values = new Values();
+            }
+            return values;
+        }
+
+        /**
+         * A weakly consistent {@link Iterator} over the
+         * {@link Leaf}s of the {@link SubMap}
+         */
+        private abstract class SubMapIterator<T> implements Iterator<T> {
+
+            private final LeafIterator leaves;
+
+            private Leaf<K, V> next;
+
+            private Leaf<K, V> current;
+
+            protected SubMapIterator() {
+                if (!descending) {
+                    leaves = new LeafIterator(top(), lo, loInclusive, false);
+                } else {
+                    leaves = new LeafIterator(top(), hi, hiInclusive, true);
+                }
+
+                next = nextLeaf();
+            }
+
+            /**
+             * Returns the next {@link Leaf} in the range or null
+             */
+            private Leaf<K, V> nextLeaf() {
+                Leaf<K, V> leaf = leaves.next();
+                if (leaf == null || (!descending ? tooHigh(leaf.key) : tooLow(leaf.key))) {
+                    return null;
+                }
+                return leaf;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            /**
+             * Returns the next {@link Leaf}
+             */
+            protected Leaf<K, V> nextEntry() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+
+                current = next;
+                next = nextLeaf();
+                return current;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void remove() {
+                if (current == null) {
+                    throw new IllegalStateException();
+                }
+
+                ConcurrentPatriciaTrie.this.remove(current.key);
+                current = null;
+            }
+        }
+
+        /**
+         * An {@link Iterator} over the entries of the {@link SubMap}
+         */
+        private class EntryIterator extends SubMapIterator<Map.Entry<K, V>> {
+            @Override
+            public Map.Entry<K, V> next() {
+                return nextEntry();
+            }
+        }
+
+        /**
+         * An {@link Iterator} over the keys of the {@link SubMap}
+         */
+        private class KeyIterator extends SubMapIterator<K> {
+            @Override
+            public K next() {
+                return nextEntry().key;
+            }
+        }
+
+        /**
+         * An {@link Iterator} over the values of the {@link SubMap}
+         */
+        private class ValueIterator extends SubMapIterator<V> {
+            @Override
+            public V next() {
+                return nextEntry().value;
+            }
+        }
+
+        /**
+         * The {@link NavigableSet} view of the keys
+         */
+        private class KeySet extends PatriciaTrie.NavigableKeySet<K> {
+
+            public KeySet(NavigableMap<K, ?> delegate) {
+                super(delegate);
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public Iterator<K> iterator() {
+                return new KeyIterator();
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean remove(Object o) {
+                return SubMap.this.remove(o) != null;
+            }
+        }
+
+        /**
+         * The {@link Set} view of the entries
+         */
+        private class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new EntryIterator();
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Map.Entry)) {
+                    return false;
+                }
+
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>)o;
+                V value = SubMap.this.get(entry.getKey());
+                return value != null && value.equals(entry.getValue());
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean remove(Object o) {
+                if (!(o instanceof Map.Entry)) {
+                    return false;
+                }
+
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>)o;
+                return SubMap.this.remove(entry.getKey(), entry.getValue());
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public int size() {
+                return SubMap.this.size();
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean isEmpty() {
+                return SubMap.this.isEmpty();
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void clear() {
+                SubMap.this.clear();
+            }
+        }
+
+        /**
+         * The {@link Collection} view of the values
+         */
+        private class Values extends AbstractCollection<V> {
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public Iterator<V> iterator() {
+                return new ValueIterator();
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public int size() {
+                return SubMap.this.size();
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean isEmpty() {
+                return SubMap.this.isEmpty();
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void clear() {
+                SubMap.this.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the given entry's key or throws a
+     * {@link NoSuchElementException} if the entry is null
+     */
+    private static <K> K key(Map.Entry<K, ?> entry) {
+        if (entry == null) {
+            throw new NoSuchElementException();
+        }
+        return entry.getKey();
+    }
+
+    /**
+     * Returns the given entry's key or null if the entry is null
+     */
+    private static <K> K keyOrNull(Map.Entry<K, ?> entry) {
+        return entry != null ? entry.getKey() : null;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the keys of a {@link PatriciaTrie} with {@link String} keys
+ * that are within a given Levenshtein distance of a query.
+ *
+ * <p>The matcher keeps a row of the edit distance matrix for each char
+ * of the nodes it walks down. The smallest value of a row is the least
+ * number of edits any key with those chars can have and the subtree is
+ * skipped if it's more than the maximum.
+ *
+ * @see Tries#fuzzyMatch(Trie, String, int)
+ */
+final class FuzzyMatcher extends StringTrieWalker {
+
+    private final String query;
+
+    private final int maxEdits;
+
+    /**
+     * The row of the first i chars of the keys is at index i
+     */
+    private int[][] rows;
+
+    /**
+     * The smallest value of each row
+     */
+    private int[] mins;
+
+    private FuzzyMatcher(String query, int maxEdits) {
+        this.query = query;
+        this.maxEdits = maxEdits;
+
+        rows = new int[16][];
+        mins = new int[16];
+
+        int[] first = new int[query.length() + 1];
+        for (int i = 0; i < first.length; i++) {
+            first[i] = i;
+        }
+        rows[0] = first;
+    }
+
+    /**
+     * Returns the entries of the given {@link PatriciaTrie} whose keys are
+     * no more than the given number of edits away from the query. They're
+     * in the order of their keys.
+     */
+    static <V> List<Map.Entry<String, V>> match(
+            PatriciaTrieBase<String, V> trie, String query, int maxEdits) {
+        return new FuzzyMatcher(query, maxEdits).walk(trie);
+    }
+
+    @Override
+    protected void step(int index, char ch) {
+        computeRow(index, ch);
+    }
+
+    @Override
+    protected boolean isLive(int length) {
+        return mins[length] <= maxEdits;
+    }
+
+    @Override
+    protected boolean isMatch(int length) {
+        return rows[length][query.length()] <= maxEdits;
+    }
+
+    /**
+     * Computes the row after the given one for the given char
+     */
+    private void computeRow(int index, char ch) {
+        if (index + 1 >= rows.length) {
+            rows = Arrays.copyOf(rows, rows.length * 2);
+            mins = Arrays.copyOf(mins, mins.length * 2);
+        }
+
+        int[] previous = rows[index];
+        int[] row = rows[index + 1];
+        if (row == null) {
+            row = new int[previous.length];
+            rows[index + 1] = row;
+        }
+
+        row[0] = index + 1;
+        int min = row[0];
+
+        for (int i = 1; i < row.length; i++) {
+            int cost = (query.charAt(i - 1) == ch) ? 0 : 1;
+            int value = Math.min(Math.min(
+                    row[i - 1] + 1, previous[i] + 1),
+                    previous[i - 1] + cost);
+
+            row[i] = value;
+            min = Math.min(min, value);
+        }
+
+        mins[index + 1] = min;
+    }
+}
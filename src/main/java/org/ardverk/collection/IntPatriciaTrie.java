@@ -0,0 +1,193 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.ardverk.collection;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Iterator;
+
+/**
+ * A PATRICIA {@link Trie} for primitive int keys.
+ *
+ * <p>It's the same algorithm as in the {@link PatriciaTrie} with a
+ * {@link IntegerKeyAnalyzer} but the keys are stored as primitives in the
+ * nodes and the bits are looked at directly. Nothing gets boxed and
+ * there is no {@link KeyAnalyzer}. The first bit of a key is its most
+ * significant bit, which means the keys are in unsigned order.
+ *
+ * <p>The nodes are the {@link Entry}s of the {@link Trie}. The key 0 has
+ * no bits set and is stored in the root node like in the {@link PatriciaTrie}.
+ * The {@link Iterator}s are fail-fast.
+ *
+ * @see LongPatriciaTrie
+ */
+public class IntPatriciaTrie<V> extends PrimitivePatriciaTrieBase<V, IntPatriciaTrie.Entry<V>> {
+
+    private static final long serialVersionUID = -2925079617416133560L;
+
+    /**
+     * Constructs an empty {@link IntPatriciaTrie}
+     */
+    public IntPatriciaTrie() {
+        super(Integer.SIZE);
+    }
+
+    /**
+     * Returns the bits of the given key
+     */
+    private static long bits(int key) {
+        return (long)key << Integer.SIZE;
+    }
+
+    @Override
+    Entry<V> newEntry(long bits, V value, int bitIndex) {
+        return new Entry<V>(bits, value, bitIndex);
+    }
+
+    @Override
+    void writeKey(ObjectOutputStream out, long bits) throws IOException {
+        out.writeInt(Entry.key(bits));
+    }
+
+    @Override
+    long readKey(ObjectInputStream in) throws IOException {
+        return bits(in.readInt());
+    }
+
+    /**
+     * Returns the value of the given key or null
+     */
+    public V get(int key) {
+        Entry<V> entry = getEntry(key);
+        return entry != null ? entry.getValue() : null;
+    }
+
+    /**
+     * Returns true if there is an entry for the given key
+     */
+    public boolean containsKey(int key) {
+        return getEntry(key) != null;
+    }
+
+    /**
+     * Returns the {@link Entry} of the given key or null
+     */
+    public Entry<V> getEntry(int key) {
+        return findEntry(bits(key));
+    }
+
+    /**
+     * Associates the given value with the given key and
+     * returns the previous value or null
+     */
+    public V put(int key, V value) {
+        return putValue(bits(key), value);
+    }
+
+    /**
+     * Removes the entry for the given key and returns its value or null
+     */
+    public V remove(int key) {
+        return removeValue(bits(key));
+    }
+
+    /**
+     * Returns the {@link Entry} whose key is the closest to the given
+     * key in terms of XOR distance or null if the {@link Trie} is empty
+     *
+     * @see Trie#select(Object)
+     */
+    public Entry<V> select(int key) {
+        return selectEntry(bits(key));
+    }
+
+    /**
+     * Returns the {@link Entry} with the lowest key greater
+     * than or equal to the given key or null
+     */
+    public Entry<V> ceilingEntry(int key) {
+        return followingEntry(bits(key), true, false);
+    }
+
+    /**
+     * Returns the {@link Entry} with the lowest key
+     * greater than the given key or null
+     */
+    public Entry<V> higherEntry(int key) {
+        return followingEntry(bits(key), false, false);
+    }
+
+    /**
+     * Returns the {@link Entry} with the highest key less
+     * than or equal to the given key or null
+     */
+    public Entry<V> floorEntry(int key) {
+        return followingEntry(bits(key), true, true);
+    }
+
+    /**
+     * Returns the {@link Entry} with the highest key
+     * less than the given key or null
+     */
+    public Entry<V> lowerEntry(int key) {
+        return followingEntry(bits(key), false, true);
+    }
+
+    /**
+     * Returns an {@link Iterator} over the {@link Entry}s whose keys
+     * start with the first lengthInBits bits of the given key in
+     * ascending order of their keys
+     */
+    public Iterator<Entry<V>> prefixedByBits(int key, int lengthInBits) {
+        return prefixedBy(bits(key), lengthInBits);
+    }
+
+    /**
+     * A node of the {@link IntPatriciaTrie}
+     */
+    public static final class Entry<V> 
+            extends PrimitivePatriciaTrieBase.PrimitiveEntry<V, Entry<V>> {
+
+        private Entry(long bits, V value, int bitIndex) {
+            super(bits, value, bitIndex);
+        }
+
+        /**
+         * Returns the key of the given bits
+         */
+        private static int key(long bits) {
+            return (int)(bits >>> Integer.SIZE);
+        }
+
+        /**
+         * Returns the key
+         */
+        public int getKey() {
+            return key(bits);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
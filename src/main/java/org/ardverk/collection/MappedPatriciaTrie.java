@@ -0,0 +1,1223 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.function.Predicate;
+
+import org.ardverk.collection.Cursor.Decision;
+import org.ardverk.collection.PatriciaTrieBase.TrieEntry;
+
+/**
+ * A read-only PATRICIA {@link Trie} that works directly on the bytes
+ * of a file that was created with {@link #write(PatriciaTrie, Codec,
+ * Codec, File)}.
+ *
+ * <p>The file has a header followed by an array of nodes and a heap with
+ * the encoded keys and values. A node has the same bit index, left and
+ * right links as in the {@link PatriciaTrie} and the offsets of its key
+ * and value in the heap. The nodes are stored in the order of their keys,
+ * so the index of a node is also the index of its key in the {@link Trie}.
+ * An empty root node is stored after the last key.
+ *
+ * <p>Nothing is read into memory when the {@link Trie} is opened. The
+ * searches go over the nodes in the {@link ByteBuffer} and only decode
+ * the keys they have to compare. The range and prefix views are ranges
+ * of node indices and know their size without counting.
+ *
+ * <p>All methods that would modify the {@link Trie} throw an
+ * {@link UnsupportedOperationException}. The {@link Trie} is safe to use
+ * from multiple threads as the {@link ByteBuffer} is only read with
+ * absolute get methods.
+ */
+public class MappedPatriciaTrie<K, V> extends AbstractTrie<K, V> {
+
+    private static final long serialVersionUID = 3092446283529658733L;
+
+    /**
+     * The first four bytes of the file ("PTRI")
+     */
+    private static final int MAGIC = 0x50545249;
+
+    private static final int VERSION = 1;
+
+    /**
+     * The header is the magic number, the version,
+     * the number of keys and the index of the root node
+     */
+    private static final int HEADER_SIZE = 4 * 4;
+
+    /**
+     * The offsets of the fields of a node
+     */
+    private static final int BIT_INDEX = 0;
+    private static final int LEFT = 4;
+    private static final int RIGHT = 8;
+    private static final int KEY_OFFSET = 12;
+    private static final int KEY_LENGTH = 16;
+    private static final int VALUE_OFFSET = 20;
+    private static final int VALUE_LENGTH = 24;
+
+    private static final int NODE_SIZE = 28;
+
+    /**
+     * The index of a node that doesn't exist
+     */
+    private static final int NIL = -1;
+
+    private final transient ByteBuffer buffer;
+
+    private final transient Codec<? extends K> keyCodec;
+
+    private final transient Codec<? extends V> valueCodec;
+
+    /**
+     * The number of keys
+     */
+    private final int size;
+
+    /**
+     * The index of the root node
+     */
+    private final int root;
+
+    /**
+     * The position of the heap in the {@link ByteBuffer}
+     */
+    private final int heap;
+
+    /**
+     * A view of the whole {@link Trie} that does the
+     * {@link SortedMap} operations
+     */
+    private transient TrieRangeMap<K, V> view;
+
+    /**
+     * Creates a {@link MappedPatriciaTrie} for the bytes between the
+     * position and the limit of the given {@link ByteBuffer}.
+     *
+     * @throws IllegalArgumentException if the bytes are not in the format
+     * of {@link #write(PatriciaTrie, Codec, Codec, OutputStream)}
+     */
+    public MappedPatriciaTrie(KeyAnalyzer<? super K> keyAnalyzer,
+            Codec<? extends K> keyCodec, Codec<? extends V> valueCodec,
+            ByteBuffer buffer) {
+        super(keyAnalyzer);
+
+        if (keyCodec == null) {
+            throw new NullPointerException("keyCodec");
+        }
+
+        if (valueCodec == null) {
+            throw new NullPointerException("valueCodec");
+        }
+
+        if (buffer == null) {
+            throw new NullPointerException("buffer");
+        }
+
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.buffer = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+
+        int capacity = this.buffer.capacity();
+        if (capacity < HEADER_SIZE || this.buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a MappedPatriciaTrie");
+        }
+
+        int version = this.buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported version: " + version);
+        }
+
+        size = this.buffer.getInt(8);
+        root = this.buffer.getInt(12);
+
+        long nodeCount = (root == size ? size + 1L : size);
+        if (size < 0 || (root != 0 && root != size)
+                || HEADER_SIZE + nodeCount * NODE_SIZE > capacity) {
+            throw new IllegalArgumentException("Corrupt header: size="
+                    + size + ", root=" + root + ", capacity=" + capacity);
+        }
+
+        heap = HEADER_SIZE + (int)nodeCount * NODE_SIZE;
+    }
+
+    /**
+     * Maps the given file into memory and creates a
+     * {@link MappedPatriciaTrie} for it.
+     */
+    public static <K, V> MappedPatriciaTrie<K, V> open(File file,
+            KeyAnalyzer<? super K> keyAnalyzer, Codec<? extends K> keyCodec,
+            Codec<? extends V> valueCodec) throws IOException {
+
+        // The mapping stays valid after the file is closed
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(
+                    MapMode.READ_ONLY, 0, channel.size());
+            return new MappedPatriciaTrie<K, V>(keyAnalyzer,
+                    keyCodec, valueCodec, buffer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the given {@link PatriciaTrie} to the given file
+     *
+     * @see #write(PatriciaTrie, Codec, Codec, OutputStream)
+     */
+    public static <K, V> void write(PatriciaTrie<K, V> trie,
+            Codec<? super K> keyCodec, Codec<? super V> valueCodec,
+            File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            write(trie, keyCodec, valueCodec, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the given {@link PatriciaTrie} in the format that is read by
+     * the {@link MappedPatriciaTrie}. The nodes keep their bit indices and
+     * links, so the {@link MappedPatriciaTrie} must be opened with the same
+     * {@link KeyAnalyzer}. The {@link OutputStream} is flushed but not closed.
+     *
+     * @throws IllegalArgumentException if the file would be bigger
+     * than {@link Integer#MAX_VALUE} bytes
+     */
+    public static <K, V> void write(PatriciaTrie<K, V> trie,
+            Codec<? super K> keyCodec, Codec<? super V> valueCodec,
+            OutputStream out) throws IOException {
+
+        if (trie == null) {
+            throw new NullPointerException("trie");
+        }
+
+        if (keyCodec == null) {
+            throw new NullPointerException("keyCodec");
+        }
+
+        if (valueCodec == null) {
+            throw new NullPointerException("valueCodec");
+        }
+
+        if (out == null) {
+            throw new NullPointerException("out");
+        }
+
+        int size = trie.size();
+
+        // The index of each node is the index of its key. An
+        // empty root node gets the index after the last key.
+        IdentityHashMap<TrieEntry<K, V>, Integer> indices
+            = new IdentityHashMap<TrieEntry<K, V>, Integer>();
+
+        TrieEntry<K, V>[] nodes = TrieEntry.newArray(trie.root.isEmpty() ? size + 1 : size);
+        byte[][] keys = new byte[size][];
+        byte[][] values = new byte[size][];
+        long length = 0L;
+
+        int count = 0;
+        for (TrieEntry<K, V> entry = trie.nextEntry(null);
+                entry != null; entry = trie.nextEntry(entry)) {
+            keys[count] = keyCodec.encode(entry.key);
+            length += keys[count].length;
+
+            if (entry.value != null) {
+                values[count] = valueCodec.encode(entry.value);
+                length += values[count].length;
+            }
+
+            indices.put(entry, count);
+            nodes[count++] = entry;
+        }
+
+        if (count < nodes.length) {
+            indices.put(trie.root, count);
+            nodes[count] = trie.root;
+        }
+
+        length += HEADER_SIZE + (long)nodes.length * NODE_SIZE;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Trie is too big: "
+                    + length + " bytes");
+        }
+
+        DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(out));
+
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeInt(size);
+        dos.writeInt(indices.get(trie.root));
+
+        int offset = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            TrieEntry<K, V> node = nodes[i];
+
+            dos.writeInt(node.bitIndex);
+            dos.writeInt(indices.get(node.left));
+            dos.writeInt(node.right != null ? indices.get(node.right) : NIL);
+
+            if (i < size) {
+                dos.writeInt(offset);
+                dos.writeInt(keys[i].length);
+                offset += keys[i].length;
+
+                if (values[i] != null) {
+                    dos.writeInt(offset);
+                    dos.writeInt(values[i].length);
+                    offset += values[i].length;
+                } else {
+                    dos.writeInt(0);
+                    dos.writeInt(NIL);
+                }
+            } else {
+                dos.writeInt(0);
+                dos.writeInt(NIL);
+                dos.writeInt(0);
+                dos.writeInt(NIL);
+            }
+        }
+
+        for (int i = 0; i < size; i++) {
+            dos.write(keys[i]);
+            if (values[i] != null) {
+                dos.write(values[i]);
+            }
+        }
+
+        dos.flush();
+    }
+
+    /**
+     * A {@link MappedPatriciaTrie} is serialized as a
+     * {@link PatriciaTrie} with the same keys and values.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return new PatriciaTrie<K, V>(keyAnalyzer, this);
+    }
+
+    /**
+     * Returns the given field of the given node
+     */
+    private int field(int node, int field) {
+        return buffer.getInt(HEADER_SIZE + node * NODE_SIZE + field);
+    }
+
+    private int bitIndexOf(int node) {
+        return field(node, BIT_INDEX);
+    }
+
+    private int left(int node) {
+        return field(node, LEFT);
+    }
+
+    private int right(int node) {
+        return field(node, RIGHT);
+    }
+
+    /**
+     * Returns true if the given node has no key.
+     * It's the root node if it's empty.
+     */
+    private boolean isEmpty(int node) {
+        return field(node, KEY_LENGTH) == NIL;
+    }
+
+    /**
+     * Decodes and returns the key of the given node
+     */
+    private K keyAt(int node) {
+        int length = field(node, KEY_LENGTH);
+        if (length == NIL) {
+            return null;
+        }
+        return keyCodec.decode(buffer, heap + field(node, KEY_OFFSET), length);
+    }
+
+    /**
+     * Decodes and returns the value of the given node
+     */
+    private V valueAt(int node) {
+        int length = field(node, VALUE_LENGTH);
+        if (length == NIL) {
+            return null;
+        }
+        return valueCodec.decode(buffer, heap + field(node, VALUE_OFFSET), length);
+    }
+
+    /**
+     * Returns the child of the given node the
+     * key's bit at the node's bit index leads to
+     */
+    private int child(int node, K key, int lengthInBits) {
+        if (!isBitSet(key, bitIndexOf(node), lengthInBits)) {
+            return left(node);
+        }
+        return right(node);
+    }
+
+    /**
+     * Returns true if the given child is an uplink
+     * coming from a node with the given bit index
+     */
+    private boolean isUplink(int node, int fromBitIndex) {
+        return bitIndexOf(node) <= fromBitIndex;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V get(Object k) {
+        int node = getEntry(k);
+        return node != NIL ? valueAt(node) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsKey(Object k) {
+        return getEntry(k) != NIL;
+    }
+
+    /**
+     * Returns the node of the given key or {@link #NIL}
+     */
+    private int getEntry(Object k) {
+        K key = castKey(k);
+        if (key == null) {
+            return NIL;
+        }
+
+        int node = getNearestEntryForKey(key, lengthInBits(key));
+        return !isEmpty(node) && compareKeys(key, keyAt(node)) ? node : NIL;
+    }
+
+    /**
+     * Returns the node the search for the given key ends at
+     */
+    private int getNearestEntryForKey(K key, int lengthInBits) {
+        int current = left(root);
+        int from = -1;
+        while (!isUplink(current, from)) {
+            from = bitIndexOf(current);
+            current = child(current, key, lengthInBits);
+        }
+        return current;
+    }
+
+    /**
+     * Throws an {@link UnsupportedOperationException}
+     */
+    @Override
+    public V put(K key, V value) {
+        throw new UnsupportedOperationException("The Trie is read-only");
+    }
+
+    /**
+     * Throws an {@link UnsupportedOperationException}
+     */
+    @Override
+    public V remove(Object key) {
+        throw new UnsupportedOperationException("The Trie is read-only");
+    }
+
+    /**
+     * Throws an {@link UnsupportedOperationException}
+     */
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("The Trie is read-only");
+    }
+
+    /**
+     * Returns the index of the first key that is greater than (or
+     * equal to if inclusive is true) the given key. It's the size
+     * of the {@link Trie} if there is no such key.
+     */
+    private int ceilingIndex(K key, boolean inclusive) {
+        int lengthInBits = lengthInBits(key);
+
+        NodeStack path = new NodeStack();
+
+        int node = left(root);
+        int from = -1;
+        path.push(node, from);
+
+        while (!isUplink(node, from)) {
+            from = bitIndexOf(node);
+            node = child(node, key, lengthInBits);
+            path.push(node, from);
+        }
+
+        // The key has the same bits as the key of the node on the
+        // whole path (an empty root node counts as a key with no bits
+        // set). So the key is either in front of or behind all keys of
+        // the subtree of the first node with a greater bit index.
+        K other = keyAt(node);
+        int index = branchIndex(key, other);
+        if (!AbstractKeyAnalyzer.isValidBitIndex(index)) {
+            if (other == null) {
+                return 0;
+            }
+
+            int diff = keyAnalyzer.compare(key, other);
+            return (diff < 0 || (diff == 0 && inclusive)) ? node : node + 1;
+        }
+
+        int end = 0;
+        while (end < path.size() - 1
+                && bitIndexOf(path.nodeAt(end)) < index) {
+            ++end;
+        }
+
+        int subtree = path.nodeAt(end);
+        boolean behind = isBitSet(key, index, lengthInBits);
+
+        if (isUplink(subtree, path.bitIndexAt(end))) {
+            if (isEmpty(subtree)) {
+                return 0;
+            }
+            return behind ? subtree + 1 : subtree;
+        }
+
+        return behind ? lastIndex(subtree) + 1 : firstIndex(subtree);
+    }
+
+    /**
+     * Returns the index of the first key in the subtree of the given
+     * node. It's the first key of the {@link Trie} if the subtree has
+     * the uplink to an empty root node.
+     */
+    private int firstIndex(int node) {
+        int child = left(node);
+        while (!isUplink(child, bitIndexOf(node))) {
+            node = child;
+            child = left(child);
+        }
+        return isEmpty(child) ? 0 : child;
+    }
+
+    /**
+     * Returns the index of the last key in the subtree of the given node
+     */
+    private int lastIndex(int node) {
+        int child = right(node);
+        while (!isUplink(child, bitIndexOf(node))) {
+            node = child;
+            child = right(child);
+        }
+        return child;
+    }
+
+    /**
+     * Returns the index of the first bit that is different in the
+     * given keys. Unlike {@link #bitIndex(Object, Object)} this is
+     * not {@link KeyAnalyzer#NULL_BIT_KEY} just because the first
+     * key has no bits set.
+     */
+    private int branchIndex(K key, K other) {
+        int index = bitIndex(key, other);
+        if (other != null && AbstractKeyAnalyzer.isNullBitKey(index)) {
+            index = bitIndex(other, key);
+        }
+        return index;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> select(K key) {
+        int lengthInBits = lengthInBits(key);
+
+        int h = left(root);
+        int from = -1;
+
+        // The subtree of the last branch we didn't take
+        int alternative = NIL;
+        int alternativeBitIndex = -1;
+
+        while (true) {
+            if (isUplink(h, from)) {
+                if (!isEmpty(h)) {
+                    return new MappedEntry<K, V>(keyAt(h), valueAt(h));
+                }
+
+                // The root is the only empty node and there
+                // is only one uplink to it (see PatriciaTrieBase)
+                if (alternative == NIL) {
+                    return null;
+                }
+
+                h = alternative;
+                from = alternativeBitIndex;
+                alternative = NIL;
+                continue;
+            }
+
+            from = bitIndexOf(h);
+            if (!isBitSet(key, from, lengthInBits)) {
+                alternative = right(h);
+                h = left(h);
+            } else {
+                alternative = left(h);
+                h = right(h);
+            }
+            alternativeBitIndex = from;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UnsupportedOperationException if the {@link Cursor}
+     * wants to remove an entry
+     */
+    @Override
+    public Map.Entry<K, V> select(K key, Cursor<? super K, ? super V> cursor) {
+        int lengthInBits = lengthInBits(key);
+
+        NodeStack stack = new NodeStack();
+        stack.push(left(root), -1);
+
+        while (!stack.isEmpty()) {
+            int from = stack.peekBitIndex();
+            int h = stack.pop();
+
+            if (!isUplink(h, from)) {
+                pushNearest(stack, h, key, lengthInBits);
+                continue;
+            }
+
+            if (isEmpty(h)) {
+                continue;
+            }
+
+            Map.Entry<K, V> entry = new MappedEntry<K, V>(keyAt(h), valueAt(h));
+            Decision decision = cursor.select(entry);
+            switch(decision) {
+                case REMOVE:
+                case REMOVE_AND_EXIT:
+                    throw new UnsupportedOperationException("The Trie is read-only");
+                case EXIT:
+                    return entry;
+                case CONTINUE:
+                    // fall through.
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Pushes the children of the given node onto the stack,
+     * the one that is closer to the key (in terms of XOR
+     * distance) last.
+     */
+    private void pushNearest(NodeStack stack, int node,
+            K key, int lengthInBits) {
+        int from = bitIndexOf(node);
+        if (!isBitSet(key, from, lengthInBits)) {
+            stack.push(right(node), from);
+            stack.push(left(node), from);
+        } else {
+            stack.push(left(node), from);
+            stack.push(right(node), from);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int selectNearest(K key, int count,
+            Collection<? super Map.Entry<K, V>> entries) {
+        return selectNearestImpl(key, count, null, entries);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int selectNearest(K key, int count,
+            Predicate<? super Map.Entry<K, V>> predicate,
+            Collection<? super Map.Entry<K, V>> entries) {
+        if (predicate == null) {
+            throw new NullPointerException("predicate");
+        }
+
+        return selectNearestImpl(key, count, predicate, entries);
+    }
+
+    /**
+     * The same walk as {@link #select(Object, Cursor)} that stops
+     * as soon as it has count entries.
+     */
+    private int selectNearestImpl(K key, int count,
+            Predicate<? super Map.Entry<K, V>> predicate,
+            Collection<? super Map.Entry<K, V>> entries) {
+
+        if (count < 0) {
+            throw new IllegalArgumentException("count=" + count);
+        }
+
+        if (entries == null) {
+            throw new NullPointerException("entries");
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        int lengthInBits = lengthInBits(key);
+        int selected = 0;
+
+        NodeStack stack = new NodeStack();
+        stack.push(left(root), -1);
+
+        while (!stack.isEmpty()) {
+            int from = stack.peekBitIndex();
+            int h = stack.pop();
+
+            if (!isUplink(h, from)) {
+                pushNearest(stack, h, key, lengthInBits);
+                continue;
+            }
+
+            if (isEmpty(h)) {
+                continue;
+            }
+
+            Map.Entry<K, V> entry = new MappedEntry<K, V>(keyAt(h), valueAt(h));
+            if (predicate == null || predicate.test(entry)) {
+                entries.add(entry);
+                if (++selected == count) {
+                    break;
+                }
+            }
+        }
+
+        return selected;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see PatriciaTrieBase#longestPrefixEntry(Object, int)
+     */
+    @Override
+    public Map.Entry<K, V> longestPrefixEntry(K key, int lengthInBits) {
+        if (lengthInBits < 0 || lengthInBits > lengthInBits(key)) {
+            throw new IllegalArgumentException("lengthInBits=" + lengthInBits);
+        }
+
+        NodeStack stack = new NodeStack();
+
+        int h = left(root);
+        int from = -1;
+
+        while (!isUplink(h, from)) {
+            from = bitIndexOf(h);
+            if (!isBitSet(key, from, lengthInBits)) {
+                h = left(h);
+            } else {
+                stack.push(h, from);
+                h = right(h);
+            }
+        }
+
+        if (isPrefixOf(h, key, lengthInBits)) {
+            return new MappedEntry<K, V>(keyAt(h), valueAt(h));
+        }
+
+        while (!stack.isEmpty()) {
+            int node = stack.pop();
+
+            // Follow the zero bits to the only possible candidate
+            int candidate = left(node);
+            while (!isUplink(candidate, bitIndexOf(node))) {
+                node = candidate;
+                candidate = left(candidate);
+            }
+
+            if (isPrefixOf(candidate, key, lengthInBits)) {
+                return new MappedEntry<K, V>(keyAt(candidate), valueAt(candidate));
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns true if the given node's key is a prefix of the
+     * first lengthInBits bits of the given key.
+     */
+    private boolean isPrefixOf(int node, K key, int lengthInBits) {
+        K prefix = keyAt(node);
+        if (prefix == null) {
+            return false;
+        }
+
+        int prefixLength = lengthInBits(prefix);
+        return prefixLength <= lengthInBits
+            && keyAnalyzer.isPrefix(prefix, 0, prefixLength, key);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UnsupportedOperationException if the {@link Cursor}
+     * wants to remove an entry
+     */
+    @Override
+    public Map.Entry<K, V> traverse(Cursor<? super K, ? super V> cursor) {
+        for (int node = 0; node < size; node++) {
+            Map.Entry<K, V> entry = new MappedEntry<K, V>(keyAt(node), valueAt(node));
+
+            Decision decision = cursor.select(entry);
+            switch(decision) {
+                case EXIT:
+                    return entry;
+                case REMOVE:
+                case REMOVE_AND_EXIT:
+                    throw new UnsupportedOperationException("The Trie is read-only");
+                case CONTINUE: // do nothing.
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the view of the whole {@link Trie}
+     */
+    private TrieRangeMap<K, V> view() {
+        if (view == null) {
+            view = newRangeMap(null, 0, 0);
+        }
+        return view;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return view().entrySet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<K> keySet() {
+        return view().keySet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Comparator<? super K> comparator() {
+        return keyAnalyzer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K firstKey() {
+        return view().firstKey();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K lastKey() {
+        return view().lastKey();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> headMap(K toKey) {
+        return view().headMap(toKey);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> subMap(K fromKey, K toKey) {
+        return view().subMap(fromKey, toKey);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> tailMap(K fromKey) {
+        return view().tailMap(fromKey);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedBy(K key) {
+        return getPrefixedByBits(key, 0, lengthInBits(key));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedBy(K key, int length) {
+        return getPrefixedByBits(key, 0, length * bitsPerElement());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedBy(K key, int offset, int length) {
+        int bitsPerElement = bitsPerElement();
+        return getPrefixedByBits(key, offset*bitsPerElement, length*bitsPerElement);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedByBits(K key, int lengthInBits) {
+        return getPrefixedByBits(key, 0, lengthInBits);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedByBits(K key, int offsetInBits, int lengthInBits) {
+
+        int offsetLength = offsetInBits + lengthInBits;
+        if (offsetLength > lengthInBits(key)) {
+            throw new IllegalArgumentException(offsetInBits + " + "
+                    + lengthInBits + " > " + lengthInBits(key));
+        }
+
+        if (offsetLength == 0) {
+            return this;
+        }
+
+        return newRangeMap(key, offsetInBits, lengthInBits);
+    }
+
+    /**
+     * Turns keys or values into bytes and back
+     */
+    public static interface Codec<T> {
+
+        /**
+         * Encodes {@link String}s as UTF-16BE. The encoded keys
+         * have the same bits as in the {@link StringKeyAnalyzer}.
+         */
+        public static final Codec<String> STRING = new Codec<String>() {
+            @Override
+            public byte[] encode(String value) {
+                byte[] data = new byte[value.length() * 2];
+                for (int i = 0; i < value.length(); i++) {
+                    char ch = value.charAt(i);
+                    data[2*i] = (byte)(ch >>> 8);
+                    data[2*i+1] = (byte)ch;
+                }
+                return data;
+            }
+
+            @Override
+            public String decode(ByteBuffer buffer, int offset, int length) {
+                char[] chars = new char[length / 2];
+                for (int i = 0; i < chars.length; i++) {
+                    chars[i] = (char)(((buffer.get(offset + 2*i) & 0xFF) << 8)
+                            | (buffer.get(offset + 2*i + 1) & 0xFF));
+                }
+                return new String(chars);
+            }
+        };
+
+        /**
+         * Stores byte[]s as they are. The encoded keys have
+         * the same bits as in the {@link ByteArrayKeyAnalyzer}.
+         */
+        public static final Codec<byte[]> BYTE_ARRAY = new Codec<byte[]>() {
+            @Override
+            public byte[] encode(byte[] value) {
+                return value;
+            }
+
+            @Override
+            public byte[] decode(ByteBuffer buffer, int offset, int length) {
+                byte[] data = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    data[i] = buffer.get(offset + i);
+                }
+                return data;
+            }
+        };
+
+        /**
+         * Returns the bytes of the given (non-null) value
+         */
+        public byte[] encode(T value);
+
+        /**
+         * Returns the value of the given bytes. The {@link ByteBuffer}
+         * is shared and must only be read with the absolute get methods.
+         */
+        public T decode(ByteBuffer buffer, int offset, int length);
+    }
+
+    /**
+     * Creates a {@link TrieRangeMap} for the keys with the given prefix
+     * (or all keys if it is null)
+     */
+    private TrieRangeMap<K, V> newRangeMap(K prefix, int offsetInBits, int lengthInBits) {
+        return new TrieRangeMap<K, V>(this, new RangeNodes(),
+                null, null, prefix, offsetInBits, lengthInBits);
+    }
+
+    /**
+     * Gives the {@link TrieRangeMap}s access to the nodes
+     */
+    private final class RangeNodes implements TrieRangeMap.Nodes<K, V> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public TrieRangeMap.Range<K, V> range(TrieRangeMap<K, V> view) {
+            return new Range(view);
+        }
+    }
+
+    /**
+     * The nodes in a {@link TrieRangeMap}. They are the nodes
+     * from fromIndex (inclusive) to toIndex (exclusive).
+     */
+    private final class Range implements TrieRangeMap.Range<K, V> {
+
+        private final int fromIndex;
+
+        private final int toIndex;
+
+        public Range(TrieRangeMap<K, V> view) {
+            int fromIndex = 0;
+            int toIndex = size;
+
+            K prefix = view.prefix;
+            if (prefix != null) {
+                int offsetInBits = view.offsetInBits;
+                int lengthInBits = view.lengthInBits;
+
+                int node = left(root);
+                int from = -1;
+
+                int endIndexInBits = offsetInBits + lengthInBits;
+                while (!isUplink(node, from)
+                        && bitIndexOf(node) < lengthInBits) {
+                    from = bitIndexOf(node);
+                    node = isBitSet(prefix, offsetInBits + from,
+                            endIndexInBits) ? right(node) : left(node);
+                }
+
+                // All keys below the node have the same first lengthInBits
+                // bits and the node's own key is one of them.
+                K key = keyAt(node);
+                if (key == null || !keyAnalyzer.isPrefix(prefix,
+                        offsetInBits, lengthInBits, key)) {
+                    toIndex = 0;
+                } else if (isUplink(node, from)) {
+                    fromIndex = node;
+                    toIndex = node + 1;
+                } else {
+                    fromIndex = firstIndex(node);
+                    toIndex = lastIndex(node) + 1;
+                }
+            }
+
+            if (view.lo != null) {
+                fromIndex = Math.max(fromIndex, ceilingIndex(view.lo, true));
+            }
+
+            if (view.hi != null) {
+                toIndex = Math.min(toIndex, ceilingIndex(view.hi, true));
+            }
+
+            this.fromIndex = fromIndex;
+            this.toIndex = Math.max(fromIndex, toIndex);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int size() {
+            return toIndex - fromIndex;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isEmpty() {
+            return fromIndex == toIndex;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K firstKey() {
+            if (isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            return keyAt(fromIndex);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K lastKey() {
+            if (isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            return keyAt(toIndex - 1);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Iterator<Map.Entry<K, V>> entryIterator() {
+            return new RangeIterator<Map.Entry<K, V>>() {
+                @Override
+                public Map.Entry<K, V> next() {
+                    int node = nextNode();
+                    return new MappedEntry<K, V>(keyAt(node), valueAt(node));
+                }
+            };
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Iterator<K> keyIterator() {
+            return new RangeIterator<K>() {
+                @Override
+                public K next() {
+                    return keyAt(nextNode());
+                }
+            };
+        }
+
+        /**
+         * An {@link Iterator} over the nodes in the range
+         */
+        private abstract class RangeIterator<E> implements Iterator<E> {
+
+            private int next = fromIndex;
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean hasNext() {
+                return next < toIndex;
+            }
+
+            /**
+             * Returns the next node
+             */
+            protected int nextNode() {
+                if (next >= toIndex) {
+                    throw new NoSuchElementException();
+                }
+                return next++;
+            }
+        }
+    }
+
+    /**
+     * A {@link Map.Entry} with the decoded key and value of a node.
+     * It's not backed by the {@link Trie} and can't be modified.
+     */
+    private static final class MappedEntry<K, V> extends BasicEntry<K, V> {
+
+        private static final long serialVersionUID = -3505298328431839436L;
+
+        public MappedEntry(K key, V value) {
+            super(key, value);
+        }
+
+        /**
+         * Throws an {@link UnsupportedOperationException}
+         */
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException("The Trie is read-only");
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+import java.util.Arrays;
+
+/**
+ * A stack of nodes and the bit index of the node each
+ * of them is hanging off (to tell uplinks apart). It's
+ * used by the {@link Trie}s that store their nodes in
+ * arrays and refer to them by index.
+ */
+final class NodeStack {
+
+    private int[] nodes = new int[32];
+
+    private int[] bitIndices = new int[32];
+
+    private int size = 0;
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void push(int node, int bitIndex) {
+        if (size == nodes.length) {
+            nodes = Arrays.copyOf(nodes, 2 * size);
+            bitIndices = Arrays.copyOf(bitIndices, 2 * size);
+        }
+
+        nodes[size] = node;
+        bitIndices[size] = bitIndex;
+        ++size;
+    }
+
+    public int nodeAt(int index) {
+        return nodes[index];
+    }
+
+    public int bitIndexAt(int index) {
+        return bitIndices[index];
+    }
+
+    public int peekBitIndex() {
+        return bitIndices[size-1];
+    }
+
+    public int pop() {
+        return nodes[--size];
+    }
+}
@@ -0,0 +1,726 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+import java.io.Closeable;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A PATRICIA trie for byte[] keys and values that keeps its nodes and
+ * the bytes of the keys and values outside of the Java heap.
+ *
+ * <p>The memory comes from direct {@link ByteBuffer}s (slabs). Small
+ * nodes are carved out of shared slabs and their blocks are put on a
+ * free list of their size when they're removed. Keys and values that
+ * are too big for that get a slab of their own. The heap only holds the
+ * list of slabs, so its size doesn't depend on the number of entries and
+ * the garbage collector has nothing to trace.
+ *
+ * <p>The trie is a crit-bit tree: the keys and values are in the leaves
+ * and the branches only have the bit index and the links to their two
+ * children. Each byte of a key takes nine bits, a one bit that says the
+ * byte is there and its eight bits. No key is a prefix of another key
+ * that way and the keys are in the order of their unsigned bytes, a key
+ * comes before the keys it's a prefix of.
+ *
+ * <p>The values are copied into {@link ByteBuffer}s of the caller and
+ * {@link #scan(byte[], Visitor)} hands out read-only views of the keys
+ * and values instead of copies.
+ *
+ * <p>The slabs are released with {@link #close()}. The memory of a direct
+ * {@link ByteBuffer} is freed when the buffer is collected, which makes
+ * sure that a view that is still in use never points to freed memory.
+ *
+ * <p>This class is not thread-safe.
+ */
+public class OffHeapPatriciaTrie implements Closeable {
+
+    /**
+     * The default size of a slab in bytes
+     */
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+    /**
+     * The address of nothing
+     */
+    private static final long NIL = -1L;
+
+    /**
+     * The bit index of a leaf
+     */
+    private static final int LEAF = -1;
+
+    /**
+     * The bit index of a branch or {@link #LEAF}
+     */
+    private static final int BIT_INDEX = 0;
+
+    /**
+     * The address of the left child of a branch
+     */
+    private static final int LEFT = 4;
+
+    /**
+     * The address of the right child of a branch
+     */
+    private static final int RIGHT = 12;
+
+    private static final int BRANCH_SIZE = 20;
+
+    /**
+     * The length of the key of a leaf
+     */
+    private static final int KEY_LENGTH = 4;
+
+    /**
+     * The length of the value of a leaf
+     */
+    private static final int VALUE_LENGTH = 8;
+
+    /**
+     * The key of a leaf followed by the value
+     */
+    private static final int LEAF_HEADER = 12;
+
+    private static final int ALIGNMENT = 8;
+
+    /**
+     * The biggest block that is carved out of a shared slab
+     */
+    private static final int MAX_SMALL_BLOCK = 4096;
+
+    /**
+     * The number of bits of each byte of a key
+     */
+    private static final int BITS_PER_BYTE = 9;
+
+    private final int slabSize;
+
+    /**
+     * The heads of the free lists of small blocks by size
+     */
+    private final long[] freeLists = new long[MAX_SMALL_BLOCK / ALIGNMENT + 1];
+
+    /**
+     * The indices of the slabs that were released
+     */
+    private final List<Integer> freeSlabs = new ArrayList<Integer>();
+
+    private List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+
+    /**
+     * The index of the shared slab new blocks are carved out of
+     */
+    private int current = -1;
+
+    /**
+     * The start of the free space in the current slab
+     */
+    private int position = 0;
+
+    private long allocatedBytes = 0L;
+
+    private long root = NIL;
+
+    private int size = 0;
+
+    /**
+     * Creates an {@link OffHeapPatriciaTrie} with the
+     * {@link #DEFAULT_SLAB_SIZE}
+     */
+    public OffHeapPatriciaTrie() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Creates an {@link OffHeapPatriciaTrie} that allocates
+     * its memory in slabs of the given size
+     */
+    public OffHeapPatriciaTrie(int slabSize) {
+        if (slabSize < MAX_SMALL_BLOCK || slabSize % ALIGNMENT != 0) {
+            throw new IllegalArgumentException("slabSize=" + slabSize);
+        }
+
+        this.slabSize = slabSize;
+        Arrays.fill(freeLists, NIL);
+    }
+
+    /**
+     * Returns the number of keys in the trie
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns true if the trie is empty
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the number of bytes of memory the trie has allocated
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Returns true if the trie has the given key
+     */
+    public boolean containsKey(byte[] key) {
+        return find(key) != NIL;
+    }
+
+    /**
+     * Returns the length of the value of the given key
+     * or -1 if the trie doesn't have the key
+     */
+    public int valueLength(byte[] key) {
+        long leaf = find(key);
+        return leaf != NIL ? getInt(leaf, VALUE_LENGTH) : -1;
+    }
+
+    /**
+     * Copies the value of the given key into the given {@link ByteBuffer}
+     * and returns its length or -1 if the trie doesn't have the key.
+     * Use {@link #valueLength(byte[])} to find out how much room the
+     * value needs.
+     *
+     * @throws BufferOverflowException if the {@link ByteBuffer} is too
+     * small for the value. The {@link ByteBuffer} isn't modified.
+     */
+    public int get(byte[] key, ByteBuffer dst) {
+        if (dst == null) {
+            throw new NullPointerException("dst");
+        }
+
+        long leaf = find(key);
+        if (leaf == NIL) {
+            return -1;
+        }
+
+        int length = getInt(leaf, VALUE_LENGTH);
+        if (dst.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+
+        dst.put(view(leaf, valueOffset(leaf), length));
+        return length;
+    }
+
+    /**
+     * Returns a copy of the value of the given key or null
+     * if the trie doesn't have the key
+     */
+    public byte[] get(byte[] key) {
+        long leaf = find(key);
+        if (leaf == NIL) {
+            return null;
+        }
+
+        byte[] value = new byte[getInt(leaf, VALUE_LENGTH)];
+        view(leaf, valueOffset(leaf), value.length).get(value);
+        return value;
+    }
+
+    /**
+     * Copies the given key and value into the trie and returns
+     * true if it replaced the value of a key that was already
+     * in the trie
+     */
+    public boolean put(byte[] key, byte[] value) {
+        checkOpen();
+
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+
+        if (root == NIL) {
+            root = createLeaf(key, value);
+            ++size;
+            return false;
+        }
+
+        long parent = NIL;
+        int field = 0;
+        long node = root;
+        int bitIndex;
+        while ((bitIndex = getInt(node, BIT_INDEX)) != LEAF) {
+            parent = node;
+            field = isBitSet(key, bitIndex) ? RIGHT : LEFT;
+            node = getLong(node, field);
+        }
+
+        bitIndex = bitIndex(key, node);
+        if (bitIndex == LEAF) {
+            setValue(parent, field, node, key, value);
+            return true;
+        }
+
+        // The new branch goes above the first node on the
+        // path whose bit index is after the new one.
+        parent = NIL;
+        field = 0;
+        node = root;
+        int nodeBitIndex;
+        while ((nodeBitIndex = getInt(node, BIT_INDEX)) != LEAF
+                && nodeBitIndex < bitIndex) {
+            parent = node;
+            field = isBitSet(key, nodeBitIndex) ? RIGHT : LEFT;
+            node = getLong(node, field);
+        }
+
+        long leaf = createLeaf(key, value);
+        long branch = allocate(BRANCH_SIZE);
+        boolean right = isBitSet(key, bitIndex);
+        putInt(branch, BIT_INDEX, bitIndex);
+        putLong(branch, LEFT, right ? node : leaf);
+        putLong(branch, RIGHT, right ? leaf : node);
+        link(parent, field, branch);
+
+        ++size;
+        return false;
+    }
+
+    /**
+     * Removes the given key and returns true if it was in the trie
+     */
+    public boolean remove(byte[] key) {
+        checkOpen();
+
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+
+        if (root == NIL) {
+            return false;
+        }
+
+        long grandparent = NIL;
+        int parentField = 0;
+        long parent = NIL;
+        int field = 0;
+        long node = root;
+        int bitIndex;
+        while ((bitIndex = getInt(node, BIT_INDEX)) != LEAF) {
+            grandparent = parent;
+            parentField = field;
+            parent = node;
+            field = isBitSet(key, bitIndex) ? RIGHT : LEFT;
+            node = getLong(node, field);
+        }
+
+        if (bitIndex(key, node) != LEAF) {
+            return false;
+        }
+
+        if (parent == NIL) {
+            root = NIL;
+        } else {
+            long sibling = getLong(parent, field == LEFT ? RIGHT : LEFT);
+            link(grandparent, parentField, sibling);
+            release(parent, BRANCH_SIZE);
+        }
+
+        release(node, leafSize(node));
+        --size;
+        return true;
+    }
+
+    /**
+     * Hands the keys that start with the given prefix and their values
+     * to the {@link Visitor} in the order of the keys and returns the
+     * number of keys it has seen. An empty prefix selects all keys.
+     *
+     * <p>The {@link ByteBuffer}s are read-only views of the memory of
+     * the trie and their content is only valid until the trie is
+     * modified. The {@link Visitor} must not modify the trie.
+     */
+    public int scan(byte[] prefix, Visitor visitor) {
+        checkOpen();
+
+        if (prefix == null) {
+            throw new NullPointerException("prefix");
+        }
+
+        if (visitor == null) {
+            throw new NullPointerException("visitor");
+        }
+
+        // All keys below the first node that doesn't look at the bits
+        // of the prefix are the same up to that node's bit index. They
+        // start with the prefix if any of them does.
+        int lengthInBits = prefix.length * BITS_PER_BYTE;
+        long node = root;
+        int bitIndex;
+        while (node != NIL && (bitIndex = getInt(node, BIT_INDEX)) != LEAF
+                && bitIndex < lengthInBits) {
+            node = getLong(node, isBitSet(prefix, bitIndex) ? RIGHT : LEFT);
+        }
+
+        if (node == NIL) {
+            return 0;
+        }
+
+        long first = node;
+        while (getInt(first, BIT_INDEX) != LEAF) {
+            first = getLong(first, LEFT);
+        }
+
+        int diff = bitIndex(prefix, first);
+        if (diff != LEAF && diff < lengthInBits) {
+            return 0;
+        }
+
+        ByteBuffer[] keys = new ByteBuffer[slabs.size()];
+        ByteBuffer[] values = new ByteBuffer[slabs.size()];
+
+        long[] stack = new long[16];
+        int top = 0;
+        stack[top++] = node;
+
+        int count = 0;
+        while (top > 0) {
+            node = stack[--top];
+            if (getInt(node, BIT_INDEX) != LEAF) {
+                if (top + 2 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[top++] = getLong(node, RIGHT);
+                stack[top++] = getLong(node, LEFT);
+                continue;
+            }
+
+            int index = slabIndex(node);
+            if (keys[index] == null) {
+                keys[index] = slabs.get(index).asReadOnlyBuffer();
+                values[index] = slabs.get(index).asReadOnlyBuffer();
+            }
+
+            int keyOffset = offset(node) + LEAF_HEADER;
+            int valueOffset = valueOffset(node);
+
+            ByteBuffer key = keys[index];
+            key.limit(keyOffset + getInt(node, KEY_LENGTH)).position(keyOffset);
+
+            ByteBuffer value = values[index];
+            value.limit(valueOffset + getInt(node, VALUE_LENGTH)).position(valueOffset);
+
+            ++count;
+            if (!visitor.visit(key, value)) {
+                break;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Removes all keys and values from the trie
+     * and releases all of its memory
+     */
+    public void clear() {
+        checkOpen();
+        slabs = new ArrayList<ByteBuffer>();
+        reset();
+    }
+
+    /**
+     * Releases the memory of the trie. The trie can't
+     * be used after it has been closed.
+     */
+    @Override
+    public void close() {
+        slabs = null;
+        reset();
+    }
+
+    /**
+     * Forgets all keys and slabs
+     */
+    private void reset() {
+        Arrays.fill(freeLists, NIL);
+        freeSlabs.clear();
+        current = -1;
+        position = 0;
+        allocatedBytes = 0L;
+        root = NIL;
+        size = 0;
+    }
+
+    private void checkOpen() {
+        if (slabs == null) {
+            throw new IllegalStateException("The Trie is closed");
+        }
+    }
+
+    /**
+     * Returns the leaf of the given key or {@link #NIL}
+     */
+    private long find(byte[] key) {
+        checkOpen();
+
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+
+        long node = root;
+        while (node != NIL) {
+            int bitIndex = getInt(node, BIT_INDEX);
+            if (bitIndex == LEAF) {
+                return bitIndex(key, node) == LEAF ? node : NIL;
+            }
+
+            node = getLong(node, isBitSet(key, bitIndex) ? RIGHT : LEFT);
+        }
+        return NIL;
+    }
+
+    /**
+     * Replaces the value of the given leaf. The value is written over
+     * the old one if the leaf's block has the right size. Otherwise the
+     * leaf is replaced with a new one.
+     */
+    private void setValue(long parent, int field, long leaf, byte[] key, byte[] value) {
+        int oldSize = leafSize(leaf);
+        int newSize = LEAF_HEADER + key.length + value.length;
+
+        if (align(oldSize) == align(newSize)) {
+            putInt(leaf, VALUE_LENGTH, value.length);
+            write(leaf, valueOffset(leaf), value);
+            return;
+        }
+
+        link(parent, field, createLeaf(key, value));
+        release(leaf, oldSize);
+    }
+
+    /**
+     * Makes the given node the child of the parent or the root
+     * if the parent is {@link #NIL}
+     */
+    private void link(long parent, int field, long node) {
+        if (parent == NIL) {
+            root = node;
+        } else {
+            putLong(parent, field, node);
+        }
+    }
+
+    private long createLeaf(byte[] key, byte[] value) {
+        if (key.length > Integer.MAX_VALUE - LEAF_HEADER - ALIGNMENT - value.length) {
+            throw new IllegalArgumentException("The key and value are too big: "
+                    + key.length + ", " + value.length);
+        }
+
+        long leaf = allocate(LEAF_HEADER + key.length + value.length);
+        putInt(leaf, BIT_INDEX, LEAF);
+        putInt(leaf, KEY_LENGTH, key.length);
+        putInt(leaf, VALUE_LENGTH, value.length);
+        write(leaf, offset(leaf) + LEAF_HEADER, key);
+        write(leaf, valueOffset(leaf), value);
+        return leaf;
+    }
+
+    private int leafSize(long leaf) {
+        return LEAF_HEADER + getInt(leaf, KEY_LENGTH) + getInt(leaf, VALUE_LENGTH);
+    }
+
+    /**
+     * Returns the offset of the value of the given leaf in its slab
+     */
+    private int valueOffset(long leaf) {
+        return offset(leaf) + LEAF_HEADER + getInt(leaf, KEY_LENGTH);
+    }
+
+    /**
+     * Returns the index of the first bit where the given key is different
+     * from the key of the leaf or {@link #LEAF} if they're equal
+     */
+    private int bitIndex(byte[] key, long leaf) {
+        ByteBuffer slab = slab(leaf);
+        int start = offset(leaf) + LEAF_HEADER;
+        int length = slab.getInt(offset(leaf) + KEY_LENGTH);
+
+        int min = Math.min(key.length, length);
+        for (int i = 0; i < min; i++) {
+            int diff = (key[i] ^ slab.get(start + i)) & 0xFF;
+            if (diff != 0) {
+                return i * BITS_PER_BYTE + Integer.numberOfLeadingZeros(diff) - 23;
+            }
+        }
+
+        return key.length != length ? min * BITS_PER_BYTE : LEAF;
+    }
+
+    /**
+     * Returns true if the given bit of the key is set
+     */
+    private static boolean isBitSet(byte[] key, int bitIndex) {
+        int index = bitIndex / BITS_PER_BYTE;
+        if (index >= key.length) {
+            return false;
+        }
+
+        int bit = bitIndex % BITS_PER_BYTE;
+        return bit == 0 || (key[index] & (0x100 >>> bit)) != 0;
+    }
+
+    /**
+     * Returns the address of a new block of the given length
+     */
+    private long allocate(int length) {
+        int blockSize = align(length);
+
+        if (blockSize > MAX_SMALL_BLOCK) {
+            allocatedBytes += blockSize;
+            return address(addSlab(ByteBuffer.allocateDirect(blockSize)), 0);
+        }
+
+        int sizeClass = blockSize / ALIGNMENT;
+        long address = freeLists[sizeClass];
+        if (address != NIL) {
+            freeLists[sizeClass] = getLong(address, 0);
+            return address;
+        }
+
+        if (current == -1 || position + blockSize > slabSize) {
+            if (current != -1 && position < slabSize) {
+                release(address(current, position), slabSize - position);
+            }
+
+            allocatedBytes += slabSize;
+            current = addSlab(ByteBuffer.allocateDirect(slabSize));
+            position = 0;
+        }
+
+        address = address(current, position);
+        position += blockSize;
+        return address;
+    }
+
+    /**
+     * Puts the given block on its free list or releases
+     * the slab if the block has a slab of its own
+     */
+    private void release(long address, int length) {
+        int blockSize = align(length);
+
+        if (blockSize > MAX_SMALL_BLOCK) {
+            int index = slabIndex(address);
+            allocatedBytes -= slabs.get(index).capacity();
+            slabs.set(index, null);
+            freeSlabs.add(index);
+            return;
+        }
+
+        int sizeClass = blockSize / ALIGNMENT;
+        putLong(address, 0, freeLists[sizeClass]);
+        freeLists[sizeClass] = address;
+    }
+
+    /**
+     * Adds the given slab and returns its index
+     */
+    private int addSlab(ByteBuffer slab) {
+        if (!freeSlabs.isEmpty()) {
+            int index = freeSlabs.remove(freeSlabs.size() - 1);
+            slabs.set(index, slab);
+            return index;
+        }
+
+        slabs.add(slab);
+        return slabs.size() - 1;
+    }
+
+    private static int align(int length) {
+        return (length + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    private static long address(int slabIndex, int offset) {
+        return ((long)slabIndex << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static int slabIndex(long address) {
+        return (int)(address >>> 32);
+    }
+
+    private static int offset(long address) {
+        return (int)address;
+    }
+
+    private ByteBuffer slab(long address) {
+        return slabs.get(slabIndex(address));
+    }
+
+    private int getInt(long address, int field) {
+        return slab(address).getInt(offset(address) + field);
+    }
+
+    private long getLong(long address, int field) {
+        return slab(address).getLong(offset(address) + field);
+    }
+
+    private void putInt(long address, int field, int value) {
+        slab(address).putInt(offset(address) + field, value);
+    }
+
+    private void putLong(long address, int field, long value) {
+        slab(address).putLong(offset(address) + field, value);
+    }
+
+    /**
+     * Copies the given bytes into the slab of the address
+     */
+    private void write(long address, int offset, byte[] src) {
+        ByteBuffer dst = slab(address).duplicate();
+        dst.position(offset);
+        dst.put(src);
+    }
+
+    /**
+     * Returns a view of the given range of the slab of the address
+     */
+    private ByteBuffer view(long address, int offset, int length) {
+        ByteBuffer view = slab(address).duplicate();
+        view.limit(offset + length).position(offset);
+        return view;
+    }
+
+    /**
+     * A {@link Visitor} is called with the keys and values
+     * of {@link OffHeapPatriciaTrie#scan(byte[], Visitor)}
+     */
+    public static interface Visitor {
+
+        /**
+         * Called with a key and its value. Returns true to
+         * continue and false to stop the scan.
+         */
+        public boolean visit(ByteBuffer key, ByteBuffer value);
+    }
+}
@@ -18,13 +18,23 @@ package org.ardverk.collection;
 
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
 import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.Spliterator;
+import java.util.function.ToLongFunction;
+
+import org.ardverk.collection.TrieStats.Operation;
 
 /**
  * <h3>PATRICIA {@link Trie}</h3>
@@ -61,6 +71,11 @@ import java.util.SortedMap;
  * {@link ClassCastException} if the method is expecting an instance of K 
  * and it isn't K.
  * 
+ * <p>The {@link PatriciaTrie} is also a {@link NavigableMap}. The lookups 
+ * and all range views (including the descending ones) are operating on the 
+ * {@link Trie} itself and don't copy anything. The lexicographical order 
+ * is the order of the bits as seen by the {@link KeyAnalyzer}.
+ * 
  * @see <a href="http://en.wikipedia.org/wiki/Radix_tree">Radix Tree</a>
  * @see <a href="http://www.csse.monash.edu.au/~lloyd/tildeAlgDS/Tree/PATRICIA">PATRICIA</a>
  * @see <a href="http://www.imperialviolet.org/binary/critbit.pdf">Crit-Bit Tree</a>
@@ -68,9 +83,16 @@ import java.util.SortedMap;
  * @author Roger Kapsi
  * @author Sam Berlin
  */
-public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K, V> {
+public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> 
+        implements Trie<K, V>, NavigableMap<K, V> {
     
     private static final long serialVersionUID = 4446367780901817838L;
+    
+    /**
+     * The {@link #descendingMap()} and {@link #navigableKeySet()} views
+     */
+    private transient volatile NavigableMap<K, V> descendingMap;
+    private transient volatile NavigableSet<K> navigableKeySet;
 
     /**
      * {@inheritDoc}
@@ -87,6 +109,38 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
         super(keyAnalyzer, m);
     }
     
+    /**
+     * Creates a {@link PatriciaTrie} from the given entries. The entries 
+     * should be in ascending order of their keys (in terms of the given 
+     * {@link KeyAnalyzer}). It takes linear time if they are and falls 
+     * back to {@link #put(Object, Object)} for the remaining entries as 
+     * soon as a key is out of order.
+     */
+    public static <K, V> PatriciaTrie<K, V> fromSorted(KeyAnalyzer<? super K> keyAnalyzer, 
+            Iterator<? extends Map.Entry<? extends K, ? extends V>> entries) {
+        if (entries == null) {
+            throw new NullPointerException("entries");
+        }
+        
+        PatriciaTrie<K, V> trie = new PatriciaTrie<K, V>(keyAnalyzer);
+        trie.putAllSorted(entries);
+        return trie;
+    }
+    
+    /**
+     * Creates a {@link PatriciaTrie} from the given {@link SortedMap}.
+     * 
+     * @see #fromSorted(KeyAnalyzer, Iterator)
+     */
+    public static <K, V> PatriciaTrie<K, V> fromSorted(KeyAnalyzer<? super K> keyAnalyzer, 
+            SortedMap<? extends K, ? extends V> m) {
+        if (m == null) {
+            throw new NullPointerException("m");
+        }
+        
+        return fromSorted(keyAnalyzer, m.entrySet().iterator());
+    }
+    
     /**
      * {@inheritDoc}
      */
@@ -133,7 +187,7 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
      */
     @Override
     public K firstKey() {
-        return firstEntry().getKey();
+        return key(firstTrieEntry());
     }
 
     /**
@@ -141,21 +195,143 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
      */
     @Override
     public K lastKey() {
-        TrieEntry<K, V> entry = lastEntry();
-        if (entry != null) {
-            return entry.getKey();
+        return key(lastTrieEntry());
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> firstEntry() {
+        return exportEntry(firstTrieEntry());
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> lastEntry() {
+        return exportEntry(lastTrieEntry());
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> pollFirstEntry() {
+        return pollEntry(firstTrieEntry());
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> pollLastEntry() {
+        return pollEntry(lastTrieEntry());
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> ceilingEntry(K key) {
+        return exportEntry(ceilingTrieEntry(key));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K ceilingKey(K key) {
+        return keyOrNull(ceilingTrieEntry(key));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> floorEntry(K key) {
+        return exportEntry(floorTrieEntry(key));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K floorKey(K key) {
+        return keyOrNull(floorTrieEntry(key));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> higherEntry(K key) {
+        return exportEntry(higherTrieEntry(key));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K higherKey(K key) {
+        return keyOrNull(higherTrieEntry(key));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> lowerEntry(K key) {
+        return exportEntry(lowerTrieEntry(key));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K lowerKey(K key) {
+        return keyOrNull(lowerTrieEntry(key));
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NavigableMap<K, V> descendingMap() {
+        if (descendingMap == null) {
+            descendingMap = new DescendingMap(this);
         }
-        return null;
+        return descendingMap;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NavigableSet<K> navigableKeySet() {
+        if (navigableKeySet == null) {
+            navigableKeySet = new NavigableKeySet<K>(this);
+        }
+        return navigableKeySet;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+        return descendingMap().navigableKeySet();
     }
     
     /**
      * {@inheritDoc}
      * 
      * The view that this returns is optimized to have a very efficient
-     * {@link Iterator}. The {@link SortedMap#firstEntry()}, 
-     * {@link SortedMap#lastKey()} &amp; {@link Map#size()} methods must 
-     * iterate over all possible values in order to determine the results. 
-     * This information is cached until the PATRICIA {@link Trie} changes. 
+     * {@link Iterator}. The {@link SortedMap#firstKey()}, 
+     * {@link SortedMap#lastKey()} &amp; {@link Map#size()} methods take 
+     * a lookup of the prefix. The number of keys with the prefix is kept 
+     * in the node on top of them and nothing has to be iterated.
      * All other methods (except {@link Iterator}) must compare the given 
      * key to the prefix to ensure that it is within the range of the view.  
      * The {@link Iterator}'s remove method must also relocate the subtree 
@@ -202,14 +378,188 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
         return new RangeEntryMap(fromKey, null);
     } 
     
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+        return new RangeEntryMap(null, false, toKey, inclusive);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, 
+            K toKey, boolean toInclusive) {
+        return new RangeEntryMap(fromKey, fromInclusive, toKey, toInclusive);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        return new RangeEntryMap(fromKey, inclusive, null, false);
+    }
+    
+    /**
+     * Returns the k entries with the highest scores whose keys start with 
+     * the given prefix. The highest score comes first and entries with 
+     * the same score are in no particular order.
+     * 
+     * <p>It's a best-first search from the subtree with the prefix. Each 
+     * subtree is as good as the highest score in it and the ones that 
+     * can't make it into the top k are never looked at. It takes about 
+     * k times the depth of the {@link Trie} steps no matter how many 
+     * keys have the prefix.
+     * 
+     * @throws IllegalStateException if there is no score function
+     * @see #setScoreFunction(ToLongFunction)
+     */
+    public List<Map.Entry<K, V>> topK(K prefix, int k) {
+        ToLongFunction<? super V> scoreFunction = getScoreFunction();
+        if (scoreFunction == null) {
+            throw new IllegalStateException("There is no score function");
+        }
+        
+        if (prefix == null) {
+            throw new NullPointerException("prefix");
+        }
+        
+        if (k < 0) {
+            throw new IllegalArgumentException("k=" + k);
+        }
+        
+        List<Map.Entry<K, V>> top = new ArrayList<Map.Entry<K, V>>(Math.min(k, size()));
+        if (k == 0) {
+            return top;
+        }
+        
+        PriorityQueue<ScoredEntry<K, V>> queue = new PriorityQueue<ScoredEntry<K, V>>();
+        
+        int lengthInBits = lengthInBits(prefix);
+        if (lengthInBits == 0) {
+            ScoredEntry.offer(queue, root.left, root, scoreFunction);
+        } else {
+            TrieEntry<K, V> prefixStart = subtree(prefix, 0, lengthInBits);
+            if (prefixStart == null) {
+                return top;
+            } else if (lengthInBits <= prefixStart.bitIndex) {
+                queue.add(new ScoredEntry<K, V>(prefixStart, true, prefixStart.maxScore));
+            } else {
+                // An uplink to the entry, it's the only one
+                queue.add(new ScoredEntry<K, V>(prefixStart, false, 
+                        scoreFunction.applyAsLong(prefixStart.value)));
+            }
+        }
+        
+        while (!queue.isEmpty()) {
+            ScoredEntry<K, V> scored = queue.poll();
+            TrieEntry<K, V> entry = scored.entry;
+            
+            if (!scored.subtree) {
+                top.add(entry);
+                if (top.size() == k) {
+                    break;
+                }
+                continue;
+            }
+            
+            ScoredEntry.offer(queue, entry.left, entry, scoreFunction);
+            ScoredEntry.offer(queue, entry.right, entry, scoreFunction);
+        }
+        
+        return top;
+    }
+    
+    /**
+     * An entry or a subtree in the queue of {@link PatriciaTrie#topK(Object, int)}.
+     * The highest score comes first.
+     */
+    private static final class ScoredEntry<K, V> implements Comparable<ScoredEntry<K, V>> {
+        
+        private final TrieEntry<K, V> entry;
+        
+        private final boolean subtree;
+        
+        private final long score;
+        
+        ScoredEntry(TrieEntry<K, V> entry, boolean subtree, long score) {
+            this.entry = entry;
+            this.subtree = subtree;
+            this.score = score;
+        }
+        
+        /**
+         * Adds the given child of the given node to the queue. It's an 
+         * entry if it's an uplink and a subtree otherwise.
+         */
+        static <K, V> void offer(PriorityQueue<ScoredEntry<K, V>> queue, 
+                TrieEntry<K, V> child, TrieEntry<K, V> node, 
+                ToLongFunction<? super V> scoreFunction) {
+            if (child.bitIndex > node.bitIndex) {
+                queue.add(new ScoredEntry<K, V>(child, true, child.maxScore));
+            } else if (!child.isEmpty()) {
+                queue.add(new ScoredEntry<K, V>(child, false, 
+                        scoreFunction.applyAsLong(child.value)));
+            }
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int compareTo(ScoredEntry<K, V> o) {
+            return Long.compare(o.score, score);
+        }
+    }
+    
+    /**
+     * Removes the given entry and returns a copy of it 
+     * or null if the given entry is null
+     */
+    private Map.Entry<K, V> pollEntry(TrieEntry<K, V> entry) {
+        if (entry == null) {
+            return null;
+        }
+        
+        Map.Entry<K, V> copy = exportEntry(entry);
+        removeEntry(entry);
+        return copy;
+    }
+    
+    /**
+     * Returns the given entry's key or throws a 
+     * {@link NoSuchElementException} if the entry is null
+     */
+    private static <K> K key(Map.Entry<K, ?> entry) {
+        if (entry == null) {
+            throw new NoSuchElementException();
+        }
+        return entry.getKey();
+    }
+    
+    /**
+     * Returns an immutable copy of the given entry or null if 
+     * the entry is null
+     */
+    private static <K, V> Map.Entry<K, V> exportEntry(Map.Entry<K, V> entry) {
+        return entry != null ? new AbstractMap.SimpleImmutableEntry<K, V>(entry) : null;
+    }
+    
+    /**
+     * Returns the given entry's key or null if the entry is null
+     */
+    private static <K> K keyOrNull(Map.Entry<K, ?> entry) {
+        return entry != null ? entry.getKey() : null;
+    }
+    
     /**
      * Returns an entry strictly higher than the given key,
      * or null if no such entry exists.
      */
-    TrieEntry<K,V> higherEntry(K key) {
-        // TODO: Cleanup so that we don't actually have to add/remove from the
-        //       tree.  (We do it here because there are other well-defined 
-        //       functions to perform the search.)
+    TrieEntry<K,V> higherTrieEntry(K key) {
         int lengthInBits = lengthInBits(key);
         
         if (lengthInBits == 0) {
@@ -222,7 +572,7 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
                 }
             } else {
                 // Root is empty & we want something after empty, return first.
-                return firstEntry();
+                return firstTrieEntry();
             }
         }
         
@@ -233,18 +583,12 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
         
         int bitIndex = bitIndex(key, found.key);
         if (AbstractKeyAnalyzer.isValidBitIndex(bitIndex)) {
-            TrieEntry<K, V> added = new TrieEntry<K, V>(key, null, bitIndex);
-            addEntry(added, lengthInBits);
-            incrementSize(); // must increment because remove will decrement
-            TrieEntry<K, V> ceil = nextEntry(added);
-            removeEntry(added);
-            modCount -= 2; // we didn't really modify it.
-            return ceil;
+            return higherEntryForAbsentKey(key, lengthInBits, bitIndex);
         } else if (AbstractKeyAnalyzer.isNullBitKey(bitIndex)) {
             if (!root.isEmpty()) {
-                return firstEntry();
+                return firstTrieEntry();
             } else if (size() > 1) {
-                return nextEntry(firstEntry());
+                return nextEntry(firstTrieEntry());
             } else {
                 return null;
             }
@@ -260,7 +604,7 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
      * Returns a key-value mapping associated with the least key greater
      * than or equal to the given key, or null if there is no such key.
      */
-    TrieEntry<K,V> ceilingEntry(K key) {
+    TrieEntry<K,V> ceilingTrieEntry(K key) {
         // Basically:
         // Follow the steps of adding an entry, but instead...
         //
@@ -269,23 +613,21 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
         //
         // - If we hit an empty root, return the first iterable item.
         //
-        // - If we have to add a new item, we temporarily add it,
-        //   find the successor to it, then remove the added item.
+        // - If the key is not in the Trie, we find the subtree it would
+        //   have been inserted above and return the first entry of that
+        //   subtree or the successor of its last entry.
         //
         // These steps ensure that the returned value is either the
         // entry for the key itself, or the first entry directly after
         // the key.
         
-        // TODO: Cleanup so that we don't actually have to add/remove from the
-        //       tree.  (We do it here because there are other well-defined 
-        //       functions to perform the search.)
         int lengthInBits = lengthInBits(key);
         
         if (lengthInBits == 0) {
             if (!root.isEmpty()) {
                 return root;
             } else {
-                return firstEntry();
+                return firstTrieEntry();
             }
         }
         
@@ -296,18 +638,12 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
         
         int bitIndex = bitIndex(key, found.key);
         if (AbstractKeyAnalyzer.isValidBitIndex(bitIndex)) {
-            TrieEntry<K, V> added = new TrieEntry<K, V>(key, null, bitIndex);
-            addEntry(added, lengthInBits);
-            incrementSize(); // must increment because remove will decrement
-            TrieEntry<K, V> ceil = nextEntry(added);
-            removeEntry(added);
-            modCount -= 2; // we didn't really modify it.
-            return ceil;
+            return higherEntryForAbsentKey(key, lengthInBits, bitIndex);
         } else if (AbstractKeyAnalyzer.isNullBitKey(bitIndex)) {
             if (!root.isEmpty()) {
                 return root;
             } else {
-                return firstEntry();
+                return firstTrieEntry();
             }
         } else if (AbstractKeyAnalyzer.isEqualBitKey(bitIndex)) {
             return found;
@@ -321,7 +657,7 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
      * Returns a key-value mapping associated with the greatest key
      * strictly less than the given key, or null if there is no such key.
      */
-    TrieEntry<K,V> lowerEntry(K key) {
+    TrieEntry<K,V> lowerTrieEntry(K key) {
         // Basically:
         // Follow the steps of adding an entry, but instead...
         //
@@ -330,15 +666,13 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
         //
         // - If we hit root (empty or not), return null.
         //
-        // - If we have to add a new item, we temporarily add it,
-        //   find the previousEntry to it, then remove the added item.
+        // - If the key is not in the Trie, we find the subtree it would
+        //   have been inserted above and return the last entry of that
+        //   subtree or the predecessor of its first entry.
         //
         // These steps ensure that the returned value is always just before
         // the key or null (if there was nothing before it).
         
-        // TODO: Cleanup so that we don't actually have to add/remove from the
-        //       tree.  (We do it here because there are other well-defined 
-        //       functions to perform the search.)
         int lengthInBits = lengthInBits(key);
         
         if (lengthInBits == 0) {
@@ -352,13 +686,7 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
         
         int bitIndex = bitIndex(key, found.key);
         if (AbstractKeyAnalyzer.isValidBitIndex(bitIndex)) {
-            TrieEntry<K, V> added = new TrieEntry<K, V>(key, null, bitIndex);
-            addEntry(added, lengthInBits);
-            incrementSize(); // must increment because remove will decrement
-            TrieEntry<K, V> prior = previousEntry(added);
-            removeEntry(added);
-            modCount -= 2; // we didn't really modify it.
-            return prior;
+            return lowerEntryForAbsentKey(key, lengthInBits, bitIndex);
         } else if (AbstractKeyAnalyzer.isNullBitKey(bitIndex)) {
             return null;
         } else if (AbstractKeyAnalyzer.isEqualBitKey(bitIndex)) {
@@ -373,10 +701,7 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
      * Returns a key-value mapping associated with the greatest key
      * less than or equal to the given key, or null if there is no such key.
      */
-    TrieEntry<K,V> floorEntry(K key) {        
-        // TODO: Cleanup so that we don't actually have to add/remove from the
-        //       tree.  (We do it here because there are other well-defined 
-        //       functions to perform the search.)
+    TrieEntry<K,V> floorTrieEntry(K key) {        
         int lengthInBits = lengthInBits(key);
         
         if (lengthInBits == 0) {
@@ -394,13 +719,7 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
         
         int bitIndex = bitIndex(key, found.key);
         if (AbstractKeyAnalyzer.isValidBitIndex(bitIndex)) {
-            TrieEntry<K, V> added = new TrieEntry<K, V>(key, null, bitIndex);
-            addEntry(added, lengthInBits);
-            incrementSize(); // must increment because remove will decrement
-            TrieEntry<K, V> floor = previousEntry(added);
-            removeEntry(added);
-            modCount -= 2; // we didn't really modify it.
-            return floor;
+            return lowerEntryForAbsentKey(key, lengthInBits, bitIndex);
         } else if (AbstractKeyAnalyzer.isNullBitKey(bitIndex)) {
             if (!root.isEmpty()) {
                 return root;
@@ -415,18 +734,126 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
         throw new IllegalStateException("invalid lookup: " + key);
     }
     
+    /**
+     * Returns the least entry that is strictly greater than the given 
+     * key, or null if there is no such entry. The key must not be in the 
+     * {@link Trie} and bitIndex must be the index of the first bit where 
+     * the key differs from its nearest entry.
+     * 
+     * <p>All keys in the subtree the key would have been inserted above 
+     * share their first bitIndex bits with the key and differ from it at 
+     * bitIndex. If that bit is set in the key, then the key is greater 
+     * than the whole subtree and the answer is the successor of the 
+     * subtree's last entry. Otherwise it's the subtree's first entry.
+     * This is what we'd get by temporarily adding the key to the 
+     * {@link Trie} and calling {@link #nextEntry(TrieEntry)} but without 
+     * modifying (or allocating) anything.
+     */
+    private TrieEntry<K, V> higherEntryForAbsentKey(K key, 
+            int lengthInBits, int bitIndex) {
+        TrieEntry<K, V> subtree = subtreeForAbsentKey(key, lengthInBits, bitIndex);
+        if (!isBitSet(key, bitIndex, lengthInBits)) {
+            return firstEntryInSubtree(subtree, bitIndex);
+        }
+        
+        TrieEntry<K, V> last = lastEntryInSubtree(subtree, bitIndex);
+        
+        // The subtree is the (empty) root which means the key 
+        // is lower than everything else in the Trie.
+        if (last.isEmpty()) {
+            return firstTrieEntry();
+        }
+        
+        return nextEntry(last);
+    }
+    
+    /**
+     * Returns the greatest entry that is strictly less than the given 
+     * key, or null if there is no such entry. This is the counterpart of 
+     * {@link #higherEntryForAbsentKey(Object, int, int)} and the same 
+     * preconditions apply.
+     */
+    private TrieEntry<K, V> lowerEntryForAbsentKey(K key, 
+            int lengthInBits, int bitIndex) {
+        TrieEntry<K, V> subtree = subtreeForAbsentKey(key, lengthInBits, bitIndex);
+        if (isBitSet(key, bitIndex, lengthInBits)) {
+            TrieEntry<K, V> last = lastEntryInSubtree(subtree, bitIndex);
+            return !last.isEmpty() ? last : null;
+        }
+        
+        return previousEntry(firstEntryInSubtree(subtree, bitIndex));
+    }
+    
+    /**
+     * Returns the entry a key that is not in the {@link Trie} would have 
+     * been inserted above. The search is the same as in 
+     * {@link #addEntry(TrieEntry, int)} but nothing is modified. 
+     * 
+     * <p>The returned entry is either the top of a subtree (its bitIndex 
+     * is greater than the given bitIndex) or an uplink in which case the 
+     * "subtree" consists only of the returned entry.
+     */
+    private TrieEntry<K, V> subtreeForAbsentKey(K key, 
+            int lengthInBits, int bitIndex) {
+        TrieEntry<K, V> current = root.left;
+        TrieEntry<K, V> path = root;
+        int nodeVisits = 0;
+        while(true) {
+            ++nodeVisits;
+            if (current.bitIndex >= bitIndex 
+                    || current.bitIndex <= path.bitIndex) {
+                stats.record(Operation.ABSENT_KEY, nodeVisits);
+                return current;
+            }
+            
+            path = current;
+            if (!isBitSet(key, current.bitIndex, lengthInBits)) {
+                current = current.left;
+            } else {
+                current = current.right;
+            }
+        }
+    }
+    
+    /**
+     * Returns the first entry of a subtree as returned by 
+     * {@link #subtreeForAbsentKey(Object, int, int)}
+     */
+    private TrieEntry<K, V> firstEntryInSubtree(
+            TrieEntry<K, V> subtree, int bitIndex) {
+        // An uplink is a subtree of its own
+        if (subtree.bitIndex < bitIndex) {
+            return subtree;
+        }
+        return followLeft(subtree);
+    }
+    
+    /**
+     * Returns the last entry of a subtree as returned by 
+     * {@link #subtreeForAbsentKey(Object, int, int)}
+     */
+    private TrieEntry<K, V> lastEntryInSubtree(
+            TrieEntry<K, V> subtree, int bitIndex) {
+        // An uplink is a subtree of its own
+        if (subtree.bitIndex < bitIndex) {
+            return subtree;
+        }
+        return followRight(subtree);
+    }
+    
     /**
      * Finds the subtree that contains the prefix.
      * 
      * This is very similar to getR but with the difference that
-     * we stop the lookup if h.bitIndex > lengthInBits.
+     * we stop the lookup if h.bitIndex >= lengthInBits. The node that 
+     * looks at the first bit after the prefix has both children in it.
      */
     TrieEntry<K, V> subtree(K prefix, int offsetInBits, int lengthInBits) {
         TrieEntry<K, V> current = root.left;
         TrieEntry<K, V> path = root;
         while(true) {
             if (current.bitIndex <= path.bitIndex 
-                    || lengthInBits < current.bitIndex) {
+                    || lengthInBits <= current.bitIndex) {
                 break;
             }
             
@@ -457,16 +884,10 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
             return null;
         }
         
-        // Found key's length-th bit differs from our key
-        // which means it cannot be the prefix...
-        if (isBitSet(prefix, endIndexInBits, endIndexInBits) 
-                != isBitSet(entry.key, lengthInBits, lengthInBits(entry.key))) {
-            return null;
-        }
-        
-        // ... or there are less than 'length' equal bits
-        int bitIndex = keyAnalyzer.bitIndex(prefix, offsetInBits, 
-                lengthInBits, entry.key, 0, lengthInBits(entry.getKey()));
+        // The keys of the subtree can have any bits after the prefix
+        // but they all have the prefix's bits. It isn't a subtree of
+        // the prefix if there are less than 'length' equal bits.
+        int bitIndex = bitIndex(prefix, offsetInBits, lengthInBits, entry.key);
         
         if (bitIndex >= 0 && bitIndex < lengthInBits) {
             return null;
@@ -481,8 +902,15 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
      * <p>This is implemented by going always to the right until
      * we encounter a valid uplink. That uplink is the last key.
      */
-    TrieEntry<K, V> lastEntry() {
-        return followRight(root.left);
+    TrieEntry<K, V> lastTrieEntry() {
+        TrieEntry<K, V> entry = followRight(root.left);
+        
+        // The root has no right child if it's the only entry
+        if (entry == null && !root.isEmpty()) {
+            return root;
+        }
+        
+        return entry;
     }
     
     /**
@@ -569,7 +997,7 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
     TrieEntry<K, V> nextEntryInSubtree(TrieEntry<K, V> node, 
             TrieEntry<K, V> parentOfSubtree) {
         if (node == null) {
-            return firstEntry();
+            return firstTrieEntry();
         } else {
             return nextEntryImpl(node.predecessor, node, parentOfSubtree);
         }
@@ -796,7 +1224,7 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
    /**
     * A {@link RangeMap} that deals with {@link Entry}s
     */
-   private class RangeEntryMap extends RangeMap {
+   private class RangeEntryMap extends RangeMap implements NavigableMap<K, V> {
        
        /** 
         * The key to start from, null if the beginning. 
@@ -818,6 +1246,11 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
         */
        protected final boolean toInclusive;
        
+       /**
+        * The {@link #navigableKeySet()} view
+        */
+       private transient volatile NavigableSet<K> navigableKeySet;
+       
        /**
         * Creates a {@link RangeEntryMap} with the fromKey included and
         * the toKey excluded from the range
@@ -852,22 +1285,7 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
         */
        @Override
        public K firstKey() {
-           Map.Entry<K,V> e = null;
-           if (fromKey == null) {
-               e = firstEntry();
-           } else {
-               if (fromInclusive) {
-                   e = ceilingEntry(fromKey);
-               } else {
-                   e = higherEntry(fromKey);
-               }
-           }
-           
-           K first = e != null ? e.getKey() : null;
-           if (e == null || toKey != null && !inToRange(first, false)) {
-               throw new NoSuchElementException();
-           }
-           return first;
+           return key(lowestEntry());
        }
 
        /**
@@ -875,22 +1293,278 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
         */
        @Override
        public K lastKey() {
-           Map.Entry<K,V> e;
-           if (toKey == null) {
-               e = lastEntry();
-           } else {
-               if (toInclusive) {
-                   e = floorEntry(toKey);
-               } else {
-                   e = lowerEntry(toKey);
-               }
-           }
-           
-           K last = e != null ? e.getKey() : null;
-           if (e == null || fromKey != null && !inFromRange(last, false)) {
-               throw new NoSuchElementException();
+           return key(highestEntry());
+       }
+       
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public Map.Entry<K, V> firstEntry() {
+           return exportEntry(lowestEntry());
+       }
+       
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public Map.Entry<K, V> lastEntry() {
+           return exportEntry(highestEntry());
+       }
+       
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public Map.Entry<K, V> pollFirstEntry() {
+           return pollEntry(lowestEntry());
+       }
+       
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public Map.Entry<K, V> pollLastEntry() {
+           return pollEntry(highestEntry());
+       }
+       
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public Map.Entry<K, V> ceilingEntry(K key) {
+           if (tooLow(key)) {
+               return exportEntry(lowestEntry());
+           }
+           
+           TrieEntry<K, V> e = ceilingTrieEntry(key);
+           return (e == null || tooHigh(e.getKey())) ? null : exportEntry(e);
+       }
+       
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public K ceilingKey(K key) {
+           return keyOrNull(ceilingEntry(key));
+       }
+       
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public Map.Entry<K, V> higherEntry(K key) {
+           if (tooLow(key)) {
+               return exportEntry(lowestEntry());
+           }
+           
+           TrieEntry<K, V> e = higherTrieEntry(key);
+           return (e == null || tooHigh(e.getKey())) ? null : exportEntry(e);
+       }
+       
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public K higherKey(K key) {
+           return keyOrNull(higherEntry(key));
+       }
+       
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public Map.Entry<K, V> floorEntry(K key) {
+           if (tooHigh(key)) {
+               return exportEntry(highestEntry());
+           }
+           
+           TrieEntry<K, V> e = floorTrieEntry(key);
+           return (e == null || tooLow(e.getKey())) ? null : exportEntry(e);
+       }
+       
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public K floorKey(K key) {
+           return keyOrNull(floorEntry(key));
+       }
+       
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public Map.Entry<K, V> lowerEntry(K key) {
+           if (tooHigh(key)) {
+               return exportEntry(highestEntry());
+           }
+           
+           TrieEntry<K, V> e = lowerTrieEntry(key);
+           return (e == null || tooLow(e.getKey())) ? null : exportEntry(e);
+       }
+       
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public K lowerKey(K key) {
+           return keyOrNull(lowerEntry(key));
+       }
+       
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public SortedMap<K, V> subMap(K fromKey, K toKey) {
+           return subMap(fromKey, true, toKey, false);
+       }
+
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public SortedMap<K, V> headMap(K toKey) {
+           return headMap(toKey, false);
+       }
+
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public SortedMap<K, V> tailMap(K fromKey) {
+           return tailMap(fromKey, true);
+       }
+       
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, 
+               K toKey, boolean toInclusive) {
+           if (!inRange(fromKey, fromInclusive)) {
+               throw new IllegalArgumentException(
+                       "FromKey is out of range: " + fromKey);
+           }
+           
+           if (!inRange(toKey, toInclusive)) {
+               throw new IllegalArgumentException(
+                       "ToKey is out of range: " + toKey);
+           }
+           
+           return createRangeMap(fromKey, fromInclusive, toKey, toInclusive);
+       }
+       
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+           if (!inRange(toKey, inclusive)) {
+               throw new IllegalArgumentException(
+                       "ToKey is out of range: " + toKey);
+           }
+           
+           return createRangeMap(fromKey, fromInclusive, toKey, inclusive);
+       }
+       
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+           if (!inRange(fromKey, inclusive)) {
+               throw new IllegalArgumentException(
+                       "FromKey is out of range: " + fromKey);
+           }
+           
+           return createRangeMap(fromKey, inclusive, toKey, toInclusive);
+       }
+       
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public NavigableMap<K, V> descendingMap() {
+           return new DescendingMap(this);
+       }
+       
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public NavigableSet<K> navigableKeySet() {
+           if (navigableKeySet == null) {
+               navigableKeySet = new NavigableKeySet<K>(this);
+           }
+           return navigableKeySet;
+       }
+       
+       /**
+        * {@inheritDoc}
+        */
+       @Override
+       public NavigableSet<K> descendingKeySet() {
+           return descendingMap().navigableKeySet();
+       }
+       
+       /**
+        * Returns the first entry in the range or null if it's empty
+        */
+       private TrieEntry<K, V> lowestEntry() {
+           TrieEntry<K, V> e = null;
+           if (fromKey == null) {
+               e = firstTrieEntry();
+           } else if (fromInclusive) {
+               e = ceilingTrieEntry(fromKey);
+           } else {
+               e = higherTrieEntry(fromKey);
+           }
+           
+           return (e == null || tooHigh(e.getKey())) ? null : e;
+       }
+       
+       /**
+        * Returns the last entry in the range or null if it's empty
+        */
+       private TrieEntry<K, V> highestEntry() {
+           TrieEntry<K, V> e = null;
+           if (toKey == null) {
+               e = lastTrieEntry();
+           } else if (toInclusive) {
+               e = floorTrieEntry(toKey);
+           } else {
+               e = lowerTrieEntry(toKey);
+           }
+           
+           return (e == null || tooLow(e.getKey())) ? null : e;
+       }
+       
+       /**
+        * Returns true if the given key is below the range
+        */
+       private boolean tooLow(K key) {
+           return fromKey != null && !inFromRange(key, false);
+       }
+       
+       /**
+        * Returns true if the given key is above the range
+        */
+       private boolean tooHigh(K key) {
+           return toKey != null && !inToRange(key, false);
+       }
+       
+       /**
+        * Returns true if the given key is a valid (inclusive or
+        * exclusive) endpoint for a sub-range of this range
+        */
+       private boolean inRange(K key, boolean inclusive) {
+           if (inclusive) {
+               return inRange(key);
            }
-           return last;
+           
+           return (fromKey == null || inFromRange(key, true))
+                   && (toKey == null || inToRange(key, true));
        }
        
        /**
@@ -937,7 +1611,7 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
         * {@inheritDoc}
         */
        @Override
-       protected SortedMap<K, V> createRangeMap(K fromKey, boolean fromInclusive,
+       protected NavigableMap<K, V> createRangeMap(K fromKey, boolean fromInclusive,
                K toKey, boolean toInclusive) {
            return new RangeEntryMap(fromKey, fromInclusive, toKey, toInclusive);
        }
@@ -975,14 +1649,26 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
 
             TrieEntry<K, V> first = null;
             if (fromKey == null) {
-                first = firstEntry();
+                first = firstTrieEntry();
+            } else if (delegate.isFromInclusive()) {
+                first = ceilingTrieEntry(fromKey);
             } else {
-                first = ceilingEntry(fromKey);
+                first = higherTrieEntry(fromKey);
+            }
+            
+            // The range is empty if its first candidate is 
+            // already past the end of the range.
+            if (first != null && !delegate.inRange(first.getKey())) {
+                first = null;
             }
 
             TrieEntry<K, V> last = null;
             if (toKey != null) {
-                last = ceilingEntry(toKey);
+                if (delegate.isToInclusive()) {
+                    last = higherTrieEntry(toKey);
+                } else {
+                    last = ceilingTrieEntry(toKey);
+                }
             }
 
             return new EntryIterator(first, last);
@@ -1110,14 +1796,6 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
         
         private final int lengthInBits;
         
-        private K fromKey = null;
-        
-        private K toKey = null;
-        
-        private transient int expectedModCount = 0;
-        
-        private int size = -1;
-        
         /**
          * Creates a {@link PrefixRangeMap}
          */
@@ -1128,71 +1806,79 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
         }
         
         /**
-         * This method does two things. It determinates the FROM
-         * and TO range of the {@link PrefixRangeMap} and the number
-         * of elements in the range. This method must be called every 
-         * time the {@link Trie} has changed.
+         * Returns the {@link TrieEntry} whose subtree has all keys with 
+         * the prefix or null if there are none. If it's not a subtree 
+         * (see {@link #isSubtree(TrieEntry)}) then it's the only key.
          */
-        private int fixup() {
-            // The trie has changed since we last
-            // found our toKey / fromKey
-            if (size == - 1 || PatriciaTrie.this.modCount != expectedModCount) {
-                Iterator<Map.Entry<K, V>> it = entrySet().iterator();
-                size = 0;
-                
-                Map.Entry<K, V> entry = null;
-                if (it.hasNext()) {
-                    entry = it.next();
-                    size = 1;
-                }
-                
-                fromKey = entry == null ? null : entry.getKey();
-                if (fromKey != null) {
-                    TrieEntry<K, V> prior = previousEntry((TrieEntry<K, V>)entry);
-                    fromKey = prior == null ? null : prior.getKey();
-                }
-                
-                toKey = fromKey;
-                
-                while (it.hasNext()) {
-                    ++size;
-                    entry = it.next();
-                }
-                
-                toKey = entry == null ? null : entry.getKey();
-                
-                if (toKey != null) {
-                    entry = nextEntry((TrieEntry<K, V>)entry);
-                    toKey = entry == null ? null : entry.getKey();
-                }
-                
-                expectedModCount = PatriciaTrie.this.modCount;
+        private TrieEntry<K, V> prefixStart() {
+            return subtree(prefix, offsetInBits, lengthInBits);
+        }
+        
+        /**
+         * Returns true if the given {@link TrieEntry} as returned 
+         * by {@link #prefixStart()} is the top of a subtree
+         */
+        private boolean isSubtree(TrieEntry<K, V> prefixStart) {
+            return lengthInBits <= prefixStart.bitIndex;
+        }
+        
+        /**
+         * Returns the first {@link TrieEntry} with the prefix or null
+         */
+        private TrieEntry<K, V> firstPrefixEntry() {
+            TrieEntry<K, V> prefixStart = prefixStart();
+            if (prefixStart != null && isSubtree(prefixStart)) {
+                return followLeft(prefixStart);
             }
-            
-            return size;
+            return prefixStart;
+        }
+        
+        /**
+         * Returns the last {@link TrieEntry} with the prefix or null
+         */
+        private TrieEntry<K, V> lastPrefixEntry() {
+            TrieEntry<K, V> prefixStart = prefixStart();
+            if (prefixStart != null && isSubtree(prefixStart)) {
+                return followRight(prefixStart);
+            }
+            return prefixStart;
         }
         
         /**
          * {@inheritDoc}
+         * 
+         * The number of keys is stored in the top node of the 
+         * subtree and it takes a single lookup to find it.
          */
         @Override
-        public K firstKey() {
-            fixup();
-            
-            Map.Entry<K,V> e = null;
-            if (fromKey == null) {
-                e = firstEntry();
-            } else {
-                e = higherEntry(fromKey);
+        public int size() {
+            TrieEntry<K, V> prefixStart = prefixStart();
+            if (prefixStart == null) {
+                return 0;
+            } else if (!isSubtree(prefixStart)) {
+                return 1;
             }
-            
-            K first = e != null ? e.getKey() : null;
-            if (e == null || !keyAnalyzer.isPrefix(prefix, 
-                    offsetInBits, lengthInBits, first)) {
+            return prefixStart.subtreeSize;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isEmpty() {
+            return prefixStart() == null;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K firstKey() {
+            TrieEntry<K, V> first = firstPrefixEntry();
+            if (first == null) {
                 throw new NoSuchElementException();
             }
-            
-            return first;
+            return first.getKey();
         }
 
         /**
@@ -1200,22 +1886,11 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
          */
         @Override
         public K lastKey() {
-            fixup();
-            
-            Map.Entry<K,V> e = null;
-            if (toKey == null) {
-                e = lastEntry();
-            } else {
-                e = lowerEntry(toKey);
-            }
-            
-            K last = e != null ? e.getKey() : null;
-            if (e == null || !keyAnalyzer.isPrefix(prefix, 
-                    offsetInBits, lengthInBits, last)) {
+            TrieEntry<K, V> last = lastPrefixEntry();
+            if (last == null) {
                 throw new NoSuchElementException();
             }
-            
-            return last;
+            return last.getKey();
         }
         
         /**
@@ -1266,7 +1941,13 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
          */
         @Override
         public K getFromKey() {
-            return fromKey;
+            TrieEntry<K, V> first = firstPrefixEntry();
+            if (first == null) {
+                return null;
+            }
+            
+            TrieEntry<K, V> prior = previousEntry(first);
+            return prior != null ? prior.getKey() : null;
         }
 
         /**
@@ -1274,7 +1955,13 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
          */
         @Override
         public K getToKey() {
-            return toKey;
+            TrieEntry<K, V> last = lastPrefixEntry();
+            if (last == null) {
+                return null;
+            }
+            
+            TrieEntry<K, V> next = nextEntry(last);
+            return next != null ? next.getKey() : null;
         }
 
         /**
@@ -1313,7 +2000,7 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
         
         private TrieEntry<K, V> prefixStart;
         
-        private int expectedModCount = 0;
+        private volatile int expectedModCount = 0;
         
         /**
          * Creates a {@link PrefixRangeEntrySet}
@@ -1328,7 +2015,7 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
          */
         @Override
         public int size() {
-            return delegate.fixup();
+            return delegate.size();
         }
 
         /**
@@ -1336,21 +2023,48 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
          */
         @Override
         public Iterator<Map.Entry<K,V>> iterator() {
-            if (PatriciaTrie.this.modCount != expectedModCount) {
+            int modCount = PatriciaTrie.this.modCount;
+            
+            TrieEntry<K, V> prefixStart = null;
+            if (modCount == expectedModCount) {
+                prefixStart = this.prefixStart;
+            } else {
                 prefixStart = subtree(delegate.prefix, delegate.offsetInBits, delegate.lengthInBits);
-                expectedModCount = PatriciaTrie.this.modCount;
+                this.prefixStart = prefixStart;
+                expectedModCount = modCount;
             }
             
             if (prefixStart == null) {
                 Set<Map.Entry<K,V>> empty = Collections.emptySet();
                 return empty.iterator();
-            } else if (delegate.lengthInBits >= prefixStart.bitIndex) {
+            } else if (delegate.lengthInBits > prefixStart.bitIndex) {
                 return new SingletonIterator(prefixStart);
             } else {
                 return new EntryIterator(prefixStart, delegate.prefix, delegate.offsetInBits, delegate.lengthInBits);
             }
         }
         
+        /**
+         * {@inheritDoc}
+         * 
+         * The {@link Spliterator} walks the subtree with the prefix
+         * and splits it at its nodes.
+         */
+        @Override
+        public Spliterator<Map.Entry<K, V>> spliterator() {
+            TrieEntry<K, V> prefixStart = subtree(delegate.prefix, 
+                    delegate.offsetInBits, delegate.lengthInBits);
+            
+            if (prefixStart == null) {
+                return new EntrySpliterator(null, -1, 0L);
+            } else if (delegate.lengthInBits > prefixStart.bitIndex) {
+                // An uplink to the entry, it's the only one
+                return new EntrySpliterator(prefixStart, prefixStart.bitIndex, 1L);
+            } else {
+                return new EntrySpliterator(prefixStart, -1, prefixStart.subtreeSize);
+            }
+        }
+        
         /** 
          * An {@link Iterator} that holds a single {@link TrieEntry}. 
          */
@@ -1469,10 +2183,604 @@ public class PatriciaTrie<K, V> extends PatriciaTrieBase<K, V> implements Trie<K
                 // If the subtree's bitIndex is less than the
                 // length of our prefix, it's the last item
                 // in the prefix tree.
-                if (lengthInBits >= subtree.bitIndex) {
+                if (lengthInBits > subtree.bitIndex) {
                     lastOne = true;
                 }
             }
         }
     }
+    
+    /**
+     * A reverse order view of a {@link NavigableMap} that is backed by 
+     * the {@link Trie}. The delegate is either the {@link PatriciaTrie} 
+     * itself or one of its {@link RangeEntryMap}s.
+     */
+    private class DescendingMap extends AbstractMap<K, V> 
+            implements NavigableMap<K, V> {
+        
+        private final NavigableMap<K, V> delegate;
+        
+        private transient volatile Set<Map.Entry<K, V>> entrySet;
+        
+        private transient volatile NavigableSet<K> navigableKeySet;
+        
+        /**
+         * Creates a {@link DescendingMap}
+         */
+        public DescendingMap(NavigableMap<K, V> delegate) {
+            if (delegate == null) {
+                throw new NullPointerException("delegate");
+            }
+            
+            this.delegate = delegate;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Comparator<? super K> comparator() {
+            return Collections.reverseOrder(delegate.comparator());
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int size() {
+            return delegate.size();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isEmpty() {
+            return delegate.isEmpty();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean containsKey(Object key) {
+            return delegate.containsKey(key);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public V get(Object key) {
+            return delegate.get(key);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public V put(K key, V value) {
+            return delegate.put(key, value);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public V remove(Object key) {
+            return delegate.remove(key);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void clear() {
+            delegate.clear();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K firstKey() {
+            return delegate.lastKey();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K lastKey() {
+            return delegate.firstKey();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Map.Entry<K, V> firstEntry() {
+            return delegate.lastEntry();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Map.Entry<K, V> lastEntry() {
+            return delegate.firstEntry();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Map.Entry<K, V> pollFirstEntry() {
+            return delegate.pollLastEntry();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Map.Entry<K, V> pollLastEntry() {
+            return delegate.pollFirstEntry();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Map.Entry<K, V> ceilingEntry(K key) {
+            return delegate.floorEntry(key);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K ceilingKey(K key) {
+            return delegate.floorKey(key);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Map.Entry<K, V> floorEntry(K key) {
+            return delegate.ceilingEntry(key);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K floorKey(K key) {
+            return delegate.ceilingKey(key);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Map.Entry<K, V> higherEntry(K key) {
+            return delegate.lowerEntry(key);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K higherKey(K key) {
+            return delegate.lowerKey(key);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Map.Entry<K, V> lowerEntry(K key) {
+            return delegate.higherEntry(key);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K lowerKey(K key) {
+            return delegate.higherKey(key);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public NavigableMap<K, V> descendingMap() {
+            return delegate;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public NavigableSet<K> navigableKeySet() {
+            if (navigableKeySet == null) {
+                navigableKeySet = new NavigableKeySet<K>(this);
+            }
+            return navigableKeySet;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public NavigableSet<K> descendingKeySet() {
+            return delegate.navigableKeySet();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public SortedMap<K, V> subMap(K fromKey, K toKey) {
+            return subMap(fromKey, true, toKey, false);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public SortedMap<K, V> headMap(K toKey) {
+            return headMap(toKey, false);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public SortedMap<K, V> tailMap(K fromKey) {
+            return tailMap(fromKey, true);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, 
+                K toKey, boolean toInclusive) {
+            return delegate.subMap(toKey, toInclusive, 
+                    fromKey, fromInclusive).descendingMap();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+            return delegate.tailMap(toKey, inclusive).descendingMap();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+            return delegate.headMap(fromKey, inclusive).descendingMap();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            if (entrySet == null) {
+                entrySet = new DescendingEntrySet();
+            }
+            return entrySet;
+        }
+        
+        /**
+         * A {@link Set} view of a {@link DescendingMap}
+         */
+        private class DescendingEntrySet extends AbstractSet<Map.Entry<K, V>> {
+            
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                // The delegate's entry lookups return copies, ask it
+                // for the trie's own entries instead
+                if (delegate instanceof PatriciaTrie.RangeEntryMap) {
+                    RangeEntryMap range = (RangeEntryMap)delegate;
+                    return new EntryIterator(range.highestEntry(), range.lowestEntry());
+                }
+                return new EntryIterator(lastTrieEntry(), firstTrieEntry());
+            }
+            
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public int size() {
+                return delegate.size();
+            }
+            
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean isEmpty() {
+                return delegate.isEmpty();
+            }
+            
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean contains(Object o) {
+                return delegate.entrySet().contains(o);
+            }
+            
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean remove(Object o) {
+                return delegate.entrySet().remove(o);
+            }
+            
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void clear() {
+                delegate.clear();
+            }
+        }
+        
+        /**
+         * An {@link Iterator} that walks from the last entry of
+         * the delegate back to its first entry.
+         */
+        private final class EntryIterator extends TrieIterator<Map.Entry<K, V>> {
+            
+            private final TrieEntry<K, V> last;
+            
+            /**
+             * Creates an {@link EntryIterator}
+             */
+            private EntryIterator(TrieEntry<K, V> first, TrieEntry<K, V> last) {
+                super(first);
+                this.last = last;
+            }
+            
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public Map.Entry<K, V> next() {
+                return nextEntry();
+            }
+            
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            protected TrieEntry<K, V> findNext(TrieEntry<K, V> prior) {
+                if (prior == last) {
+                    return null;
+                }
+                return previousEntry(prior);
+            }
+        }
+    }
+    
+    /**
+     * A {@link NavigableSet} view of the keys of a {@link NavigableMap}
+     */
+    static class NavigableKeySet<E> extends AbstractSet<E> 
+            implements NavigableSet<E> {
+        
+        private final NavigableMap<E, ?> delegate;
+        
+        /**
+         * Creates a {@link NavigableKeySet}
+         */
+        public NavigableKeySet(NavigableMap<E, ?> delegate) {
+            if (delegate == null) {
+                throw new NullPointerException("delegate");
+            }
+            
+            this.delegate = delegate;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Iterator<E> iterator() {
+            return delegate.keySet().iterator();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Iterator<E> descendingIterator() {
+            return delegate.descendingMap().keySet().iterator();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int size() {
+            return delegate.size();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isEmpty() {
+            return delegate.isEmpty();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean contains(Object o) {
+            return delegate.containsKey(o);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean remove(Object o) {
+            int size = size();
+            delegate.remove(o);
+            return size != size();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void clear() {
+            delegate.clear();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Comparator<? super E> comparator() {
+            return delegate.comparator();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public E first() {
+            return delegate.firstKey();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public E last() {
+            return delegate.lastKey();
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public E ceiling(E e) {
+            return delegate.ceilingKey(e);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public E floor(E e) {
+            return delegate.floorKey(e);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public E higher(E e) {
+            return delegate.higherKey(e);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public E lower(E e) {
+            return delegate.lowerKey(e);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public E pollFirst() {
+            return keyOrNull(delegate.pollFirstEntry());
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public E pollLast() {
+            return keyOrNull(delegate.pollLastEntry());
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public NavigableSet<E> descendingSet() {
+            return new NavigableKeySet<E>(delegate.descendingMap());
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public SortedSet<E> subSet(E fromElement, E toElement) {
+            return subSet(fromElement, true, toElement, false);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public SortedSet<E> headSet(E toElement) {
+            return headSet(toElement, false);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public SortedSet<E> tailSet(E fromElement) {
+            return tailSet(fromElement, true);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public NavigableSet<E> subSet(E fromElement, boolean fromInclusive, 
+                E toElement, boolean toInclusive) {
+            return new NavigableKeySet<E>(delegate.subMap(
+                    fromElement, fromInclusive, toElement, toInclusive));
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public NavigableSet<E> headSet(E toElement, boolean inclusive) {
+            return new NavigableKeySet<E>(delegate.headMap(toElement, inclusive));
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public NavigableSet<E> tailSet(E fromElement, boolean inclusive) {
+            return new NavigableKeySet<E>(delegate.tailMap(fromElement, inclusive));
+        }
+    }
 }
\ No newline at end of file
@@ -16,16 +16,30 @@
 
 package org.ardverk.collection;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.AbstractCollection;
 import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
 
 import org.ardverk.collection.Cursor.Decision;
+import org.ardverk.collection.TrieStats.Operation;
 
 /**
  * This class implements the base PATRICIA algorithm and everything that
@@ -33,12 +47,13 @@ import org.ardverk.collection.Cursor.Decision;
  */
 abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
     
-    private static final long serialVersionUID = 5155253417231339498L;
+    private static final long serialVersionUID = -2246014692353432216L;
 
     /**
-     * The root node of the {@link Trie}. 
+     * The root node of the {@link Trie}. The nodes aren't serialized,
+     * see {@link #writeObject(ObjectOutputStream)}.
      */
-    final TrieEntry<K, V> root = new TrieEntry<K, V>(null, null, -1);
+    transient TrieEntry<K, V> root = new TrieEntry<K, V>(null, null, -1);
     
     /**
      * Each of these fields are initialized to contain an instance of the
@@ -52,7 +67,7 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
     /**
      * The current size of the {@link Trie}
      */
-    private int size = 0;
+    private transient int size = 0;
     
     /**
      * The number of times this {@link Trie} has been modified.
@@ -61,6 +76,23 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
      */
     transient int modCount = 0;
     
+    /**
+     * The {@link StatsRecorder} of the {@link Trie}
+     */
+    transient StatsRecorder stats = StatsRecorder.DISABLED;
+    
+    /**
+     * Whether or not the {@link Iterator}s of the views 
+     * keep a stack of the subtrees they have yet to visit
+     */
+    private transient boolean stackIterators = false;
+    
+    /**
+     * The function that scores the values or null if 
+     * the {@link TrieEntry#maxScore}s aren't kept
+     */
+    private transient ToLongFunction<? super V> scoreFunction = null;
+    
     /** 
      * {@inheritDoc}
      */
@@ -110,6 +142,112 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
         return size;
     }
    
+    /**
+     * Turns the recording of the {@link TrieStats} on or off. It's 
+     * off by default and costs nothing while it's off.
+     * 
+     * @see #getStats()
+     */
+    public void setStatsEnabled(boolean enabled) {
+        if (enabled != stats.isEnabled()) {
+            stats = enabled ? StatsRecorder.create() : StatsRecorder.DISABLED;
+        }
+    }
+    
+    /**
+     * Returns true if the {@link TrieStats} are recorded
+     */
+    public boolean isStatsEnabled() {
+        return stats.isEnabled();
+    }
+    
+    /**
+     * Returns a snapshot of the {@link TrieStats}
+     */
+    public TrieStats getStats() {
+        return stats.snapshot();
+    }
+    
+    /**
+     * Sets all {@link TrieStats} to zero
+     */
+    public void resetStats() {
+        stats.reset();
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>Each search is recorded in the {@link TrieStats}.
+     */
+    @Override
+    final int bitIndex(K key, int offsetInBits, int lengthInBits, K foundKey) {
+        stats.recordBitIndex();
+        return super.bitIndex(key, offsetInBits, lengthInBits, foundKey);
+    }
+    
+    /**
+     * Makes the {@link Iterator}s of the {@link #entrySet()}, 
+     * {@link #keySet()} and {@link #values()} views keep a stack of the 
+     * subtrees they have yet to visit instead of going up the parent 
+     * links to find the next entry. Each {@link Iterator} has a stack 
+     * as deep as the {@link Trie} and in return each call to next() 
+     * is amortized O(1) and doesn't have to look at any node twice.
+     * It's off by default.
+     */
+    public void setStackIterators(boolean enabled) {
+        this.stackIterators = enabled;
+    }
+    
+    /**
+     * Returns true if the {@link Iterator}s of the views 
+     * keep a stack of the subtrees they have yet to visit
+     * 
+     * @see #setStackIterators(boolean)
+     */
+    public boolean isStackIterators() {
+        return stackIterators;
+    }
+    
+    /**
+     * Sets the function that scores the values for the top-k queries 
+     * or turns the scores off if it's null. Each node keeps the highest 
+     * score of the values in its subtree. It's updated by put(), remove() 
+     * and {@link #replaceAll(BiFunction)} but not by 
+     * {@link Map.Entry#setValue(Object)}. The score of a value must not 
+     * change while it's in the {@link Trie}.
+     * 
+     * @see PatriciaTrie#topK(Object, int)
+     */
+    public void setScoreFunction(ToLongFunction<? super V> scoreFunction) {
+        this.scoreFunction = scoreFunction;
+        
+        if (scoreFunction != null) {
+            updateAllSubtrees();
+        }
+    }
+    
+    /**
+     * Returns the function that scores the values or null
+     * 
+     * @see #setScoreFunction(ToLongFunction)
+     */
+    public ToLongFunction<? super V> getScoreFunction() {
+        return scoreFunction;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+        super.replaceAll(function);
+        
+        if (scoreFunction != null) {
+            updateAllSubtrees();
+        }
+    }
+    
     /**
      * A helper method to increment the {@link Trie} size
      * and the modification counter.
@@ -149,22 +287,16 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
         // The only place to store a key with a length
         // of zero bits is the root node
         if (lengthInBits == 0) {
-            if (root.isEmpty()) {
-                incrementSize();
-            } else {
-                incrementModCount();
-            }
-            return root.setKeyValue(key, value);
+            return putRoot(key, value);
         }
         
         TrieEntry<K, V> found = getNearestEntryForKey(key, lengthInBits);
         if (compareKeys(key, found.key)) {
             if (found.isEmpty()) { // <- must be the root
-                incrementSize();
-            } else {
-                incrementModCount();
+                return putRoot(key, value);
             }
-            return found.setKeyValue(key, value);
+            
+            return replaceValue(found, key, value);
         }
         
         int bitIndex = bitIndex(key, found.key);
@@ -180,20 +312,14 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
                 // store such a Key is the root Node!
                 
                 /* NULL BIT KEY */
-                if (root.isEmpty()) {
-                    incrementSize();
-                } else {
-                    incrementModCount();
-                }
-                return root.setKeyValue(key, value);
+                return putRoot(key, value);
                 
             } else if (AbstractKeyAnalyzer.isEqualBitKey(bitIndex)) {
                 // This is a very special and rare case.
                 
                 /* REPLACE OLD KEY+VALUE */
                 if (found != root) {
-                    incrementModCount();
-                    return found.setKeyValue(key, value);
+                    return replaceValue(found, key, value);
                 }
             }
         }
@@ -202,15 +328,47 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
                 + key + " -> " + value + ", " + bitIndex);
     }
     
+    /**
+     * Puts the given key with all bits zero into the root
+     */
+    private V putRoot(K key, V value) {
+        if (!root.isEmpty()) {
+            return replaceValue(root, key, value);
+        }
+        
+        V oldValue = root.setKeyValue(key, value);
+        incrementSize();
+        
+        // The uplinks to an empty root don't keep its predecessor 
+        // up to date when the nodes are moved around
+        TrieEntry<K, V> uplink = rootUplink();
+        root.predecessor = uplink;
+        updateSubtrees(uplink);
+        return oldValue;
+    }
+    
+    /**
+     * Replaces the key and value of an existing {@link TrieEntry}
+     */
+    private V replaceValue(TrieEntry<K, V> entry, K key, V value) {
+        incrementModCount();
+        V oldValue = entry.setKeyValue(key, value);
+        updateScore(entry);
+        return oldValue;
+    }
+    
     /**
      * Adds the given {@link TrieEntry} to the {@link Trie}
      */
     TrieEntry<K, V> addEntry(TrieEntry<K, V> entry, int lengthInBits) {
         TrieEntry<K, V> current = root.left;
         TrieEntry<K, V> path = root;
+        int nodeVisits = 0;
         while(true) {
+            ++nodeVisits;
             if (current.bitIndex >= entry.bitIndex 
                     || current.bitIndex <= path.bitIndex) {
+                stats.record(Operation.ADD, nodeVisits);
                 entry.predecessor = entry;
                 
                 if (!isBitSet(entry.key, entry.bitIndex, lengthInBits)) {
@@ -237,6 +395,7 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
                     path.right = entry;
                 }
                 
+                updateSubtrees(entry);
                 return entry;
             }
                 
@@ -250,6 +409,63 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
         }
     }
     
+    /**
+     * Puts all entries of the given {@link Iterator} into the {@link Trie}
+     * in linear time if the {@link Trie} is empty and the keys are in 
+     * ascending order.
+     * 
+     * @see SortedLoader
+     */
+    void putAllSorted(Iterator<? extends Map.Entry<? extends K, ? extends V>> entries) {
+        SortedLoader loader = new SortedLoader();
+        while (entries.hasNext()) {
+            Map.Entry<? extends K, ? extends V> entry = entries.next();
+            loader.put(entry.getKey(), entry.getValue());
+        }
+        loader.finish();
+    }
+    
+    /**
+     * Writes the size followed by the keys and values in order. The 
+     * nodes aren't written, they're rebuilt by the {@link SortedLoader}.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        
+        for (TrieEntry<K, V> entry = nextEntry(null); 
+                entry != null; entry = nextEntry(entry)) {
+            out.writeObject(entry.key);
+            out.writeObject(entry.value);
+        }
+    }
+    
+    /**
+     * Reads the keys and values that were written by 
+     * {@link #writeObject(ObjectOutputStream)}
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) 
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        
+        root = new TrieEntry<K, V>(null, null, -1);
+        stats = StatsRecorder.DISABLED;
+        
+        int size = in.readInt();
+        if (size < 0) {
+            throw new InvalidObjectException("size=" + size);
+        }
+        
+        SortedLoader loader = new SortedLoader();
+        for (int i = 0; i < size; i++) {
+            K key = (K)in.readObject();
+            V value = (V)in.readObject();
+            loader.put(key, value);
+        }
+        loader.finish();
+    }
+    
     /**
      * {@inheritDoc}
      */
@@ -282,103 +498,270 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
      */
     public Map.Entry<K, V> select(K key) {
         int lengthInBits = lengthInBits(key);
-        Reference<Map.Entry<K, V>> reference 
-            = new Reference<Map.Entry<K,V>>();
-        if (!selectR(root.left, -1, key, lengthInBits, reference)) {
-            return reference.get();
+        
+        TrieEntry<K, V> h = root.left;
+        int bitIndex = -1;
+        
+        // The subtree of the last branch we didn't take
+        TrieEntry<K, V> alternative = null;
+        int alternativeBitIndex = -1;
+        
+        int nodeVisits = 0;
+        while (true) {
+            ++nodeVisits;
+            if (h.bitIndex <= bitIndex) {
+                if (!h.isEmpty()) {
+                    stats.record(Operation.SELECT, nodeVisits);
+                    return h;
+                }
+                
+                // If we hit the root Node and it is empty
+                // we have to look for an alternative best
+                // matching node. The root is the only empty
+                // Node and there is only one uplink to it. 
+                // That means there is no need to backtrack 
+                // any further than to the last branch.
+                if (alternative == null) {
+                    stats.record(Operation.SELECT, nodeVisits);
+                    return null;
+                }
+                
+                h = alternative;
+                bitIndex = alternativeBitIndex;
+                alternative = null;
+                continue;
+            }
+            
+            bitIndex = h.bitIndex;
+            if (!isBitSet(key, h.bitIndex, lengthInBits)) {
+                alternative = h.right;
+                h = h.left;
+            } else {
+                alternative = h.left;
+                h = h.right;
+            }
+            alternativeBitIndex = bitIndex;
         }
-        return null;
     }
     
     /**
      * {@inheritDoc}
+     * 
+     * The traversal is a depth-first walk that visits the closer 
+     * subtree (in terms of XOR distance to the key) of each node 
+     * first. The subtrees that still need to be visited are kept 
+     * on an explicit {@link SelectStack} rather than the call stack.
      */
     public Map.Entry<K,V> select(K key, Cursor<? super K, ? super V> cursor) {
         int lengthInBits = lengthInBits(key);
-        Reference<Map.Entry<K, V>> reference 
-            = new Reference<Map.Entry<K,V>>();
-        selectR(root.left, -1, key, lengthInBits, cursor, reference);
-        return reference.get();
+        
+        SelectStack stack = SelectStack.acquire();
+        int nodeVisits = 0;
+        try {
+            TrieEntry<K, V> h = root.left;
+            int bitIndex = -1;
+            
+            while (true) {
+                ++nodeVisits;
+                if (h.bitIndex <= bitIndex) {
+                    if (!h.isEmpty()) {
+                        Decision decision = cursor.select(h);
+                        switch(decision) {
+                            case REMOVE:
+                                throw new UnsupportedOperationException(
+                                        "Cannot remove during select");
+                            case EXIT:
+                                return h;
+                            case REMOVE_AND_EXIT:
+                                TrieEntry<K, V> entry = new TrieEntry<K, V>(
+                                        h.getKey(), h.getValue(), -1);
+                                removeEntry(h);
+                                return entry;
+                            case CONTINUE:
+                                // fall through.
+                        }
+                    }
+                    
+                    if (stack.isEmpty()) {
+                        return null;
+                    }
+                    
+                    bitIndex = stack.peekBitIndex();
+                    h = stack.pop();
+                    continue;
+                }
+                
+                bitIndex = h.bitIndex;
+                if (!isBitSet(key, h.bitIndex, lengthInBits)) {
+                    stack.push(h.right, bitIndex);
+                    h = h.left;
+                } else {
+                    stack.push(h.left, bitIndex);
+                    h = h.right;
+                }
+            }
+        } finally {
+            stack.release();
+            stats.record(Operation.SELECT, nodeVisits);
+        }
     }
 
     /**
-     * This is equivalent to the other {@link #selectR(TrieEntry, int, 
-     * Object, int, Cursor, Reference)} method but without its overhead 
-     * because we're selecting only one best matching Entry from the 
-     * {@link Trie}.
+     * {@inheritDoc}
      */
-    private boolean selectR(TrieEntry<K, V> h, int bitIndex, 
-            final K key, final int lengthInBits, 
-            final Reference<Map.Entry<K, V>> reference) {
+    @Override
+    public int selectNearest(K key, int count, 
+            Collection<? super Map.Entry<K, V>> entries) {
+        return selectNearestImpl(key, count, null, entries);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int selectNearest(K key, int count, 
+            Predicate<? super Map.Entry<K, V>> predicate, 
+            Collection<? super Map.Entry<K, V>> entries) {
+        if (predicate == null) {
+            throw new NullPointerException("predicate");
+        }
         
-        if (h.bitIndex <= bitIndex) {
-            // If we hit the root Node and it is empty
-            // we have to look for an alternative best
-            // matching node.
-            if (!h.isEmpty()) {
-                reference.set(h);
-                return false;
-            }
-            return true;
+        return selectNearestImpl(key, count, predicate, entries);
+    }
+    
+    /**
+     * The same depth-first walk as {@link #select(Object, Cursor)} that 
+     * stops as soon as it has count entries. The rest of the {@link Trie} 
+     * is never visited. The {@link Predicate} is optional.
+     */
+    private int selectNearestImpl(K key, int count, 
+            Predicate<? super Map.Entry<K, V>> predicate, 
+            Collection<? super Map.Entry<K, V>> entries) {
+        
+        if (count < 0) {
+            throw new IllegalArgumentException("count=" + count);
         }
-
-        if (!isBitSet(key, h.bitIndex, lengthInBits)) {
-            if (selectR(h.left, h.bitIndex, key, lengthInBits, reference)) {
-                return selectR(h.right, h.bitIndex, key, lengthInBits, reference);
-            }
-        } else {
-            if (selectR(h.right, h.bitIndex, key, lengthInBits, reference)) {
-                return selectR(h.left, h.bitIndex, key, lengthInBits, reference);
+        
+        if (entries == null) {
+            throw new NullPointerException("entries");
+        }
+        
+        if (count == 0) {
+            return 0;
+        }
+        
+        int lengthInBits = lengthInBits(key);
+        int selected = 0;
+        
+        SelectStack stack = SelectStack.acquire();
+        try {
+            TrieEntry<K, V> h = root.left;
+            int bitIndex = -1;
+            
+            while (true) {
+                if (h.bitIndex <= bitIndex) {
+                    if (!h.isEmpty() 
+                            && (predicate == null || predicate.test(h))) {
+                        entries.add(h);
+                        if (++selected == count) {
+                            return selected;
+                        }
+                    }
+                    
+                    if (stack.isEmpty()) {
+                        return selected;
+                    }
+                    
+                    bitIndex = stack.peekBitIndex();
+                    h = stack.pop();
+                    continue;
+                }
+                
+                bitIndex = h.bitIndex;
+                if (!isBitSet(key, h.bitIndex, lengthInBits)) {
+                    stack.push(h.right, bitIndex);
+                    h = h.left;
+                } else {
+                    stack.push(h.left, bitIndex);
+                    h = h.right;
+                }
             }
+        } finally {
+            stack.release();
         }
-        return false;
     }
-    
+
     /**
+     * {@inheritDoc}
      * 
+     * A key that is a prefix of the given key has the same bits up to 
+     * its own length and zero bits (a left turn) from there on. It's 
+     * either the entry the key's search ends at or it branches off to 
+     * the left at one of the nodes where the key turns right. The
+     * deeper the node, the longer the prefix. So we look at those 
+     * candidates from the bottom up and stop at the first one that 
+     * really is a prefix of the key.
      */
-    private boolean selectR(TrieEntry<K,V> h, int bitIndex, 
-            final K key, 
-            final int lengthInBits,
-            final Cursor<? super K, ? super V> cursor,
-            final Reference<Map.Entry<K, V>> reference) {
-
-        if (h.bitIndex <= bitIndex) {
-            if (!h.isEmpty()) {
-                Decision decision = cursor.select(h);
-                switch(decision) {
-                    case REMOVE:
-                        throw new UnsupportedOperationException(
-                                "Cannot remove during select");
-                    case EXIT:
-                        reference.set(h);
-                        return false; // exit
-                    case REMOVE_AND_EXIT:
-                        TrieEntry<K, V> entry = new TrieEntry<K, V>(
-                                h.getKey(), h.getValue(), -1);
-                        reference.set(entry);
-                        removeEntry(h);
-                        return false;
-                    case CONTINUE:
-                        // fall through.
+    @Override
+    public Map.Entry<K, V> longestPrefixEntry(K key, int lengthInBits) {
+        if (lengthInBits < 0 || lengthInBits > lengthInBits(key)) {
+            throw new IllegalArgumentException("lengthInBits=" + lengthInBits);
+        }
+        
+        SelectStack stack = SelectStack.acquire();
+        try {
+            TrieEntry<K, V> h = root.left;
+            int bitIndex = -1;
+            
+            while (h.bitIndex > bitIndex) {
+                bitIndex = h.bitIndex;
+                if (!isBitSet(key, h.bitIndex, lengthInBits)) {
+                    h = h.left;
+                } else {
+                    stack.push(h, bitIndex);
+                    h = h.right;
                 }
             }
-            return true; // continue
-        }
-
-        if (!isBitSet(key, h.bitIndex, lengthInBits)) {
-            if (selectR(h.left, h.bitIndex, key, lengthInBits, cursor, reference)) {
-                return selectR(h.right, h.bitIndex, key, lengthInBits, cursor, reference);
+            
+            if (isPrefixOf(h, key, lengthInBits)) {
+                return h;
             }
-        } else {
-            if (selectR(h.right, h.bitIndex, key, lengthInBits, cursor, reference)) {
-                return selectR(h.left, h.bitIndex, key, lengthInBits, cursor, reference);
+            
+            while (!stack.isEmpty()) {
+                TrieEntry<K, V> node = stack.pop();
+                
+                // Follow the zero bits to the only possible candidate
+                TrieEntry<K, V> candidate = node.left;
+                while (candidate.bitIndex > node.bitIndex) {
+                    node = candidate;
+                    candidate = candidate.left;
+                }
+                
+                if (isPrefixOf(candidate, key, lengthInBits)) {
+                    return candidate;
+                }
             }
+            
+            return null;
+        } finally {
+            stack.release();
+        }
+    }
+    
+    /**
+     * Returns true if the given entry's key is a prefix of the 
+     * first lengthInBits bits of the given key.
+     */
+    private boolean isPrefixOf(TrieEntry<K, V> entry, K key, int lengthInBits) {
+        if (entry.isEmpty()) {
+            return false;
         }
         
-        return false;
+        int prefixLength = lengthInBits(entry.key);
+        return prefixLength <= lengthInBits 
+            && keyAnalyzer.isPrefix(entry.key, 0, prefixLength, key);
     }
-
+    
     /**
      * {@inheritDoc}
      */
@@ -472,8 +855,11 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
         int lengthInBits = lengthInBits(key);        
         TrieEntry<K, V> current = root.left;
         TrieEntry<K, V> path = root;
+        int nodeVisits = 0;
         while (true) {
+            ++nodeVisits;
             if (current.bitIndex <= path.bitIndex) {
+                stats.record(Operation.REMOVE, nodeVisits);
                 if (!current.isEmpty() && compareKeys(key, current.key)) {
                     return removeEntry(current);
                 } else {
@@ -491,20 +877,162 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
         }
     }
     
+    /**
+     * Returns the number of keys in the {@link Trie} that are less 
+     * than the given key. The key doesn't have to be in the 
+     * {@link Trie}.
+     * 
+     * <p>It adds up the sizes of the subtrees left of the path of 
+     * the key and takes no longer than a lookup.
+     */
+    public int rank(K key) {
+        return rank(key, false);
+    }
+    
+    /**
+     * Returns the entry at the given position in the order of the keys
+     * 
+     * @throws IndexOutOfBoundsException if the index is negative or
+     * not less than the size of the {@link Trie}
+     */
+    public Map.Entry<K, V> entryAt(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException(
+                    "index=" + index + ", size=" + size());
+        }
+        
+        TrieEntry<K, V> current = root.left;
+        TrieEntry<K, V> path = root;
+        while (current.bitIndex > path.bitIndex) {
+            path = current;
+            
+            int leftSize = subtreeSize(current.left, current);
+            if (index < leftSize) {
+                current = current.left;
+            } else {
+                index -= leftSize;
+                current = current.right;
+            }
+        }
+        
+        return current;
+    }
+    
+    /**
+     * Returns the number of keys from the given fromKey (inclusive)
+     * to the given toKey (exclusive)
+     * 
+     * @see #countRange(Object, boolean, Object, boolean)
+     */
+    public int countRange(K fromKey, K toKey) {
+        return countRange(fromKey, true, toKey, false);
+    }
+    
+    /**
+     * Returns the number of keys between the given keys. It's 
+     * the size of the same {@link java.util.NavigableMap#subMap(Object, 
+     * boolean, Object, boolean)} view but it takes no longer 
+     * than two lookups.
+     */
+    public int countRange(K fromKey, boolean fromInclusive, 
+            K toKey, boolean toInclusive) {
+        if (fromKey == null) {
+            throw new NullPointerException("fromKey");
+        }
+        
+        if (toKey == null) {
+            throw new NullPointerException("toKey");
+        }
+        
+        if (keyAnalyzer.compare(fromKey, toKey) > 0) {
+            throw new IllegalArgumentException("fromKey > toKey");
+        }
+        
+        int count = rank(toKey, toInclusive) - rank(fromKey, !fromInclusive);
+        return Math.max(count, 0);
+    }
+    
+    /**
+     * Returns the number of keys that are less than (or equal to)
+     * the given key.
+     * 
+     * <p>The keys left of the path of the given key are less than 
+     * the key. The path ends at the uplink to the key or at the 
+     * subtree the key would be added above. The subtree is either 
+     * all less or all greater than the key.
+     */
+    private int rank(K key, boolean inclusive) {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+        
+        int lengthInBits = lengthInBits(key);
+        
+        // There can never be anything before root
+        if (lengthInBits == 0) {
+            return inclusive && !root.isEmpty() 
+                && compareKeys(key, root.key) ? 1 : 0;
+        }
+        
+        TrieEntry<K, V> found = getNearestEntryForKey(key, lengthInBits);
+        
+        int bitIndex = KeyAnalyzer.EQUAL_BIT_KEY;
+        if (found.isEmpty() || !compareKeys(key, found.key)) {
+            bitIndex = bitIndex(key, found.key);
+        }
+        
+        if (AbstractKeyAnalyzer.isNullBitKey(bitIndex)) {
+            return 0;
+        }
+        
+        boolean equal = AbstractKeyAnalyzer.isEqualBitKey(bitIndex);
+        if (!equal && !AbstractKeyAnalyzer.isValidBitIndex(bitIndex)) {
+            throw new IllegalStateException("invalid lookup: " + key);
+        }
+        
+        int stopBitIndex = equal ? Integer.MAX_VALUE : bitIndex;
+        
+        int rank = 0;
+        TrieEntry<K, V> current = root.left;
+        TrieEntry<K, V> path = root;
+        while (current.bitIndex > path.bitIndex 
+                && current.bitIndex < stopBitIndex) {
+            path = current;
+            
+            if (!isBitSet(key, current.bitIndex, lengthInBits)) {
+                current = current.left;
+            } else {
+                rank += subtreeSize(current.left, current);
+                current = current.right;
+            }
+        }
+        
+        if (equal) {
+            return inclusive ? rank + 1 : rank;
+        } else if (isBitSet(key, bitIndex, lengthInBits)) {
+            return rank + subtreeSize(current, path);
+        }
+        
+        return rank;
+    }
+    
     /**
      * Returns the nearest entry for a given key.  This is useful
      * for finding knowing if a given key exists (and finding the value
      * for it), or for inserting the key.
      * 
      * The actual get implementation. This is very similar to
-     * selectR but with the exception that it might return the
+     * select but with the exception that it might return the
      * root Entry even if it's empty.
      */
     TrieEntry<K, V> getNearestEntryForKey(K key, int lengthInBits) {
         TrieEntry<K, V> current = root.left;
         TrieEntry<K, V> path = root;
+        int nodeVisits = 0;
         while(true) {
+            ++nodeVisits;
             if (current.bitIndex <= path.bitIndex) {
+                stats.record(Operation.LOOKUP, nodeVisits);
                 return current;
             }
             
@@ -534,7 +1062,13 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
         }
         
         decrementSize();
-        return h.setKeyValue(null, null);
+        V oldValue = h.setKeyValue(null, null);
+        
+        if (h == root) {
+            updateSubtrees(rootUplink());
+        }
+        
+        return oldValue;
     }
     
     /**
@@ -566,6 +1100,7 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
             child.predecessor = parent;
         }
         
+        updateSubtrees(parent);
     }
     
     /**
@@ -584,6 +1119,9 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
         
         TrieEntry<K, V> p = h.predecessor;
         
+        // The subtree sizes change from P's parent upwards
+        TrieEntry<K, V> bottom = (p.parent != h ? p.parent : p);
+        
         // Set P's bitIndex
         p.bitIndex = h.bitIndex;
         
@@ -647,7 +1185,116 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
         
         if (isValidUplink(p.right, p)) {
             p.right.predecessor = p;
-        }   
+        }
+        
+        updateSubtrees(bottom);
+    }
+    
+    /**
+     * Updates the {@link TrieEntry#subtreeSize} of the given 
+     * node and of all nodes above it.
+     */
+    private void updateSubtrees(TrieEntry<K, V> node) {
+        while (node != root) {
+            updateSubtree(node);
+            node = node.parent;
+        }
+    }
+    
+    /**
+     * Updates the {@link TrieEntry#subtreeSize} and the 
+     * {@link TrieEntry#maxScore} of the given node. They're 
+     * computed from its children.
+     */
+    private void updateSubtree(TrieEntry<K, V> node) {
+        node.subtreeSize = subtreeSize(node.left, node) 
+            + subtreeSize(node.right, node);
+        
+        ToLongFunction<? super V> scoreFunction = this.scoreFunction;
+        if (scoreFunction != null) {
+            node.maxScore = Math.max(
+                    maxScore(node.left, node, scoreFunction), 
+                    maxScore(node.right, node, scoreFunction));
+        }
+    }
+    
+    /**
+     * Updates the {@link TrieEntry#maxScore}s of the nodes above 
+     * the uplink to the given entry after its value has changed.
+     */
+    private void updateScore(TrieEntry<K, V> entry) {
+        if (scoreFunction != null) {
+            updateSubtrees(entry == root ? rootUplink() : entry.predecessor);
+        }
+    }
+    
+    /**
+     * Updates the subtrees of all nodes from the bottom up
+     */
+    private void updateAllSubtrees() {
+        if (root.left == root) {
+            return;
+        }
+        
+        // Each node comes before its children
+        List<TrieEntry<K, V>> nodes = new ArrayList<TrieEntry<K, V>>(size());
+        nodes.add(root.left);
+        for (int i = 0; i < nodes.size(); i++) {
+            TrieEntry<K, V> node = nodes.get(i);
+            if (node.left.bitIndex > node.bitIndex) {
+                nodes.add(node.left);
+            }
+            
+            if (node.right.bitIndex > node.bitIndex) {
+                nodes.add(node.right);
+            }
+        }
+        
+        for (int i = nodes.size() - 1; i >= 0; --i) {
+            updateSubtree(nodes.get(i));
+        }
+    }
+    
+    /**
+     * Returns the node with the uplink to the root. It's at the 
+     * bottom of the left-most path or the root itself.
+     */
+    private TrieEntry<K, V> rootUplink() {
+        TrieEntry<K, V> node = root.left;
+        if (node == root) {
+            return root;
+        }
+        
+        while (node.left.bitIndex > node.bitIndex) {
+            node = node.left;
+        }
+        
+        return node;
+    }
+    
+    /**
+     * Returns the number of keys the given child of the given node 
+     * stands for. It's one for an uplink to a key and the size of
+     * the subtree otherwise.
+     */
+    private static int subtreeSize(TrieEntry<?, ?> child, TrieEntry<?, ?> node) {
+        if (child.bitIndex > node.bitIndex) {
+            return child.subtreeSize;
+        }
+        return child.isEmpty() ? 0 : 1;
+    }
+    
+    /**
+     * Returns the highest score of the given child of the given node. 
+     * It's the score of the value for an uplink and the 
+     * {@link TrieEntry#maxScore} of the subtree otherwise.
+     */
+    static <V> long maxScore(TrieEntry<?, ? extends V> child, TrieEntry<?, ?> node, 
+            ToLongFunction<? super V> scoreFunction) {
+        if (child.bitIndex > node.bitIndex) {
+            return child.maxScore;
+        }
+        return child.isEmpty() ? Long.MIN_VALUE : scoreFunction.applyAsLong(child.value);
     }
     
     /**
@@ -656,7 +1303,7 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
      */
     TrieEntry<K, V> nextEntry(TrieEntry<K, V> node) {
         if (node == null) {
-            return firstEntry();
+            return firstTrieEntry();
         } else {
             return nextEntryImpl(node.predecessor, node, null);
         }
@@ -698,90 +1345,101 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
     TrieEntry<K, V> nextEntryImpl(TrieEntry<K, V> start, 
             TrieEntry<K, V> previous, TrieEntry<K, V> tree) {
         
+        // Steps 2c) and 7) start over at Step 1 with a new node
+        // which is what the loop does rather than recursing.
         TrieEntry<K, V> current = start;
-
-        // Only look at the left if this was a recursive or
-        // the first check, otherwise we know we've already looked
-        // at the left.
-        if (previous == null || start != previous.predecessor) {
-            while (!current.left.isEmpty()) {
-                // stop traversing if we've already
-                // returned the left of this node.
-                if (previous == current.left) {
-                    break;
+        while (true) {
+            
+            // Only look at the left if this is a new node or the 
+            // first check, otherwise we know we've already looked
+            // at the left.
+            if (previous == null || current != previous.predecessor) {
+                TrieEntry<K, V> left = current.left;
+                while (!left.isEmpty()) {
+                    // stop traversing if we've already
+                    // returned the left of this node.
+                    if (previous == left) {
+                        break;
+                    }
+                    
+                    if (left.bitIndex <= current.bitIndex) {
+                        return left;
+                    }
+                    
+                    current = left;
+                    left = current.left;
                 }
-                
-                if (isValidUplink(current.left, current)) {
-                    return current.left;
+            }
+            
+            // If there's no data at all, exit.
+            if (current.isEmpty()) {
+                return null;
+            }
+            
+            TrieEntry<K, V> right = current.right;
+            
+            // If we've already returned the left,
+            // and the immediate right is null,
+            // there's only one entry in the Trie
+            // which is stored at the root.
+            //
+            //  / ("")   <-- root
+            //  \_/  \
+            //       null <-- 'current'
+            //
+            if (right == null) {
+                return null;
+            }
+            
+            // If nothing valid on the left, try the right.
+            if (previous != right) {
+                // See if it immediately is valid.
+                if (isValidUplink(right, current)) {
+                    return right;
                 }
                 
-                current = current.left;
+                // Must search on the right's side if it wasn't initially valid.
+                current = right;
+                continue;
             }
-        }
-        
-        // If there's no data at all, exit.
-        if (current.isEmpty()) {
-            return null;
-        }
-        
-        // If we've already returned the left,
-        // and the immediate right is null,
-        // there's only one entry in the Trie
-        // which is stored at the root.
-        //
-        //  / ("")   <-- root
-        //  \_/  \
-        //       null <-- 'current'
-        //
-        if (current.right == null) {
-            return null;
-        }
-        
-        // If nothing valid on the left, try the right.
-        if (previous != current.right) {
-            // See if it immediately is valid.
-            if (isValidUplink(current.right, current)) {
-                return current.right;
+            
+            // Neither left nor right are valid, find the first parent
+            // whose child did not come from the right & traverse it.
+            while (current == current.parent.right) {
+                // If we're going to traverse to above the subtree, stop.
+                if (current == tree) {
+                    return null;
+                }
+                
+                current = current.parent;
             }
             
-            // Must search on the right's side if it wasn't initially valid.
-            return nextEntryImpl(current.right, previous, tree);
-        }
-        
-        // Neither left nor right are valid, find the first parent
-        // whose child did not come from the right & traverse it.
-        while (current == current.parent.right) {
-            // If we're going to traverse to above the subtree, stop.
+            // If we're on the top of the subtree, we can't go any higher.
             if (current == tree) {
                 return null;
             }
             
-            current = current.parent;
-        }
-
-        // If we're on the top of the subtree, we can't go any higher.
-        if (current == tree) {
-            return null;
-        }
-        
-        // If there's no right, the parent must be root, so we're done.
-        if (current.parent.right == null) {
-            return null;
-        }
-        
-        // If the parent's right points to itself, we've found one.
-        if (previous != current.parent.right 
-                && isValidUplink(current.parent.right, current.parent)) {
-            return current.parent.right;
-        }
-        
-        // If the parent's right is itself, there can't be any more nodes.
-        if (current.parent.right == current.parent) {
-            return null;
+            TrieEntry<K, V> parent = current.parent;
+            right = parent.right;
+            
+            // If there's no right, the parent must be root, so we're done.
+            if (right == null) {
+                return null;
+            }
+            
+            // If the parent's right points to itself, we've found one.
+            if (previous != right && isValidUplink(right, parent)) {
+                return right;
+            }
+            
+            // If the parent's right is itself, there can't be any more nodes.
+            if (right == parent) {
+                return null;
+            }
+            
+            // We need to traverse down the parent's right's path.
+            current = right;
         }
-        
-        // We need to traverse down the parent's right's path.
-        return nextEntryImpl(current.parent.right, previous, tree);
     }
     
     /**
@@ -790,7 +1448,7 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
      * This is implemented by going always to the left until
      * we encounter a valid uplink. That uplink is the first key.
      */
-    TrieEntry<K, V> firstEntry() {
+    TrieEntry<K, V> firstTrieEntry() {
         // if Trie is empty, no first node.
         if (isEmpty()) {
             return null;
@@ -826,22 +1484,191 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
     }
     
     /**
-     * A {@link Reference} allows us to return something through a Method's 
-     * argument list. An alternative would be to an Array with a length of 
-     * one (1) but that leads to compiler warnings. Computationally and memory
-     * wise there's no difference (except for the need to load the 
-     * {@link Reference} Class but that happens only once).
+     * Puts keys into an empty {@link Trie} that come in ascending order.
+     * 
+     * Every key is greater than all keys before it. Its bit index is 
+     * the first bit where it differs from the previous key and it belongs 
+     * on the right-most path of the {@link Trie}. That path is kept on a 
+     * stack and each key is added at the bottom of it. A key only pops
+     * nodes that no later key will ever look at again which makes it 
+     * linear in the number of keys. The first key that is out of order 
+     * (or equal to the previous one) and all keys after it are put with 
+     * {@link PatriciaTrieBase#put(Object, Object)}.
+     */
+    private final class SortedLoader {
+        
+        /**
+         * The nodes on the right-most path from the top down
+         */
+        private final List<TrieEntry<K, V>> path = new ArrayList<TrieEntry<K, V>>();
+        
+        private boolean sorted = isEmpty();
+        
+        private K previous = null;
+        
+        public void put(K key, V value) {
+            if (sorted && key != null) {
+                int lengthInBits = lengthInBits(key);
+                int bitIndex = bitIndex(key, previous);
+                
+                if (AbstractKeyAnalyzer.isNullBitKey(bitIndex) && isEmpty()) {
+                    /* NULL BIT KEY */
+                    root.setKeyValue(key, value);
+                    incrementSize();
+                    previous = key;
+                    return;
+                }
+                
+                if (AbstractKeyAnalyzer.isValidBitIndex(bitIndex) 
+                        && isBitSet(key, bitIndex, lengthInBits)) {
+                    append(new TrieEntry<K, V>(key, value, bitIndex));
+                    incrementSize();
+                    previous = key;
+                    return;
+                }
+                
+                finish();
+                sorted = false;
+            }
+            
+            PatriciaTrieBase.this.put(key, value);
+        }
+        
+        /**
+         * Sets the {@link TrieEntry#subtreeSize}s and scores of the nodes 
+         * that are still on the right-most path. The {@link Trie} can't 
+         * be changed before this method is called.
+         */
+        public void finish() {
+            for (int i = path.size() - 1; i >= 0; --i) {
+                pop(i);
+            }
+        }
+        
+        /**
+         * Removes the given node from the right-most path. Nothing 
+         * below it changes from here on and it's safe to count its keys.
+         */
+        private TrieEntry<K, V> pop(int index) {
+            TrieEntry<K, V> node = path.remove(index);
+            updateSubtree(node);
+            return node;
+        }
+        
+        /**
+         * Adds the given {@link TrieEntry} for a key that is greater than 
+         * all other keys to the bottom of the right-most path.
+         * 
+         * @see PatriciaTrieBase#addEntry(TrieEntry, int)
+         */
+        private void append(TrieEntry<K, V> entry) {
+            TrieEntry<K, V> current = null;
+            
+            int last = path.size() - 1;
+            while (last >= 0 && path.get(last).bitIndex > entry.bitIndex) {
+                current = pop(last--);
+            }
+            
+            TrieEntry<K, V> parent = (last >= 0 ? path.get(last) : root);
+            if (current == null) {
+                current = (parent == root ? root.left : parent.right);
+            }
+            
+            // The key has a one at its bit index and the 
+            // previous keys have a zero
+            entry.predecessor = entry;
+            entry.left = current;
+            entry.right = entry;
+            
+            entry.parent = parent;
+            if (current.bitIndex > parent.bitIndex) {
+                current.parent = entry;
+            } else {
+                current.predecessor = entry;
+            }
+            
+            if (parent == root) {
+                root.left = entry;
+            } else {
+                parent.right = entry;
+            }
+            
+            path.add(entry);
+        }
+    }
+    
+    /**
+     * A stack of the subtrees that {@link PatriciaTrieBase#select(Object, Cursor)} 
+     * has yet to visit. Each element is a subtree and the bit index of 
+     * the node it's hanging off. Each {@link Thread} has its own stack 
+     * that is reused by all {@link Trie}s to avoid creating garbage.
      */
-    private static class Reference<E> {
+    private static final class SelectStack {
+        
+        private static final ThreadLocal<SelectStack> STACKS 
+                = new ThreadLocal<SelectStack>() {
+            @Override
+            protected SelectStack initialValue() {
+                return new SelectStack();
+            }
+        };
+        
+        private TrieEntry<?, ?>[] entries = new TrieEntry<?, ?>[32];
+        
+        private int[] bitIndices = new int[32];
+        
+        private int size = 0;
+        
+        private boolean inUse = false;
+        
+        /**
+         * Returns the current {@link Thread}'s stack. A new stack is 
+         * returned if it's already in use further up the call stack 
+         * (e.g. a {@link Cursor} that calls select() on a {@link Trie}).
+         */
+        public static SelectStack acquire() {
+            SelectStack stack = STACKS.get();
+            if (stack.inUse) {
+                stack = new SelectStack();
+            }
+            
+            stack.inUse = true;
+            return stack;
+        }
         
-        private E item;
+        /**
+         * Clears the stack and makes it available for reuse
+         */
+        public void release() {
+            Arrays.fill(entries, 0, size, null);
+            size = 0;
+            inUse = false;
+        }
+        
+        public boolean isEmpty() {
+            return size == 0;
+        }
+        
+        public void push(TrieEntry<?, ?> entry, int bitIndex) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, 2 * size);
+                bitIndices = Arrays.copyOf(bitIndices, 2 * size);
+            }
+            
+            entries[size] = entry;
+            bitIndices[size] = bitIndex;
+            ++size;
+        }
         
-        public void set(E item) {
-            this.item = item;
+        public int peekBitIndex() {
+            return bitIndices[size-1];
         }
         
-        public E get() {
-            return item;
+        @SuppressWarnings("unchecked")
+        public <K, V> TrieEntry<K, V> pop() {
+            TrieEntry<K, V> entry = (TrieEntry<K, V>)entries[--size];
+            entries[size] = null;
+            return entry;
         }
     }
     
@@ -856,16 +1683,30 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
         protected int bitIndex;
         
         /** The parent of this entry. */
-        protected TrieEntry<K,V> parent;
+        protected transient TrieEntry<K,V> parent;
         
         /** The left child of this entry. */
-        protected TrieEntry<K,V> left;
+        protected transient TrieEntry<K,V> left;
         
         /** The right child of this entry. */
-        protected TrieEntry<K,V> right;
+        protected transient TrieEntry<K,V> right;
         
         /** The entry who uplinks to this entry. */ 
-        protected TrieEntry<K,V> predecessor;
+        protected transient TrieEntry<K,V> predecessor;
+        
+        /** 
+         * The number of keys in the subtree of this entry. They're 
+         * the keys of the uplinks in the subtree and they have the 
+         * first bitIndex bits in common.
+         */
+        protected transient int subtreeSize;
+        
+        /**
+         * The highest score of the values in the subtree of this entry
+         * 
+         * @see PatriciaTrieBase#setScoreFunction(ToLongFunction)
+         */
+        protected transient long maxScore;
         
         public TrieEntry(K key, V value, int bitIndex) {
             super(key, value);
@@ -901,6 +1742,14 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
             return !isInternalNode();
         }
 
+        /**
+         * Creates an array for {@link TrieEntry}s of the given length
+         */
+        @SuppressWarnings("unchecked")
+        static <K, V> TrieEntry<K, V>[] newArray(int length) {
+            return (TrieEntry<K, V>[])new TrieEntry<?, ?>[length];
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -979,6 +1828,14 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
             return new EntryIterator();
         }
         
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Spliterator<Map.Entry<K,V>> spliterator() {
+            return new EntrySpliterator(root.left, -1, size());
+        }
+        
         /**
          * {@inheritDoc}
          */
@@ -1043,6 +1900,14 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
             return new KeyIterator();
         }
         
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Spliterator<K> spliterator() {
+            return new KeySpliterator(root.left, -1, size());
+        }
+        
         /**
          * {@inheritDoc}
          */
@@ -1102,6 +1967,14 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
             return new ValueIterator();
         }
         
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Spliterator<V> spliterator() {
+            return new ValueSpliterator(root.left, -1, size());
+        }
+        
         /**
          * {@inheritDoc}
          */
@@ -1165,17 +2038,32 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
         protected TrieEntry<K, V> next; // the next node to return
         protected TrieEntry<K, V> current; // the current entry we're on
         
+        /**
+         * The subtrees that have yet to be visited 
+         * or null if it uses the parent links
+         * 
+         * @see PatriciaTrieBase#setStackIterators(boolean)
+         */
+        private final UplinkStack stack;
+        
         /**
          * Starts iteration from the root
          */
         protected TrieIterator() {
-            next = PatriciaTrieBase.this.nextEntry(null);
+            if (stackIterators) {
+                stack = new UplinkStack();
+                next = stack.next();
+            } else {
+                stack = null;
+                next = PatriciaTrieBase.this.nextEntry(null);
+            }
         }
         
         /**
          * Starts iteration at the given entry
          */
         protected TrieIterator(TrieEntry<K, V> firstEntry) {
+            stack = null;
             next = firstEntry;
         }
         
@@ -1201,6 +2089,9 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
          * @see PatriciaTrie#nextEntry(TrieEntry)
          */
         protected TrieEntry<K, V> findNext(TrieEntry<K, V> prior) {
+            if (stack != null) {
+                return stack.next();
+            }
             return PatriciaTrieBase.this.nextEntry(prior);
         }
         
@@ -1229,7 +2120,383 @@ abstract class PatriciaTrieBase<K, V> extends AbstractTrie<K, V> {
             current = null;
             PatriciaTrieBase.this.removeEntry(node);
             
+            // The removal moves nodes around, 
+            // the stack has to be built again
+            if (stack != null && next != null) {
+                stack.seek(next);
+            }
+            
             expectedModCount = PatriciaTrieBase.this.modCount;
         }
     }
+    
+    /**
+     * The stack of an {@link Iterator} that walks over the uplinks of 
+     * the {@link Trie} in key order. Each element is a subtree and the 
+     * bit index of the node it's hanging off (to tell uplinks apart).
+     * 
+     * @see TrieSpliterator
+     */
+    private final class UplinkStack {
+        
+        private TrieEntry<?, ?>[] entries = new TrieEntry<?, ?>[16];
+        
+        private int[] bitIndices = new int[16];
+        
+        private int size = 0;
+        
+        public UplinkStack() {
+            push(root.left, root.bitIndex);
+        }
+        
+        private void push(TrieEntry<K, V> entry, int bitIndex) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, 2 * size);
+                bitIndices = Arrays.copyOf(bitIndices, 2 * size);
+            }
+            
+            entries[size] = entry;
+            bitIndices[size] = bitIndex;
+            ++size;
+        }
+        
+        /**
+         * Returns the next {@link TrieEntry} or null if there are no more
+         */
+        @SuppressWarnings("unchecked")
+        public TrieEntry<K, V> next() {
+            while (size > 0) {
+                --size;
+                TrieEntry<K, V> node = (TrieEntry<K, V>)entries[size];
+                entries[size] = null;
+                
+                if (node.bitIndex > bitIndices[size]) {
+                    push(node.right, node.bitIndex);
+                    push(node.left, node.bitIndex);
+                } else if (!node.isEmpty()) {
+                    return node;
+                }
+            }
+            
+            return null;
+        }
+        
+        /**
+         * Builds the stack for the {@link TrieEntry}s after the given one. 
+         * It's the path of the lookup of its key and the right subtrees 
+         * of the nodes where the lookup goes left.
+         */
+        public void seek(TrieEntry<K, V> entry) {
+            Arrays.fill(entries, 0, size, null);
+            size = 0;
+            
+            K key = entry.key;
+            int lengthInBits = lengthInBits(key);
+            
+            TrieEntry<K, V> node = root.left;
+            int bitIndex = root.bitIndex;
+            while (node.bitIndex > bitIndex) {
+                bitIndex = node.bitIndex;
+                if (!isBitSet(key, bitIndex, lengthInBits)) {
+                    push(node.right, bitIndex);
+                    node = node.left;
+                } else {
+                    node = node.right;
+                }
+            }
+        }
+    }
+    
+    /**
+     * A {@link Spliterator} over the entries of a subtree. It's a walk 
+     * over the uplinks in key order (every node but the root is the 
+     * target of exactly one uplink) with a stack of the subtrees that 
+     * are still to be visited. It splits at the nodes of the {@link Trie},
+     * the left subtree goes to the new {@link Spliterator} and the right 
+     * subtree stays with this one. Nothing gets copied.
+     */
+    abstract class TrieSpliterator<E> implements Spliterator<E> {
+        
+        /**
+         * For fast-fail
+         */
+        private final int expectedModCount;
+        
+        /**
+         * The subtrees and the bit index of the node 
+         * each of them is hanging off (to tell uplinks apart)
+         */
+        private TrieEntry<?, ?>[] entries = new TrieEntry<?, ?>[16];
+        
+        private int[] bitIndices = new int[16];
+        
+        private int size = 0;
+        
+        private long estimate;
+        
+        /**
+         * Creates a {@link TrieSpliterator} for the subtree that is hanging
+         * off a node with the given bit index. The subtree may be null.
+         */
+        protected TrieSpliterator(TrieEntry<K, V> subtree, 
+                int fromBitIndex, long estimate) {
+            this.expectedModCount = PatriciaTrieBase.this.modCount;
+            this.estimate = estimate;
+            
+            if (subtree != null) {
+                push(subtree, fromBitIndex);
+            }
+        }
+        
+        /**
+         * Creates an empty {@link TrieSpliterator} for {@link #trySplit()}
+         */
+        protected TrieSpliterator(int expectedModCount) {
+            this.expectedModCount = expectedModCount;
+        }
+        
+        /**
+         * Returns the element for the given {@link TrieEntry}
+         */
+        protected abstract E get(TrieEntry<K, V> entry);
+        
+        /**
+         * Returns an empty {@link TrieSpliterator} of the same kind
+         */
+        protected abstract TrieSpliterator<E> create(int expectedModCount);
+        
+        private void push(TrieEntry<K, V> entry, int bitIndex) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, 2 * size);
+                bitIndices = Arrays.copyOf(bitIndices, 2 * size);
+            }
+            
+            entries[size] = entry;
+            bitIndices[size] = bitIndex;
+            ++size;
+        }
+        
+        @SuppressWarnings("unchecked")
+        private TrieEntry<K, V> pop() {
+            TrieEntry<K, V> entry = (TrieEntry<K, V>)entries[--size];
+            entries[size] = null;
+            return entry;
+        }
+        
+        /**
+         * Pushes the children of the given node, the left one last
+         */
+        private void expand(TrieEntry<K, V> node) {
+            push(node.right, node.bitIndex);
+            push(node.left, node.bitIndex);
+        }
+        
+        /**
+         * Returns the next {@link TrieEntry} or null if there are no more
+         */
+        private TrieEntry<K, V> nextEntry() {
+            if (expectedModCount != PatriciaTrieBase.this.modCount) {
+                throw new ConcurrentModificationException();
+            }
+            
+            while (size > 0) {
+                int from = bitIndices[size-1];
+                TrieEntry<K, V> node = pop();
+                
+                if (node.bitIndex > from) {
+                    expand(node);
+                } else if (!node.isEmpty()) {
+                    return node;
+                }
+            }
+            
+            return null;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean tryAdvance(Consumer<? super E> action) {
+            if (action == null) {
+                throw new NullPointerException("action");
+            }
+            
+            TrieEntry<K, V> entry = nextEntry();
+            if (entry == null) {
+                return false;
+            }
+            
+            if (estimate > 0L) {
+                --estimate;
+            }
+            
+            action.accept(get(entry));
+            return true;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void forEachRemaining(Consumer<? super E> action) {
+            if (action == null) {
+                throw new NullPointerException("action");
+            }
+            
+            for (TrieEntry<K, V> entry = nextEntry(); 
+                    entry != null; entry = nextEntry()) {
+                action.accept(get(entry));
+            }
+            
+            estimate = 0L;
+        }
+        
+        /**
+         * {@inheritDoc}
+         * 
+         * The subtree at the bottom of the stack has the keys that come
+         * last. Everything above it is split off. If there is only one 
+         * subtree left it's split into its left and right subtree.
+         */
+        @Override
+        public Spliterator<E> trySplit() {
+            if (size == 1 && entries[0].bitIndex > bitIndices[0]) {
+                expand(pop());
+            }
+            
+            if (size < 2) {
+                return null;
+            }
+            
+            TrieSpliterator<E> prefix = create(expectedModCount);
+            prefix.entries = Arrays.copyOfRange(entries, 1, size + 1);
+            prefix.bitIndices = Arrays.copyOfRange(bitIndices, 1, size + 1);
+            prefix.size = size - 1;
+            
+            Arrays.fill(entries, 1, size, null);
+            size = 1;
+            
+            prefix.estimate = estimate >>> 1;
+            estimate -= prefix.estimate;
+            return prefix;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.DISTINCT 
+                | Spliterator.SORTED | Spliterator.NONNULL;
+        }
+    }
+    
+    /**
+     * A {@link Spliterator} that returns {@link Entry} Objects
+     */
+    class EntrySpliterator extends TrieSpliterator<Map.Entry<K, V>> {
+        
+        public EntrySpliterator(TrieEntry<K, V> subtree, 
+                int fromBitIndex, long estimate) {
+            super(subtree, fromBitIndex, estimate);
+        }
+        
+        private EntrySpliterator(int expectedModCount) {
+            super(expectedModCount);
+        }
+        
+        @Override
+        protected Map.Entry<K, V> get(TrieEntry<K, V> entry) {
+            return entry;
+        }
+        
+        @Override
+        protected TrieSpliterator<Map.Entry<K, V>> create(int expectedModCount) {
+            return new EntrySpliterator(expectedModCount);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Comparator<? super Map.Entry<K, V>> getComparator() {
+            return Map.Entry.comparingByKey(keyAnalyzer);
+        }
+    }
+    
+    /**
+     * A {@link Spliterator} that returns Key Objects
+     */
+    class KeySpliterator extends TrieSpliterator<K> {
+        
+        public KeySpliterator(TrieEntry<K, V> subtree, 
+                int fromBitIndex, long estimate) {
+            super(subtree, fromBitIndex, estimate);
+        }
+        
+        private KeySpliterator(int expectedModCount) {
+            super(expectedModCount);
+        }
+        
+        @Override
+        protected K get(TrieEntry<K, V> entry) {
+            return entry.getKey();
+        }
+        
+        @Override
+        protected TrieSpliterator<K> create(int expectedModCount) {
+            return new KeySpliterator(expectedModCount);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Comparator<? super K> getComparator() {
+            return keyAnalyzer;
+        }
+    }
+    
+    /**
+     * A {@link Spliterator} that returns Value Objects. The
+     * values are neither sorted nor distinct.
+     */
+    class ValueSpliterator extends TrieSpliterator<V> {
+        
+        public ValueSpliterator(TrieEntry<K, V> subtree, 
+                int fromBitIndex, long estimate) {
+            super(subtree, fromBitIndex, estimate);
+        }
+        
+        private ValueSpliterator(int expectedModCount) {
+            super(expectedModCount);
+        }
+        
+        @Override
+        protected V get(TrieEntry<K, V> entry) {
+            return entry.getValue();
+        }
+        
+        @Override
+        protected TrieSpliterator<V> create(int expectedModCount) {
+            return new ValueSpliterator(expectedModCount);
+        }
+        
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED;
+        }
+    }
 }
@@ -0,0 +1,1179 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.function.Predicate;
+
+import org.ardverk.collection.Cursor.Decision;
+
+/**
+ * An immutable PATRICIA {@link Trie}. The {@link #plus(Object, Object)}
+ * and {@link #minus(Object)} operations return a new version of the
+ * {@link Trie} and leave this one as it is.
+ *
+ * <p>The uplinks of the {@link PatriciaTrie} make every node reachable
+ * from every other node, so a change can't be made without copying the
+ * whole tree. This {@link Trie} is a crit-bit tree instead: the keys are
+ * in the leaves and the branches only have the bit index and the two
+ * subtrees. A new version copies the branches on the path to the changed
+ * leaf and shares everything else with the old one. Each branch knows
+ * the number of keys below it, so the range and prefix views know their
+ * size without counting.
+ *
+ * <p>All methods of the {@link Map} interface that would modify the
+ * {@link Trie} throw an {@link UnsupportedOperationException}. The
+ * {@link Trie} is safe to use from multiple threads.
+ *
+ * @see VersionedPatriciaTrie
+ */
+public class PersistentPatriciaTrie<K, V> extends AbstractTrie<K, V> {
+
+    private static final long serialVersionUID = 4823645829154936470L;
+
+    /**
+     * The root node or null if the {@link Trie} is empty
+     */
+    private final transient Node<K, V> root;
+
+    /**
+     * A view of the whole {@link Trie} that does the
+     * {@link SortedMap} operations
+     */
+    private transient volatile TrieRangeMap<K, V> view;
+
+    /**
+     * Creates an empty {@link PersistentPatriciaTrie}
+     */
+    public PersistentPatriciaTrie(KeyAnalyzer<? super K> keyAnalyzer) {
+        this(keyAnalyzer, (Node<K, V>)null);
+    }
+
+    /**
+     * Creates a {@link PersistentPatriciaTrie} with the
+     * keys and values of the given {@link Map}
+     */
+    public PersistentPatriciaTrie(KeyAnalyzer<? super K> keyAnalyzer,
+            Map<? extends K, ? extends V> m) {
+        this(keyAnalyzer, new PersistentPatriciaTrie<K, V>(keyAnalyzer).plusAll(m).root);
+    }
+
+    private PersistentPatriciaTrie(KeyAnalyzer<? super K> keyAnalyzer, Node<K, V> root) {
+        super(keyAnalyzer);
+        this.root = root;
+    }
+
+    /**
+     * Returns a {@link PersistentPatriciaTrie} with the same
+     * {@link KeyAnalyzer} and the given root node
+     */
+    private PersistentPatriciaTrie<K, V> create(Node<K, V> root) {
+        return new PersistentPatriciaTrie<K, V>(keyAnalyzer, root);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return root != null ? root.size() : 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V get(Object k) {
+        Leaf<K, V> leaf = getEntry(k);
+        return leaf != null ? leaf.value : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsKey(Object k) {
+        return getEntry(k) != null;
+    }
+
+    /**
+     * Returns the {@link Leaf} of the given key or null
+     */
+    private Leaf<K, V> getEntry(Object k) {
+        K key = castKey(k);
+        if (key == null || root == null) {
+            return null;
+        }
+
+        Leaf<K, V> leaf = nearest(key, lengthInBits(key));
+        return compareKeys(key, leaf.key) ? leaf : null;
+    }
+
+    /**
+     * Returns the {@link Leaf} the bits of the given key lead to.
+     * The {@link Trie} must not be empty.
+     */
+    private Leaf<K, V> nearest(K key, int lengthInBits) {
+        Node<K, V> node = root;
+        while (node instanceof Branch) {
+            node = child((Branch<K, V>)node, key, lengthInBits);
+        }
+        return (Leaf<K, V>)node;
+    }
+
+    /**
+     * Returns the subtree of the given {@link Branch} the
+     * key's bit at the branch's bit index leads to
+     */
+    private Node<K, V> child(Branch<K, V> branch, K key, int lengthInBits) {
+        if (!isBitSet(key, branch.bitIndex, lengthInBits)) {
+            return branch.left;
+        }
+        return branch.right;
+    }
+
+    /**
+     * Returns a {@link PersistentPatriciaTrie} that maps the given key
+     * to the given value. The {@link Trie} is returned as it is if it
+     * has the same key and value already.
+     */
+    public PersistentPatriciaTrie<K, V> plus(K key, V value) {
+        if (key == null) {
+            throw new NullPointerException("Key cannot be null");
+        }
+
+        if (root == null) {
+            return create(new Leaf<K, V>(key, value));
+        }
+
+        int lengthInBits = lengthInBits(key);
+        Leaf<K, V> found = nearest(key, lengthInBits);
+
+        int index = branchIndex(key, found.key);
+        if (AbstractKeyAnalyzer.isOutOfBoundsIndex(index)) {
+            throw new IndexOutOfBoundsException("Failed to put: "
+                    + key + " -> " + value + ", " + index);
+        }
+
+        // Keys with the same bits (or no bits set at all) replace
+        // each other the same way they do in the PatriciaTrie
+        int stopIndex = Integer.MAX_VALUE;
+        if (!compareKeys(key, found.key)
+                && AbstractKeyAnalyzer.isValidBitIndex(index)) {
+            stopIndex = index;
+        } else if (found.key == key && found.value == value) {
+            return this;
+        }
+
+        NodeStack<K, V> path = new NodeStack<K, V>();
+        Node<K, V> node = root;
+        while (node instanceof Branch
+                && ((Branch<K, V>)node).bitIndex < stopIndex) {
+            path.push(node, 0);
+            node = child((Branch<K, V>)node, key, lengthInBits);
+        }
+
+        Node<K, V> replacement = new Leaf<K, V>(key, value);
+        if (stopIndex != Integer.MAX_VALUE) {
+            if (!isBitSet(key, index, lengthInBits)) {
+                replacement = new Branch<K, V>(index, replacement, node);
+            } else {
+                replacement = new Branch<K, V>(index, node, replacement);
+            }
+        }
+
+        return create(copyPath(path, node, replacement));
+    }
+
+    /**
+     * Returns a {@link PersistentPatriciaTrie} with all keys and
+     * values of this one and the given {@link Map}
+     */
+    public PersistentPatriciaTrie<K, V> plusAll(Map<? extends K, ? extends V> m) {
+        if (m == null) {
+            throw new NullPointerException("m");
+        }
+
+        PersistentPatriciaTrie<K, V> trie = this;
+        for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            trie = trie.plus(entry.getKey(), entry.getValue());
+        }
+        return trie;
+    }
+
+    /**
+     * Returns a {@link PersistentPatriciaTrie} without the given key.
+     * The {@link Trie} is returned as it is if it doesn't have the key.
+     */
+    public PersistentPatriciaTrie<K, V> minus(Object k) {
+        K key = castKey(k);
+        if (key == null || root == null) {
+            return this;
+        }
+
+        int lengthInBits = lengthInBits(key);
+
+        NodeStack<K, V> path = new NodeStack<K, V>();
+        Node<K, V> node = root;
+        while (node instanceof Branch) {
+            path.push(node, 0);
+            node = child((Branch<K, V>)node, key, lengthInBits);
+        }
+
+        if (!compareKeys(key, ((Leaf<K, V>)node).key)) {
+            return this;
+        }
+
+        if (path.isEmpty()) {
+            return create(null);
+        }
+
+        // The sibling of the leaf takes the place of their parent
+        Branch<K, V> parent = (Branch<K, V>)path.pop();
+        Node<K, V> sibling = (parent.left == node) ? parent.right : parent.left;
+        return create(copyPath(path, parent, sibling));
+    }
+
+    /**
+     * Copies the branches on the given path with the given node
+     * replaced and returns the new root node
+     */
+    private static <K, V> Node<K, V> copyPath(NodeStack<K, V> path,
+            Node<K, V> node, Node<K, V> replacement) {
+        while (!path.isEmpty()) {
+            Branch<K, V> branch = (Branch<K, V>)path.pop();
+            if (branch.left == node) {
+                replacement = new Branch<K, V>(branch.bitIndex, replacement, branch.right);
+            } else {
+                replacement = new Branch<K, V>(branch.bitIndex, branch.left, replacement);
+            }
+            node = branch;
+        }
+        return replacement;
+    }
+
+    /**
+     * Throws an {@link UnsupportedOperationException}
+     *
+     * @see #plus(Object, Object)
+     */
+    @Override
+    public V put(K key, V value) {
+        throw new UnsupportedOperationException("The Trie is immutable");
+    }
+
+    /**
+     * Throws an {@link UnsupportedOperationException}
+     *
+     * @see #minus(Object)
+     */
+    @Override
+    public V remove(Object key) {
+        throw new UnsupportedOperationException("The Trie is immutable");
+    }
+
+    /**
+     * Throws an {@link UnsupportedOperationException}
+     */
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("The Trie is immutable");
+    }
+
+    /**
+     * Returns the index of the first bit that is different in the
+     * given keys. Unlike {@link #bitIndex(Object, Object)} this is
+     * not {@link KeyAnalyzer#NULL_BIT_KEY} just because the first
+     * key has no bits set.
+     */
+    private int branchIndex(K key, K other) {
+        int index = bitIndex(key, other);
+        if (AbstractKeyAnalyzer.isNullBitKey(index)) {
+            index = bitIndex(other, key);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index of the first key that is greater than (or
+     * equal to if inclusive is true) the given key. It's the size
+     * of the {@link Trie} if there is no such key.
+     */
+    private int ceilingIndex(K key, boolean inclusive) {
+        if (root == null) {
+            return 0;
+        }
+
+        int lengthInBits = lengthInBits(key);
+
+        // The nodes on the path and the index of their first key
+        NodeStack<K, V> path = new NodeStack<K, V>();
+
+        Node<K, V> node = root;
+        int start = 0;
+        path.push(node, start);
+
+        while (node instanceof Branch) {
+            Branch<K, V> branch = (Branch<K, V>)node;
+            if (!isBitSet(key, branch.bitIndex, lengthInBits)) {
+                node = branch.left;
+            } else {
+                start += branch.left.size();
+                node = branch.right;
+            }
+            path.push(node, start);
+        }
+
+        K other = ((Leaf<K, V>)node).key;
+        int index = branchIndex(key, other);
+        if (!AbstractKeyAnalyzer.isValidBitIndex(index)) {
+            int diff = keyAnalyzer.compare(key, other);
+            return (diff < 0 || (diff == 0 && inclusive)) ? start : start + 1;
+        }
+
+        // The key branches off above the first node on the
+        // path that has a greater bit index (or is a Leaf)
+        int end = 0;
+        while (path.nodeAt(end) instanceof Branch
+                && ((Branch<K, V>)path.nodeAt(end)).bitIndex < index) {
+            ++end;
+        }
+
+        start = path.intAt(end);
+        if (isBitSet(key, index, lengthInBits)) {
+            return start + path.nodeAt(end).size();
+        }
+        return start;
+    }
+
+    /**
+     * Returns the {@link Leaf} with the given index
+     */
+    private Leaf<K, V> leafAt(int index) {
+        Node<K, V> node = root;
+        while (node instanceof Branch) {
+            Branch<K, V> branch = (Branch<K, V>)node;
+            int leftSize = branch.left.size();
+            if (index < leftSize) {
+                node = branch.left;
+            } else {
+                index -= leftSize;
+                node = branch.right;
+            }
+        }
+        return (Leaf<K, V>)node;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> select(K key) {
+        return root != null ? nearest(key, lengthInBits(key)) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UnsupportedOperationException if the {@link Cursor}
+     * wants to remove an entry
+     */
+    @Override
+    public Map.Entry<K, V> select(K key, Cursor<? super K, ? super V> cursor) {
+        NearestIterator it = new NearestIterator(key);
+        while (it.hasNext()) {
+            Leaf<K, V> leaf = it.next();
+
+            Decision decision = cursor.select(leaf);
+            switch(decision) {
+                case REMOVE:
+                case REMOVE_AND_EXIT:
+                    throw new UnsupportedOperationException("The Trie is immutable");
+                case EXIT:
+                    return leaf;
+                case CONTINUE:
+                    // fall through.
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int selectNearest(K key, int count,
+            Collection<? super Map.Entry<K, V>> entries) {
+        return selectNearestImpl(key, count, null, entries);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int selectNearest(K key, int count,
+            Predicate<? super Map.Entry<K, V>> predicate,
+            Collection<? super Map.Entry<K, V>> entries) {
+        if (predicate == null) {
+            throw new NullPointerException("predicate");
+        }
+
+        return selectNearestImpl(key, count, predicate, entries);
+    }
+
+    /**
+     * The same walk as {@link #select(Object, Cursor)} that stops
+     * as soon as it has count entries.
+     */
+    private int selectNearestImpl(K key, int count,
+            Predicate<? super Map.Entry<K, V>> predicate,
+            Collection<? super Map.Entry<K, V>> entries) {
+
+        if (count < 0) {
+            throw new IllegalArgumentException("count=" + count);
+        }
+
+        if (entries == null) {
+            throw new NullPointerException("entries");
+        }
+
+        int selected = 0;
+        for (NearestIterator it = new NearestIterator(key);
+                selected < count && it.hasNext(); ) {
+            Leaf<K, V> leaf = it.next();
+            if (predicate == null || predicate.test(leaf)) {
+                entries.add(leaf);
+                ++selected;
+            }
+        }
+
+        return selected;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The keys that are a prefix of the given key are either the key
+     * the bits of the given key lead to or the first key (going to the
+     * left, which means zero bits) of one of the subtrees that weren't
+     * taken on the way. Deeper candidates are longer.
+     */
+    @Override
+    public Map.Entry<K, V> longestPrefixEntry(K key, int lengthInBits) {
+        if (lengthInBits < 0 || lengthInBits > lengthInBits(key)) {
+            throw new IllegalArgumentException("lengthInBits=" + lengthInBits);
+        }
+
+        if (root == null) {
+            return null;
+        }
+
+        NodeStack<K, V> stack = new NodeStack<K, V>();
+
+        Node<K, V> node = root;
+        while (node instanceof Branch) {
+            Branch<K, V> branch = (Branch<K, V>)node;
+            if (!isBitSet(key, branch.bitIndex, lengthInBits)) {
+                node = branch.left;
+            } else {
+                stack.push(branch.left, 0);
+                node = branch.right;
+            }
+        }
+
+        if (isPrefixOf((Leaf<K, V>)node, key, lengthInBits)) {
+            return (Leaf<K, V>)node;
+        }
+
+        while (!stack.isEmpty()) {
+            Leaf<K, V> candidate = firstLeaf(stack.pop());
+            if (isPrefixOf(candidate, key, lengthInBits)) {
+                return candidate;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns true if the given {@link Leaf}'s key is a prefix
+     * of the first lengthInBits bits of the given key.
+     */
+    private boolean isPrefixOf(Leaf<K, V> leaf, K key, int lengthInBits) {
+        int prefixLength = lengthInBits(leaf.key);
+        return prefixLength <= lengthInBits
+            && keyAnalyzer.isPrefix(leaf.key, 0, prefixLength, key);
+    }
+
+    /**
+     * Returns the first {@link Leaf} of the given subtree
+     */
+    private static <K, V> Leaf<K, V> firstLeaf(Node<K, V> node) {
+        while (node instanceof Branch) {
+            node = ((Branch<K, V>)node).left;
+        }
+        return (Leaf<K, V>)node;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UnsupportedOperationException if the {@link Cursor}
+     * wants to remove an entry
+     */
+    @Override
+    public Map.Entry<K, V> traverse(Cursor<? super K, ? super V> cursor) {
+        for (LeafIterator it = new LeafIterator(0, size()); it.hasNext(); ) {
+            Leaf<K, V> leaf = it.next();
+
+            Decision decision = cursor.select(leaf);
+            switch(decision) {
+                case EXIT:
+                    return leaf;
+                case REMOVE:
+                case REMOVE_AND_EXIT:
+                    throw new UnsupportedOperationException("The Trie is immutable");
+                case CONTINUE: // do nothing.
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the view of the whole {@link Trie}
+     */
+    private TrieRangeMap<K, V> view() {
+        if (view == null) {
+            view = newRangeMap(null, 0, 0);
+        }
+        return view;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return view().entrySet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<K> keySet() {
+        return view().keySet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Comparator<? super K> comparator() {
+        return keyAnalyzer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K firstKey() {
+        return view().firstKey();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K lastKey() {
+        return view().lastKey();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> headMap(K toKey) {
+        return view().headMap(toKey);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> subMap(K fromKey, K toKey) {
+        return view().subMap(fromKey, toKey);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> tailMap(K fromKey) {
+        return view().tailMap(fromKey);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedBy(K key) {
+        return getPrefixedByBits(key, 0, lengthInBits(key));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedBy(K key, int length) {
+        return getPrefixedByBits(key, 0, length * bitsPerElement());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedBy(K key, int offset, int length) {
+        int bitsPerElement = bitsPerElement();
+        return getPrefixedByBits(key, offset*bitsPerElement, length*bitsPerElement);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedByBits(K key, int lengthInBits) {
+        return getPrefixedByBits(key, 0, lengthInBits);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedByBits(K key, int offsetInBits, int lengthInBits) {
+
+        int offsetLength = offsetInBits + lengthInBits;
+        if (offsetLength > lengthInBits(key)) {
+            throw new IllegalArgumentException(offsetInBits + " + "
+                    + lengthInBits + " > " + lengthInBits(key));
+        }
+
+        if (offsetLength == 0) {
+            return this;
+        }
+
+        return newRangeMap(key, offsetInBits, lengthInBits);
+    }
+
+    /**
+     * The {@link Trie} is serialized as a list of keys and values
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        return new SerializedForm<K, V>(this);
+    }
+
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("SerializedForm required");
+    }
+
+    /**
+     * The serialized form of a {@link PersistentPatriciaTrie}
+     */
+    private static final class SerializedForm<K, V> implements Serializable {
+
+        private static final long serialVersionUID = -1838463710093720153L;
+
+        private final KeyAnalyzer<? super K> keyAnalyzer;
+
+        private final Object[] keys;
+
+        private final Object[] values;
+
+        public SerializedForm(PersistentPatriciaTrie<K, V> trie) {
+            keyAnalyzer = trie.keyAnalyzer;
+            keys = new Object[trie.size()];
+            values = new Object[keys.length];
+
+            int i = 0;
+            for (Map.Entry<K, V> entry : trie.entrySet()) {
+                keys[i] = entry.getKey();
+                values[i++] = entry.getValue();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object readResolve() throws ObjectStreamException {
+            PersistentPatriciaTrie<K, V> trie
+                = new PersistentPatriciaTrie<K, V>(keyAnalyzer);
+            for (int i = 0; i < keys.length; i++) {
+                trie = trie.plus((K)keys[i], (V)values[i]);
+            }
+            return trie;
+        }
+    }
+
+    /**
+     * A node of the {@link PersistentPatriciaTrie}
+     */
+    private abstract static class Node<K, V> {
+
+        /**
+         * Returns the number of keys in the subtree
+         */
+        public abstract int size();
+    }
+
+    /**
+     * A node with two subtrees. All keys in the left subtree have the
+     * bit at the bit index not set and all keys in the right one have it
+     * set. The keys agree on all bits before the bit index.
+     */
+    private static final class Branch<K, V> extends Node<K, V> {
+
+        private final int bitIndex;
+
+        private final Node<K, V> left;
+
+        private final Node<K, V> right;
+
+        private final int size;
+
+        public Branch(int bitIndex, Node<K, V> left, Node<K, V> right) {
+            this.bitIndex = bitIndex;
+            this.left = left;
+            this.right = right;
+            this.size = left.size() + right.size();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * A node with a key and value. It's also the {@link Map.Entry}
+     * of the {@link Trie} and can't be modified.
+     */
+    private static final class Leaf<K, V> extends Node<K, V>
+            implements Map.Entry<K, V>, Serializable {
+
+        private static final long serialVersionUID = 7345098613265291475L;
+
+        private final K key;
+
+        private final V value;
+
+        public Leaf(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int size() {
+            return 1;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        /**
+         * Throws an {@link UnsupportedOperationException}
+         */
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException("The Trie is immutable");
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            return (key != null ? key.hashCode() : 0)
+                ^ (value != null ? value.hashCode() : 0);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            } else if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>)o;
+            return Tries.compare(key, other.getKey())
+                && Tries.compare(value, other.getValue());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    /**
+     * Returns the {@link Leaf}s in the order of their
+     * XOR distance to a key (the closest one first)
+     */
+    private final class NearestIterator {
+
+        private final NodeStack<K, V> stack = new NodeStack<K, V>();
+
+        private final K key;
+
+        private final int lengthInBits;
+
+        public NearestIterator(K key) {
+            this.key = key;
+            this.lengthInBits = lengthInBits(key);
+
+            if (root != null) {
+                stack.push(root, 0);
+            }
+        }
+
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        public Leaf<K, V> next() {
+            Node<K, V> node = stack.pop();
+            while (node instanceof Branch) {
+                Branch<K, V> branch = (Branch<K, V>)node;
+                if (!isBitSet(key, branch.bitIndex, lengthInBits)) {
+                    stack.push(branch.right, 0);
+                    node = branch.left;
+                } else {
+                    stack.push(branch.left, 0);
+                    node = branch.right;
+                }
+            }
+            return (Leaf<K, V>)node;
+        }
+    }
+
+    /**
+     * Returns the {@link Leaf}s from fromIndex (inclusive)
+     * to toIndex (exclusive) in the order of their keys
+     */
+    private final class LeafIterator implements Iterator<Leaf<K, V>> {
+
+        private final NodeStack<K, V> stack = new NodeStack<K, V>();
+
+        private int remaining;
+
+        public LeafIterator(int fromIndex, int toIndex) {
+            this.remaining = toIndex - fromIndex;
+            if (remaining <= 0) {
+                return;
+            }
+
+            // The subtrees to the right of the
+            // path to the first leaf come later
+            Node<K, V> node = root;
+            int index = fromIndex;
+            while (node instanceof Branch) {
+                Branch<K, V> branch = (Branch<K, V>)node;
+                int leftSize = branch.left.size();
+                if (index < leftSize) {
+                    stack.push(branch.right, 0);
+                    node = branch.left;
+                } else {
+                    index -= leftSize;
+                    node = branch.right;
+                }
+            }
+            stack.push(node, 0);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Leaf<K, V> next() {
+            if (remaining <= 0) {
+                throw new NoSuchElementException();
+            }
+
+            Node<K, V> node = stack.pop();
+            while (node instanceof Branch) {
+                Branch<K, V> branch = (Branch<K, V>)node;
+                stack.push(branch.right, 0);
+                node = branch.left;
+            }
+
+            --remaining;
+            return (Leaf<K, V>)node;
+        }
+    }
+
+    /**
+     * Creates a {@link TrieRangeMap} for the keys with the given prefix
+     * (or all keys if it is null)
+     */
+    private TrieRangeMap<K, V> newRangeMap(K prefix, int offsetInBits, int lengthInBits) {
+        return new TrieRangeMap<K, V>(this, new RangeNodes(),
+                null, null, prefix, offsetInBits, lengthInBits);
+    }
+
+    /**
+     * Gives the {@link TrieRangeMap}s access to the nodes
+     */
+    private final class RangeNodes implements TrieRangeMap.Nodes<K, V> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public TrieRangeMap.Range<K, V> range(TrieRangeMap<K, V> view) {
+            return new Range(view);
+        }
+    }
+
+    /**
+     * The {@link Leaf}s in a {@link TrieRangeMap}. They are the
+     * ones from fromIndex (inclusive) to toIndex (exclusive).
+     */
+    private final class Range implements TrieRangeMap.Range<K, V> {
+
+        private final int fromIndex;
+
+        private final int toIndex;
+
+        public Range(TrieRangeMap<K, V> view) {
+            int fromIndex = 0;
+            int toIndex = PersistentPatriciaTrie.this.size();
+
+            K prefix = view.prefix;
+            if (prefix != null && root != null) {
+                int offsetInBits = view.offsetInBits;
+                int lengthInBits = view.lengthInBits;
+                int endIndexInBits = offsetInBits + lengthInBits;
+
+                Node<K, V> node = root;
+                int start = 0;
+                while (node instanceof Branch
+                        && ((Branch<K, V>)node).bitIndex < lengthInBits) {
+                    Branch<K, V> branch = (Branch<K, V>)node;
+                    if (!isBitSet(prefix, offsetInBits + branch.bitIndex,
+                            endIndexInBits)) {
+                        node = branch.left;
+                    } else {
+                        start += branch.left.size();
+                        node = branch.right;
+                    }
+                }
+
+                // All keys below the node have the same first lengthInBits
+                // bits, so it's enough to look at one of them.
+                if (keyAnalyzer.isPrefix(prefix, offsetInBits,
+                        lengthInBits, firstLeaf(node).key)) {
+                    fromIndex = start;
+                    toIndex = start + node.size();
+                } else {
+                    toIndex = 0;
+                }
+            }
+
+            if (view.lo != null) {
+                fromIndex = Math.max(fromIndex, ceilingIndex(view.lo, true));
+            }
+
+            if (view.hi != null) {
+                toIndex = Math.min(toIndex, ceilingIndex(view.hi, true));
+            }
+
+            this.fromIndex = fromIndex;
+            this.toIndex = Math.max(fromIndex, toIndex);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int size() {
+            return toIndex - fromIndex;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isEmpty() {
+            return fromIndex == toIndex;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K firstKey() {
+            if (isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            return leafAt(fromIndex).key;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public K lastKey() {
+            if (isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            return leafAt(toIndex - 1).key;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Iterator<Map.Entry<K, V>> entryIterator() {
+            final LeafIterator it = new LeafIterator(fromIndex, toIndex);
+            return new Iterator<Map.Entry<K, V>>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Map.Entry<K, V> next() {
+                    return it.next();
+                }
+            };
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Iterator<K> keyIterator() {
+            final LeafIterator it = new LeafIterator(fromIndex, toIndex);
+            return new Iterator<K>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public K next() {
+                    return it.next().key;
+                }
+            };
+        }
+    }
+
+    /**
+     * A stack of nodes and an int for each of them
+     */
+    private static final class NodeStack<K, V> {
+
+        private Node<?, ?>[] nodes = new Node<?, ?>[32];
+
+        private int[] ints = new int[32];
+
+        private int size = 0;
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public void push(Node<K, V> node, int value) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, 2 * size);
+                ints = Arrays.copyOf(ints, 2 * size);
+            }
+
+            nodes[size] = node;
+            ints[size] = value;
+            ++size;
+        }
+
+        @SuppressWarnings("unchecked")
+        public Node<K, V> nodeAt(int index) {
+            return (Node<K, V>)nodes[index];
+        }
+
+        public int intAt(int index) {
+            return ints[index];
+        }
+
+        @SuppressWarnings("unchecked")
+        public Node<K, V> pop() {
+            Node<K, V> node = (Node<K, V>)nodes[--size];
+            nodes[size] = null;
+            return node;
+        }
+    }
+}
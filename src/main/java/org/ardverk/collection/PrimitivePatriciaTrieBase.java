@@ -0,0 +1,740 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+
+package org.ardverk.collection;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * This class implements the PATRICIA algorithm of the {@link IntPatriciaTrie}
+ * and the {@link LongPatriciaTrie}.
+ *
+ * <p>The keys are stored as the bits of a long where the first bit of a
+ * key is the long's most significant bit. An int key is in the upper half
+ * of the long and the lower half is zero. The unsigned order of the longs
+ * is the unsigned order of the keys and two keys of the same length have
+ * the same common prefix as their bits.
+ */
+abstract class PrimitivePatriciaTrieBase<V, E extends PrimitivePatriciaTrieBase.PrimitiveEntry<V, E>> 
+        implements Iterable<E>, Serializable {
+
+    private static final long serialVersionUID = -4180427395811294717L;
+
+    /**
+     * A bit mask where the first bit is 1 and the others are zero
+     */
+    private static final long MSB = 0x8000000000000000L;
+
+    /**
+     * The length of a key in bits
+     */
+    private final int lengthInBits;
+
+    /**
+     * The root node. It has the key 0 and a bit index of -1.
+     */
+    private transient E root;
+
+    /**
+     * Whether or not the root node is storing the key 0
+     */
+    private transient boolean rootEmpty;
+
+    /**
+     * The current size of the {@link Trie}
+     */
+    private transient int size;
+
+    /**
+     * The number of times this {@link Trie} has been modified.
+     */
+    private transient int modCount = 0;
+
+    /**
+     * Constructs an empty {@link PrimitivePatriciaTrieBase} for 
+     * keys of the given length
+     */
+    PrimitivePatriciaTrieBase(int lengthInBits) {
+        this.lengthInBits = lengthInBits;
+        clear();
+    }
+
+    /**
+     * Creates a node for the given bits
+     */
+    abstract E newEntry(long bits, V value, int bitIndex);
+
+    /**
+     * Writes the key of the given bits
+     */
+    abstract void writeKey(ObjectOutputStream out, long bits) throws IOException;
+
+    /**
+     * Reads a key that was written by {@link #writeKey(ObjectOutputStream, long)}
+     * and returns its bits
+     */
+    abstract long readKey(ObjectInputStream in) throws IOException;
+
+    /**
+     * Returns true if the given bit of the key is set
+     */
+    private static boolean isBitSet(long bits, int bitIndex) {
+        return (bits & (MSB >>> bitIndex)) != 0L;
+    }
+
+    /**
+     * Returns the index of the first bit that is different in the 
+     * given keys. It's greater than or equal to the length of the 
+     * keys if they're equal.
+     */
+    private static int bitIndex(long bits, long other) {
+        return Long.numberOfLeadingZeros(bits ^ other);
+    }
+
+    /**
+     * Returns true if the given entry is the root and it's empty
+     */
+    private boolean isEmpty(E entry) {
+        return entry == root && rootEmpty;
+    }
+
+    /**
+     * Returns the child of the given node the key's
+     * bit at the node's bit index leads to
+     */
+    private static <V, E extends PrimitiveEntry<V, E>> E child(E node, long bits) {
+        return !isBitSet(bits, node.bitIndex) ? node.left : node.right;
+    }
+
+    /**
+     * Creates an array for the nodes of a path through the {@link Trie}
+     */
+    @SuppressWarnings("unchecked")
+    private E[] newPath() {
+        return (E[])new PrimitiveEntry<?, ?>[lengthInBits + 2];
+    }
+
+    /**
+     * Removes all entries
+     */
+    public void clear() {
+        root = newEntry(0L, null, -1);
+        rootEmpty = true;
+
+        size = 0;
+        ++modCount;
+    }
+
+    /**
+     * Returns the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns true if there are no entries
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the entry of the given bits or null
+     */
+    E findEntry(long bits) {
+        E entry = getNearestEntryForKey(bits);
+        return entry.bits == bits && !isEmpty(entry) ? entry : null;
+    }
+
+    /**
+     * Returns the node the search for the given bits ends at
+     */
+    private E getNearestEntryForKey(long bits) {
+        E current = root.left;
+        E path = root;
+        while (current.bitIndex > path.bitIndex) {
+            path = current;
+            current = child(current, bits);
+        }
+        return current;
+    }
+
+    /**
+     * Associates the given value with the given bits and
+     * returns the previous value or null
+     */
+    V putValue(long bits, V value) {
+        E found = getNearestEntryForKey(bits);
+        if (found.bits == bits) {
+            if (isEmpty(found)) { // <- must be the root
+                rootEmpty = false;
+                ++size;
+            }
+
+            ++modCount;
+            return found.setValue(value);
+        }
+
+        /* NEW KEY+VALUE TUPLE */
+        E entry = newEntry(bits, value, bitIndex(bits, found.bits));
+        addEntry(entry);
+
+        ++size;
+        ++modCount;
+        return null;
+    }
+
+    /**
+     * Adds the given entry to the {@link Trie}
+     *
+     * @see PatriciaTrieBase
+     */
+    private void addEntry(E entry) {
+        E current = root.left;
+        E path = root;
+        while(true) {
+            if (current.bitIndex >= entry.bitIndex
+                    || current.bitIndex <= path.bitIndex) {
+
+                if (!isBitSet(entry.bits, entry.bitIndex)) {
+                    entry.left = entry;
+                    entry.right = current;
+                } else {
+                    entry.left = current;
+                    entry.right = entry;
+                }
+
+                entry.parent = path;
+                if (current.bitIndex >= entry.bitIndex) {
+                    current.parent = entry;
+                }
+
+                if (path == root || !isBitSet(entry.bits, path.bitIndex)) {
+                    path.left = entry;
+                } else {
+                    path.right = entry;
+                }
+
+                return;
+            }
+
+            path = current;
+            current = child(current, entry.bits);
+        }
+    }
+
+    /**
+     * Removes the entry for the given bits and returns its value or null
+     */
+    V removeValue(long bits) {
+        E current = root.left;
+        E path = root;
+        while (current.bitIndex > path.bitIndex) {
+            path = current;
+            current = child(current, bits);
+        }
+
+        if (current.bits != bits || isEmpty(current)) {
+            return null;
+        }
+
+        // The last node on the path is the one
+        // with the uplink to the removed node.
+        return removeEntry(current, path);
+    }
+
+    /**
+     * Removes the given entry and returns its value
+     */
+    private V removeEntry(E h, E predecessor) {
+        V value = h.value;
+
+        if (h != root) {
+            if (h.left != h && h.right != h) {
+                removeInternalEntry(h, predecessor);
+            } else {
+                removeExternalEntry(h);
+            }
+        } else {
+            rootEmpty = true;
+            root.value = null;
+        }
+
+        --size;
+        ++modCount;
+        return value;
+    }
+
+    /**
+     * Removes a node that has an uplink to itself. The
+     * other child takes its place.
+     */
+    private void removeExternalEntry(E h) {
+        E parent = h.parent;
+        E child = (h.left == h) ? h.right : h.left;
+
+        if (parent.left == h) {
+            parent.left = child;
+        } else {
+            parent.right = child;
+        }
+
+        if (child.bitIndex > parent.bitIndex) {
+            child.parent = parent;
+        }
+    }
+
+    /**
+     * Removes a node that has no uplink to itself. The node
+     * with the uplink to it takes its place.
+     *
+     * @see PatriciaTrieBase
+     */
+    private void removeInternalEntry(E h, E p) {
+        p.bitIndex = h.bitIndex;
+
+        // Fix P's parent and child nodes
+        {
+            E parent = p.parent;
+            E child = (p.left == h) ? p.right : p.left;
+
+            if (parent.left == p) {
+                parent.left = child;
+            } else {
+                parent.right = child;
+            }
+
+            if (child.bitIndex > parent.bitIndex) {
+                child.parent = parent;
+            }
+        }
+
+        // Fix H's parent and child nodes
+        {
+            if (h.left.parent == h) {
+                h.left.parent = p;
+            }
+
+            if (h.right.parent == h) {
+                h.right.parent = p;
+            }
+
+            if (h.parent.left == h) {
+                h.parent.left = p;
+            } else {
+                h.parent.right = p;
+            }
+        }
+
+        p.parent = h.parent;
+        p.left = h.left;
+        p.right = h.right;
+    }
+
+    /**
+     * Returns the entry whose bits are the closest to the given 
+     * bits in terms of XOR distance or null if the {@link Trie} is empty
+     */
+    E selectEntry(long bits) {
+        E h = root.left;
+        int bitIndex = -1;
+
+        // The subtree of the last branch we didn't take
+        E alternative = null;
+        int alternativeBitIndex = -1;
+
+        while (true) {
+            if (h.bitIndex <= bitIndex) {
+                if (!isEmpty(h)) {
+                    return h;
+                }
+
+                if (alternative == null) {
+                    return null;
+                }
+
+                h = alternative;
+                bitIndex = alternativeBitIndex;
+                alternative = null;
+                continue;
+            }
+
+            bitIndex = h.bitIndex;
+            if (!isBitSet(bits, bitIndex)) {
+                alternative = h.right;
+                h = h.left;
+            } else {
+                alternative = h.left;
+                h = h.right;
+            }
+            alternativeBitIndex = bitIndex;
+        }
+    }
+
+    /**
+     * Returns the entry with the lowest key or null
+     */
+    public E firstEntry() {
+        return new EntryIterator(false).nextEntry();
+    }
+
+    /**
+     * Returns the entry with the highest key or null
+     */
+    public E lastEntry() {
+        return new EntryIterator(true).nextEntry();
+    }
+
+    /**
+     * Returns the first entry that follows the given bits in the
+     * given direction or null. The entry of the bits themselves
+     * counts if inclusive is true.
+     */
+    E followingEntry(long bits, boolean inclusive, boolean descending) {
+        return new EntryIterator(bits, inclusive, descending).nextEntry();
+    }
+
+    /**
+     * Returns an {@link Iterator} over all entries in
+     * ascending order of their keys
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new EntryIterator(false);
+    }
+
+    /**
+     * Returns an {@link Iterator} over the entries whose keys
+     * start with the first lengthInBits bits of the given bits
+     * in ascending order of their keys
+     */
+    Iterator<E> prefixedBy(long bits, int lengthInBits) {
+        if (lengthInBits < 0 || lengthInBits > this.lengthInBits) {
+            throw new IllegalArgumentException("lengthInBits=" + lengthInBits);
+        }
+
+        if (lengthInBits == 0) {
+            return iterator();
+        }
+
+        long mask = -1L << (Long.SIZE - lengthInBits);
+        long lo = bits & mask;
+        return new EntryIterator(lo, lo | ~mask);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("Trie[").append(size()).append("]={\n");
+        for (E entry : this) {
+            buffer.append("  ").append(entry).append("\n");
+        }
+        buffer.append("}\n");
+        return buffer.toString();
+    }
+
+    /**
+     * Writes the size followed by the keys and values
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (E entry : this) {
+            writeKey(out, entry.bits);
+            out.writeObject(entry.value);
+        }
+    }
+
+    /**
+     * Reads the keys and values that were written by
+     * {@link #writeObject(ObjectOutputStream)}
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        clear();
+
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            long bits = readKey(in);
+            putValue(bits, (V)in.readObject());
+        }
+    }
+
+    /**
+     * A node of the {@link PrimitivePatriciaTrieBase}
+     */
+    abstract static class PrimitiveEntry<V, E extends PrimitiveEntry<V, E>> {
+
+        final long bits;
+
+        V value;
+
+        /** The index this entry is comparing. */
+        int bitIndex;
+
+        E parent;
+
+        E left;
+
+        E right;
+
+        @SuppressWarnings("unchecked")
+        PrimitiveEntry(long bits, V value, int bitIndex) {
+            this.bits = bits;
+            this.value = value;
+            this.bitIndex = bitIndex;
+
+            this.parent = null;
+            this.left = (E)this;
+            this.right = null;
+        }
+
+        /**
+         * Returns the value
+         */
+        public V getValue() {
+            return value;
+        }
+
+        /**
+         * Replaces the value and returns the previous one
+         */
+        public V setValue(V value) {
+            V previous = this.value;
+            this.value = value;
+            return previous;
+        }
+    }
+
+    /**
+     * An {@link Iterator} that walks the {@link Trie} with an explicit
+     * stack. Every node except the root is the target of exactly one
+     * uplink and the uplinks are in the order of the keys they point to.
+     * The depth of the {@link Trie} is bounded by the length of the keys.
+     */
+    private class EntryIterator implements Iterator<E> {
+
+        private final E[] nodes = newPath();
+
+        private final int[] bitIndices = new int[lengthInBits + 2];
+
+        private int depth = 0;
+
+        private final boolean descending;
+
+        /**
+         * The (unsigned) upper bound of a prefix or -1
+         */
+        private final long hi;
+
+        private int expectedModCount = modCount;
+
+        private E next;
+
+        private E current = null;
+
+        /**
+         * Creates an {@link EntryIterator} for all keys
+         */
+        public EntryIterator(boolean descending) {
+            this.descending = descending;
+            this.hi = -1L;
+
+            push(root.left, -1);
+            next = findNext();
+        }
+
+        /**
+         * Creates an {@link EntryIterator} that starts with
+         * the entry that follows the given bits
+         */
+        public EntryIterator(long from, boolean inclusive, boolean descending) {
+            this.descending = descending;
+            this.hi = -1L;
+
+            pushFollowing(from, inclusive);
+            next = findNext();
+        }
+
+        /**
+         * Creates an {@link EntryIterator} for all keys in the given
+         * (unsigned) range in ascending order
+         */
+        public EntryIterator(long lo, long hi) {
+            this.descending = false;
+            this.hi = hi;
+
+            pushFollowing(lo, true);
+            next = findNext();
+        }
+
+        private void push(E node, int bitIndex) {
+            nodes[depth] = node;
+            bitIndices[depth] = bitIndex;
+            ++depth;
+        }
+
+        /**
+         * Pushes the subtrees that follow the given bits onto the
+         * stack, the closest one last.
+         *
+         * @see CompactPatriciaTrie
+         */
+        private void pushFollowing(long from, boolean inclusive) {
+            depth = 0;
+
+            E[] path = newPath();
+            int length = 0;
+
+            E node = root.left;
+            int bitIndex = -1;
+            path[length++] = node;
+
+            while (node.bitIndex > bitIndex) {
+                bitIndex = node.bitIndex;
+                node = child(node, from);
+                path[length++] = node;
+            }
+
+            // The key branches off above the first node on the path
+            // with a greater bit index unless the keys are equal.
+            int end = length - 1;
+            boolean following = inclusive;
+
+            int index = bitIndex(from, node.bits);
+            if (index < lengthInBits) {
+                end = 0;
+                while (end < length - 1 && path[end].bitIndex < index) {
+                    ++end;
+                }
+
+                following = (isBitSet(from, index) == descending);
+            }
+
+            int fromBitIndex = -1;
+            for (int i = 0; i < end; i++) {
+                node = path[i];
+                if (isBitSet(from, node.bitIndex) == descending) {
+                    push(descending ? node.left : node.right, node.bitIndex);
+                }
+                fromBitIndex = node.bitIndex;
+            }
+
+            if (following) {
+                push(path[end], fromBitIndex);
+            }
+        }
+
+        /**
+         * Returns the next entry or null
+         */
+        private E findNext() {
+            while (depth > 0) {
+                --depth;
+                E node = nodes[depth];
+                int from = bitIndices[depth];
+                nodes[depth] = null;
+
+                if (node.bitIndex > from) {
+                    push(descending ? node.left : node.right, node.bitIndex);
+                    push(descending ? node.right : node.left, node.bitIndex);
+
+                } else if (!isEmpty(node)) {
+                    if (Long.compareUnsigned(node.bits, hi) > 0) {
+                        return null;
+                    }
+                    return node;
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        /**
+         * Returns the next entry or null if there are no more
+         */
+        public E nextEntry() {
+            if (expectedModCount != modCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            E entry = next;
+            if (entry != null) {
+                current = entry;
+                next = findNext();
+            }
+            return entry;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public E next() {
+            E entry = nextEntry();
+            if (entry == null) {
+                throw new NoSuchElementException();
+            }
+            return entry;
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * The removal may move other nodes around. The stack
+         * is re-created for the keys that follow the removed one.
+         */
+        @Override
+        public void remove() {
+            if (current == null) {
+                throw new IllegalStateException();
+            }
+
+            if (expectedModCount != modCount) {
+                throw new ConcurrentModificationException();
+            }
+
+            long bits = current.bits;
+            current = null;
+            removeValue(bits);
+
+            pushFollowing(bits, false);
+            next = findNext();
+            expectedModCount = modCount;
+        }
+    }
+}
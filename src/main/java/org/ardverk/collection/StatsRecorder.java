@@ -0,0 +1,153 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.ardverk.collection.TrieStats.Operation;
+
+/**
+ * Records the statistics of a {@link PatriciaTrie}. The {@link #DISABLED}
+ * recorder does nothing and as long as it's the only one in use the JIT
+ * inlines its empty methods and nothing is left of them.
+ */
+class StatsRecorder {
+
+    /**
+     * A {@link StatsRecorder} that records nothing
+     */
+    static final StatsRecorder DISABLED = new StatsRecorder();
+
+    private StatsRecorder() {
+    }
+
+    /**
+     * Creates a {@link StatsRecorder} that records the statistics
+     */
+    static StatsRecorder create() {
+        return new Counters();
+    }
+
+    /**
+     * Returns true if the statistics are recorded
+     */
+    boolean isEnabled() {
+        return false;
+    }
+
+    /**
+     * Records an {@link Operation} that has visited the given number of nodes
+     */
+    void record(Operation operation, int nodeVisits) {
+    }
+
+    /**
+     * Records a search for the first bit where two keys are different
+     */
+    void recordBitIndex() {
+    }
+
+    /**
+     * Returns a snapshot of the statistics
+     */
+    TrieStats snapshot() {
+        return TrieStats.EMPTY;
+    }
+
+    /**
+     * Sets all statistics to zero
+     */
+    void reset() {
+    }
+
+    /**
+     * A {@link StatsRecorder} that counts with {@link LongAdder}s which
+     * makes it cheap for the readers of a {@link Trie} to record the
+     * statistics at the same time.
+     */
+    private static final class Counters extends StatsRecorder {
+
+        private final LongAdder[] counts = adders(Operation.values().length);
+
+        private final LongAdder[] nodeVisits = adders(Operation.values().length);
+
+        private final LongAdder bitIndexCount = new LongAdder();
+
+        private final LongAdder[] histogram = adders(TrieStats.BUCKETS);
+
+        private static LongAdder[] adders(int length) {
+            LongAdder[] adders = new LongAdder[length];
+            for (int i = 0; i < adders.length; i++) {
+                adders[i] = new LongAdder();
+            }
+            return adders;
+        }
+
+        @Override
+        boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        void record(Operation operation, int nodeVisits) {
+            counts[operation.ordinal()].increment();
+            this.nodeVisits[operation.ordinal()].add(nodeVisits);
+            histogram[TrieStats.bucket(nodeVisits)].increment();
+        }
+
+        @Override
+        void recordBitIndex() {
+            bitIndexCount.increment();
+        }
+
+        @Override
+        TrieStats snapshot() {
+            long[] counts = new long[this.counts.length];
+            long[] nodeVisits = new long[this.nodeVisits.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = this.counts[i].sum();
+                nodeVisits[i] = this.nodeVisits[i].sum();
+            }
+
+            long[] histogram = new long[this.histogram.length];
+            int length = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = this.histogram[i].sum();
+                if (histogram[i] != 0L) {
+                    length = i + 1;
+                }
+            }
+
+            return new TrieStats(counts, nodeVisits, bitIndexCount.sum(),
+                    Arrays.copyOf(histogram, length));
+        }
+
+        @Override
+        void reset() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i].reset();
+                nodeVisits[i].reset();
+            }
+
+            bitIndexCount.reset();
+            for (LongAdder bucket : histogram) {
+                bucket.reset();
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.ardverk.collection.PatriciaTrieBase.TrieEntry;
+
+/**
+ * Walks down a {@link PatriciaTrie} with {@link String} keys and
+ * returns the keys that match.
+ *
+ * <p>The {@link StringKeyAnalyzer} has {@link Character#SIZE} bits per
+ * element and all keys below a node with the bit index b have the first
+ * b / 16 chars in common. The walker keeps a state for each of these
+ * chars and skips the subtree if no key that starts with them can match.
+ * The subclasses define the states.
+ *
+ * <p>The {@link StringKeyAnalyzer} sees the bits after the end of a key
+ * as zero and a key can have the same bits as longer keys that end with
+ * NUL chars. Subtrees aren't skipped at these chars.
+ */
+abstract class StringTrieWalker {
+
+    /**
+     * Computes the state of the first index + 1 chars from the
+     * state of the first index chars and the given char
+     */
+    protected abstract void step(int index, char ch);
+
+    /**
+     * Returns true if a key that starts with the given
+     * number of chars can still match
+     */
+    protected abstract boolean isLive(int length);
+
+    /**
+     * Returns true if a key of the given length matches
+     */
+    protected abstract boolean isMatch(int length);
+
+    /**
+     * Returns the entries of the given {@link PatriciaTrie} whose
+     * keys match in the order of their keys
+     */
+    <V> List<Map.Entry<String, V>> walk(PatriciaTrieBase<String, V> trie) {
+        List<Map.Entry<String, V>> matches = new ArrayList<Map.Entry<String, V>>();
+
+        TrieEntry<String, V> root = trie.root;
+
+        // The subtrees that have yet to be visited, the bit index of
+        // the node they're hanging off and the number of chars that
+        // all of their keys have in common
+        TrieEntry<String, V>[] stack = TrieEntry.newArray(16);
+        int[] bitIndices = new int[16];
+        int[] depths = new int[16];
+        int top = 0;
+
+        stack[top] = root.left;
+        bitIndices[top] = root.bitIndex;
+        depths[top++] = 0;
+
+        while (top > 0) {
+            TrieEntry<String, V> node = stack[--top];
+            int from = bitIndices[top];
+            int depth = depths[top];
+            stack[top] = null;
+
+            // An uplink to a key
+            if (node.bitIndex <= from) {
+                if (!node.isEmpty() && matches(node.key, depth)) {
+                    matches.add(node);
+                }
+                continue;
+            }
+
+            int chars = node.bitIndex / StringKeyAnalyzer.LENGTH;
+            if (!advance(node.key, depth, chars)) {
+                continue;
+            }
+
+            if (top + 2 > stack.length) {
+                int length = stack.length * 2;
+                stack = Arrays.copyOf(stack, length);
+                bitIndices = Arrays.copyOf(bitIndices, length);
+                depths = Arrays.copyOf(depths, length);
+            }
+
+            // Right first, the left subtree comes first in the order of the keys
+            stack[top] = node.right;
+            bitIndices[top] = node.bitIndex;
+            depths[top++] = chars;
+
+            stack[top] = node.left;
+            bitIndices[top] = node.bitIndex;
+            depths[top++] = chars;
+        }
+
+        return matches;
+    }
+
+    /**
+     * Computes the states of the given key's chars from the given index
+     * to the given index and returns false if no key that starts with
+     * them can match.
+     */
+    private boolean advance(String key, int from, int to) {
+        for (int i = from; i < to; i++) {
+            step(i, charAt(key, i));
+        }
+
+        // A shorter key may have the same bits
+        if (to > 0 && charAt(key, to - 1) == '\0') {
+            return true;
+        }
+
+        return isLive(to);
+    }
+
+    /**
+     * Returns true if the given key matches. The states of
+     * its first chars up to the given depth are known.
+     */
+    private boolean matches(String key, int depth) {
+        int length = key.length();
+        for (int i = depth; i < length; i++) {
+            step(i, key.charAt(i));
+            if (!isLive(i + 1)) {
+                return false;
+            }
+        }
+
+        return isMatch(length);
+    }
+
+    /**
+     * Returns the char at the given index or zero if the key is shorter
+     */
+    private static char charAt(String key, int index) {
+        return index < key.length() ? key.charAt(index) : '\0';
+    }
+}
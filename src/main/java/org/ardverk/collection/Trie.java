@@ -16,8 +16,11 @@
 
 package org.ardverk.collection;
 
+import java.util.AbstractMap;
+import java.util.Collection;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.function.Predicate;
 
 import org.ardverk.collection.Cursor.Decision;
 
@@ -110,6 +113,118 @@ public interface Trie<K, V> extends SortedMap<K, V> {
      */
     public Map.Entry<K,V> select(K key, Cursor<? super K, ? super V> cursor);
     
+    /**
+     * Adds the (up to) count entries whose keys are closest in a bitwise 
+     * XOR metric to the given key to the provided {@link Collection}. 
+     * The entries are added in order of XOR closeness, the closest one 
+     * first. This is equivalent to a {@link #select(Object, Cursor)} with 
+     * a {@link Cursor} that collects entries until it has count of them 
+     * and then returns {@link Decision#EXIT}.
+     * 
+     * @return The number of entries that were added to the {@link Collection}.
+     */
+    public default int selectNearest(K key, int count, 
+            Collection<? super Map.Entry<K, V>> entries) {
+        return selectNearest(key, count, new Predicate<Map.Entry<K, V>>() {
+            @Override
+            public boolean test(Map.Entry<K, V> entry) {
+                return true;
+            }
+        }, entries);
+    }
+    
+    /**
+     * Same as {@link #selectNearest(Object, int, Collection)} but only
+     * entries for which the given {@link Predicate} returns true are
+     * added to the {@link Collection} and count towards the count.
+     * 
+     * <p>The default implementation is a {@link #select(Object, Cursor)}
+     * that exits as soon as it has count entries. It adds immutable 
+     * copies of the entries.
+     * 
+     * @return The number of entries that were added to the {@link Collection}.
+     */
+    public default int selectNearest(K key, final int count, 
+            final Predicate<? super Map.Entry<K, V>> predicate, 
+            final Collection<? super Map.Entry<K, V>> entries) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count=" + count);
+        }
+        
+        if (predicate == null) {
+            throw new NullPointerException("predicate");
+        }
+        
+        if (entries == null) {
+            throw new NullPointerException("entries");
+        }
+        
+        if (count == 0) {
+            return 0;
+        }
+        
+        final int[] selected = { 0 };
+        select(key, new Cursor<K, V>() {
+            @Override
+            public Decision select(Map.Entry<? extends K, ? extends V> entry) {
+                Map.Entry<K, V> copy 
+                    = new AbstractMap.SimpleImmutableEntry<K, V>(entry);
+                if (predicate.test(copy)) {
+                    entries.add(copy);
+                    if (++selected[0] == count) {
+                        return Decision.EXIT;
+                    }
+                }
+                return Decision.CONTINUE;
+            }
+        });
+        return selected[0];
+    }
+    
+    /**
+     * Returns the {@link Entry} whose key is the longest prefix of the 
+     * given key or null if no key in the {@link Trie} is a prefix of it.
+     * This is the opposite of {@link #getPrefixedBy(Object)}. 
+     * 
+     * <p>For example, if the {@link Trie} contains 'A', 'An', 'And' and 
+     * 'Anna', then a lookup of 'Andrea' would return 'And'.
+     * 
+     * <p>The default implementation needs a {@link KeyAnalyzer} as 
+     * the {@link #comparator()}.
+     */
+    public default Map.Entry<K, V> longestPrefixEntry(K key) {
+        return longestPrefixEntry(key, Tries.keyAnalyzer(this).lengthInBits(key));
+    }
+    
+    /**
+     * Returns the {@link Entry} whose key is the longest prefix of the 
+     * first lengthInBits bits of the given key or null if there's none.
+     * 
+     * <p>In {@link Trie}s that store network prefixes (e.g. CIDR blocks)
+     * this is a routing table lookup.
+     * 
+     * <p>The default implementation looks at the prefixes of the key 
+     * with {@link #getPrefixedByBits(Object, int)} one element at a 
+     * time and needs a {@link KeyAnalyzer} as the {@link #comparator()}.
+     */
+    public default Map.Entry<K, V> longestPrefixEntry(K key, int lengthInBits) {
+        return Tries.longestPrefixEntry(this, key, lengthInBits);
+    }
+    
+    /**
+     * Returns the longest key in the {@link Trie} that is a prefix of 
+     * the given key or null if there's none.
+     * 
+     * @see #longestPrefixEntry(Object)
+     */
+    public default K longestPrefixOf(K key) {
+        Map.Entry<K, V> entry = longestPrefixEntry(key);
+        if (entry == null) {
+            return null;
+        }
+        return entry.getKey();
+    }
+    
     /**
      * Traverses the {@link Trie} in lexicographical order. 
      * {@link Cursor#select(java.util.Map.Entry)} will be called on each entry.
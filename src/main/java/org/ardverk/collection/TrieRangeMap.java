@@ -0,0 +1,474 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * A {@link SortedMap} view of a {@link Trie} that is bounded by a range
+ * of keys (the lower bound is inclusive and the upper bound exclusive),
+ * by a prefix or not at all. The {@link Trie} finds and walks the nodes
+ * that are in the view through its {@link Nodes}.
+ */
+final class TrieRangeMap<K, V> extends AbstractMap<K, V> implements SortedMap<K, V> {
+
+    /**
+     * Gives a {@link TrieRangeMap} access to the nodes of a {@link Trie}
+     */
+    static interface Nodes<K, V> {
+
+        /**
+         * Returns the nodes that are in the given {@link TrieRangeMap}.
+         * The bounds of the view are set when this method is called.
+         */
+        public Range<K, V> range(TrieRangeMap<K, V> view);
+    }
+
+    /**
+     * The nodes of a {@link Trie} that are in a {@link TrieRangeMap}
+     */
+    static interface Range<K, V> {
+
+        /**
+         * Returns the number of nodes in the range
+         */
+        public int size();
+
+        /**
+         * Returns true if there are no nodes in the range
+         */
+        public boolean isEmpty();
+
+        /**
+         * Returns the lowest key or throws a
+         * {@link NoSuchElementException} if the range is empty
+         */
+        public K firstKey();
+
+        /**
+         * Returns the highest key or throws a
+         * {@link NoSuchElementException} if the range is empty
+         */
+        public K lastKey();
+
+        /**
+         * Returns the entries in the order of their keys
+         */
+        public Iterator<Map.Entry<K, V>> entryIterator();
+
+        /**
+         * Returns the keys in their order
+         */
+        public Iterator<K> keyIterator();
+    }
+
+    private final AbstractTrie<K, V> trie;
+
+    private final Nodes<K, V> nodes;
+
+    final K lo;
+
+    final K hi;
+
+    final K prefix;
+
+    final int offsetInBits;
+
+    final int lengthInBits;
+
+    private final Range<K, V> range;
+
+    private transient volatile Set<K> keySet = null;
+
+    private transient volatile Set<Map.Entry<K, V>> entrySet = null;
+
+    /**
+     * Creates a {@link TrieRangeMap} for the keys of the given {@link Trie}
+     * that are in the given range and have the given prefix. The bounds
+     * and the prefix may be null.
+     */
+    public TrieRangeMap(AbstractTrie<K, V> trie, Nodes<K, V> nodes,
+            K lo, K hi, K prefix, int offsetInBits, int lengthInBits) {
+
+        if (lo != null && hi != null
+                && trie.keyAnalyzer.compare(lo, hi) > 0) {
+            throw new IllegalArgumentException("fromKey > toKey");
+        }
+
+        this.trie = trie;
+        this.nodes = nodes;
+        this.lo = lo;
+        this.hi = hi;
+        this.prefix = prefix;
+        this.offsetInBits = offsetInBits;
+        this.lengthInBits = lengthInBits;
+        this.range = nodes.range(this);
+    }
+
+    /**
+     * Returns true if the view isn't bounded at all
+     */
+    private boolean isUnbounded() {
+        return lo == null && hi == null && prefix == null;
+    }
+
+    /**
+     * Returns true if the key is below the lower bound
+     */
+    boolean tooLow(K key) {
+        return lo != null && trie.keyAnalyzer.compare(key, lo) < 0;
+    }
+
+    /**
+     * Returns true if the key is at or above the upper bound
+     */
+    boolean tooHigh(K key) {
+        return hi != null && trie.keyAnalyzer.compare(key, hi) >= 0;
+    }
+
+    /**
+     * Returns true if the given key is in the range of the {@link TrieRangeMap}
+     */
+    private boolean inRange(Object k) {
+        K key = trie.castKey(k);
+        if (key == null) {
+            return false;
+        }
+
+        return !tooLow(key) && !tooHigh(key) && (prefix == null
+                || trie.keyAnalyzer.isPrefix(prefix, offsetInBits, lengthInBits, key));
+    }
+
+    /**
+     * Throws an {@link IllegalArgumentException} if the
+     * given key is not in the range of the {@link TrieRangeMap}
+     */
+    private void checkKey(K key) {
+        if (!inRange(key)) {
+            throw new IllegalArgumentException(
+                    "Key is out of range: " + key);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        return inRange(key) && trie.containsKey(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V get(Object key) {
+        return inRange(key) ? trie.get(key) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V put(K key, V value) {
+        checkKey(key);
+        return trie.put(key, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V remove(Object key) {
+        return inRange(key) ? trie.remove(key) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return isUnbounded() ? trie.size() : range.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmpty() {
+        return range.isEmpty();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        if (isUnbounded()) {
+            trie.clear();
+            return;
+        }
+
+        for (Iterator<Map.Entry<K, V>> it = range.entryIterator(); it.hasNext(); ) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Comparator<? super K> comparator() {
+        return trie.keyAnalyzer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K firstKey() {
+        return range.firstKey();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K lastKey() {
+        return range.lastKey();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> subMap(K fromKey, K toKey) {
+        if (fromKey == null) {
+            throw new NullPointerException("fromKey");
+        }
+
+        if (toKey == null) {
+            throw new NullPointerException("toKey");
+        }
+
+        return newRangeMap(fromKey, toKey);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> headMap(K toKey) {
+        if (toKey == null) {
+            throw new NullPointerException("toKey");
+        }
+
+        return newRangeMap(lo, toKey);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> tailMap(K fromKey) {
+        if (fromKey == null) {
+            throw new NullPointerException("fromKey");
+        }
+
+        return newRangeMap(fromKey, hi);
+    }
+
+    /**
+     * Creates a {@link TrieRangeMap} with the given bounds that
+     * must be in the range of this {@link TrieRangeMap}
+     */
+    private TrieRangeMap<K, V> newRangeMap(K fromKey, K toKey) {
+        if (fromKey != lo && (tooLow(fromKey) || tooHigh(fromKey))) {
+            throw new IllegalArgumentException(
+                    "FromKey is out of range: " + fromKey);
+        }
+
+        if (toKey != hi && (tooLow(toKey)
+                || (hi != null && trie.keyAnalyzer.compare(toKey, hi) > 0))) {
+            throw new IllegalArgumentException(
+                    "ToKey is out of range: " + toKey);
+        }
+
+        return new TrieRangeMap<K, V>(trie, nodes, fromKey, toKey,
+                prefix, offsetInBits, lengthInBits);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<K> keySet() {
+        if (keySet == null) {
+            keySet = new KeySet();
+        }
+        return keySet;
+    }
+
+    /**
+     * The entry set view of the {@link TrieRangeMap}
+     */
+    private class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator() {
+            return range.entryIterator();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>)o;
+            Object key = entry.getKey();
+            if (!inRange(key)) {
+                return false;
+            }
+
+            V value = trie.get(key);
+            return Tries.compare(value, entry.getValue())
+                && (value != null || trie.containsKey(key));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean remove(Object o) {
+            if (!contains(o)) {
+                return false;
+            }
+
+            trie.remove(((Map.Entry<?, ?>)o).getKey());
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int size() {
+            return TrieRangeMap.this.size();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isEmpty() {
+            return TrieRangeMap.this.isEmpty();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void clear() {
+            TrieRangeMap.this.clear();
+        }
+    }
+
+    /**
+     * The key set view of the {@link TrieRangeMap}
+     */
+    private class KeySet extends AbstractSet<K> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Iterator<K> iterator() {
+            return range.keyIterator();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean contains(Object o) {
+            return containsKey(o);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean remove(Object o) {
+            if (!containsKey(o)) {
+                return false;
+            }
+
+            TrieRangeMap.this.remove(o);
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int size() {
+            return TrieRangeMap.this.size();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isEmpty() {
+            return TrieRangeMap.this.isEmpty();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void clear() {
+            TrieRangeMap.this.clear();
+        }
+    }
+}
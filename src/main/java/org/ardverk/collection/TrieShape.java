@@ -0,0 +1,408 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import org.ardverk.collection.PatriciaTrieBase.TrieEntry;
+
+/**
+ * The shape of a {@link PatriciaTrie} as returned by
+ * {@link Tries#analyze(Trie)}.
+ *
+ * <p>The depth of a key is the number of nodes a lookup of the key visits,
+ * the last one is the node the uplink points to. The level of a node is
+ * its distance from the top of the tree. The bit positions are the bit
+ * indices of the nodes modulo the number of bits per element of the
+ * {@link KeyAnalyzer}. A position that is never used is a sign that the
+ * keys don't need all bits of an element, such as the high byte of the
+ * chars of ASCII {@link String}s.
+ *
+ * <p>The estimated bytes are the nodes and the keys (if they're
+ * {@link String}s, arrays or boxed primitives) but not the values. They
+ * assume a 64-bit JVM with compressed references.
+ */
+public final class TrieShape implements Serializable {
+
+    private static final long serialVersionUID = 4104302452373524047L;
+
+    /**
+     * The estimated size of a {@link TrieEntry}: The object header, the
+     * key, the value, the hash code, the bit index and four links
+     */
+    private static final int ENTRY_BYTES = 48;
+
+    private static final int OBJECT_HEADER = 12;
+
+    private static final int ARRAY_HEADER = 16;
+
+    private final int size;
+
+    private final int internalNodes;
+
+    private final int externalNodes;
+
+    private final int uplinks;
+
+    /**
+     * The number of keys of each depth
+     */
+    private final int[] depths;
+
+    /**
+     * The number of nodes of each level
+     */
+    private final int[] levelCounts;
+
+    private final int[] minBitIndices;
+
+    private final int[] maxBitIndices;
+
+    private final long[] bitIndexSums;
+
+    /**
+     * The number of nodes of each bit position
+     */
+    private final int[] bitPositions;
+
+    private final long estimatedBytes;
+
+    private TrieShape(int size, int internalNodes, int externalNodes, int uplinks,
+            int[] depths, int[] levelCounts, int[] minBitIndices, int[] maxBitIndices,
+            long[] bitIndexSums, int[] bitPositions, long estimatedBytes) {
+        this.size = size;
+        this.internalNodes = internalNodes;
+        this.externalNodes = externalNodes;
+        this.uplinks = uplinks;
+        this.depths = depths;
+        this.levelCounts = levelCounts;
+        this.minBitIndices = minBitIndices;
+        this.maxBitIndices = maxBitIndices;
+        this.bitIndexSums = bitIndexSums;
+        this.bitPositions = bitPositions;
+        this.estimatedBytes = estimatedBytes;
+    }
+
+    /**
+     * Walks the given {@link PatriciaTrie} and returns its shape
+     */
+    static <K, V> TrieShape analyze(PatriciaTrieBase<K, V> trie) {
+        TrieEntry<K, V> root = trie.root;
+
+        int bitsPerElement = Math.max(trie.bitsPerElement(), 1);
+        int[] bitPositions = new int[bitsPerElement];
+
+        int[] depths = new int[16];
+        int[] levelCounts = new int[16];
+        int[] minBitIndices = new int[16];
+        int[] maxBitIndices = new int[16];
+        long[] bitIndexSums = new long[16];
+
+        int internalNodes = 0;
+        int externalNodes = 0;
+        int uplinks = 0;
+        long estimatedBytes = ENTRY_BYTES;
+
+        if (!root.isEmpty()) {
+            estimatedBytes += estimateBytes(root.key);
+        }
+
+        // The nodes that have yet to be visited and their levels
+        TrieEntry<K, V>[] stack = TrieEntry.newArray(16);
+        int[] levels = new int[16];
+        int top = 0;
+
+        if (root.left != root) {
+            stack[top] = root.left;
+            levels[top++] = 0;
+        } else if (!root.isEmpty()) {
+            // The root is the only key and a lookup visits it once
+            depths[1]++;
+        }
+
+        while (top > 0) {
+            TrieEntry<K, V> node = stack[--top];
+            int level = levels[top];
+
+            if (level >= levelCounts.length) {
+                int length = levelCounts.length * 2;
+                levelCounts = Arrays.copyOf(levelCounts, length);
+                minBitIndices = Arrays.copyOf(minBitIndices, length);
+                maxBitIndices = Arrays.copyOf(maxBitIndices, length);
+                bitIndexSums = Arrays.copyOf(bitIndexSums, length);
+            }
+
+            if (levelCounts[level]++ == 0) {
+                minBitIndices[level] = node.bitIndex;
+                maxBitIndices[level] = node.bitIndex;
+            } else {
+                minBitIndices[level] = Math.min(minBitIndices[level], node.bitIndex);
+                maxBitIndices[level] = Math.max(maxBitIndices[level], node.bitIndex);
+            }
+            bitIndexSums[level] += node.bitIndex;
+            bitPositions[node.bitIndex % bitsPerElement]++;
+
+            if (node.isInternalNode()) {
+                ++internalNodes;
+            } else {
+                ++externalNodes;
+            }
+
+            estimatedBytes += ENTRY_BYTES + estimateBytes(node.key);
+
+            for (int i = 0; i < 2; i++) {
+                TrieEntry<K, V> child = (i == 0 ? node.left : node.right);
+                if (child.bitIndex > node.bitIndex) {
+                    if (top == stack.length) {
+                        stack = Arrays.copyOf(stack, top * 2);
+                        levels = Arrays.copyOf(levels, top * 2);
+                    }
+                    stack[top] = child;
+                    levels[top++] = level + 1;
+                    continue;
+                }
+
+                // An uplink: The lookup of the key it points to
+                // visits the nodes down to here and the key.
+                ++uplinks;
+                if (!child.isEmpty()) {
+                    int depth = level + 2;
+                    if (depth >= depths.length) {
+                        depths = Arrays.copyOf(depths, Math.max(depths.length * 2, depth + 1));
+                    }
+                    depths[depth]++;
+                }
+            }
+        }
+
+        int levelCount = 0;
+        while (levelCount < levelCounts.length && levelCounts[levelCount] != 0) {
+            ++levelCount;
+        }
+
+        int maxDepth = depths.length;
+        while (maxDepth > 0 && depths[maxDepth - 1] == 0) {
+            --maxDepth;
+        }
+
+        return new TrieShape(trie.size(), internalNodes, externalNodes, uplinks,
+                Arrays.copyOf(depths, maxDepth),
+                Arrays.copyOf(levelCounts, levelCount),
+                Arrays.copyOf(minBitIndices, levelCount),
+                Arrays.copyOf(maxBitIndices, levelCount),
+                Arrays.copyOf(bitIndexSums, levelCount),
+                bitPositions, estimatedBytes);
+    }
+
+    /**
+     * Returns the estimated size of the given key
+     */
+    private static long estimateBytes(Object key) {
+        if (key instanceof String) {
+            return align(OBJECT_HEADER + 8) + align(ARRAY_HEADER + 2L * ((String)key).length());
+        } else if (key instanceof byte[]) {
+            return align(ARRAY_HEADER + ((byte[])key).length);
+        } else if (key instanceof char[]) {
+            return align(ARRAY_HEADER + 2L * ((char[])key).length);
+        } else if (key instanceof Long || key instanceof Double) {
+            return align(OBJECT_HEADER + 8);
+        } else if (key instanceof Number || key instanceof Character) {
+            return align(OBJECT_HEADER + 4);
+        }
+        return 0L;
+    }
+
+    private static long align(long size) {
+        return (size + 7L) & ~7L;
+    }
+
+    /**
+     * Returns the number of keys in the {@link Trie}
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of nodes whose children are both
+     * other nodes
+     *
+     * @see TrieEntry#isInternalNode()
+     */
+    public int getInternalNodeCount() {
+        return internalNodes;
+    }
+
+    /**
+     * Returns the number of nodes with an uplink to themselves
+     *
+     * @see TrieEntry#isExternalNode()
+     */
+    public int getExternalNodeCount() {
+        return externalNodes;
+    }
+
+    /**
+     * Returns the number of links that point up the tree
+     * (or to the node itself)
+     */
+    public int getUplinkCount() {
+        return uplinks;
+    }
+
+    /**
+     * Returns the depth of the key that is closest
+     * to the top or 0 if the {@link Trie} is empty
+     */
+    public int getMinDepth() {
+        for (int depth = 0; depth < depths.length; depth++) {
+            if (depths[depth] != 0) {
+                return depth;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the average depth of the keys
+     */
+    public double getMeanDepth() {
+        long count = 0L;
+        long sum = 0L;
+        for (int depth = 0; depth < depths.length; depth++) {
+            count += depths[depth];
+            sum += (long)depth * depths[depth];
+        }
+        return count != 0L ? (double)sum / count : 0d;
+    }
+
+    /**
+     * Returns the depth of the deepest key
+     */
+    public int getMaxDepth() {
+        return Math.max(depths.length - 1, 0);
+    }
+
+    /**
+     * Returns the depth the given percentage of the keys don't go beyond
+     *
+     * @param percentile a value between 0 (exclusive) and 100 (inclusive)
+     */
+    public int getDepthAtPercentile(double percentile) {
+        if (!(percentile > 0d && percentile <= 100d)) {
+            throw new IllegalArgumentException("percentile=" + percentile);
+        }
+
+        long total = 0L;
+        for (int count : depths) {
+            total += count;
+        }
+
+        long threshold = (long)Math.ceil(total * percentile / 100d);
+        long count = 0L;
+        for (int depth = 0; depth < depths.length; depth++) {
+            count += depths[depth];
+            if (count >= threshold && count != 0L) {
+                return depth;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of levels of the tree
+     */
+    public int getLevelCount() {
+        return levelCounts.length;
+    }
+
+    /**
+     * Returns the number of nodes of the given level
+     */
+    public int getNodeCount(int level) {
+        return levelCounts[level];
+    }
+
+    /**
+     * Returns the smallest bit index of the nodes of the given level
+     */
+    public int getMinBitIndex(int level) {
+        return minBitIndices[level];
+    }
+
+    /**
+     * Returns the greatest bit index of the nodes of the given level
+     */
+    public int getMaxBitIndex(int level) {
+        return maxBitIndices[level];
+    }
+
+    /**
+     * Returns the average bit index of the nodes of the given level
+     */
+    public double getMeanBitIndex(int level) {
+        return (double)bitIndexSums[level] / levelCounts[level];
+    }
+
+    /**
+     * Returns the number of bits per element of the {@link KeyAnalyzer}
+     */
+    public int getBitsPerElement() {
+        return bitPositions.length;
+    }
+
+    /**
+     * Returns the number of nodes that look at the given bit of an element
+     */
+    public int getBitPositionCount(int bit) {
+        return bitPositions[bit];
+    }
+
+    /**
+     * Returns the estimated number of bytes of the nodes and keys
+     */
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * Returns the estimated number of bytes of the nodes and
+     * keys for each key
+     */
+    public double getEstimatedBytesPerEntry() {
+        return size != 0 ? (double)estimatedBytes / size : 0d;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append("TrieShape[size=").append(size)
+            .append(", internal=").append(internalNodes)
+            .append(", external=").append(externalNodes)
+            .append(", uplinks=").append(uplinks)
+            .append(", depth=").append(getMinDepth())
+            .append('/').append(String.format("%.2f", getMeanDepth()))
+            .append('/').append(getMaxDepth())
+            .append(", p99=").append(size != 0 ? getDepthAtPercentile(99d) : 0)
+            .append(", levels=").append(getLevelCount())
+            .append(", bitPositions=").append(Arrays.toString(bitPositions))
+            .append(", bytesPerEntry=").append(String.format("%.1f", getEstimatedBytesPerEntry()))
+            .append("]");
+        return buffer.toString();
+    }
+}
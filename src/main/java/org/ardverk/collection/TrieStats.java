@@ -0,0 +1,242 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A snapshot of the statistics of a {@link PatriciaTrie}.
+ *
+ * <p>Each {@link Operation} is a walk down the {@link Trie}. The
+ * statistics have the number of times each of them was done and the
+ * number of nodes they've visited. The depths (the number of nodes a
+ * walk has visited) of all walks go into a histogram that has a bucket
+ * for each depth up to 63 and 32 buckets for each power of two after
+ * that, so the depths it returns are off by at most 1/32.
+ *
+ * @see PatriciaTrie#setStatsEnabled(boolean)
+ */
+public final class TrieStats implements Serializable {
+
+    private static final long serialVersionUID = -5806394946453564101L;
+
+    /**
+     * The walks down the {@link Trie} that are counted
+     */
+    public static enum Operation {
+
+        /**
+         * A search for the node of a key, such as
+         * {@link Trie#get(Object)} and {@link Trie#put(Object, Object)}
+         */
+        LOOKUP,
+
+        /**
+         * A search for the place of a new node
+         */
+        ADD,
+
+        /**
+         * A search for the node to remove
+         */
+        REMOVE,
+
+        /**
+         * {@link Trie#select(Object)} and {@link Trie#select(Object, Cursor)}
+         */
+        SELECT,
+
+        /**
+         * A search for the neighbors of a key that is not in the
+         * {@link Trie} by the ceiling, floor, higher and lower methods
+         */
+        ABSENT_KEY;
+    }
+
+    /**
+     * The depths up to this one have a bucket of their own
+     */
+    private static final int LINEAR_DEPTHS = 64;
+
+    /**
+     * The log2 of the number of buckets for each power of two
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKET_MASK = (1 << SUB_BUCKET_BITS) - 1;
+
+    /**
+     * The log2 of {@link #LINEAR_DEPTHS}
+     */
+    private static final int LINEAR_BITS = 6;
+
+    /**
+     * The number of buckets of the histogram
+     */
+    static final int BUCKETS = LINEAR_DEPTHS
+        + ((Integer.SIZE - 1 - LINEAR_BITS) << SUB_BUCKET_BITS);
+
+    /**
+     * {@link TrieStats} with nothing in them
+     */
+    static final TrieStats EMPTY = new TrieStats(
+            new long[Operation.values().length],
+            new long[Operation.values().length], 0L, new long[0]);
+
+    private final long[] counts;
+
+    private final long[] nodeVisits;
+
+    private final long bitIndexCount;
+
+    private final long[] histogram;
+
+    TrieStats(long[] counts, long[] nodeVisits,
+            long bitIndexCount, long[] histogram) {
+        this.counts = counts;
+        this.nodeVisits = nodeVisits;
+        this.bitIndexCount = bitIndexCount;
+        this.histogram = histogram;
+    }
+
+    /**
+     * Returns the index of the histogram bucket of the given depth
+     */
+    static int bucket(int depth) {
+        if (depth < LINEAR_DEPTHS) {
+            return depth;
+        }
+
+        int msb = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(depth);
+        int subBucket = (depth >>> (msb - SUB_BUCKET_BITS)) & SUB_BUCKET_MASK;
+        return LINEAR_DEPTHS + ((msb - LINEAR_BITS) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    /**
+     * Returns the highest depth that goes into the given bucket
+     */
+    static long highestDepth(int bucket) {
+        if (bucket < LINEAR_DEPTHS) {
+            return bucket;
+        }
+
+        int msb = ((bucket - LINEAR_DEPTHS) >>> SUB_BUCKET_BITS) + LINEAR_BITS;
+        int subBucket = (bucket - LINEAR_DEPTHS) & SUB_BUCKET_MASK;
+        long width = 1L << (msb - SUB_BUCKET_BITS);
+        return (1L << msb) + subBucket * width + width - 1L;
+    }
+
+    /**
+     * Returns the number of times the given {@link Operation} was done
+     */
+    public long getCount(Operation operation) {
+        return counts[operation.ordinal()];
+    }
+
+    /**
+     * Returns the number of nodes the given {@link Operation} has visited
+     */
+    public long getNodeVisits(Operation operation) {
+        return nodeVisits[operation.ordinal()];
+    }
+
+    /**
+     * Returns the average number of nodes the given {@link Operation}
+     * has visited or 0 if it wasn't done
+     */
+    public double getMeanNodeVisits(Operation operation) {
+        long count = getCount(operation);
+        return count != 0L ? (double)getNodeVisits(operation) / count : 0d;
+    }
+
+    /**
+     * Returns the number of times two keys were compared to
+     * find the first bit where they're different
+     */
+    public long getBitIndexCount() {
+        return bitIndexCount;
+    }
+
+    /**
+     * Returns the number of walks in the depth histogram
+     */
+    public long getDepthCount() {
+        long count = 0L;
+        for (long value : histogram) {
+            count += value;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the depth the given percentage of all walks didn't
+     * go beyond or 0 if there weren't any walks
+     *
+     * @param percentile a value between 0 (exclusive) and 100 (inclusive)
+     */
+    public long getDepthAtPercentile(double percentile) {
+        if (!(percentile > 0d && percentile <= 100d)) {
+            throw new IllegalArgumentException("percentile=" + percentile);
+        }
+
+        long threshold = (long)Math.ceil(getDepthCount() * percentile / 100d);
+        long count = 0L;
+        for (int i = 0; i < histogram.length; i++) {
+            count += histogram[i];
+            if (count >= threshold && count != 0L) {
+                return highestDepth(i);
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * Returns the greatest depth of all walks or 0 if there weren't any
+     */
+    public long getMaxDepth() {
+        for (int i = histogram.length - 1; i >= 0; --i) {
+            if (histogram[i] != 0L) {
+                return highestDepth(i);
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * Returns the number of walks of each depth
+     */
+    long[] getHistogram() {
+        return Arrays.copyOf(histogram, histogram.length);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buffer = new StringBuilder("TrieStats[");
+        for (Operation operation : Operation.values()) {
+            buffer.append(operation).append('=').append(getCount(operation))
+                .append('/').append(getNodeVisits(operation)).append(", ");
+        }
+
+        buffer.append("bitIndex=").append(bitIndexCount)
+            .append(", p50=").append(getDepthAtPercentile(50d))
+            .append(", p99=").append(getDepthAtPercentile(99d))
+            .append(", max=").append(getMaxDepth())
+            .append("]");
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+/**
+ * The JMX management interface of the {@link TrieStats} of a
+ * {@link PatriciaTrie}. Each attribute is read from a new snapshot.
+ *
+ * @see Tries#registerStatsMBean(PatriciaTrie, javax.management.ObjectName)
+ */
+public interface TrieStatsMBean {
+
+    /**
+     * @see PatriciaTrie#isStatsEnabled()
+     */
+    public boolean isEnabled();
+
+    /**
+     * @see PatriciaTrie#setStatsEnabled(boolean)
+     */
+    public void setEnabled(boolean enabled);
+
+    /**
+     * Returns the number of keys in the {@link PatriciaTrie}
+     */
+    public int getSize();
+
+    public long getLookupCount();
+
+    public double getMeanLookupNodeVisits();
+
+    public long getAddCount();
+
+    public double getMeanAddNodeVisits();
+
+    public long getRemoveCount();
+
+    public double getMeanRemoveNodeVisits();
+
+    public long getSelectCount();
+
+    public double getMeanSelectNodeVisits();
+
+    public long getAbsentKeyCount();
+
+    public double getMeanAbsentKeyNodeVisits();
+
+    public long getBitIndexCount();
+
+    public long getMedianDepth();
+
+    public long getDepth99thPercentile();
+
+    public long getMaxDepth();
+
+    /**
+     * @see PatriciaTrie#resetStats()
+     */
+    public void reset();
+}
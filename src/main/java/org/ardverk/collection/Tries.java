@@ -17,13 +17,30 @@
 package org.ardverk.collection;
 
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.ardverk.collection.TrieStats.Operation;
 
 /**
  * A collection of {@link Trie} utilities
@@ -56,6 +73,32 @@ public class Tries {
         return new SynchronizedTrie<K, V>(trie);
     }
     
+    /**
+     * Returns an instance of a {@link Trie} that is guarded by a 
+     * {@link ReentrantReadWriteLock}. Unlike {@link #synchronizedTrie(Trie)}
+     * it lets any number of readers access the {@link Trie} at the same
+     * time. Writes and the {@link Cursor} based methods (a {@link Cursor}
+     * may remove entries) take the exclusive write lock.
+     * 
+     * <p>The views and their {@link Iterator}s are guarded by the same 
+     * lock. The lock is held for each call to an {@link Iterator} but 
+     * not for the whole iteration. An {@link Iterator} fails fast if the 
+     * {@link Trie} is modified while the iteration is in progress.
+     * 
+     * @see ReentrantReadWriteLock
+     */
+    public static <K, V> Trie<K, V> readWriteLockedTrie(Trie<K, V> trie) {
+        if (trie == null) {
+            throw new NullPointerException("trie");
+        }
+        
+        if (trie instanceof ReadWriteLockedTrie) {
+            return trie;
+        }
+        
+        return new ReadWriteLockedTrie<K, V>(trie);
+    }
+    
     /**
      * Returns an unmodifiable instance of a {@link Trie}
      * 
@@ -73,6 +116,286 @@ public class Tries {
         return new UnmodifiableTrie<K, V>(trie);
     }
     
+    /**
+     * Walks the given {@link PatriciaTrie} once and returns its shape. 
+     * It takes time linear in the size of the {@link Trie} and must not 
+     * run at the same time as a modification of the {@link Trie}.
+     * 
+     * @throws IllegalArgumentException if the {@link Trie} isn't a 
+     * {@link PatriciaTrie}
+     */
+    public static TrieShape analyze(Trie<?, ?> trie) {
+        if (trie == null) {
+            throw new NullPointerException("trie");
+        }
+        
+        if (!(trie instanceof PatriciaTrie<?, ?>)) {
+            throw new IllegalArgumentException("Not a PatriciaTrie: " 
+                    + trie.getClass().getName());
+        }
+        
+        return TrieShape.analyze((PatriciaTrie<?, ?>)trie);
+    }
+    
+    /**
+     * Returns the entries of the given {@link PatriciaTrie} whose keys 
+     * are no more than the given number of edits (insertions, deletions 
+     * and substitutions of chars) away from the query. They're in the 
+     * order of their keys.
+     * 
+     * <p>It walks down the {@link Trie} with a row of the Levenshtein 
+     * matrix for each char and skips all subtrees whose keys are too far
+     * away from the query. It must not run at the same time as a 
+     * modification of the {@link Trie}.
+     * 
+     * @throws IllegalArgumentException if the {@link Trie} isn't a 
+     * {@link PatriciaTrie} with a {@link StringKeyAnalyzer}
+     */
+    public static <V> List<Map.Entry<String, V>> fuzzyMatch(
+            Trie<String, V> trie, String query, int maxEdits) {
+        if (trie == null) {
+            throw new NullPointerException("trie");
+        }
+        
+        if (query == null) {
+            throw new NullPointerException("query");
+        }
+        
+        if (maxEdits < 0) {
+            throw new IllegalArgumentException("maxEdits=" + maxEdits);
+        }
+        
+        return FuzzyMatcher.match(toStringTrie(trie), query, maxEdits);
+    }
+    
+    /**
+     * Returns the entries of the given {@link PatriciaTrie} whose keys
+     * the given {@link Automaton} accepts in the order of their keys.
+     * 
+     * <p>It walks down the {@link Trie} with the state of the 
+     * {@link Automaton} after the chars all keys of a subtree have in
+     * common and skips the subtree if it is {@link Automaton#REJECT}.
+     * It must not run at the same time as a modification of the
+     * {@link Trie}.
+     * 
+     * @see Automata#glob(String)
+     * @see Automata#regex(String)
+     * @throws IllegalArgumentException if the {@link Trie} isn't a 
+     * {@link PatriciaTrie} with a {@link StringKeyAnalyzer}
+     */
+    public static <V> List<Map.Entry<String, V>> match(
+            Trie<String, V> trie, Automaton automaton) {
+        if (trie == null) {
+            throw new NullPointerException("trie");
+        }
+        
+        if (automaton == null) {
+            throw new NullPointerException("automaton");
+        }
+        
+        return AutomatonMatcher.match(toStringTrie(trie), automaton);
+    }
+    
+    /**
+     * Returns the given {@link Trie} as a {@link PatriciaTrie} with a 
+     * {@link StringKeyAnalyzer}
+     */
+    private static <V> PatriciaTrie<String, V> toStringTrie(Trie<String, V> trie) {
+        if (!(trie instanceof PatriciaTrie<?, ?>)) {
+            throw new IllegalArgumentException("Not a PatriciaTrie: " 
+                    + trie.getClass().getName());
+        }
+        
+        PatriciaTrie<String, V> patriciaTrie = (PatriciaTrie<String, V>)trie;
+        if (!(patriciaTrie.getKeyAnalyzer() instanceof StringKeyAnalyzer)) {
+            throw new IllegalArgumentException("Not a StringKeyAnalyzer: " 
+                    + patriciaTrie.getKeyAnalyzer().getClass().getName());
+        }
+        return patriciaTrie;
+    }
+    
+    /**
+     * Registers the {@link TrieStats} of the given {@link PatriciaTrie} 
+     * with the platform {@link MBeanServer} under the given name. It 
+     * doesn't turn on the recording of the {@link TrieStats}.
+     * 
+     * @see TrieStatsMBean
+     * @see PatriciaTrie#setStatsEnabled(boolean)
+     */
+    public static ObjectInstance registerStatsMBean(PatriciaTrie<?, ?> trie, 
+            ObjectName name) throws JMException {
+        if (trie == null) {
+            throw new NullPointerException("trie");
+        }
+        
+        if (name == null) {
+            throw new NullPointerException("name");
+        }
+        
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        return server.registerMBean(new StandardMBean(
+                new StatsMBean(trie), TrieStatsMBean.class), name);
+    }
+    
+    /**
+     * A {@link TrieStatsMBean} that reads the {@link TrieStats} 
+     * of a {@link PatriciaTrie}
+     */
+    private static class StatsMBean implements TrieStatsMBean {
+        
+        private final PatriciaTrie<?, ?> trie;
+        
+        public StatsMBean(PatriciaTrie<?, ?> trie) {
+            this.trie = trie;
+        }
+        
+        @Override
+        public boolean isEnabled() {
+            return trie.isStatsEnabled();
+        }
+        
+        @Override
+        public void setEnabled(boolean enabled) {
+            trie.setStatsEnabled(enabled);
+        }
+        
+        @Override
+        public int getSize() {
+            return trie.size();
+        }
+        
+        @Override
+        public long getLookupCount() {
+            return trie.getStats().getCount(Operation.LOOKUP);
+        }
+        
+        @Override
+        public double getMeanLookupNodeVisits() {
+            return trie.getStats().getMeanNodeVisits(Operation.LOOKUP);
+        }
+        
+        @Override
+        public long getAddCount() {
+            return trie.getStats().getCount(Operation.ADD);
+        }
+        
+        @Override
+        public double getMeanAddNodeVisits() {
+            return trie.getStats().getMeanNodeVisits(Operation.ADD);
+        }
+        
+        @Override
+        public long getRemoveCount() {
+            return trie.getStats().getCount(Operation.REMOVE);
+        }
+        
+        @Override
+        public double getMeanRemoveNodeVisits() {
+            return trie.getStats().getMeanNodeVisits(Operation.REMOVE);
+        }
+        
+        @Override
+        public long getSelectCount() {
+            return trie.getStats().getCount(Operation.SELECT);
+        }
+        
+        @Override
+        public double getMeanSelectNodeVisits() {
+            return trie.getStats().getMeanNodeVisits(Operation.SELECT);
+        }
+        
+        @Override
+        public long getAbsentKeyCount() {
+            return trie.getStats().getCount(Operation.ABSENT_KEY);
+        }
+        
+        @Override
+        public double getMeanAbsentKeyNodeVisits() {
+            return trie.getStats().getMeanNodeVisits(Operation.ABSENT_KEY);
+        }
+        
+        @Override
+        public long getBitIndexCount() {
+            return trie.getStats().getBitIndexCount();
+        }
+        
+        @Override
+        public long getMedianDepth() {
+            return trie.getStats().getDepthAtPercentile(50d);
+        }
+        
+        @Override
+        public long getDepth99thPercentile() {
+            return trie.getStats().getDepthAtPercentile(99d);
+        }
+        
+        @Override
+        public long getMaxDepth() {
+            return trie.getStats().getMaxDepth();
+        }
+        
+        @Override
+        public void reset() {
+            trie.resetStats();
+        }
+    }
+    
+    /**
+     * Returns the {@link KeyAnalyzer} of the given {@link Trie}
+     * 
+     * @throws UnsupportedOperationException if its {@link Comparator} 
+     * isn't a {@link KeyAnalyzer}
+     */
+    @SuppressWarnings("unchecked")
+    static <K> KeyAnalyzer<? super K> keyAnalyzer(Trie<K, ?> trie) {
+        Comparator<? super K> comparator = trie.comparator();
+        if (!(comparator instanceof KeyAnalyzer<?>)) {
+            throw new UnsupportedOperationException("Not a KeyAnalyzer: " 
+                    + (comparator != null ? comparator.getClass().getName() : null));
+        }
+        return (KeyAnalyzer<? super K>)comparator;
+    }
+    
+    /**
+     * The default implementation of {@link Trie#longestPrefixEntry(Object, int)}.
+     * 
+     * <p>A prefix of the key that is n bits long is the first key of the 
+     * prefix view of the key's first n bits. The keys are a whole number
+     * of elements long and so n goes up one element at a time. The prefix 
+     * views get smaller as n grows and the walk stops at the first one 
+     * that is empty.
+     */
+    static <K, V> Map.Entry<K, V> longestPrefixEntry(
+            Trie<K, V> trie, K key, int lengthInBits) {
+        KeyAnalyzer<? super K> keyAnalyzer = keyAnalyzer(trie);
+        if (lengthInBits < 0 || lengthInBits > keyAnalyzer.lengthInBits(key)) {
+            throw new IllegalArgumentException("lengthInBits=" + lengthInBits);
+        }
+        
+        int bitsPerElement = Math.max(keyAnalyzer.bitsPerElement(), 1);
+        
+        Map.Entry<K, V> longest = null;
+        int longestLength = -1;
+        
+        for (int length = 0; length <= lengthInBits; length += bitsPerElement) {
+            SortedMap<K, V> prefixed = trie.getPrefixedByBits(key, length);
+            if (prefixed.isEmpty()) {
+                break;
+            }
+            
+            Map.Entry<K, V> first = prefixed.entrySet().iterator().next();
+            int firstLength = keyAnalyzer.lengthInBits(first.getKey());
+            if (longestLength < firstLength && firstLength <= lengthInBits 
+                    && keyAnalyzer.isPrefix(first.getKey(), 0, firstLength, key)) {
+                longest = first;
+                longestLength = firstLength;
+            }
+        }
+        
+        return longest;
+    }
+    
+    
     /**
      * A synchronized {@link Trie}
      */
@@ -111,6 +434,34 @@ public class Tries {
             return delegate.selectValue(key);
         }
 
+        @Override
+        public synchronized int selectNearest(K key, int count, 
+                Collection<? super Entry<K, V>> entries) {
+            return delegate.selectNearest(key, count, entries);
+        }
+
+        @Override
+        public synchronized int selectNearest(K key, int count, 
+                Predicate<? super Entry<K, V>> predicate, 
+                Collection<? super Entry<K, V>> entries) {
+            return delegate.selectNearest(key, count, predicate, entries);
+        }
+
+        @Override
+        public synchronized Entry<K, V> longestPrefixEntry(K key) {
+            return delegate.longestPrefixEntry(key);
+        }
+
+        @Override
+        public synchronized Entry<K, V> longestPrefixEntry(K key, int lengthInBits) {
+            return delegate.longestPrefixEntry(key, lengthInBits);
+        }
+
+        @Override
+        public synchronized K longestPrefixOf(K key) {
+            return delegate.longestPrefixOf(key);
+        }
+
         @Override
         public synchronized Entry<K, V> traverse(Cursor<? super K, ? super V> cursor) {
             return delegate.traverse(cursor);
@@ -582,54 +933,1208 @@ public class Tries {
     }
     
     /**
-     * An unmodifiable {@link Trie}
+     * A {@link Trie} that is guarded by a {@link ReadWriteLock}
      */
-    private static class UnmodifiableTrie<K, V> implements Trie<K, V>, Serializable {
+    private static class ReadWriteLockedTrie<K, V> implements Trie<K, V>, Serializable {
         
-        private static final long serialVersionUID = -7156426030315945159L;
+        private static final long serialVersionUID = -3326394745409155282L;
         
         private final Trie<K, V> delegate;
         
-        public UnmodifiableTrie(Trie<K, V> delegate) {
+        private final ReadWriteLock lock;
+        
+        private final Lock readLock;
+        
+        private final Lock writeLock;
+        
+        public ReadWriteLockedTrie(Trie<K, V> delegate) {
             if (delegate == null) {
                 throw new NullPointerException("delegate");
             }
             
             this.delegate = delegate;
+            this.lock = new ReentrantReadWriteLock();
+            this.readLock = lock.readLock();
+            this.writeLock = lock.writeLock();
         }
         
         @Override
-        public Entry<K, V> select(K key, final Cursor<? super K, ? super V> cursor) {
-            Cursor<K, V> c = new Cursor<K, V>() {
-                @Override
-                public Decision select(Map.Entry<? extends K, ? extends V> entry) {
-                    Decision decision = cursor.select(entry);
-                    switch (decision) {
-                        case REMOVE:
-                        case REMOVE_AND_EXIT:
-                            throw new UnsupportedOperationException();
-                    }
-                    
-                    return decision;
-                }
-            };
-            
-            return delegate.select(key, c);
+        public Entry<K, V> select(K key, 
+                Cursor<? super K, ? super V> cursor) {
+            writeLock.lock();
+            try {
+                return delegate.select(key, cursor);
+            } finally {
+                writeLock.unlock();
+            }
         }
 
         @Override
         public Entry<K, V> select(K key) {
-            return delegate.select(key);
+            readLock.lock();
+            try {
+                return delegate.select(key);
+            } finally {
+                readLock.unlock();
+            }
         }
 
         @Override
         public K selectKey(K key) {
-            return delegate.selectKey(key);
+            readLock.lock();
+            try {
+                return delegate.selectKey(key);
+            } finally {
+                readLock.unlock();
+            }
         }
 
         @Override
         public V selectValue(K key) {
-            return delegate.selectValue(key);
+            readLock.lock();
+            try {
+                return delegate.selectValue(key);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public int selectNearest(K key, int count, 
+                Collection<? super Entry<K, V>> entries) {
+            readLock.lock();
+            try {
+                return delegate.selectNearest(key, count, entries);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public int selectNearest(K key, int count, 
+                Predicate<? super Entry<K, V>> predicate, 
+                Collection<? super Entry<K, V>> entries) {
+            readLock.lock();
+            try {
+                return delegate.selectNearest(key, count, predicate, entries);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public Entry<K, V> longestPrefixEntry(K key) {
+            readLock.lock();
+            try {
+                return delegate.longestPrefixEntry(key);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public Entry<K, V> longestPrefixEntry(K key, int lengthInBits) {
+            readLock.lock();
+            try {
+                return delegate.longestPrefixEntry(key, lengthInBits);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public K longestPrefixOf(K key) {
+            readLock.lock();
+            try {
+                return delegate.longestPrefixOf(key);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public Entry<K, V> traverse(Cursor<? super K, ? super V> cursor) {
+            writeLock.lock();
+            try {
+                return delegate.traverse(cursor);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public Set<Entry<K, V>> entrySet() {
+            readLock.lock();
+            try {
+                return new ReadWriteLockedSet<Entry<K, V>>(lock, delegate.entrySet());
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public Set<K> keySet() {
+            readLock.lock();
+            try {
+                return new ReadWriteLockedSet<K>(lock, delegate.keySet());
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public Collection<V> values() {
+            readLock.lock();
+            try {
+                return new ReadWriteLockedCollection<V>(lock, delegate.values());
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public void clear() {
+            writeLock.lock();
+            try {
+                delegate.clear();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            readLock.lock();
+            try {
+                return delegate.containsKey(key);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean containsValue(Object value) {
+            readLock.lock();
+            try {
+                return delegate.containsValue(value);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public V get(Object key) {
+            readLock.lock();
+            try {
+                return delegate.get(key);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isEmpty() {
+            readLock.lock();
+            try {
+                return delegate.isEmpty();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public V put(K key, V value) {
+            writeLock.lock();
+            try {
+                return delegate.put(key, value);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void putAll(Map<? extends K, ? extends V> m) {
+            writeLock.lock();
+            try {
+                delegate.putAll(m);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public V remove(Object key) {
+            writeLock.lock();
+            try {
+                return delegate.remove(key);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public V getOrDefault(Object key, V defaultValue) {
+            readLock.lock();
+            try {
+                return delegate.getOrDefault(key, defaultValue);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public void forEach(BiConsumer<? super K, ? super V> action) {
+            readLock.lock();
+            try {
+                delegate.forEach(action);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public V putIfAbsent(K key, V value) {
+            writeLock.lock();
+            try {
+                return delegate.putIfAbsent(key, value);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean remove(Object key, Object value) {
+            writeLock.lock();
+            try {
+                return delegate.remove(key, value);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean replace(K key, V oldValue, V newValue) {
+            writeLock.lock();
+            try {
+                return delegate.replace(key, oldValue, newValue);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public V replace(K key, V value) {
+            writeLock.lock();
+            try {
+                return delegate.replace(key, value);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+            writeLock.lock();
+            try {
+                delegate.replaceAll(function);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public V computeIfAbsent(K key, 
+                Function<? super K, ? extends V> mappingFunction) {
+            writeLock.lock();
+            try {
+                return delegate.computeIfAbsent(key, mappingFunction);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public V computeIfPresent(K key, 
+                BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+            writeLock.lock();
+            try {
+                return delegate.computeIfPresent(key, remappingFunction);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public V compute(K key, 
+                BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+            writeLock.lock();
+            try {
+                return delegate.compute(key, remappingFunction);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public V merge(K key, V value, 
+                BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+            writeLock.lock();
+            try {
+                return delegate.merge(key, value, remappingFunction);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public K firstKey() {
+            readLock.lock();
+            try {
+                return delegate.firstKey();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public K lastKey() {
+            readLock.lock();
+            try {
+                return delegate.lastKey();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public SortedMap<K, V> subMap(K fromKey, K toKey) {
+            readLock.lock();
+            try {
+                return new ReadWriteLockedSortedMap<K, V>(lock, 
+                        delegate.subMap(fromKey, toKey));
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public SortedMap<K, V> headMap(K toKey) {
+            readLock.lock();
+            try {
+                return new ReadWriteLockedSortedMap<K, V>(lock, 
+                        delegate.headMap(toKey));
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public SortedMap<K, V> tailMap(K fromKey) {
+            readLock.lock();
+            try {
+                return new ReadWriteLockedSortedMap<K, V>(lock, 
+                        delegate.tailMap(fromKey));
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public Comparator<? super K> comparator() {
+            readLock.lock();
+            try {
+                return delegate.comparator();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public SortedMap<K, V> getPrefixedBy(K key) {
+            readLock.lock();
+            try {
+                return new ReadWriteLockedSortedMap<K, V>(lock, 
+                        delegate.getPrefixedBy(key));
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public SortedMap<K, V> getPrefixedBy(K key, int length) {
+            readLock.lock();
+            try {
+                return new ReadWriteLockedSortedMap<K, V>(lock, 
+                        delegate.getPrefixedBy(key, length));
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public SortedMap<K, V> getPrefixedBy(K key, int offset, int length) {
+            readLock.lock();
+            try {
+                return new ReadWriteLockedSortedMap<K, V>(lock, 
+                        delegate.getPrefixedBy(key, offset, length));
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public SortedMap<K, V> getPrefixedByBits(K key, int lengthInBits) {
+            readLock.lock();
+            try {
+                return new ReadWriteLockedSortedMap<K, V>(lock, 
+                        delegate.getPrefixedByBits(key, lengthInBits));
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public SortedMap<K, V> getPrefixedByBits(K key, 
+                int offsetInBits, int lengthInBits) {
+            readLock.lock();
+            try {
+                return new ReadWriteLockedSortedMap<K, V>(lock, 
+                        delegate.getPrefixedByBits(key, offsetInBits, lengthInBits));
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            readLock.lock();
+            try {
+                return delegate.size();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            readLock.lock();
+            try {
+                return delegate.hashCode();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            readLock.lock();
+            try {
+                return delegate.equals(obj);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            readLock.lock();
+            try {
+                return delegate.toString();
+            } finally {
+                readLock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * A {@link Collection} that is guarded by a {@link ReadWriteLock}
+     */
+    private static class ReadWriteLockedCollection<E> implements Collection<E>, Serializable {
+        
+        private static final long serialVersionUID = 6186371562837458916L;
+        
+        private final Collection<E> delegate;
+        
+        private final ReadWriteLock lock;
+        
+        private final Lock readLock;
+        
+        private final Lock writeLock;
+        
+        public ReadWriteLockedCollection(ReadWriteLock lock, Collection<E> delegate) {
+            if (lock == null) {
+                throw new NullPointerException("lock");
+            }
+            
+            if (delegate == null) {
+                throw new NullPointerException("delegate");
+            }
+            
+            this.lock = lock;
+            this.readLock = lock.readLock();
+            this.writeLock = lock.writeLock();
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean add(E e) {
+            writeLock.lock();
+            try {
+                return delegate.add(e);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends E> c) {
+            writeLock.lock();
+            try {
+                return delegate.addAll(c);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void clear() {
+            writeLock.lock();
+            try {
+                delegate.clear();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            readLock.lock();
+            try {
+                return delegate.contains(o);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean containsAll(Collection<?> c) {
+            readLock.lock();
+            try {
+                return delegate.containsAll(c);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isEmpty() {
+            readLock.lock();
+            try {
+                return delegate.isEmpty();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            readLock.lock();
+            try {
+                return new ReadWriteLockedIterator<E>(lock, delegate.iterator());
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            writeLock.lock();
+            try {
+                return delegate.remove(o);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            writeLock.lock();
+            try {
+                return delegate.removeAll(c);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> c) {
+            writeLock.lock();
+            try {
+                return delegate.retainAll(c);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            readLock.lock();
+            try {
+                return delegate.size();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public Object[] toArray() {
+            readLock.lock();
+            try {
+                return delegate.toArray();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public <T> T[] toArray(T[] a) {
+            readLock.lock();
+            try {
+                return delegate.toArray(a);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            readLock.lock();
+            try {
+                return delegate.hashCode();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            readLock.lock();
+            try {
+                return delegate.equals(obj);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            readLock.lock();
+            try {
+                return delegate.toString();
+            } finally {
+                readLock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * A {@link Set} that is guarded by a {@link ReadWriteLock}
+     */
+    private static class ReadWriteLockedSet<E> extends ReadWriteLockedCollection<E> 
+            implements Set<E> {
+        
+        private static final long serialVersionUID = -1526823717212658405L;
+
+        public ReadWriteLockedSet(ReadWriteLock lock, Collection<E> delegate) {
+            super(lock, delegate);
+        }
+    }
+    
+    /**
+     * An {@link Iterator} that is guarded by a {@link ReadWriteLock}. 
+     * The lock is held for the duration of each call but not for the 
+     * entire iteration.
+     */
+    private static class ReadWriteLockedIterator<E> implements Iterator<E> {
+        
+        private final Iterator<E> delegate;
+        
+        private final Lock readLock;
+        
+        private final Lock writeLock;
+        
+        public ReadWriteLockedIterator(ReadWriteLock lock, Iterator<E> delegate) {
+            this.readLock = lock.readLock();
+            this.writeLock = lock.writeLock();
+            this.delegate = delegate;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            readLock.lock();
+            try {
+                return delegate.hasNext();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public E next() {
+            readLock.lock();
+            try {
+                return delegate.next();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public void remove() {
+            writeLock.lock();
+            try {
+                delegate.remove();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * A {@link SortedMap} that is guarded by a {@link ReadWriteLock}
+     */
+    private static class ReadWriteLockedSortedMap<K, V> implements SortedMap<K, V>, Serializable {
+        
+        private static final long serialVersionUID = 2961734283926470386L;
+        
+        private final SortedMap<K, V> delegate;
+        
+        private final ReadWriteLock lock;
+        
+        private final Lock readLock;
+        
+        private final Lock writeLock;
+        
+        public ReadWriteLockedSortedMap(ReadWriteLock lock, SortedMap<K, V> delegate) {
+            if (lock == null) {
+                throw new NullPointerException("lock");
+            }
+            
+            if (delegate == null) {
+                throw new NullPointerException("delegate");
+            }
+            
+            this.lock = lock;
+            this.readLock = lock.readLock();
+            this.writeLock = lock.writeLock();
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Set<Entry<K, V>> entrySet() {
+            readLock.lock();
+            try {
+                return new ReadWriteLockedSet<Entry<K, V>>(lock, delegate.entrySet());
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public Set<K> keySet() {
+            readLock.lock();
+            try {
+                return new ReadWriteLockedSet<K>(lock, delegate.keySet());
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public Collection<V> values() {
+            readLock.lock();
+            try {
+                return new ReadWriteLockedCollection<V>(lock, delegate.values());
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public void clear() {
+            writeLock.lock();
+            try {
+                delegate.clear();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            readLock.lock();
+            try {
+                return delegate.containsKey(key);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean containsValue(Object value) {
+            readLock.lock();
+            try {
+                return delegate.containsValue(value);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public V get(Object key) {
+            readLock.lock();
+            try {
+                return delegate.get(key);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isEmpty() {
+            readLock.lock();
+            try {
+                return delegate.isEmpty();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public V put(K key, V value) {
+            writeLock.lock();
+            try {
+                return delegate.put(key, value);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void putAll(Map<? extends K, ? extends V> m) {
+            writeLock.lock();
+            try {
+                delegate.putAll(m);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public V remove(Object key) {
+            writeLock.lock();
+            try {
+                return delegate.remove(key);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public V getOrDefault(Object key, V defaultValue) {
+            readLock.lock();
+            try {
+                return delegate.getOrDefault(key, defaultValue);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public void forEach(BiConsumer<? super K, ? super V> action) {
+            readLock.lock();
+            try {
+                delegate.forEach(action);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public V putIfAbsent(K key, V value) {
+            writeLock.lock();
+            try {
+                return delegate.putIfAbsent(key, value);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean remove(Object key, Object value) {
+            writeLock.lock();
+            try {
+                return delegate.remove(key, value);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean replace(K key, V oldValue, V newValue) {
+            writeLock.lock();
+            try {
+                return delegate.replace(key, oldValue, newValue);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public V replace(K key, V value) {
+            writeLock.lock();
+            try {
+                return delegate.replace(key, value);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+            writeLock.lock();
+            try {
+                delegate.replaceAll(function);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public V computeIfAbsent(K key, 
+                Function<? super K, ? extends V> mappingFunction) {
+            writeLock.lock();
+            try {
+                return delegate.computeIfAbsent(key, mappingFunction);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public V computeIfPresent(K key, 
+                BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+            writeLock.lock();
+            try {
+                return delegate.computeIfPresent(key, remappingFunction);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public V compute(K key, 
+                BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+            writeLock.lock();
+            try {
+                return delegate.compute(key, remappingFunction);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public V merge(K key, V value, 
+                BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+            writeLock.lock();
+            try {
+                return delegate.merge(key, value, remappingFunction);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public K firstKey() {
+            readLock.lock();
+            try {
+                return delegate.firstKey();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public K lastKey() {
+            readLock.lock();
+            try {
+                return delegate.lastKey();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public SortedMap<K, V> subMap(K fromKey, K toKey) {
+            readLock.lock();
+            try {
+                return new ReadWriteLockedSortedMap<K, V>(lock, 
+                        delegate.subMap(fromKey, toKey));
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public SortedMap<K, V> headMap(K toKey) {
+            readLock.lock();
+            try {
+                return new ReadWriteLockedSortedMap<K, V>(lock, 
+                        delegate.headMap(toKey));
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public SortedMap<K, V> tailMap(K fromKey) {
+            readLock.lock();
+            try {
+                return new ReadWriteLockedSortedMap<K, V>(lock, 
+                        delegate.tailMap(fromKey));
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public Comparator<? super K> comparator() {
+            readLock.lock();
+            try {
+                return delegate.comparator();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            readLock.lock();
+            try {
+                return delegate.size();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            readLock.lock();
+            try {
+                return delegate.hashCode();
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            readLock.lock();
+            try {
+                return delegate.equals(obj);
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            readLock.lock();
+            try {
+                return delegate.toString();
+            } finally {
+                readLock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * An unmodifiable {@link Trie}
+     */
+    private static class UnmodifiableTrie<K, V> implements Trie<K, V>, Serializable {
+        
+        private static final long serialVersionUID = -7156426030315945159L;
+        
+        private final Trie<K, V> delegate;
+        
+        public UnmodifiableTrie(Trie<K, V> delegate) {
+            if (delegate == null) {
+                throw new NullPointerException("delegate");
+            }
+            
+            this.delegate = delegate;
+        }
+        
+        @Override
+        public Entry<K, V> select(K key, final Cursor<? super K, ? super V> cursor) {
+            Cursor<K, V> c = new Cursor<K, V>() {
+                @Override
+                public Decision select(Map.Entry<? extends K, ? extends V> entry) {
+                    Decision decision = cursor.select(entry);
+                    switch (decision) {
+                        case REMOVE:
+                        case REMOVE_AND_EXIT:
+                            throw new UnsupportedOperationException();
+                    }
+                    
+                    return decision;
+                }
+            };
+            
+            return delegate.select(key, c);
+        }
+
+        @Override
+        public Entry<K, V> select(K key) {
+            return delegate.select(key);
+        }
+
+        @Override
+        public K selectKey(K key) {
+            return delegate.selectKey(key);
+        }
+
+        @Override
+        public V selectValue(K key) {
+            return delegate.selectValue(key);
+        }
+
+        @Override
+        public int selectNearest(K key, int count, 
+                Collection<? super Entry<K, V>> entries) {
+            return delegate.selectNearest(key, count, entries);
+        }
+
+        @Override
+        public int selectNearest(K key, int count, 
+                Predicate<? super Entry<K, V>> predicate, 
+                Collection<? super Entry<K, V>> entries) {
+            return delegate.selectNearest(key, count, predicate, entries);
+        }
+
+        @Override
+        public Entry<K, V> longestPrefixEntry(K key) {
+            return delegate.longestPrefixEntry(key);
+        }
+
+        @Override
+        public Entry<K, V> longestPrefixEntry(K key, int lengthInBits) {
+            return delegate.longestPrefixEntry(key, lengthInBits);
+        }
+
+        @Override
+        public K longestPrefixOf(K key) {
+            return delegate.longestPrefixOf(key);
         }
 
         @Override
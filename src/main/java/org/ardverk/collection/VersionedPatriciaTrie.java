@@ -0,0 +1,526 @@
+/*
+ * Copyright 2005-2009 Roger Kapsi, Sam Berlin
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package org.ardverk.collection;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.function.Predicate;
+
+import org.ardverk.collection.Cursor.Decision;
+
+/**
+ * A mutable {@link Trie} that keeps its keys and values in a
+ * {@link PersistentPatriciaTrie}. Every modification creates a new
+ * version and publishes it through a volatile field.
+ *
+ * <p>The readers never lock. Each read operation works on the version
+ * that was current when it started, and {@link #snapshot()} returns that
+ * version itself, which is an O(1) point-in-time copy of the {@link Trie}.
+ * A snapshot can be put back with {@link #restore(PersistentPatriciaTrie)}.
+ * The writers are serialized with each other but never block the readers.
+ *
+ * <p>The {@link #entrySet()}, {@link #keySet()} and {@link #values()}
+ * views are backed by the {@link Trie}. Their {@link Iterator}s work on
+ * the version that was current when they were created and never throw a
+ * {@link java.util.ConcurrentModificationException}. The range and prefix
+ * views are views of the current version and can't be modified.
+ */
+public class VersionedPatriciaTrie<K, V> extends AbstractTrie<K, V> {
+
+    private static final long serialVersionUID = -3329862417356251925L;
+
+    /**
+     * The current version of the {@link Trie}
+     */
+    private volatile PersistentPatriciaTrie<K, V> current;
+
+    private transient volatile Set<Map.Entry<K, V>> entrySet;
+
+    private transient volatile Set<K> keySet;
+
+    /**
+     * Creates an empty {@link VersionedPatriciaTrie}
+     */
+    public VersionedPatriciaTrie(KeyAnalyzer<? super K> keyAnalyzer) {
+        this(new PersistentPatriciaTrie<K, V>(keyAnalyzer));
+    }
+
+    /**
+     * Creates a {@link VersionedPatriciaTrie} that
+     * starts with the given version
+     */
+    public VersionedPatriciaTrie(PersistentPatriciaTrie<K, V> trie) {
+        super(trie.getKeyAnalyzer());
+        this.current = trie;
+    }
+
+    /**
+     * Returns the current version of the {@link Trie}. It doesn't
+     * change if this {@link Trie} is modified.
+     */
+    public PersistentPatriciaTrie<K, V> snapshot() {
+        return current;
+    }
+
+    /**
+     * Makes the given version the current one and returns the
+     * version it replaces. The given version should be one
+     * that was returned by {@link #snapshot()}.
+     */
+    public synchronized PersistentPatriciaTrie<K, V> restore(
+            PersistentPatriciaTrie<K, V> trie) {
+        if (trie == null) {
+            throw new NullPointerException("trie");
+        }
+
+        PersistentPatriciaTrie<K, V> previous = current;
+        current = trie;
+        return previous;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized V put(K key, V value) {
+        PersistentPatriciaTrie<K, V> trie = current;
+        V previous = trie.get(key);
+        current = trie.plus(key, value);
+        return previous;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * All keys and values become visible at once.
+     */
+    @Override
+    public synchronized void putAll(Map<? extends K, ? extends V> m) {
+        current = current.plusAll(m);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized V remove(Object key) {
+        PersistentPatriciaTrie<K, V> trie = current;
+        V previous = trie.get(key);
+        current = trie.minus(key);
+        return previous;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void clear() {
+        current = new PersistentPatriciaTrie<K, V>(keyAnalyzer);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return current.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmpty() {
+        return current.isEmpty();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V get(Object key) {
+        return current.get(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        return current.containsKey(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> select(K key) {
+        return current.select(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * A {@link Cursor} that removes entries removes them
+     * from this {@link Trie} and not from the version
+     * the select is working on.
+     */
+    @Override
+    public Map.Entry<K, V> select(K key, final Cursor<? super K, ? super V> cursor) {
+        return current.select(key, new Cursor<K, V>() {
+            @Override
+            public Decision select(Map.Entry<? extends K, ? extends V> entry) {
+                Decision decision = cursor.select(entry);
+                switch (decision) {
+                    case REMOVE:
+                        throw new UnsupportedOperationException(
+                                "Cannot remove during select");
+                    case REMOVE_AND_EXIT:
+                        VersionedPatriciaTrie.this.remove(entry.getKey());
+                        return Decision.EXIT;
+                    default:
+                        return decision;
+                }
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int selectNearest(K key, int count,
+            Collection<? super Map.Entry<K, V>> entries) {
+        return current.selectNearest(key, count, entries);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int selectNearest(K key, int count,
+            Predicate<? super Map.Entry<K, V>> predicate,
+            Collection<? super Map.Entry<K, V>> entries) {
+        return current.selectNearest(key, count, predicate, entries);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map.Entry<K, V> longestPrefixEntry(K key, int lengthInBits) {
+        return current.longestPrefixEntry(key, lengthInBits);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The traversal works on the current version. The entries
+     * a {@link Cursor} removes are removed from this {@link Trie}.
+     */
+    @Override
+    public Map.Entry<K, V> traverse(final Cursor<? super K, ? super V> cursor) {
+        return current.traverse(new Cursor<K, V>() {
+            @Override
+            public Decision select(Map.Entry<? extends K, ? extends V> entry) {
+                Decision decision = cursor.select(entry);
+                switch (decision) {
+                    case REMOVE:
+                        VersionedPatriciaTrie.this.remove(entry.getKey());
+                        return Decision.CONTINUE;
+                    case REMOVE_AND_EXIT:
+                        VersionedPatriciaTrie.this.remove(entry.getKey());
+                        return Decision.EXIT;
+                    default:
+                        return decision;
+                }
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Comparator<? super K> comparator() {
+        return keyAnalyzer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K firstKey() {
+        return current.firstKey();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public K lastKey() {
+        return current.lastKey();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> headMap(K toKey) {
+        return current.headMap(toKey);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> subMap(K fromKey, K toKey) {
+        return current.subMap(fromKey, toKey);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> tailMap(K fromKey) {
+        return current.tailMap(fromKey);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedBy(K key) {
+        return current.getPrefixedBy(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedBy(K key, int length) {
+        return current.getPrefixedBy(key, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedBy(K key, int offset, int length) {
+        return current.getPrefixedBy(key, offset, length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedByBits(K key, int lengthInBits) {
+        return current.getPrefixedByBits(key, lengthInBits);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<K, V> getPrefixedByBits(K key, int offsetInBits, int lengthInBits) {
+        return current.getPrefixedByBits(key, offsetInBits, lengthInBits);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<K> keySet() {
+        if (keySet == null) {
+            keySet = new KeySet();
+        }
+        return keySet;
+    }
+
+    /**
+     * An {@link Iterator} over a version of the {@link Trie}.
+     * It removes the keys from the current version.
+     */
+    private abstract class SnapshotIterator<E> implements Iterator<E> {
+
+        private final Iterator<Map.Entry<K, V>> it
+            = current.entrySet().iterator();
+
+        private Map.Entry<K, V> last = null;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        /**
+         * Returns the next {@link Map.Entry}
+         */
+        protected Map.Entry<K, V> nextEntry() {
+            last = it.next();
+            return last;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+
+            VersionedPatriciaTrie.this.remove(last.getKey());
+            last = null;
+        }
+    }
+
+    /**
+     * The entry set view of the {@link VersionedPatriciaTrie}
+     */
+    private class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator() {
+            return new SnapshotIterator<Map.Entry<K, V>>() {
+                @Override
+                public Map.Entry<K, V> next() {
+                    return nextEntry();
+                }
+            };
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean contains(Object o) {
+            return current.entrySet().contains(o);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean remove(Object o) {
+            synchronized (VersionedPatriciaTrie.this) {
+                if (!contains(o)) {
+                    return false;
+                }
+
+                VersionedPatriciaTrie.this.remove(((Map.Entry<?, ?>)o).getKey());
+                return true;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int size() {
+            return VersionedPatriciaTrie.this.size();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void clear() {
+            VersionedPatriciaTrie.this.clear();
+        }
+    }
+
+    /**
+     * The key set view of the {@link VersionedPatriciaTrie}
+     */
+    private class KeySet extends AbstractSet<K> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Iterator<K> iterator() {
+            return new SnapshotIterator<K>() {
+                @Override
+                public K next() {
+                    return nextEntry().getKey();
+                }
+            };
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean contains(Object o) {
+            return containsKey(o);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean remove(Object o) {
+            synchronized (VersionedPatriciaTrie.this) {
+                if (!containsKey(o)) {
+                    return false;
+                }
+
+                VersionedPatriciaTrie.this.remove(o);
+                return true;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int size() {
+            return VersionedPatriciaTrie.this.size();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void clear() {
+            VersionedPatriciaTrie.this.clear();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.ardverk.collection;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class AutomataTest {
+
+    @Test
+    public void regex() {
+        String[] patterns = { "", "abc", "a|b|", "(a|bc)*d", "a+b?c{2}", "x{1,3}y{2,}",
+                "[a-c\\d_]+", "[^a-c]", "\\w\\W\\s\\S\\d\\D", ".*\\.txt", "(?:ab)+",
+                "\\u00e9t\\u00e9", "[-a]*", "a*?b++" };
+        String[] inputs = { "", "a", "b", "abc", "bcd", "ad", "bcbcad", "abcc", "acc",
+                "xyy", "xxxyyy", "xxxxyy", "a1_b", "d", "aa", "a! 7x", "a_\t-1!",
+                "file.txt", "file_txt", "abab", "\u00e9t\u00e9", "-a-", "aaab" };
+
+        for (String pattern : patterns) {
+            Automaton automaton = Automata.regex(pattern);
+            for (String input : inputs) {
+                TestCase.assertEquals(pattern + " " + input,
+                        Pattern.matches(pattern, input),
+                        Automata.matches(automaton, input));
+            }
+        }
+    }
+
+    @Test
+    public void glob() {
+        Automaton automaton = Automata.glob("user:*:session");
+        TestCase.assertTrue(Automata.matches(automaton, "user::session"));
+        TestCase.assertTrue(Automata.matches(automaton, "user:a:b:session"));
+        TestCase.assertFalse(Automata.matches(automaton, "user:session"));
+        TestCase.assertFalse(Automata.matches(automaton, "user:1:sessions"));
+
+        automaton = Automata.glob("?[a-c][!x]\\*");
+        TestCase.assertTrue(Automata.matches(automaton, "zby*"));
+        TestCase.assertFalse(Automata.matches(automaton, "zbx*"));
+        TestCase.assertFalse(Automata.matches(automaton, "zdy*"));
+        TestCase.assertFalse(Automata.matches(automaton, "zbyy"));
+
+        TestCase.assertTrue(Automata.matches(Automata.glob("[]]"), "]"));
+        TestCase.assertTrue(Automata.matches(Automata.glob("(a|b)"), "(a|b)"));
+        TestCase.assertTrue(Automata.matches(Automata.glob(""), ""));
+        TestCase.assertFalse(Automata.matches(Automata.glob(""), "a"));
+    }
+
+    @Test
+    public void syntaxErrors() {
+        String[] regexes = { "(a", "a)", "*a", "[a", "a{2", "a{3,1}", "^a", "a$",
+                "\\1", "(?=a)", "[b-a]", "a{5000}" };
+        for (String regex : regexes) {
+            try {
+                Automata.regex(regex);
+                TestCase.fail("Should have thrown PatternSyntaxException: " + regex);
+            } catch (PatternSyntaxException expected) {
+            }
+        }
+
+        try {
+            Automata.glob("[a");
+            TestCase.fail("Should have thrown PatternSyntaxException");
+        } catch (PatternSyntaxException expected) {
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.ardverk.collection;
 
 import java.math.BigInteger;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
 
 import junit.framework.TestCase;
@@ -76,6 +77,116 @@ public class ByteArrayKeyAnalyzerTest {
                 prefix, 4, prefixLength, key2));
     }
     
+    @Test
+    public void bitIndex() {
+        Random random = new Random(0);
+        
+        for (int i = 0; i < SIZE; i++) {
+            byte[] key = randomKey(random);
+            byte[] other = randomOther(random, key);
+            
+            int lengthInBits = random.nextInt(key.length * 8 + 1);
+            int otherLengthInBits = random.nextInt(other.length * 8 + 1);
+            if (random.nextBoolean()) {
+                lengthInBits = key.length * 8;
+                otherLengthInBits = other.length * 8;
+            }
+            
+            int offsetInBits = 0;
+            int otherOffsetInBits = 0;
+            if (random.nextInt(4) == 0) {
+                offsetInBits = random.nextInt(lengthInBits + 1);
+                otherOffsetInBits = random.nextInt(otherLengthInBits + 1);
+            }
+            
+            int length = Math.max(lengthInBits, otherLengthInBits);
+            ByteArrayKeyAnalyzer keyAnalyzer 
+                = new ByteArrayKeyAnalyzer(Math.max(0, length + random.nextInt(64) - 8));
+            
+            int expected = bitIndex(keyAnalyzer, key, offsetInBits, lengthInBits, 
+                    other, otherOffsetInBits, otherLengthInBits);
+            int actual = keyAnalyzer.bitIndex(key, offsetInBits, lengthInBits, 
+                    other, otherOffsetInBits, otherLengthInBits);
+            
+            TestCase.assertEquals(expected, actual);
+        }
+        
+        ByteArrayKeyAnalyzer keyAnalyzer = new ByteArrayKeyAnalyzer(160);
+        byte[] key = new byte[20];
+        TestCase.assertEquals(KeyAnalyzer.NULL_BIT_KEY, 
+                keyAnalyzer.bitIndex(key, 0, 160, null, 0, 0));
+        
+        key[19] = 1;
+        TestCase.assertEquals(159, 
+                keyAnalyzer.bitIndex(key, 0, 160, new byte[20], 0, 160));
+        TestCase.assertEquals(KeyAnalyzer.EQUAL_BIT_KEY, 
+                keyAnalyzer.bitIndex(key, 0, 160, key.clone(), 0, 160));
+    }
+    
+    /**
+     * The bit by bit reference implementation of 
+     * {@link ByteArrayKeyAnalyzer#bitIndex(byte[], int, int, byte[], int, int)}
+     */
+    private static int bitIndex(ByteArrayKeyAnalyzer keyAnalyzer, 
+            byte[] key, int offsetInBits, int lengthInBits, 
+            byte[] other, int otherOffsetInBits, int otherLengthInBits) {
+        
+        boolean allNull = true;
+        int length = Math.max(lengthInBits, otherLengthInBits);
+        int prefix = keyAnalyzer.getMaxLengthInBits() - length;
+        
+        if (prefix < 0) {
+            return KeyAnalyzer.OUT_OF_BOUNDS_BIT_KEY;
+        }
+        
+        for (int i = 0; i < length; i++) {
+            int index = prefix + (offsetInBits + i);
+            boolean value = keyAnalyzer.isBitSet(key, index, lengthInBits);
+                
+            if (value) {
+                allNull = false;
+            }
+            
+            int otherIndex = prefix + (otherOffsetInBits + i);
+            boolean otherValue = keyAnalyzer.isBitSet(other, otherIndex, otherLengthInBits);
+            
+            if (value != otherValue) {
+                return index;
+            }
+        }
+        
+        if (allNull) {
+            return KeyAnalyzer.NULL_BIT_KEY;
+        }
+        
+        return KeyAnalyzer.EQUAL_BIT_KEY;
+    }
+    
+    private static byte[] randomKey(Random random) {
+        byte[] key = new byte[random.nextInt(40)];
+        if (random.nextInt(8) != 0) {
+            random.nextBytes(key);
+        }
+        return key;
+    }
+    
+    /**
+     * Returns a key that is either random or shares a 
+     * (possibly long) prefix with the given key
+     */
+    private static byte[] randomOther(Random random, byte[] key) {
+        if (key.length == 0 || random.nextInt(4) == 0) {
+            return randomKey(random);
+        }
+        
+        byte[] other = key.clone();
+        if (random.nextInt(4) != 0) {
+            int bit = random.nextInt(other.length * 8);
+            other[bit / 8] ^= (0x80 >>> (bit % 8));
+        }
+        return other;
+    }
+    
     private static byte[] toByteArray(String value, int radix) {
         return toByteArray(Long.parseLong(value, radix));
     }
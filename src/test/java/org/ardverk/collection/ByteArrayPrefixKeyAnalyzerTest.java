@@ -0,0 +1,125 @@
+package org.ardverk.collection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class ByteArrayPrefixKeyAnalyzerTest {
+
+    @Test
+    public void ipv4Prefixes() {
+        PatriciaTrie<byte[], String> trie = new PatriciaTrie<byte[], String>(
+                ByteArrayPrefixKeyAnalyzer.INSTANCE);
+
+        TestCase.assertNull(trie.longestPrefixEntry(address(10, 1, 2, 3)));
+
+        trie.put(address(10), "10.0.0.0/8");
+        trie.put(address(10, 1), "10.1.0.0/16");
+        trie.put(address(10, 0), "10.0.0.0/16");
+        trie.put(address(10, 1, 2), "10.1.2.0/24");
+        trie.put(address(192, 168), "192.168.0.0/16");
+        TestCase.assertEquals(5, trie.size());
+
+        TestCase.assertEquals("10.1.2.0/24", route(trie, 10, 1, 2, 3));
+        TestCase.assertEquals("10.1.0.0/16", route(trie, 10, 1, 3, 3));
+        TestCase.assertEquals("10.0.0.0/16", route(trie, 10, 0, 2, 3));
+        TestCase.assertEquals("10.0.0.0/8", route(trie, 10, 2, 2, 3));
+        TestCase.assertEquals("192.168.0.0/16", route(trie, 192, 168, 1, 1));
+        TestCase.assertNull(route(trie, 192, 169, 1, 1));
+        TestCase.assertNull(route(trie, 11, 1, 2, 3));
+
+        // The default route
+        trie.put(address(), "0.0.0.0/0");
+        TestCase.assertEquals("0.0.0.0/0", route(trie, 11, 1, 2, 3));
+        TestCase.assertEquals("10.0.0.0/8", route(trie, 10, 2, 2, 3));
+
+        // 10.1.0.0/16 is 18 bits long
+        int length = 2 * ByteArrayPrefixKeyAnalyzer.LENGTH;
+        TestCase.assertEquals("10.1.0.0/16", 
+                trie.longestPrefixEntry(address(10, 1, 2, 3), length).getValue());
+        TestCase.assertEquals("10.0.0.0/8", 
+                trie.longestPrefixEntry(address(10, 1, 2, 3), length - 1).getValue());
+
+        TestCase.assertEquals(Arrays.asList("10.1.0.0/16", "10.1.2.0/24"), 
+                new ArrayList<String>(trie.getPrefixedBy(address(10, 1)).values()));
+        TestCase.assertEquals(4, trie.getPrefixedBy(address(10)).size());
+    }
+
+    @Test
+    public void longestPrefix() {
+        Random random = new Random(5);
+        for (int round = 0; round < 20; round++) {
+            PatriciaTrie<byte[], Integer> trie = new PatriciaTrie<byte[], Integer>(
+                    ByteArrayPrefixKeyAnalyzer.INSTANCE);
+            TreeMap<byte[], Integer> map = new TreeMap<byte[], Integer>(
+                    ByteArrayPrefixKeyAnalyzer.INSTANCE);
+
+            for (int i = random.nextInt(round * 20 + 1); i >= 0; --i) {
+                byte[] key = randomKey(random);
+                TestCase.assertEquals(map.put(key, i), trie.put(key, i));
+            }
+
+            TestCase.assertEquals(map.size(), trie.size());
+            List<byte[]> expected = new ArrayList<byte[]>(map.keySet());
+            List<byte[]> actual = new ArrayList<byte[]>(trie.keySet());
+            for (int i = 0; i < expected.size(); i++) {
+                TestCase.assertTrue(Arrays.equals(expected.get(i), actual.get(i)));
+            }
+
+            for (int i = 0; i < 50; i++) {
+                byte[] key = randomKey(random);
+                byte[] longest = null;
+                for (byte[] prefix : map.keySet()) {
+                    if (isPrefix(prefix, key) 
+                            && (longest == null || prefix.length > longest.length)) {
+                        longest = prefix;
+                    }
+                }
+
+                Map.Entry<byte[], Integer> entry = trie.longestPrefixEntry(key);
+                if (longest == null) {
+                    TestCase.assertNull(entry);
+                } else {
+                    TestCase.assertTrue(Arrays.equals(longest, entry.getKey()));
+                }
+            }
+        }
+    }
+
+    private static String route(Trie<byte[], String> trie, int... address) {
+        Map.Entry<byte[], String> entry = trie.longestPrefixEntry(address(address));
+        return entry != null ? entry.getValue() : null;
+    }
+
+    private static byte[] address(int... values) {
+        byte[] address = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            address[i] = (byte)values[i];
+        }
+        return address;
+    }
+
+    /**
+     * Returns a short key of the bytes 0, 1, 128 and 255
+     */
+    private static byte[] randomKey(Random random) {
+        int[] values = { 0, 1, 128, 255 };
+        byte[] key = new byte[random.nextInt(5)];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte)values[random.nextInt(values.length)];
+        }
+        return key;
+    }
+
+    private static boolean isPrefix(byte[] prefix, byte[] key) {
+        return prefix.length <= key.length 
+            && Arrays.equals(prefix, Arrays.copyOf(key, prefix.length));
+    }
+}
@@ -0,0 +1,204 @@
+package org.ardverk.collection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.Map.Entry;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class CompactPatriciaTrieTest {
+
+    @Test
+    public void testSimple() {
+        CompactPatriciaTrie<Integer, String> intTrie
+            = new CompactPatriciaTrie<Integer, String>(IntegerKeyAnalyzer.INSTANCE);
+        TestCase.assertTrue(intTrie.isEmpty());
+        TestCase.assertEquals(0, intTrie.size());
+
+        intTrie.put(1, "One");
+        TestCase.assertFalse(intTrie.isEmpty());
+        TestCase.assertEquals(1, intTrie.size());
+
+        TestCase.assertEquals("One", intTrie.remove(1));
+        TestCase.assertNull(intTrie.remove(1));
+        TestCase.assertTrue(intTrie.isEmpty());
+        TestCase.assertEquals(0, intTrie.size());
+
+        intTrie.put(1, "One");
+        TestCase.assertEquals("One", intTrie.get(1));
+        TestCase.assertEquals("One", intTrie.put(1, "NotOne"));
+        TestCase.assertEquals(1, intTrie.size());
+        TestCase.assertEquals("NotOne", intTrie.get(1));
+        TestCase.assertEquals("NotOne", intTrie.remove(1));
+        TestCase.assertNull(intTrie.put(1, "One"));
+
+        // The all null bit key is stored in the root
+        TestCase.assertNull(intTrie.put(0, "Zero"));
+        TestCase.assertEquals(2, intTrie.size());
+        TestCase.assertEquals(Integer.valueOf(0), intTrie.firstKey());
+        TestCase.assertEquals(Integer.valueOf(1), intTrie.lastKey());
+        TestCase.assertEquals("Zero", intTrie.remove(0));
+        TestCase.assertEquals(Integer.valueOf(1), intTrie.firstKey());
+
+        Map.Entry<Integer, String> entry = intTrie.entrySet().iterator().next();
+        entry.setValue("Uno");
+        TestCase.assertEquals("Uno", intTrie.get(1));
+    }
+
+    @Test
+    public void testAgainstPatriciaTrie() {
+        CompactPatriciaTrie<String, String> trie
+            = new CompactPatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE, 0);
+        PatriciaTrie<String, String> control
+            = new PatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+
+        trie.put("", "");
+        control.put("", "");
+
+        Random random = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            String key = TrieTestUtils.randomKey(random);
+            if (random.nextInt(3) == 0) {
+                TestCase.assertEquals(control.remove(key), trie.remove(key));
+            } else {
+                TestCase.assertEquals(control.put(key, key + i), trie.put(key, key + i));
+            }
+            TestCase.assertEquals(control.size(), trie.size());
+        }
+
+        TestCase.assertEquals(control, trie);
+        TestCase.assertEquals(new ArrayList<String>(control.keySet()),
+                new ArrayList<String>(trie.keySet()));
+        TestCase.assertEquals(control.firstKey(), trie.firstKey());
+        TestCase.assertEquals(control.lastKey(), trie.lastKey());
+
+        TrieTestUtils.assertBehavesLikePatriciaTrie(control, trie, random, 200);
+
+        // Remove everything through the Iterator
+        for (Iterator<String> it = trie.keySet().iterator(); it.hasNext(); ) {
+            String key = it.next();
+            if (random.nextBoolean()) {
+                it.remove();
+                control.remove(key);
+            }
+        }
+
+        TestCase.assertEquals(new ArrayList<String>(control.keySet()),
+                new ArrayList<String>(trie.keySet()));
+        trie.keySet().clear();
+        TestCase.assertTrue(trie.isEmpty());
+    }
+
+    @Test
+    public void testReuseNodes() {
+        CompactPatriciaTrie<Integer, Integer> trie
+            = new CompactPatriciaTrie<Integer, Integer>(IntegerKeyAnalyzer.INSTANCE, 100);
+
+        Random random = new Random(2);
+        for (int i = 0; i < 100; i++) {
+            trie.put(i, i);
+        }
+
+        for (int i = 0; i < 10000; i++) {
+            int key = random.nextInt(100);
+            TestCase.assertEquals(Integer.valueOf(key), trie.remove(key));
+            TestCase.assertNull(trie.put(key, key));
+        }
+
+        TestCase.assertEquals(100, trie.size());
+        for (int i = 0; i < 100; i++) {
+            TestCase.assertEquals(Integer.valueOf(i), trie.get(i));
+        }
+    }
+
+    @Test
+    public void testPrefixedBy() {
+        CompactPatriciaTrie<String, String> trie
+            = new CompactPatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+
+        final String[] keys = new String[]{
+                "Albert", "Xavier", "XyZ", "Anna", "Alien", "Alberto",
+                "Alberts", "Allie", "Alliese", "Alabama", "Banane",
+                "Blabla", "Amber", "Ammun", "Akka", "Akko", "Albertoo",
+                "Amma"
+        };
+
+        for (String key : keys) {
+            trie.put(key, key);
+        }
+
+        SortedMap<String, String> map = trie.getPrefixedBy("BAlice", 1, 2);
+        TestCase.assertEquals(8, map.size());
+        TestCase.assertEquals("Alabama", map.firstKey());
+        TestCase.assertEquals("Alliese", map.lastKey());
+        TestCase.assertEquals("Albertoo", map.get("Albertoo"));
+        TestCase.assertNull(map.get("Xavier"));
+
+        Iterator<String> it = map.keySet().iterator();
+        TestCase.assertEquals("Alabama", it.next());
+        it.remove();
+        TestCase.assertFalse(trie.containsKey("Alabama"));
+        TestCase.assertEquals(7, map.size());
+
+        // The view is backed by the Trie
+        trie.put("Alice", "Alice");
+        TestCase.assertEquals(Arrays.asList("Albert", "Alberto", "Albertoo",
+                "Alberts", "Alice", "Alien", "Allie", "Alliese"),
+                new ArrayList<String>(map.keySet()));
+
+        SortedMap<String, String> head = map.headMap("Alien");
+        TestCase.assertEquals("Alice", head.lastKey());
+        TestCase.assertEquals(5, head.size());
+
+        try {
+            map.put("Xavier", "Xavier");
+            TestCase.fail("Should have thrown IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        TestCase.assertTrue(trie.getPrefixedBy("Alz").isEmpty());
+        TestCase.assertTrue(trie.getPrefixedBy("Y").isEmpty());
+    }
+
+    @Test
+    public void testTraverseCursorRemove() {
+        CompactPatriciaTrie<Character, String> charTrie
+            = new CompactPatriciaTrie<Character, String>(CharacterKeyAnalyzer.INSTANCE);
+        for (char ch = 'a'; ch <= 'z'; ch++) {
+            charTrie.put(ch, String.valueOf(ch));
+        }
+
+        final List<Character> toRemove = Arrays.asList('g', 'd', 'e', 'm', 'p', 'q', 'r', 's');
+        final List<Character> visited = new ArrayList<Character>();
+        TestCase.assertNull(charTrie.traverse(new Cursor<Character, String>() {
+            public Decision select(Entry<? extends Character, ? extends String> entry) {
+                visited.add(entry.getKey());
+                return toRemove.contains(entry.getKey())
+                    ? Decision.REMOVE : Decision.CONTINUE;
+            }
+        }));
+
+        TestCase.assertEquals(26, visited.size());
+        TestCase.assertEquals(26 - toRemove.size(), charTrie.size());
+        for (Character key : charTrie.keySet()) {
+            TestCase.assertFalse(toRemove.contains(key));
+        }
+
+        Map.Entry<Character, String> entry = charTrie.select('d',
+                new Cursor<Character, String>() {
+            public Decision select(Entry<? extends Character, ? extends String> entry) {
+                return Decision.REMOVE_AND_EXIT;
+            }
+        });
+
+        TestCase.assertEquals(Character.valueOf('f'), entry.getKey());
+        TestCase.assertFalse(charTrie.containsKey('f'));
+    }
+}
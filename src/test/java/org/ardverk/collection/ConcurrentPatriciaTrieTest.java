@@ -0,0 +1,418 @@
+package org.ardverk.collection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class ConcurrentPatriciaTrieTest {
+
+    @Test
+    public void testSimple() {
+        ConcurrentPatriciaTrie<Integer, String> intTrie
+            = new ConcurrentPatriciaTrie<Integer, String>(IntegerKeyAnalyzer.INSTANCE);
+        TestCase.assertTrue(intTrie.isEmpty());
+        TestCase.assertEquals(0, intTrie.size());
+
+        intTrie.put(1, "One");
+        TestCase.assertFalse(intTrie.isEmpty());
+        TestCase.assertEquals(1, intTrie.size());
+
+        TestCase.assertEquals("One", intTrie.remove(1));
+        TestCase.assertNull(intTrie.remove(1));
+        TestCase.assertTrue(intTrie.isEmpty());
+        TestCase.assertEquals(0, intTrie.size());
+
+        intTrie.put(1, "One");
+        TestCase.assertEquals("One", intTrie.get(1));
+        TestCase.assertEquals("One", intTrie.put(1, "NotOne"));
+        TestCase.assertEquals(1, intTrie.size());
+        TestCase.assertEquals("NotOne", intTrie.get(1));
+        TestCase.assertEquals("NotOne", intTrie.remove(1));
+        TestCase.assertNull(intTrie.put(1, "One"));
+
+        // The all null bit key is an ordinary key
+        TestCase.assertNull(intTrie.put(0, "Zero"));
+        TestCase.assertEquals(2, intTrie.size());
+        TestCase.assertEquals(Integer.valueOf(0), intTrie.firstKey());
+        TestCase.assertEquals("Zero", intTrie.remove(0));
+    }
+
+    @Test
+    public void testConcurrentMap() {
+        ConcurrentPatriciaTrie<String, String> trie
+            = new ConcurrentPatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+
+        TestCase.assertNull(trie.putIfAbsent("Anna", "1"));
+        TestCase.assertEquals("1", trie.putIfAbsent("Anna", "2"));
+        TestCase.assertEquals("1", trie.get("Anna"));
+
+        TestCase.assertFalse(trie.replace("Anna", "2", "3"));
+        TestCase.assertTrue(trie.replace("Anna", "1", "3"));
+        TestCase.assertEquals("3", trie.replace("Anna", "4"));
+        TestCase.assertNull(trie.replace("Anael", "4"));
+        TestCase.assertFalse(trie.containsKey("Anael"));
+
+        TestCase.assertFalse(trie.remove("Anna", "3"));
+        TestCase.assertTrue(trie.remove("Anna", "4"));
+        TestCase.assertTrue(trie.isEmpty());
+
+        try {
+            trie.put("Anna", null);
+            TestCase.fail("Should have thrown NullPointerException");
+        } catch (NullPointerException expected) {
+        }
+
+        try {
+            trie.get(null);
+            TestCase.fail("Should have thrown NullPointerException");
+        } catch (NullPointerException expected) {
+        }
+    }
+
+    @Test
+    public void testAgainstTreeMap() {
+        ConcurrentPatriciaTrie<String, String> trie
+            = new ConcurrentPatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+        TreeMap<String, String> map = new TreeMap<String, String>();
+
+        trie.put("", "");
+        map.put("", "");
+
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            String key = TrieTestUtils.randomKey(random);
+            if (random.nextInt(3) == 0) {
+                TestCase.assertEquals(map.remove(key), trie.remove(key));
+            } else {
+                TestCase.assertEquals(map.put(key, key + i), trie.put(key, key + i));
+            }
+            TestCase.assertEquals(map.size(), trie.size());
+        }
+
+        TestCase.assertEquals(map, trie);
+        TrieTestUtils.assertNavigableMap(map, trie);
+        TrieTestUtils.assertNavigableMap(map.descendingMap(), trie.descendingMap());
+
+        for (int i = 0; i < 200; i++) {
+            String from = TrieTestUtils.randomKey(random);
+            String to = TrieTestUtils.randomKey(random);
+            if (from.compareTo(to) > 0) {
+                String tmp = from;
+                from = to;
+                to = tmp;
+            }
+
+            boolean fromInclusive = random.nextBoolean();
+            boolean toInclusive = random.nextBoolean();
+
+            TrieTestUtils.assertNavigableMap(map.subMap(from, fromInclusive, to, toInclusive),
+                    trie.subMap(from, fromInclusive, to, toInclusive));
+            TrieTestUtils.assertNavigableMap(map.headMap(to, toInclusive),
+                    trie.headMap(to, toInclusive));
+            TrieTestUtils.assertNavigableMap(map.tailMap(from, fromInclusive).descendingMap(),
+                    trie.tailMap(from, fromInclusive).descendingMap());
+            TrieTestUtils.assertNavigableMap(map.descendingMap().subMap(to, toInclusive, from, fromInclusive),
+                    trie.descendingMap().subMap(to, toInclusive, from, fromInclusive));
+        }
+
+        while (!map.isEmpty()) {
+            if (random.nextBoolean()) {
+                TrieTestUtils.assertEntryKey(map.pollFirstEntry(), trie.pollFirstEntry());
+            } else {
+                TrieTestUtils.assertEntryKey(map.pollLastEntry(), trie.pollLastEntry());
+            }
+            TestCase.assertEquals(map.size(), trie.size());
+        }
+
+        TestCase.assertTrue(trie.isEmpty());
+        TestCase.assertNull(trie.firstEntry());
+
+        try {
+            trie.lastKey();
+            TestCase.fail("Should have thrown NoSuchElementException");
+        } catch (NoSuchElementException expected) {
+        }
+    }
+
+    @Test
+    public void testAgainstPatriciaTrie() {
+        ConcurrentPatriciaTrie<String, String> trie
+            = new ConcurrentPatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+        PatriciaTrie<String, String> control
+            = new PatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+
+        Random random = new Random(2);
+        for (int i = 0; i < 500; i++) {
+            String key = TrieTestUtils.randomKey(random);
+            trie.put(key, key);
+            control.put(key, key);
+        }
+
+        TrieTestUtils.assertBehavesLikePatriciaTrie(control, trie, random, 200);
+    }
+
+    @Test
+    public void testPrefixedBy() {
+        ConcurrentPatriciaTrie<String, String> trie
+            = new ConcurrentPatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+
+        final String[] keys = new String[]{
+                "Albert", "Xavier", "XyZ", "Anna", "Alien", "Alberto",
+                "Alberts", "Allie", "Alliese", "Alabama", "Banane",
+                "Blabla", "Amber", "Ammun", "Akka", "Akko", "Albertoo",
+                "Amma"
+        };
+
+        for (String key : keys) {
+            trie.put(key, key);
+        }
+
+        SortedMap<String, String> map = trie.getPrefixedBy("BAlice", 1, 2);
+        TestCase.assertEquals(8, map.size());
+        TestCase.assertEquals("Alabama", map.firstKey());
+        TestCase.assertEquals("Alliese", map.lastKey());
+        TestCase.assertEquals("Albertoo", map.get("Albertoo"));
+        TestCase.assertNull(map.get("Xavier"));
+
+        Iterator<String> it = map.keySet().iterator();
+        TestCase.assertEquals("Alabama", it.next());
+        it.remove();
+        TestCase.assertFalse(trie.containsKey("Alabama"));
+        TestCase.assertEquals(7, map.size());
+
+        // The view is backed by the Trie
+        trie.put("Alice", "Alice");
+        TestCase.assertEquals(Arrays.asList("Albert", "Alberto", "Albertoo",
+                "Alberts", "Alice", "Alien", "Allie", "Alliese"),
+                new ArrayList<String>(map.keySet()));
+
+        SortedMap<String, String> head = map.headMap("Alien");
+        TestCase.assertEquals("Alice", head.lastKey());
+        TestCase.assertEquals(5, head.size());
+
+        try {
+            map.put("Xavier", "Xavier");
+            TestCase.fail("Should have thrown IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        TestCase.assertTrue(trie.getPrefixedBy("Alz").isEmpty());
+        TestCase.assertTrue(trie.getPrefixedBy("Y").isEmpty());
+    }
+
+    @Test
+    public void testTraverseCursorRemove() {
+        ConcurrentPatriciaTrie<Character, String> charTrie
+            = new ConcurrentPatriciaTrie<Character, String>(CharacterKeyAnalyzer.INSTANCE);
+        for (char ch = 'a'; ch <= 'z'; ch++) {
+            charTrie.put(ch, String.valueOf(ch));
+        }
+
+        final List<Character> toRemove = Arrays.asList('g', 'd', 'e', 'm', 'p', 'q', 'r', 's');
+        final List<Character> visited = new ArrayList<Character>();
+        TestCase.assertNull(charTrie.traverse(new Cursor<Character, String>() {
+            public Decision select(Entry<? extends Character, ? extends String> entry) {
+                visited.add(entry.getKey());
+                return toRemove.contains(entry.getKey())
+                    ? Decision.REMOVE : Decision.CONTINUE;
+            }
+        }));
+
+        TestCase.assertEquals(26, visited.size());
+        TestCase.assertEquals(26 - toRemove.size(), charTrie.size());
+        for (Character key : charTrie.keySet()) {
+            TestCase.assertFalse(toRemove.contains(key));
+        }
+
+        Map.Entry<Character, String> entry = charTrie.select('d',
+                new Cursor<Character, String>() {
+            public Decision select(Entry<? extends Character, ? extends String> entry) {
+                return Decision.REMOVE_AND_EXIT;
+            }
+        });
+
+        TestCase.assertEquals(Character.valueOf('f'), entry.getKey());
+        TestCase.assertFalse(charTrie.containsKey('f'));
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        ConcurrentPatriciaTrie<String, String> trie
+            = new ConcurrentPatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+        Random random = new Random(3);
+        for (int i = 0; i < 100; i++) {
+            String key = TrieTestUtils.randomKey(random);
+            trie.put(key, key);
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(baos);
+        out.writeObject(trie);
+        out.close();
+
+        ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(baos.toByteArray()));
+        @SuppressWarnings("unchecked")
+        ConcurrentPatriciaTrie<String, String> copy 
+            = (ConcurrentPatriciaTrie<String, String>)in.readObject();
+        in.close();
+
+        TestCase.assertEquals(trie, copy);
+        TestCase.assertEquals(new ArrayList<String>(trie.keySet()),
+                new ArrayList<String>(copy.keySet()));
+    }
+
+    /**
+     * Every thread inserts and removes keys from a small shared key
+     * space with the conditional operations and counts its successful
+     * inserts and removes. In the end every key must be in the Trie
+     * exactly as many times as it was inserted minus removed (zero or
+     * one times). Readers check that the values they see are valid
+     * and that the iterators return the keys in ascending order.
+     */
+    @Test
+    public void testConcurrency() throws InterruptedException {
+        final ConcurrentPatriciaTrie<Integer, Integer> trie
+            = new ConcurrentPatriciaTrie<Integer, Integer>(IntegerKeyAnalyzer.INSTANCE);
+
+        final int keys = 64;
+        final int writers = 4;
+        final int readers = 2;
+        final int operations = 50000;
+
+        final AtomicIntegerArray inserts = new AtomicIntegerArray(keys);
+        final AtomicIntegerArray removes = new AtomicIntegerArray(keys);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(writers + readers);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < writers; t++) {
+            final Random random = new Random(t);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < operations; i++) {
+                            int index = random.nextInt(keys);
+                            Integer key = key(index);
+                            switch (random.nextInt(4)) {
+                                case 0:
+                                    if (trie.putIfAbsent(key, key) == null) {
+                                        inserts.incrementAndGet(index);
+                                    }
+                                    break;
+                                case 1:
+                                    if (trie.remove(key) != null) {
+                                        removes.incrementAndGet(index);
+                                    }
+                                    break;
+                                case 2:
+                                    if (trie.remove(key, key)) {
+                                        removes.incrementAndGet(index);
+                                    }
+                                    break;
+                                default:
+                                    trie.replace(key, key, key);
+                                    break;
+                            }
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        for (int t = 0; t < readers; t++) {
+            final Random random = new Random(-t);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < operations / 100; i++) {
+                            Integer key = key(random.nextInt(keys));
+                            Integer value = trie.get(key);
+                            if (value != null && !value.equals(key)) {
+                                throw new AssertionError(value + " != " + key);
+                            }
+
+                            Integer previous = null;
+                            for (Integer current : trie.keySet()) {
+                                // The Trie is in the (unsigned) order of the bits
+                                if (previous != null
+                                        && Integer.compareUnsigned(previous, current) >= 0) {
+                                    throw new AssertionError(previous + " >= " + current);
+                                }
+                                previous = current;
+                            }
+
+                            Map.Entry<Integer, Integer> entry = trie.ceilingEntry(key);
+                            if (entry != null && Integer.compareUnsigned(entry.getKey(), key) < 0) {
+                                throw new AssertionError(entry + " < " + key);
+                            }
+
+                            trie.select(key);
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        start.countDown();
+        done.await();
+
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+
+        int size = 0;
+        for (int index = 0; index < keys; index++) {
+            int count = inserts.get(index) - removes.get(index);
+            TestCase.assertTrue("count=" + count, count == 0 || count == 1);
+            TestCase.assertEquals(count == 1, trie.containsKey(key(index)));
+            size += count;
+        }
+
+        TestCase.assertEquals(size, trie.size());
+        TestCase.assertEquals(size, new ArrayList<Integer>(trie.keySet()).size());
+    }
+
+    /**
+     * Spreads the keys over the whole Trie (including the all null bit key)
+     */
+    private static Integer key(int index) {
+        return index * 0x9E3779B9 & 0xFFFFFF00;
+    }
+}
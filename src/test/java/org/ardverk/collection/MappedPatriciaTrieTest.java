@@ -0,0 +1,168 @@
+package org.ardverk.collection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.ardverk.collection.MappedPatriciaTrie.Codec;
+import org.junit.Test;
+
+public class MappedPatriciaTrieTest {
+
+    @Test
+    public void testAgainstPatriciaTrie() throws IOException {
+        Random random = new Random(1);
+        for (int round = 0; round < 20; round++) {
+            PatriciaTrie<String, String> control
+                = new PatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+
+            if (random.nextBoolean()) {
+                control.put("", "");
+            }
+
+            int count = random.nextInt(round * 50 + 1);
+            for (int i = 0; i < count; i++) {
+                String key = TrieTestUtils.randomKey(random);
+                control.put(key, i % 10 != 0 ? key + i : null);
+            }
+
+            MappedPatriciaTrie<String, String> trie = write(control);
+
+            TestCase.assertEquals(control.size(), trie.size());
+            TestCase.assertEquals(control, trie);
+            TestCase.assertEquals(new HashMap<String, String>(control).hashCode(),
+                    trie.hashCode());
+            TestCase.assertEquals(new ArrayList<String>(control.keySet()),
+                    new ArrayList<String>(trie.keySet()));
+            TestCase.assertEquals(new ArrayList<String>(control.values()),
+                    new ArrayList<String>(trie.values()));
+
+            TrieTestUtils.assertBehavesLikePatriciaTrie(control, trie, random, 200);
+        }
+    }
+
+    @Test
+    public void testNullBitKey() throws IOException {
+        PatriciaTrie<Integer, String> control
+            = new PatriciaTrie<Integer, String>(IntegerKeyAnalyzer.INSTANCE);
+        for (int i = -20; i <= 20; i += 3) {
+            control.put(i, Integer.toString(i));
+        }
+        control.put(0, "Zero");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MappedPatriciaTrie.write(control, IntegerCodec.INSTANCE, Codec.STRING, out);
+
+        MappedPatriciaTrie<Integer, String> trie = new MappedPatriciaTrie<Integer, String>(
+                IntegerKeyAnalyzer.INSTANCE, IntegerCodec.INSTANCE, Codec.STRING,
+                ByteBuffer.wrap(out.toByteArray()));
+
+        TestCase.assertEquals(control, trie);
+        TestCase.assertEquals(control.firstKey(), trie.firstKey());
+        TestCase.assertEquals("Zero", trie.get(0));
+        TestCase.assertEquals(new ArrayList<Integer>(control.headMap(5).keySet()),
+                new ArrayList<Integer>(trie.headMap(5).keySet()));
+        TestCase.assertEquals(new ArrayList<Integer>(control.tailMap(0).keySet()),
+                new ArrayList<Integer>(trie.tailMap(0).keySet()));
+    }
+
+    @Test
+    public void testFile() throws IOException {
+        PatriciaTrie<String, String> control
+            = new PatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+        String[] keys = { "Albert", "Xavier", "XyZ", "Anna", "Alien", "Alberto" };
+        for (String key : keys) {
+            control.put(key, key.toUpperCase());
+        }
+
+        File file = File.createTempFile("MappedPatriciaTrieTest", ".trie");
+        try {
+            MappedPatriciaTrie.write(control, Codec.STRING, Codec.STRING, file);
+            MappedPatriciaTrie<String, String> trie = MappedPatriciaTrie.open(file,
+                    StringKeyAnalyzer.INSTANCE, Codec.STRING, Codec.STRING);
+
+            TestCase.assertEquals(control, trie);
+            TestCase.assertEquals("ALBERTO", trie.get("Alberto"));
+            TestCase.assertEquals(3, trie.getPrefixedBy("Al").size());
+            TestCase.assertEquals("Alien", trie.getPrefixedBy("Al").lastKey());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        MappedPatriciaTrie<String, String> trie = write(
+                new PatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE));
+
+        TestCase.assertTrue(trie.isEmpty());
+        TestCase.assertNull(trie.get("Hello"));
+        TestCase.assertNull(trie.select("Hello"));
+        TestCase.assertTrue(trie.getPrefixedBy("H").isEmpty());
+        TestCase.assertFalse(trie.entrySet().iterator().hasNext());
+    }
+
+    @Test
+    public void testReadOnly() throws IOException {
+        PatriciaTrie<String, String> control
+            = new PatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+        control.put("Hello", "World");
+        MappedPatriciaTrie<String, String> trie = write(control);
+
+        try {
+            trie.put("Foo", "Bar");
+            TestCase.fail("Should have thrown UnsupportedOperationException");
+        } catch (UnsupportedOperationException expected) {
+        }
+
+        try {
+            trie.entrySet().iterator().next().setValue("Bar");
+            TestCase.fail("Should have thrown UnsupportedOperationException");
+        } catch (UnsupportedOperationException expected) {
+        }
+
+        try {
+            trie.getPrefixedBy("H").clear();
+            TestCase.fail("Should have thrown UnsupportedOperationException");
+        } catch (UnsupportedOperationException expected) {
+        }
+
+        try {
+            new MappedPatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE,
+                    Codec.STRING, Codec.STRING, ByteBuffer.allocate(64));
+            TestCase.fail("Should have thrown IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        TestCase.assertEquals("World", trie.get("Hello"));
+    }
+
+    private static MappedPatriciaTrie<String, String> write(
+            PatriciaTrie<String, String> trie) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MappedPatriciaTrie.write(trie, Codec.STRING, Codec.STRING, out);
+        return new MappedPatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE,
+                Codec.STRING, Codec.STRING, ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    private static class IntegerCodec implements Codec<Integer> {
+
+        public static final IntegerCodec INSTANCE = new IntegerCodec();
+
+        @Override
+        public byte[] encode(Integer value) {
+            return ByteBuffer.allocate(4).putInt(value).array();
+        }
+
+        @Override
+        public Integer decode(ByteBuffer buffer, int offset, int length) {
+            return buffer.getInt(offset);
+        }
+    }
+}
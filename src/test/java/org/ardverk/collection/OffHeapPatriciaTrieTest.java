@@ -0,0 +1,249 @@
+package org.ardverk.collection;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.ardverk.collection.OffHeapPatriciaTrie.Visitor;
+import org.junit.Test;
+
+public class OffHeapPatriciaTrieTest {
+
+    private static final Comparator<byte[]> UNSIGNED = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] o1, byte[] o2) {
+            int length = Math.min(o1.length, o2.length);
+            for (int i = 0; i < length; i++) {
+                int diff = (o1[i] & 0xFF) - (o2[i] & 0xFF);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return o1.length - o2.length;
+        }
+    };
+
+    @Test
+    public void testAgainstTreeMap() {
+        Random random = new Random(3);
+        TreeMap<byte[], byte[]> control = new TreeMap<byte[], byte[]>(UNSIGNED);
+        OffHeapPatriciaTrie trie = new OffHeapPatriciaTrie(8192);
+        try {
+            for (int i = 0; i < 20000; i++) {
+                byte[] key = randomKey(random);
+                if (random.nextInt(3) == 0) {
+                    TestCase.assertEquals(control.remove(key) != null, trie.remove(key));
+                } else {
+                    byte[] value = new byte[random.nextInt(40)];
+                    random.nextBytes(value);
+                    TestCase.assertEquals(control.put(key, value) != null, trie.put(key, value));
+                }
+            }
+
+            TestCase.assertEquals(control.size(), trie.size());
+
+            for (int i = 0; i < 2000; i++) {
+                byte[] key = randomKey(random);
+                TestCase.assertEquals(control.containsKey(key), trie.containsKey(key));
+                TestCase.assertTrue(Arrays.equals(control.get(key), trie.get(key)));
+
+                byte[] prefix = Arrays.copyOf(key, random.nextInt(key.length + 1));
+                TestCase.assertEquals(toString(prefixedBy(control, prefix)),
+                        toString(scan(trie, prefix)));
+            }
+
+            TestCase.assertEquals(toString(control), toString(scan(trie, new byte[0])));
+        } finally {
+            trie.close();
+        }
+    }
+
+    @Test
+    public void testGet() {
+        OffHeapPatriciaTrie trie = new OffHeapPatriciaTrie();
+        try {
+            TestCase.assertFalse(trie.put(bytes("Hello"), bytes("World")));
+            TestCase.assertTrue(trie.put(bytes("Hello"), bytes("There")));
+            trie.put(new byte[0], bytes("Empty"));
+            trie.put(new byte[] { 0 }, bytes("Zero"));
+
+            ByteBuffer dst = ByteBuffer.allocate(8);
+            TestCase.assertEquals(5, trie.get(bytes("Hello"), dst));
+            TestCase.assertEquals(5, dst.position());
+            TestCase.assertEquals("There", new String(dst.array(), 0, 5));
+            TestCase.assertEquals(-1, trie.get(bytes("Help"), dst));
+
+            try {
+                trie.get(bytes("Hello"), dst);
+                TestCase.fail("Should have thrown BufferOverflowException");
+            } catch (BufferOverflowException expected) {
+            }
+            TestCase.assertEquals(5, dst.position());
+
+            TestCase.assertEquals(5, trie.valueLength(bytes("Hello")));
+            TestCase.assertEquals(-1, trie.valueLength(bytes("Help")));
+            dst = ByteBuffer.allocate(trie.valueLength(new byte[0]));
+            TestCase.assertEquals(5, trie.get(new byte[0], dst));
+            TestCase.assertFalse(dst.hasRemaining());
+
+            TestCase.assertEquals("Empty", new String(trie.get(new byte[0])));
+            TestCase.assertEquals("Zero", new String(trie.get(new byte[] { 0 })));
+            TestCase.assertEquals(3, trie.size());
+        } finally {
+            trie.close();
+        }
+    }
+
+    @Test
+    public void testMemoryReuse() {
+        OffHeapPatriciaTrie trie = new OffHeapPatriciaTrie(8192);
+        try {
+            byte[] big = new byte[10000];
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < 500; i++) {
+                    trie.put(bytes("key" + i), i % 100 == 0 ? big : bytes("value" + round));
+                }
+                for (int i = 0; i < 500; i++) {
+                    TestCase.assertTrue(trie.remove(bytes("key" + i)));
+                }
+            }
+
+            TestCase.assertTrue(trie.isEmpty());
+            TestCase.assertTrue(trie.getAllocatedBytes() < 10 * 8192);
+
+            trie.put(bytes("key"), bytes("small"));
+            trie.put(bytes("key"), big);
+            TestCase.assertEquals(big.length, trie.get(bytes("key")).length);
+            trie.put(bytes("key"), bytes("small"));
+            TestCase.assertEquals("small", new String(trie.get(bytes("key"))));
+
+            trie.clear();
+            TestCase.assertEquals(0L, trie.getAllocatedBytes());
+            TestCase.assertNull(trie.get(bytes("key")));
+        } finally {
+            trie.close();
+        }
+    }
+
+    @Test
+    public void testScanStops() {
+        OffHeapPatriciaTrie trie = new OffHeapPatriciaTrie();
+        try {
+            for (int i = 0; i < 100; i++) {
+                trie.put(bytes(String.format("%03d", i)), bytes(Integer.toString(i)));
+            }
+
+            final List<String> keys = new ArrayList<String>();
+            int count = trie.scan(bytes("0"), new Visitor() {
+                @Override
+                public boolean visit(ByteBuffer key, ByteBuffer value) {
+                    TestCase.assertTrue(key.isReadOnly());
+                    keys.add(string(key));
+                    return keys.size() < 5;
+                }
+            });
+
+            TestCase.assertEquals(5, count);
+            TestCase.assertEquals(Arrays.asList("000", "001", "002", "003", "004"), keys);
+            TestCase.assertEquals(0, trie.scan(bytes("2"), new Visitor() {
+                @Override
+                public boolean visit(ByteBuffer key, ByteBuffer value) {
+                    return true;
+                }
+            }));
+        } finally {
+            trie.close();
+        }
+    }
+
+    @Test
+    public void testClose() {
+        OffHeapPatriciaTrie trie = new OffHeapPatriciaTrie();
+        trie.put(bytes("Hello"), bytes("World"));
+        trie.close();
+        trie.close();
+
+        try {
+            trie.get(bytes("Hello"));
+            TestCase.fail("Should have thrown IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+
+        try {
+            trie.put(bytes("Hello"), bytes("World"));
+            TestCase.fail("Should have thrown IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes();
+    }
+
+    private static byte[] randomKey(Random random) {
+        byte[] key = new byte[random.nextInt(5)];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte)(random.nextInt(3) * 0x7F);
+        }
+        return key;
+    }
+
+    private static Map<byte[], byte[]> prefixedBy(TreeMap<byte[], byte[]> map, byte[] prefix) {
+        Map<byte[], byte[]> result = new TreeMap<byte[], byte[]>(UNSIGNED);
+        for (Map.Entry<byte[], byte[]> entry : map.tailMap(prefix).entrySet()) {
+            byte[] key = entry.getKey();
+            if (key.length < prefix.length
+                    || !Arrays.equals(prefix, Arrays.copyOf(key, prefix.length))) {
+                break;
+            }
+            result.put(key, entry.getValue());
+        }
+        return result;
+    }
+
+    private static Map<byte[], byte[]> scan(OffHeapPatriciaTrie trie, byte[] prefix) {
+        final Map<byte[], byte[]> result = new TreeMap<byte[], byte[]>(UNSIGNED);
+        final List<byte[]> keys = new ArrayList<byte[]>();
+        trie.scan(prefix, new Visitor() {
+            @Override
+            public boolean visit(ByteBuffer key, ByteBuffer value) {
+                byte[] k = new byte[key.remaining()];
+                byte[] v = new byte[value.remaining()];
+                key.get(k);
+                value.get(v);
+                keys.add(k);
+                result.put(k, v);
+                return true;
+            }
+        });
+
+        // The keys must come in order
+        List<byte[]> sorted = new ArrayList<byte[]>(keys);
+        sorted.sort(UNSIGNED);
+        TestCase.assertEquals(sorted, keys);
+        return result;
+    }
+
+    private static String toString(Map<byte[], byte[]> map) {
+        StringBuilder buffer = new StringBuilder();
+        for (Map.Entry<byte[], byte[]> entry : map.entrySet()) {
+            buffer.append(Arrays.toString(entry.getKey())).append('=')
+                .append(Arrays.toString(entry.getValue())).append(", ");
+        }
+        return buffer.toString();
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes);
+    }
+}
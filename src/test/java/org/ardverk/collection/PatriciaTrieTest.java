@@ -17,21 +17,36 @@
 package org.ardverk.collection;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.Set;
 import java.util.SortedMap;
+import java.util.Spliterator;
 import java.util.StringTokenizer;
 import java.util.TreeMap;
 import java.util.Map.Entry;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
 
 import junit.framework.TestCase;
 
@@ -268,6 +283,249 @@ public class PatriciaTrieTest {
         TestCase.assertNull(found);      
     }
     
+    @Test
+    public void testRangeLookupsAgainstTreeMap() {
+        PatriciaTrie<String, String> trie
+            = new PatriciaTrie<String, String>(new StringKeyAnalyzer());
+        TreeMap<String, String> map = new TreeMap<String, String>();
+
+        Random random = new Random(0);
+        for (int i = 0; i < 500; i++) {
+            String key = TrieTestUtils.randomKey(random);
+            trie.put(key, key);
+            map.put(key, key);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            String key = TrieTestUtils.randomKey(random);
+            trie.remove(key);
+            map.remove(key);
+        }
+
+        // The lookups must neither fail nor invalidate the Iterator
+        Iterator<String> it = trie.keySet().iterator();
+        int modCount = trie.modCount;
+
+        for (int i = 0; i < 1000; i++) {
+            String key = TrieTestUtils.randomKey(random);
+            TrieTestUtils.assertEntryKey(map.ceilingEntry(key), trie.ceilingEntry(key));
+            TrieTestUtils.assertEntryKey(map.floorEntry(key), trie.floorEntry(key));
+            TrieTestUtils.assertEntryKey(map.higherEntry(key), trie.higherEntry(key));
+            TrieTestUtils.assertEntryKey(map.lowerEntry(key), trie.lowerEntry(key));
+        }
+
+        TestCase.assertEquals(modCount, trie.modCount);
+        TestCase.assertEquals(map.firstKey(), it.next());
+    }
+
+    @Test
+    public void testNavigableMapAgainstTreeMap() {
+        PatriciaTrie<String, String> trie
+            = new PatriciaTrie<String, String>(new StringKeyAnalyzer());
+        TreeMap<String, String> map = new TreeMap<String, String>();
+
+        // The empty String lives in the root of the Trie
+        trie.put("", "");
+        map.put("", "");
+
+        Random random = new Random(1);
+        for (int i = 0; i < 300; i++) {
+            String key = TrieTestUtils.randomKey(random);
+            trie.put(key, key);
+            map.put(key, key);
+        }
+
+        TrieTestUtils.assertNavigableMap(map, trie);
+        TrieTestUtils.assertNavigableMap(map.descendingMap(), trie.descendingMap());
+        assertKeys(map.descendingKeySet(), trie.descendingKeySet());
+        assertKeys(map.descendingMap().descendingMap().keySet(), 
+                trie.descendingMap().descendingMap().keySet());
+
+        for (int i = 0; i < 200; i++) {
+            String from = TrieTestUtils.randomKey(random);
+            String to = TrieTestUtils.randomKey(random);
+            if (from.compareTo(to) > 0) {
+                String tmp = from;
+                from = to;
+                to = tmp;
+            }
+
+            boolean fromInclusive = random.nextBoolean();
+            boolean toInclusive = random.nextBoolean();
+
+            TrieTestUtils.assertNavigableMap(map.subMap(from, fromInclusive, to, toInclusive), 
+                    trie.subMap(from, fromInclusive, to, toInclusive));
+            TrieTestUtils.assertNavigableMap(map.headMap(to, toInclusive), 
+                    trie.headMap(to, toInclusive));
+            TrieTestUtils.assertNavigableMap(map.tailMap(from, fromInclusive), 
+                    trie.tailMap(from, fromInclusive));
+            TrieTestUtils.assertNavigableMap(map.descendingMap().subMap(to, toInclusive, from, fromInclusive), 
+                    trie.descendingMap().subMap(to, toInclusive, from, fromInclusive));
+            TrieTestUtils.assertNavigableMap(map.tailMap(from, fromInclusive).descendingMap(), 
+                    trie.tailMap(from, fromInclusive).descendingMap());
+            if (!from.equals(to)) {
+                TrieTestUtils.assertNavigableMap(map.tailMap(from, fromInclusive).headMap(to, toInclusive), 
+                        trie.tailMap(from, fromInclusive).headMap(to, toInclusive));
+            }
+        }
+
+        // Poll the Trie empty from both ends
+        while (!map.isEmpty()) {
+            if (random.nextBoolean()) {
+                TrieTestUtils.assertEntryKey(map.pollFirstEntry(), trie.pollFirstEntry());
+            } else {
+                TrieTestUtils.assertEntryKey(map.pollLastEntry(), trie.pollLastEntry());
+            }
+            TestCase.assertEquals(map.size(), trie.size());
+        }
+
+        TestCase.assertTrue(trie.isEmpty());
+        TestCase.assertNull(trie.pollFirstEntry());
+        TestCase.assertNull(trie.pollLastEntry());
+        TestCase.assertNull(trie.firstEntry());
+        TestCase.assertNull(trie.lastEntry());
+
+        try {
+            trie.firstKey();
+            TestCase.fail("Should have thrown NoSuchElementException");
+        } catch (NoSuchElementException expected) {
+        }
+    }
+
+    @Test
+    public void testNavigableMapViewsAreBacked() {
+        PatriciaTrie<String, String> trie
+            = new PatriciaTrie<String, String>(new StringKeyAnalyzer());
+        for (String key : new String[] { "a", "b", "c", "d", "e" }) {
+            trie.put(key, key);
+        }
+
+        NavigableMap<String, String> view = trie.subMap("b", false, "e", true).descendingMap();
+        TestCase.assertEquals(Arrays.asList("e", "d", "c"), 
+                new ArrayList<String>(view.keySet()));
+
+        TestCase.assertEquals("e", view.pollFirstEntry().getKey());
+        TestCase.assertFalse(trie.containsKey("e"));
+
+        Iterator<String> it = view.keySet().iterator();
+        TestCase.assertEquals("d", it.next());
+        it.remove();
+        TestCase.assertFalse(trie.containsKey("d"));
+
+        trie.put("bb", "bb");
+        TestCase.assertEquals(Arrays.asList("c", "bb"), 
+                new ArrayList<String>(view.keySet()));
+        TestCase.assertEquals(Arrays.asList("a", "b", "bb", "c"), 
+                new ArrayList<String>(trie.navigableKeySet()));
+
+        try {
+            view.put("a", "a");
+            TestCase.fail("Should have thrown IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testNavigableMapEntriesAreSnapshots() {
+        PatriciaTrie<String, String> trie
+            = new PatriciaTrie<String, String>(new StringKeyAnalyzer());
+        for (String key : new String[] { "a", "b", "c", "d", "e" }) {
+            trie.put(key, key.toUpperCase());
+        }
+
+        NavigableMap<String, String> view = trie.subMap("b", true, "d", true);
+        List<Map.Entry<String, String>> entries = Arrays.asList(
+                trie.firstEntry(), trie.lastEntry(),
+                trie.ceilingEntry("bb"), trie.floorEntry("bb"),
+                view.higherEntry("a"), view.lowerEntry("z"),
+                view.descendingMap().firstEntry());
+
+        for (Map.Entry<String, String> entry : entries) {
+            trie.remove(entry.getKey());
+        }
+        TestCase.assertEquals(Collections.emptyList(),
+                new ArrayList<String>(view.keySet()));
+
+        String[] keys = { "a", "e", "c", "b", "b", "d", "d" };
+        for (int i = 0; i < keys.length; i++) {
+            Map.Entry<String, String> entry = entries.get(i);
+            TestCase.assertEquals(keys[i], entry.getKey());
+            TestCase.assertEquals(keys[i].toUpperCase(), entry.getValue());
+            try {
+                entry.setValue("X");
+                TestCase.fail("Should have thrown UnsupportedOperationException");
+            } catch (UnsupportedOperationException expected) {
+            }
+        }
+    }
+
+    private static void assertKeys(Collection<String> expected, Collection<String> actual) {
+        TestCase.assertEquals(new ArrayList<String>(expected), 
+                new ArrayList<String>(actual));
+    }
+
+    @Test
+    public void testLongestPrefixEntry() {
+        PatriciaTrie<String, String> trie
+            = new PatriciaTrie<String, String>(new StringKeyAnalyzer());
+        
+        // "a" branches off to the left below the node where 
+        // the search for the last key turns right
+        trie.put("a\u0001", "a\u0001");
+        trie.put("a", "a");
+        trie.put("a\u8000", "a\u8000");
+        
+        TestCase.assertEquals("a", trie.longestPrefixOf("a\uC000"));
+        TestCase.assertEquals("a\u8000", trie.longestPrefixOf("a\u8000"));
+        TestCase.assertNull(trie.longestPrefixOf("b"));
+        
+        Random random = new Random(0);
+        for (int round = 0; round < 20; round++) {
+            trie.clear();
+            
+            if (random.nextBoolean()) {
+                trie.put("", "");
+            }
+            
+            for (int i = 0; i < 100; i++) {
+                String key = TrieTestUtils.randomKey(random);
+                trie.put(key, key);
+            }
+            
+            for (int i = 0; i < 200; i++) {
+                String key = TrieTestUtils.randomKey(random) + TrieTestUtils.randomKey(random);
+                int length = random.nextInt(key.length() + 1);
+                
+                TestCase.assertEquals(longestPrefixOf(trie.keySet(), key), 
+                        trie.longestPrefixOf(key));
+                
+                Map.Entry<String, String> entry 
+                    = trie.longestPrefixEntry(key, length * 16);
+                TestCase.assertEquals(longestPrefixOf(trie.keySet(), 
+                        key.substring(0, length)), 
+                        entry != null ? entry.getKey() : null);
+                
+                // The default implementations of the Trie interface
+                Trie<String, String> delegating = new DelegatingTrie<String, String>(trie);
+                TestCase.assertEquals(trie.longestPrefixOf(key), 
+                        delegating.longestPrefixOf(key));
+                TestCase.assertEquals(entry, 
+                        delegating.longestPrefixEntry(key, length * 16));
+            }
+        }
+    }
+    
+    private static String longestPrefixOf(Collection<String> keys, String key) {
+        String longest = null;
+        for (String prefix : keys) {
+            if (key.startsWith(prefix) 
+                    && (longest == null || prefix.length() > longest.length())) {
+                longest = prefix;
+            }
+        }
+        return longest;
+    }
+
     @Test
     public void testIteration() {
         PatriciaTrie<Integer, String> intTrie = new PatriciaTrie<Integer, String>(new IntegerKeyAnalyzer());
@@ -978,6 +1236,34 @@ public class PatriciaTrieTest {
         TestCase.assertFalse(iter.hasNext());
     }
 
+    @Test
+    public void testPrefixedByBranchAfterPrefix() {
+        PatriciaTrie<String, String> trie 
+            = new PatriciaTrie<String, String>(new StringKeyAnalyzer());
+        
+        // The keys branch at the first bit after the prefix
+        trie.put("Al\u8000", "Al\u8000");
+        TestCase.assertEquals(Arrays.asList("Al\u8000"), 
+                new ArrayList<String>(trie.getPrefixedBy("Al").keySet()));
+        
+        trie.put("Al", "Al");
+        trie.put("Al\u8001", "Al\u8001");
+        trie.put("Ak", "Ak");
+        
+        SortedMap<String, String> map = trie.getPrefixedBy("Al");
+        TestCase.assertEquals(3, map.size());
+        TestCase.assertEquals("Al", map.firstKey());
+        TestCase.assertEquals("Al\u8001", map.lastKey());
+        TestCase.assertEquals(Arrays.asList("Al", "Al\u8000", "Al\u8001"), 
+                new ArrayList<String>(map.keySet()));
+        
+        Iterator<String> it = map.keySet().iterator();
+        it.next();
+        it.remove();
+        TestCase.assertEquals(Arrays.asList("Al\u8000", "Al\u8001"), 
+                new ArrayList<String>(map.keySet()));
+    }
+    
     @Test
     public void testTraverseWithAllNullBitKey() {
         PatriciaTrie<String, String> trie 
@@ -1032,6 +1318,663 @@ public class PatriciaTrieTest {
         TestCase.assertEquals(1, strings.size());
     }
     
+    @Test
+    public void testSelectXorOrder() {
+        Random random = new Random(0);
+        
+        for (int round = 0; round < 50; round++) {
+            PatriciaTrie<Integer, Integer> trie 
+                = new PatriciaTrie<Integer, Integer>(new IntegerKeyAnalyzer());
+            
+            // Zero is the all null bit key that lives in the root
+            if (random.nextBoolean()) {
+                trie.put(0, 0);
+            }
+            
+            int size = random.nextInt(200);
+            for (int i = 0; i < size; i++) {
+                int key = random.nextInt();
+                trie.put(key, key);
+            }
+            
+            final int target = random.nextInt();
+            List<Integer> expected = new ArrayList<Integer>(trie.keySet());
+            Collections.sort(expected, new Comparator<Integer>() {
+                public int compare(Integer o1, Integer o2) {
+                    long d1 = (o1 ^ target) & 0xFFFFFFFFL;
+                    long d2 = (o2 ^ target) & 0xFFFFFFFFL;
+                    return d1 < d2 ? -1 : (d1 > d2 ? 1 : 0);
+                }
+            });
+            
+            final List<Integer> actual = new ArrayList<Integer>();
+            Map.Entry<Integer, Integer> entry = trie.select(target, 
+                    new Cursor<Integer, Integer>() {
+                public Decision select(Entry<? extends Integer, ? extends Integer> entry) {
+                    actual.add(entry.getKey());
+                    return Decision.CONTINUE;
+                }
+            });
+            
+            TestCase.assertNull(entry);
+            TestCase.assertEquals(expected, actual);
+            
+            if (expected.isEmpty()) {
+                TestCase.assertNull(trie.select(target));
+                continue;
+            }
+            
+            TestCase.assertEquals(expected.get(0), trie.selectKey(target));
+            
+            // Stop half-way and remove the last visited entry
+            final int stop = expected.size() / 2;
+            entry = trie.select(target, new Cursor<Integer, Integer>() {
+                private int count = 0;
+                public Decision select(Entry<? extends Integer, ? extends Integer> entry) {
+                    return (count++ == stop) ? Decision.REMOVE_AND_EXIT : Decision.CONTINUE;
+                }
+            });
+            
+            TestCase.assertEquals(expected.get(stop), entry.getKey());
+            TestCase.assertFalse(trie.containsKey(expected.get(stop)));
+        }
+    }
+    
+    @Test
+    public void testSelectNearest() {
+        Random random = new Random(0);
+        
+        for (int round = 0; round < 50; round++) {
+            PatriciaTrie<Integer, Integer> trie 
+                = new PatriciaTrie<Integer, Integer>(new IntegerKeyAnalyzer());
+            
+            if (random.nextBoolean()) {
+                trie.put(0, 0);
+            }
+            
+            int size = random.nextInt(200);
+            for (int i = 0; i < size; i++) {
+                int key = random.nextInt();
+                trie.put(key, key);
+            }
+            
+            int target = random.nextInt();
+            final List<Integer> all = new ArrayList<Integer>();
+            trie.select(target, new Cursor<Integer, Integer>() {
+                public Decision select(Entry<? extends Integer, ? extends Integer> entry) {
+                    all.add(entry.getKey());
+                    return Decision.CONTINUE;
+                }
+            });
+            
+            int count = random.nextInt(size + 2);
+            List<Map.Entry<Integer, Integer>> nearest 
+                = new ArrayList<Map.Entry<Integer, Integer>>();
+            int selected = trie.selectNearest(target, count, nearest);
+            
+            List<Integer> expected = all.subList(0, Math.min(count, all.size()));
+            TestCase.assertEquals(expected.size(), selected);
+            TestCase.assertEquals(expected, TrieTestUtils.keys(nearest));
+            
+            Predicate<Map.Entry<Integer, Integer>> even 
+                    = new Predicate<Map.Entry<Integer, Integer>>() {
+                public boolean test(Map.Entry<Integer, Integer> entry) {
+                    return (entry.getKey() & 1) == 0;
+                }
+            };
+            
+            expected = new ArrayList<Integer>();
+            for (Integer key : all) {
+                if ((key & 1) == 0 && expected.size() < count) {
+                    expected.add(key);
+                }
+            }
+            
+            nearest.clear();
+            selected = trie.selectNearest(target, count, even, nearest);
+            TestCase.assertEquals(expected.size(), selected);
+            TestCase.assertEquals(expected, TrieTestUtils.keys(nearest));
+            
+            // The default implementations of the Trie interface
+            Trie<Integer, Integer> delegating = new DelegatingTrie<Integer, Integer>(trie);
+            nearest.clear();
+            selected = delegating.selectNearest(target, count, even, nearest);
+            TestCase.assertEquals(expected.size(), selected);
+            TestCase.assertEquals(expected, TrieTestUtils.keys(nearest));
+            
+            nearest.clear();
+            delegating.selectNearest(target, count, nearest);
+            TestCase.assertEquals(all.subList(0, Math.min(count, all.size())), 
+                    TrieTestUtils.keys(nearest));
+        }
+    }
+    
+    @Test
+    public void testFromSorted() {
+        Random random = new Random(0);
+        
+        for (int round = 0; round < 50; round++) {
+            TreeMap<String, String> map = new TreeMap<String, String>();
+            if (random.nextBoolean()) {
+                map.put("", "");
+            }
+            
+            int size = random.nextInt(500);
+            for (int i = 0; i < size; i++) {
+                int length = random.nextInt(8);
+                StringBuilder buffer = new StringBuilder();
+                for (int j = 0; j < length; j++) {
+                    buffer.append((char)('a' + random.nextInt(3)));
+                }
+                map.put(buffer.toString(), Integer.toString(i));
+            }
+            
+            PatriciaTrie<String, String> trie 
+                = PatriciaTrie.fromSorted(StringKeyAnalyzer.INSTANCE, map);
+            TestCase.assertEquals(map, trie);
+            TestCase.assertEquals(new ArrayList<String>(map.keySet()), 
+                    new ArrayList<String>(trie.keySet()));
+            TestCase.assertEquals(new ArrayList<String>(map.descendingKeySet()), 
+                    new ArrayList<String>(trie.descendingKeySet()));
+            
+            // The structure must be the same as with put()
+            PatriciaTrie<String, String> control 
+                = new PatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE, map);
+            for (String key : new ArrayList<String>(map.keySet())) {
+                TestCase.assertEquals(control.selectKey(key + "a"), trie.selectKey(key + "a"));
+                if (random.nextBoolean()) {
+                    TestCase.assertEquals(map.remove(key), trie.remove(key));
+                    control.remove(key);
+                }
+            }
+            TestCase.assertEquals(new ArrayList<String>(control.keySet()), 
+                    new ArrayList<String>(trie.keySet()));
+        }
+        
+        // Integers aren't in the order of their bits if some are negative
+        List<Map.Entry<Integer, Integer>> entries 
+            = new ArrayList<Map.Entry<Integer, Integer>>();
+        TreeMap<Integer, Integer> map = new TreeMap<Integer, Integer>();
+        for (int i = -100; i < 100; i++) {
+            int key = i * 7919;
+            entries.add(new AbstractMap.SimpleEntry<Integer, Integer>(key, i));
+            map.put(key, i);
+        }
+        entries.add(new AbstractMap.SimpleEntry<Integer, Integer>(0, 42));
+        map.put(0, 42);
+        
+        PatriciaTrie<Integer, Integer> trie 
+            = PatriciaTrie.fromSorted(IntegerKeyAnalyzer.INSTANCE, entries.iterator());
+        TestCase.assertEquals(map, trie);
+        TestCase.assertEquals(Integer.valueOf(0), trie.firstKey());
+        TestCase.assertEquals(Integer.valueOf(-7919), trie.lastKey());
+    }
+    
+    @Test
+    public void testStackIterators() {
+        Random random = new Random(5);
+        
+        for (int round = 0; round < 30; round++) {
+            PatriciaTrie<String, Integer> trie 
+                = new PatriciaTrie<String, Integer>(StringKeyAnalyzer.INSTANCE);
+            TreeMap<String, Integer> map = new TreeMap<String, Integer>();
+            if (random.nextBoolean()) {
+                trie.put("", -1);
+                map.put("", -1);
+            }
+            
+            int size = random.nextInt(round * 20 + 1);
+            for (int i = 0; i < size; i++) {
+                int length = 1 + random.nextInt(6);
+                StringBuilder buffer = new StringBuilder();
+                for (int j = 0; j < length; j++) {
+                    buffer.append((char)('a' + random.nextInt(3)));
+                }
+                trie.put(buffer.toString(), i);
+                map.put(buffer.toString(), i);
+            }
+            
+            List<String> expected = new ArrayList<String>(trie.keySet());
+            
+            TestCase.assertFalse(trie.isStackIterators());
+            trie.setStackIterators(true);
+            TestCase.assertTrue(trie.isStackIterators());
+            
+            TestCase.assertEquals(expected, new ArrayList<String>(trie.keySet()));
+            TestCase.assertEquals(new ArrayList<Integer>(map.values()), 
+                    new ArrayList<Integer>(trie.values()));
+            
+            // Remove some of the keys while iterating
+            Iterator<Map.Entry<String, Integer>> it = trie.entrySet().iterator();
+            Iterator<String> control = map.keySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Integer> entry = it.next();
+                TestCase.assertEquals(control.next(), entry.getKey());
+                if (random.nextInt(3) == 0) {
+                    it.remove();
+                    control.remove();
+                }
+            }
+            TestCase.assertFalse(control.hasNext());
+            TestCase.assertEquals(map, trie);
+            TestCase.assertEquals(new ArrayList<String>(map.keySet()), 
+                    new ArrayList<String>(trie.keySet()));
+        }
+        
+        PatriciaTrie<String, Integer> trie 
+            = new PatriciaTrie<String, Integer>(StringKeyAnalyzer.INSTANCE);
+        trie.setStackIterators(true);
+        
+        // A very deep Trie
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            buffer.append('a');
+            trie.put(buffer.toString(), i);
+        }
+        
+        int count = 0;
+        for (Iterator<Integer> it = trie.values().iterator(); it.hasNext(); ) {
+            TestCase.assertEquals(Integer.valueOf(count++), it.next());
+            if (count % 2 == 0) {
+                it.remove();
+            }
+        }
+        TestCase.assertEquals(10000, count);
+        TestCase.assertEquals(5000, trie.size());
+        
+        Iterator<String> it = trie.keySet().iterator();
+        it.next();
+        trie.put("b", -1);
+        try {
+            it.next();
+            TestCase.fail("Should have thrown a ConcurrentModificationException");
+        } catch (ConcurrentModificationException expected) {
+        }
+    }
+    
+    @Test
+    public void testPrefixViewSize() throws Exception {
+        Random random = new Random(7);
+        String[] prefixes = { "", "a", "b", "c", "ab", "ba", "cc", "abc", "bca", "aaaa" };
+        
+        for (int round = 0; round < 30; round++) {
+            TreeMap<String, Integer> map = new TreeMap<String, Integer>();
+            for (int i = random.nextInt(round * 20 + 1); i >= 0; --i) {
+                map.put(prefixKey(random), i);
+            }
+            
+            PatriciaTrie<String, Integer> trie;
+            if (random.nextBoolean()) {
+                trie = PatriciaTrie.fromSorted(StringKeyAnalyzer.INSTANCE, map);
+            } else {
+                trie = new PatriciaTrie<String, Integer>(StringKeyAnalyzer.INSTANCE, map);
+            }
+            
+            // The views are created once and stay in use
+            List<SortedMap<String, Integer>> views = new ArrayList<SortedMap<String, Integer>>();
+            for (String prefix : prefixes) {
+                views.add(trie.getPrefixedBy(prefix));
+            }
+            
+            for (int step = 0; step < 100; step++) {
+                String key = prefixKey(random);
+                switch (random.nextInt(4)) {
+                    case 0:
+                    case 1:
+                        TestCase.assertEquals(map.put(key, step), trie.put(key, step));
+                        break;
+                    case 2:
+                        TestCase.assertEquals(map.remove(key), trie.remove(key));
+                        break;
+                    default:
+                        SortedMap<String, Integer> view = views.get(random.nextInt(views.size()));
+                        Iterator<String> it = view.keySet().iterator();
+                        if (it.hasNext()) {
+                            TestCase.assertNotNull(map.remove(it.next()));
+                            it.remove();
+                        }
+                        break;
+                }
+                
+                for (int i = 0; i < prefixes.length; i++) {
+                    assertPrefixView(map, prefixes[i], views.get(i));
+                }
+            }
+            
+            PatriciaTrie<String, Integer> copy = copy(trie);
+            for (String prefix : prefixes) {
+                assertPrefixView(map, prefix, copy.getPrefixedBy(prefix));
+            }
+        }
+    }
+    
+    @Test
+    public void testOrderStatistics() {
+        Random random = new Random(11);
+        
+        for (int round = 0; round < 30; round++) {
+            PatriciaTrie<String, Integer> trie 
+                = new PatriciaTrie<String, Integer>(StringKeyAnalyzer.INSTANCE);
+            TreeMap<String, Integer> map = new TreeMap<String, Integer>();
+            
+            for (int step = 0; step < 200; step++) {
+                String key = prefixKey(random);
+                if (random.nextInt(3) != 0) {
+                    trie.put(key, step);
+                    map.put(key, step);
+                } else {
+                    trie.remove(key);
+                    map.remove(key);
+                }
+                
+                String other = prefixKey(random);
+                TestCase.assertEquals(map.headMap(other).size(), trie.rank(other));
+                TestCase.assertEquals(map.headMap(key).size(), trie.rank(key));
+                
+                String from = key.compareTo(other) <= 0 ? key : other;
+                String to = key.compareTo(other) <= 0 ? other : key;
+                TestCase.assertEquals(map.subMap(from, to).size(), trie.countRange(from, to));
+                TestCase.assertEquals(map.subMap(from, false, to, true).size(), 
+                        trie.countRange(from, false, to, true));
+                TestCase.assertEquals(map.subMap(from, true, to, true).size(), 
+                        trie.countRange(from, true, to, true));
+                TestCase.assertEquals(map.subMap(from, false, to, false).size(), 
+                        trie.countRange(from, false, to, false));
+            }
+            
+            int index = 0;
+            for (Map.Entry<String, Integer> entry : map.entrySet()) {
+                TestCase.assertEquals(entry, trie.entryAt(index));
+                TestCase.assertEquals(index, trie.rank(entry.getKey()));
+                ++index;
+            }
+        }
+        
+        PatriciaTrie<String, Integer> trie 
+            = new PatriciaTrie<String, Integer>(StringKeyAnalyzer.INSTANCE);
+        TestCase.assertEquals(0, trie.rank("a"));
+        
+        trie.put("b", 0);
+        try {
+            trie.entryAt(1);
+            TestCase.fail("Should have thrown an IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+        
+        try {
+            trie.countRange("b", "a");
+            TestCase.fail("Should have thrown an IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+    
+    @Test
+    public void testTopK() {
+        Random random = new Random(13);
+        String[] prefixes = { "", "a", "b", "ab", "cc", "abc", "bca" };
+        
+        ToLongFunction<Integer> score = new ToLongFunction<Integer>() {
+            @Override
+            public long applyAsLong(Integer value) {
+                return value;
+            }
+        };
+        
+        for (int round = 0; round < 20; round++) {
+            TreeMap<String, Integer> map = new TreeMap<String, Integer>();
+            for (int i = random.nextInt(round * 20 + 1); i >= 0; --i) {
+                map.put(prefixKey(random), random.nextInt(50));
+            }
+            
+            PatriciaTrie<String, Integer> trie;
+            if (random.nextBoolean()) {
+                trie = PatriciaTrie.fromSorted(StringKeyAnalyzer.INSTANCE, map);
+                trie.setScoreFunction(score);
+            } else {
+                trie = new PatriciaTrie<String, Integer>(StringKeyAnalyzer.INSTANCE);
+                trie.setScoreFunction(score);
+                trie.putAll(map);
+            }
+            
+            for (int step = 0; step < 100; step++) {
+                String key = prefixKey(random);
+                switch (random.nextInt(5)) {
+                    case 0:
+                    case 1:
+                        int value = random.nextInt(50);
+                        TestCase.assertEquals(map.put(key, value), trie.put(key, value));
+                        break;
+                    case 2:
+                        TestCase.assertEquals(map.remove(key), trie.remove(key));
+                        break;
+                    case 3:
+                        Iterator<String> it = trie.getPrefixedBy("b").keySet().iterator();
+                        if (it.hasNext()) {
+                            map.remove(it.next());
+                            it.remove();
+                        }
+                        break;
+                    default:
+                        if (step % 10 == 0) {
+                            BiFunction<String, Integer, Integer> function 
+                                    = new BiFunction<String, Integer, Integer>() {
+                                @Override
+                                public Integer apply(String key, Integer value) {
+                                    return key.length() * 10 - value;
+                                }
+                            };
+                            map.replaceAll(function);
+                            trie.replaceAll(function);
+                        }
+                        break;
+                }
+                
+                String prefix = prefixes[random.nextInt(prefixes.length)];
+                int k = random.nextInt(8);
+                
+                List<Integer> expected = new ArrayList<Integer>(
+                        map.subMap(prefix, prefix + Character.MAX_VALUE).values());
+                Collections.sort(expected, Collections.reverseOrder());
+                expected = expected.subList(0, Math.min(k, expected.size()));
+                
+                List<Integer> actual = new ArrayList<Integer>();
+                for (Map.Entry<String, Integer> entry : trie.topK(prefix, k)) {
+                    TestCase.assertTrue(entry.getKey().startsWith(prefix));
+                    TestCase.assertEquals(map.get(entry.getKey()), entry.getValue());
+                    actual.add(entry.getValue());
+                }
+                TestCase.assertEquals(expected, actual);
+            }
+        }
+        
+        PatriciaTrie<String, Integer> trie 
+            = new PatriciaTrie<String, Integer>(StringKeyAnalyzer.INSTANCE);
+        try {
+            trie.topK("a", 1);
+            TestCase.fail("Should have thrown an IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+        
+        trie.setScoreFunction(score);
+        TestCase.assertTrue(trie.topK("a", 1).isEmpty());
+        
+        trie.put("", 3);
+        trie.put("abc", 1);
+        trie.put("abd", 2);
+        TestCase.assertEquals("", trie.topK("", 1).get(0).getKey());
+        TestCase.assertEquals("abd", trie.topK("ab", 1).get(0).getKey());
+        TestCase.assertEquals("abc", trie.topK("abc", 5).get(0).getKey());
+        TestCase.assertEquals(1, trie.topK("abc", 5).size());
+    }
+    
+    private static String prefixKey(Random random) {
+        int length = random.nextInt(6);
+        StringBuilder buffer = new StringBuilder();
+        for (int j = 0; j < length; j++) {
+            buffer.append((char)('a' + random.nextInt(3)));
+        }
+        return buffer.toString();
+    }
+    
+    private static void assertPrefixView(TreeMap<String, Integer> map, 
+            String prefix, SortedMap<String, Integer> view) {
+        SortedMap<String, Integer> expected = map.subMap(prefix, prefix + Character.MAX_VALUE);
+        
+        TestCase.assertEquals(expected.size(), view.size());
+        TestCase.assertEquals(expected.size(), view.entrySet().size());
+        TestCase.assertEquals(expected.isEmpty(), view.isEmpty());
+        TestCase.assertEquals(new ArrayList<String>(expected.keySet()), 
+                new ArrayList<String>(view.keySet()));
+        
+        if (expected.isEmpty()) {
+            try {
+                view.firstKey();
+                TestCase.fail("Should have thrown a NoSuchElementException");
+            } catch (NoSuchElementException expectedException) {
+            }
+        } else {
+            TestCase.assertEquals(expected.firstKey(), view.firstKey());
+            TestCase.assertEquals(expected.lastKey(), view.lastKey());
+            
+            SortedMap<String, Integer> head = view.headMap(expected.lastKey());
+            TestCase.assertEquals(expected.headMap(expected.lastKey()), head);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <K, V> PatriciaTrie<K, V> copy(PatriciaTrie<K, V> trie) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(baos);
+        out.writeObject(trie);
+        out.close();
+        
+        ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(baos.toByteArray()));
+        try {
+            return (PatriciaTrie<K, V>)in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+    
+    @Test
+    public void testSerialization() throws Exception {
+        PatriciaTrie<String, Integer> trie 
+            = new PatriciaTrie<String, Integer>(StringKeyAnalyzer.INSTANCE);
+        
+        // A very deep Trie
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            buffer.append('a');
+            trie.put(buffer.toString(), i);
+        }
+        trie.put("", -1);
+        trie.put("b", -2);
+        
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(baos);
+        out.writeObject(trie);
+        out.close();
+        
+        ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(baos.toByteArray()));
+        @SuppressWarnings("unchecked")
+        PatriciaTrie<String, Integer> copy 
+            = (PatriciaTrie<String, Integer>)in.readObject();
+        in.close();
+        
+        TestCase.assertEquals(trie, copy);
+        TestCase.assertEquals(new ArrayList<String>(trie.keySet()), 
+                new ArrayList<String>(copy.keySet()));
+        TestCase.assertEquals("aaa", copy.longestPrefixOf("aaab"));
+        
+        TestCase.assertEquals(Integer.valueOf(-1), copy.remove(""));
+        TestCase.assertNull(copy.put("c", -3));
+        TestCase.assertEquals(trie.size(), copy.size());
+        TestCase.assertEquals("c", copy.lastKey());
+    }
+    
+    @Test
+    public void testSpliterator() {
+        Random random = new Random(3);
+        
+        for (int round = 0; round < 20; round++) {
+            PatriciaTrie<String, Integer> trie 
+                = new PatriciaTrie<String, Integer>(StringKeyAnalyzer.INSTANCE);
+            if (random.nextBoolean()) {
+                trie.put("", -1);
+            }
+            
+            int size = random.nextInt(round * 100 + 1);
+            for (int i = 0; i < size; i++) {
+                int length = 1 + random.nextInt(6);
+                StringBuilder buffer = new StringBuilder();
+                for (int j = 0; j < length; j++) {
+                    buffer.append((char)('a' + random.nextInt(3)));
+                }
+                trie.put(buffer.toString(), i);
+            }
+            
+            List<String> keys = new ArrayList<String>(trie.keySet());
+            TestCase.assertEquals(keys, 
+                    trie.keySet().stream().collect(Collectors.toList()));
+            TestCase.assertEquals(keys, 
+                    trie.keySet().parallelStream().collect(Collectors.toList()));
+            TestCase.assertEquals(keys, TrieTestUtils.keys(trie.entrySet()
+                    .parallelStream().collect(Collectors.toList())));
+            TestCase.assertEquals(new ArrayList<Integer>(trie.values()), 
+                    trie.values().parallelStream().collect(Collectors.toList()));
+            
+            // Split all the way down and put the pieces back together
+            List<String> pieces = new ArrayList<String>();
+            split(trie.keySet().spliterator(), pieces);
+            TestCase.assertEquals(keys, pieces);
+            
+            for (String prefix : new String[] { "a", "ab", "bca", "c", "cccccc" }) {
+                SortedMap<String, Integer> map = trie.getPrefixedBy(prefix);
+                List<Map.Entry<String, Integer>> expected 
+                    = new ArrayList<Map.Entry<String, Integer>>(map.entrySet());
+                TestCase.assertEquals(expected, 
+                        map.entrySet().parallelStream().collect(Collectors.toList()));
+            }
+        }
+        
+        PatriciaTrie<String, Integer> trie 
+            = new PatriciaTrie<String, Integer>(StringKeyAnalyzer.INSTANCE);
+        trie.put("", 0);
+        trie.put("a", 1);
+        Spliterator<Map.Entry<String, Integer>> spliterator 
+            = trie.entrySet().spliterator();
+        TestCase.assertTrue(spliterator.hasCharacteristics(Spliterator.SORTED));
+        TestCase.assertTrue(spliterator.hasCharacteristics(Spliterator.DISTINCT));
+        TestCase.assertTrue(spliterator.getComparator().compare(
+                trie.firstEntry(), trie.lastEntry()) < 0);
+        
+        trie.put("b", 2);
+        try {
+            spliterator.tryAdvance(new Consumer<Map.Entry<String, Integer>>() {
+                public void accept(Map.Entry<String, Integer> entry) {
+                }
+            });
+            TestCase.fail("Should have thrown ConcurrentModificationException");
+        } catch (ConcurrentModificationException expected) {
+        }
+    }
+    
+    private static <E> void split(Spliterator<E> spliterator, final List<E> dst) {
+        Spliterator<E> prefix = spliterator.trySplit();
+        if (prefix != null) {
+            split(prefix, dst);
+            split(spliterator, dst);
+        } else {
+            spliterator.forEachRemaining(new Consumer<E>() {
+                public void accept(E element) {
+                    dst.add(element);
+                }
+            });
+        }
+    }
+    
     private static class TestCursor implements Cursor<Object, Object> {
         private List<Object> keys;
         private List<Object> values;
@@ -1109,4 +2052,108 @@ public class PatriciaTrieTest {
     private static void assertEqualArrays(Object[] a, Object[] b) {
         TestCase.assertTrue(Arrays.equals(a, b));
     }
+
+    /**
+     * A {@link Trie} that only implements the methods that have no 
+     * default implementation and gets everything from a {@link PatriciaTrie}
+     */
+    private static class DelegatingTrie<K, V> extends AbstractMap<K, V> 
+            implements Trie<K, V> {
+        
+        private final PatriciaTrie<K, V> trie;
+        
+        public DelegatingTrie(PatriciaTrie<K, V> trie) {
+            this.trie = trie;
+        }
+        
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+            return trie.entrySet();
+        }
+        
+        @Override
+        public V put(K key, V value) {
+            return trie.put(key, value);
+        }
+        
+        @Override
+        public Map.Entry<K, V> select(K key) {
+            return trie.select(key);
+        }
+        
+        @Override
+        public K selectKey(K key) {
+            return trie.selectKey(key);
+        }
+        
+        @Override
+        public V selectValue(K key) {
+            return trie.selectValue(key);
+        }
+        
+        @Override
+        public Map.Entry<K, V> select(K key, Cursor<? super K, ? super V> cursor) {
+            return trie.select(key, cursor);
+        }
+        
+        @Override
+        public Map.Entry<K, V> traverse(Cursor<? super K, ? super V> cursor) {
+            return trie.traverse(cursor);
+        }
+        
+        @Override
+        public SortedMap<K, V> getPrefixedBy(K key) {
+            return trie.getPrefixedBy(key);
+        }
+        
+        @Override
+        public SortedMap<K, V> getPrefixedBy(K key, int length) {
+            return trie.getPrefixedBy(key, length);
+        }
+        
+        @Override
+        public SortedMap<K, V> getPrefixedBy(K key, int offset, int length) {
+            return trie.getPrefixedBy(key, offset, length);
+        }
+        
+        @Override
+        public SortedMap<K, V> getPrefixedByBits(K key, int lengthInBits) {
+            return trie.getPrefixedByBits(key, lengthInBits);
+        }
+        
+        @Override
+        public SortedMap<K, V> getPrefixedByBits(K key, int offsetInBits, int lengthInBits) {
+            return trie.getPrefixedByBits(key, offsetInBits, lengthInBits);
+        }
+        
+        @Override
+        public Comparator<? super K> comparator() {
+            return trie.comparator();
+        }
+        
+        @Override
+        public SortedMap<K, V> subMap(K fromKey, K toKey) {
+            return trie.subMap(fromKey, toKey);
+        }
+        
+        @Override
+        public SortedMap<K, V> headMap(K toKey) {
+            return trie.headMap(toKey);
+        }
+        
+        @Override
+        public SortedMap<K, V> tailMap(K fromKey) {
+            return trie.tailMap(fromKey);
+        }
+        
+        @Override
+        public K firstKey() {
+            return trie.firstKey();
+        }
+        
+        @Override
+        public K lastKey() {
+            return trie.lastKey();
+        }
+    }
 }
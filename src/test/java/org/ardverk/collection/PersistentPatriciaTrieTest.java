@@ -0,0 +1,262 @@
+package org.ardverk.collection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Map.Entry;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class PersistentPatriciaTrieTest {
+
+    @Test
+    public void testAgainstPatriciaTrie() {
+        Random random = new Random(2);
+        PatriciaTrie<String, String> control
+            = new PatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+        PersistentPatriciaTrie<String, String> trie
+            = new PersistentPatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 50; i++) {
+                String key = TrieTestUtils.randomKey(random);
+                if (random.nextInt(3) == 0) {
+                    control.remove(key);
+                    trie = trie.minus(key);
+                } else {
+                    control.put(key, key + i);
+                    trie = trie.plus(key, key + i);
+                }
+            }
+
+            if (round % 5 == 0) {
+                control.put("", "Empty");
+                trie = trie.plus("", "Empty");
+            } else if (round % 5 == 3) {
+                control.remove("");
+                trie = trie.minus("");
+            }
+
+            TestCase.assertEquals(control.size(), trie.size());
+            TestCase.assertEquals(control, trie);
+            TestCase.assertEquals(new HashMap<String, String>(control).hashCode(),
+                    trie.hashCode());
+            TestCase.assertEquals(new ArrayList<String>(control.keySet()),
+                    new ArrayList<String>(trie.keySet()));
+
+            TrieTestUtils.assertBehavesLikePatriciaTrie(control, trie, random, 100);
+        }
+    }
+
+    @Test
+    public void testVersions() {
+        PersistentPatriciaTrie<String, String> empty
+            = new PersistentPatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+        PersistentPatriciaTrie<String, String> v1 = empty.plus("Hello", "World");
+        PersistentPatriciaTrie<String, String> v2 = v1.plus("Help", "Me");
+        PersistentPatriciaTrie<String, String> v3 = v2.plus("Hello", "There");
+        PersistentPatriciaTrie<String, String> v4 = v3.minus("Help");
+
+        TestCase.assertTrue(empty.isEmpty());
+        TestCase.assertEquals(1, v1.size());
+        TestCase.assertEquals("World", v1.get("Hello"));
+        TestCase.assertEquals(2, v2.size());
+        TestCase.assertEquals("World", v2.get("Hello"));
+        TestCase.assertEquals("There", v3.get("Hello"));
+        TestCase.assertEquals("Me", v3.get("Help"));
+        TestCase.assertEquals(1, v4.size());
+        TestCase.assertNull(v4.get("Help"));
+
+        TestCase.assertSame(v2, v2.plus("Help", "Me"));
+        TestCase.assertSame(v2, v2.minus("Foo"));
+        TestCase.assertTrue(v1.minus("Hello").isEmpty());
+
+        try {
+            v1.put("Foo", "Bar");
+            TestCase.fail("Should have thrown UnsupportedOperationException");
+        } catch (UnsupportedOperationException expected) {
+        }
+
+        try {
+            v1.entrySet().iterator().next().setValue("Bar");
+            TestCase.fail("Should have thrown UnsupportedOperationException");
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    @Test
+    public void testNullBitKey() {
+        PatriciaTrie<Integer, String> control
+            = new PatriciaTrie<Integer, String>(IntegerKeyAnalyzer.INSTANCE);
+        PersistentPatriciaTrie<Integer, String> trie
+            = new PersistentPatriciaTrie<Integer, String>(IntegerKeyAnalyzer.INSTANCE);
+        for (int i = -20; i <= 20; i += 3) {
+            control.put(i, Integer.toString(i));
+            trie = trie.plus(i, Integer.toString(i));
+        }
+        control.put(0, "Zero");
+        trie = trie.plus(0, "Zero");
+
+        TestCase.assertEquals(control, trie);
+        TestCase.assertEquals(control.firstKey(), trie.firstKey());
+        TestCase.assertEquals("Zero", trie.get(0));
+        TestCase.assertEquals(new ArrayList<Integer>(control.headMap(5).keySet()),
+                new ArrayList<Integer>(trie.headMap(5).keySet()));
+
+        trie = trie.minus(0);
+        TestCase.assertFalse(trie.containsKey(0));
+        TestCase.assertEquals(control.size() - 1, trie.size());
+    }
+
+    @Test
+    public void testDeepTrie() {
+        PersistentPatriciaTrie<String, Integer> trie
+            = new PersistentPatriciaTrie<String, Integer>(StringKeyAnalyzer.INSTANCE);
+
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            buffer.append('a');
+            trie = trie.plus(buffer.toString(), i);
+        }
+
+        TestCase.assertEquals(5000, trie.size());
+        TestCase.assertEquals(Integer.valueOf(4999), trie.get(buffer.toString()));
+        TestCase.assertEquals(4999, trie.getPrefixedBy("aa").size());
+        TestCase.assertEquals(buffer.toString(), trie.lastKey());
+
+        PersistentPatriciaTrie<String, Integer> copy = serialize(trie);
+        TestCase.assertEquals(trie, copy);
+    }
+
+    @Test
+    public void testSerialization() {
+        PersistentPatriciaTrie<String, String> trie
+            = new PersistentPatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+        trie = trie.plus("", "Empty").plus("Hello", "World").plus("Help", null);
+
+        PersistentPatriciaTrie<String, String> copy = serialize(trie);
+        TestCase.assertEquals(trie, copy);
+        TestCase.assertTrue(copy.containsKey("Help"));
+        TestCase.assertEquals("Empty", copy.get(""));
+
+        VersionedPatriciaTrie<String, String> versioned
+            = new VersionedPatriciaTrie<String, String>(trie);
+        TestCase.assertEquals(trie, serialize(versioned));
+    }
+
+    @Test
+    public void testVersionedPatriciaTrie() {
+        VersionedPatriciaTrie<String, String> trie
+            = new VersionedPatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+
+        TestCase.assertNull(trie.put("Hello", "World"));
+        TestCase.assertEquals("World", trie.put("Hello", "There"));
+        trie.put("Help", "Me");
+        trie.put("Foo", "Bar");
+
+        PersistentPatriciaTrie<String, String> snapshot = trie.snapshot();
+        TestCase.assertEquals("Me", trie.remove("Help"));
+        TestCase.assertEquals(2, trie.size());
+        TestCase.assertEquals(3, snapshot.size());
+        TestCase.assertEquals("Me", snapshot.get("Help"));
+        TestCase.assertEquals(1, trie.getPrefixedBy("Hel").size());
+
+        Iterator<String> it = trie.keySet().iterator();
+        trie.put("Zoo", "Keeper");
+        List<String> keys = new ArrayList<String>();
+        while (it.hasNext()) {
+            String key = it.next();
+            keys.add(key);
+            if (key.equals("Foo")) {
+                it.remove();
+            }
+        }
+
+        TestCase.assertEquals(2, keys.size());
+        TestCase.assertFalse(trie.containsKey("Foo"));
+        TestCase.assertTrue(trie.containsKey("Zoo"));
+
+        trie.restore(snapshot);
+        TestCase.assertEquals(snapshot, trie);
+        TestCase.assertTrue(trie.entrySet().remove(
+                new AbstractMap.SimpleEntry<String, String>("Help", "Me")));
+        TestCase.assertFalse(trie.keySet().remove("Help"));
+
+        trie.traverse(new Cursor<String, String>() {
+            @Override
+            public Decision select(Entry<? extends String, ? extends String> entry) {
+                return entry.getKey().equals("Foo") ? Decision.REMOVE : Decision.CONTINUE;
+            }
+        });
+        TestCase.assertEquals(1, trie.size());
+        TestCase.assertEquals("There", trie.get("Hello"));
+
+        trie.clear();
+        TestCase.assertTrue(trie.isEmpty());
+        TestCase.assertEquals(3, snapshot.size());
+    }
+
+    @Test
+    public void testConcurrentReaders() throws InterruptedException {
+        final VersionedPatriciaTrie<String, Integer> trie
+            = new VersionedPatriciaTrie<String, Integer>(StringKeyAnalyzer.INSTANCE);
+        final Throwable[] error = new Throwable[1];
+
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 200; i++) {
+                        PersistentPatriciaTrie<String, Integer> snapshot = trie.snapshot();
+                        int count = 0;
+                        for (Integer value : snapshot.values()) {
+                            TestCase.assertEquals(count++, value.intValue());
+                        }
+                        TestCase.assertEquals(snapshot.size(), count);
+                    }
+                } catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        };
+        reader.start();
+
+        for (int i = 0; i < 2000; i++) {
+            trie.put(String.format("%05d", i), i);
+        }
+
+        reader.join();
+        if (error[0] != null) {
+            throw new AssertionError(error[0]);
+        }
+        TestCase.assertEquals(2000, trie.size());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T serialize(Object o) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(baos);
+            out.writeObject(o);
+            out.close();
+
+            ObjectInputStream in = new ObjectInputStream(
+                    new ByteArrayInputStream(baos.toByteArray()));
+            return (T)in.readObject();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        } catch (ClassNotFoundException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package org.ardverk.collection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.ardverk.collection.PrimitivePatriciaTrieBase.PrimitiveEntry;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Tests the {@link IntPatriciaTrie} and the {@link LongPatriciaTrie}. The 
+ * keys are the bits of the {@link PrimitivePatriciaTrieBase}.
+ */
+@RunWith(Parameterized.class)
+public class PrimitivePatriciaTrieTest {
+
+    private static final Comparator<Long> UNSIGNED = new Comparator<Long>() {
+        @Override
+        public int compare(Long o1, Long o2) {
+            return Long.compareUnsigned(o1, o2);
+        }
+    };
+
+    @Parameters
+    public static Collection<Object[]> lengths() {
+        return Arrays.asList(new Object[][] { 
+                { Integer.SIZE }, { Long.SIZE } });
+    }
+
+    private final int lengthInBits;
+
+    public PrimitivePatriciaTrieTest(int lengthInBits) {
+        this.lengthInBits = lengthInBits;
+    }
+
+    private <V> PrimitivePatriciaTrieBase<V, ?> newTrie() {
+        if (lengthInBits == Integer.SIZE) {
+            return new IntPatriciaTrie<V>();
+        }
+        return new LongPatriciaTrie<V>();
+    }
+
+    /**
+     * Returns the bits of the given key
+     */
+    private long bits(long key) {
+        return key << (Long.SIZE - lengthInBits);
+    }
+
+    @Test
+    public void testSimple() {
+        PrimitivePatriciaTrieBase<String, ?> trie = newTrie();
+        TestCase.assertTrue(trie.isEmpty());
+        TestCase.assertNull(trie.firstEntry());
+        TestCase.assertNull(trie.selectEntry(bits(1L)));
+
+        TestCase.assertNull(trie.putValue(bits(1L), "One"));
+        TestCase.assertEquals("One", trie.putValue(bits(1L), "NotOne"));
+        TestCase.assertEquals("NotOne", trie.findEntry(bits(1L)).getValue());
+        TestCase.assertEquals(1, trie.size());
+
+        // The all null bit key is stored in the root
+        TestCase.assertNull(trie.putValue(bits(0L), "Zero"));
+        TestCase.assertNull(trie.putValue(bits(-1L), "MinusOne"));
+        TestCase.assertEquals(3, trie.size());
+        TestCase.assertEquals(bits(0L), trie.firstEntry().bits);
+        TestCase.assertEquals(bits(-1L), trie.lastEntry().bits);
+        TestCase.assertEquals(bits(1L), trie.followingEntry(bits(1L), true, false).bits);
+        TestCase.assertEquals(bits(-1L), trie.followingEntry(bits(1L), false, false).bits);
+        TestCase.assertEquals(bits(0L), trie.followingEntry(bits(1L), false, true).bits);
+        TestCase.assertEquals("-1=MinusOne", trie.lastEntry().toString());
+
+        TestCase.assertEquals("Zero", trie.removeValue(bits(0L)));
+        TestCase.assertNull(trie.removeValue(bits(0L)));
+        TestCase.assertNull(trie.findEntry(bits(0L)));
+        TestCase.assertEquals(bits(1L), trie.selectEntry(bits(0L)).bits);
+        TestCase.assertEquals(2, trie.size());
+    }
+
+    @Test
+    public void testAgainstTreeMap() {
+        PrimitivePatriciaTrieBase<Long, ?> trie = newTrie();
+        TreeMap<Long, Long> map = new TreeMap<Long, Long>(UNSIGNED);
+
+        Random random = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            long bits = randomBits(random);
+            if (random.nextInt(3) == 0) {
+                TestCase.assertEquals(map.remove(bits), trie.removeValue(bits));
+            } else {
+                TestCase.assertEquals(map.put(bits, bits), trie.putValue(bits, bits));
+            }
+            TestCase.assertEquals(map.size(), trie.size());
+        }
+
+        TestCase.assertEquals(new ArrayList<Long>(map.keySet()), bits(trie.iterator()));
+
+        for (int i = 0; i < 1000; i++) {
+            long bits = randomBits(random);
+            PrimitiveEntry<Long, ?> entry = trie.findEntry(bits);
+            TestCase.assertEquals(map.get(bits), entry != null ? entry.getValue() : null);
+            assertEntryBits(map.ceilingKey(bits), trie.followingEntry(bits, true, false));
+            assertEntryBits(map.floorKey(bits), trie.followingEntry(bits, true, true));
+            assertEntryBits(map.higherKey(bits), trie.followingEntry(bits, false, false));
+            assertEntryBits(map.lowerKey(bits), trie.followingEntry(bits, false, true));
+
+            int lengthInBits = random.nextInt(this.lengthInBits + 1);
+            List<Long> expected = new ArrayList<Long>();
+            for (Long other : map.keySet()) {
+                if (lengthInBits == 0 || (bits ^ other) >>> (Long.SIZE - lengthInBits) == 0L) {
+                    expected.add(other);
+                }
+            }
+            TestCase.assertEquals(expected, bits(trie.prefixedBy(bits, lengthInBits)));
+        }
+
+        for (Iterator<? extends PrimitiveEntry<Long, ?>> it = trie.iterator(); it.hasNext(); ) {
+            long bits = it.next().bits;
+            if (random.nextBoolean()) {
+                it.remove();
+                map.remove(bits);
+            }
+        }
+
+        TestCase.assertEquals(new ArrayList<Long>(map.keySet()), bits(trie.iterator()));
+    }
+
+    @Test
+    public void testAgainstPatriciaTrie() {
+        PrimitivePatriciaTrieBase<Long, ?> trie = newTrie();
+        PatriciaTrie<Long, Long> control
+            = new PatriciaTrie<Long, Long>(LongKeyAnalyzer.INSTANCE);
+
+        Random random = new Random(2);
+        for (int i = 0; i < 1000; i++) {
+            long bits = randomBits(random);
+            trie.putValue(bits, bits);
+            control.put(bits, bits);
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            long bits = randomBits(random);
+            TestCase.assertEquals(control.selectKey(bits).longValue(),
+                    trie.selectEntry(bits).bits);
+        }
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        PrimitivePatriciaTrieBase<String, ?> trie = newTrie();
+        Random random = new Random(3);
+        for (int i = 0; i < 100; i++) {
+            long key = randomBits(random) >> (Long.SIZE - lengthInBits);
+            trie.putValue(bits(key), Long.toString(key));
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(baos);
+        out.writeObject(trie);
+        out.close();
+
+        ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(baos.toByteArray()));
+        PrimitivePatriciaTrieBase<?, ?> copy = (PrimitivePatriciaTrieBase<?, ?>)in.readObject();
+        in.close();
+
+        TestCase.assertEquals(trie.getClass(), copy.getClass());
+        TestCase.assertEquals(trie.size(), copy.size());
+        TestCase.assertEquals(trie.toString(), copy.toString());
+
+        // The keys are signed
+        for (PrimitiveEntry<String, ?> entry : trie) {
+            TestCase.assertEquals(entry.getValue() + "=" + entry.getValue(), 
+                    entry.toString());
+        }
+    }
+
+    /**
+     * Returns random bits with many common prefixes
+     */
+    private long randomBits(Random random) {
+        long mask = -1L << (Long.SIZE - lengthInBits);
+        long bits = random.nextLong();
+        switch (random.nextInt(3)) {
+            case 0:
+                return bits & ((0xFFL << (Long.SIZE - 8)) | (0xFFL << (Long.SIZE - lengthInBits)));
+            case 1:
+                return (bits >>> random.nextInt(lengthInBits)) & mask;
+            default:
+                return bits & mask;
+        }
+    }
+
+    private static void assertEntryBits(Long expected, PrimitiveEntry<?, ?> actual) {
+        if (expected == null) {
+            TestCase.assertNull(actual);
+        } else {
+            TestCase.assertNotNull(actual);
+            TestCase.assertEquals(expected.longValue(), actual.bits);
+        }
+    }
+
+    private static List<Long> bits(Iterator<? extends PrimitiveEntry<?, ?>> it) {
+        List<Long> bits = new ArrayList<Long>();
+        while (it.hasNext()) {
+            bits.add(it.next().bits);
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,148 @@
+package org.ardverk.collection;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.ardverk.collection.TrieStats.Operation;
+import org.junit.Test;
+
+public class TrieStatsTest {
+
+    @Test
+    public void testDisabled() {
+        PatriciaTrie<String, String> trie
+            = new PatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+        TestCase.assertFalse(trie.isStatsEnabled());
+
+        trie.put("Hello", "World");
+        trie.get("Hello");
+
+        TrieStats stats = trie.getStats();
+        for (Operation operation : Operation.values()) {
+            TestCase.assertEquals(0L, stats.getCount(operation));
+        }
+        TestCase.assertEquals(0L, stats.getDepthCount());
+        TestCase.assertEquals(0L, stats.getMaxDepth());
+        TestCase.assertEquals(0L, stats.getDepthAtPercentile(99d));
+    }
+
+    @Test
+    public void testOperations() {
+        PatriciaTrie<String, String> trie
+            = new PatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+        trie.setStatsEnabled(true);
+
+        String[] keys = { "Albert", "Xavier", "XyZ", "Anna", "Alien", "Alberto" };
+        for (String key : keys) {
+            trie.put(key, key);
+        }
+
+        TrieStats stats = trie.getStats();
+        TestCase.assertEquals(keys.length, stats.getCount(Operation.LOOKUP));
+        TestCase.assertEquals(keys.length, stats.getCount(Operation.ADD));
+        TestCase.assertEquals(keys.length, stats.getBitIndexCount());
+        TestCase.assertTrue(stats.getNodeVisits(Operation.ADD) >= keys.length);
+
+        trie.resetStats();
+        trie.get("Anna");
+        trie.remove("XyZ");
+        trie.select("Alf");
+        trie.ceilingKey("Alf");
+        trie.floorKey("Bob");
+
+        stats = trie.getStats();
+        TestCase.assertEquals(3L, stats.getCount(Operation.LOOKUP));
+        TestCase.assertEquals(0L, stats.getCount(Operation.ADD));
+        TestCase.assertEquals(1L, stats.getCount(Operation.REMOVE));
+        TestCase.assertEquals(1L, stats.getCount(Operation.SELECT));
+        TestCase.assertEquals(2L, stats.getCount(Operation.ABSENT_KEY));
+        TestCase.assertEquals(2L, stats.getBitIndexCount());
+        TestCase.assertEquals(7L, stats.getDepthCount());
+
+        // The prefix views look for the bit index of their subtree
+        trie.resetStats();
+        TestCase.assertEquals(3, trie.getPrefixedBy("Al").size());
+        TestCase.assertTrue(trie.getStats().getBitIndexCount() > 0L);
+
+        trie.setStatsEnabled(false);
+        trie.get("Anna");
+        TestCase.assertEquals(0L, trie.getStats().getCount(Operation.LOOKUP));
+    }
+
+    @Test
+    public void testDepth() {
+        PatriciaTrie<String, Integer> trie
+            = new PatriciaTrie<String, Integer>(StringKeyAnalyzer.INSTANCE);
+
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            buffer.append('a');
+            trie.put(buffer.toString(), i);
+        }
+
+        trie.setStatsEnabled(true);
+        trie.get(buffer.toString());
+        trie.get("a");
+
+        TrieStats stats = trie.getStats();
+        TestCase.assertEquals(2L, stats.getDepthCount());
+        TestCase.assertEquals(3L, stats.getDepthAtPercentile(50d));
+        long maxDepth = stats.getMaxDepth();
+        TestCase.assertTrue(maxDepth >= 201L && maxDepth <= 201L + 201L / 32L);
+        TestCase.assertEquals(maxDepth, stats.getDepthAtPercentile(100d));
+    }
+
+    @Test
+    public void testBuckets() {
+        for (int depth = 0; depth < 100000; depth++) {
+            int bucket = TrieStats.bucket(depth);
+            TestCase.assertTrue(bucket < TrieStats.BUCKETS);
+            TestCase.assertTrue(depth <= TrieStats.highestDepth(bucket));
+            if (bucket > 0) {
+                TestCase.assertTrue(depth > TrieStats.highestDepth(bucket - 1));
+            }
+        }
+
+        int last = TrieStats.bucket(Integer.MAX_VALUE);
+        TestCase.assertEquals(TrieStats.BUCKETS - 1, last);
+        TestCase.assertEquals(Integer.MAX_VALUE, TrieStats.highestDepth(last));
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        PatriciaTrie<String, String> trie
+            = new PatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+        ObjectName name = new ObjectName("org.ardverk.collection:type=TrieStats,name=test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        Tries.registerStatsMBean(trie, name);
+        try {
+            TestCase.assertEquals(Boolean.FALSE, server.getAttribute(name, "Enabled"));
+            trie.setStatsEnabled(true);
+            trie.put("Hello", "World");
+            trie.get("Hello");
+
+            TestCase.assertEquals(Boolean.TRUE, server.getAttribute(name, "Enabled"));
+            TestCase.assertEquals(1, server.getAttribute(name, "Size"));
+            TestCase.assertEquals(2L, server.getAttribute(name, "LookupCount"));
+
+            server.invoke(name, "reset", new Object[0], new String[0]);
+            TestCase.assertEquals(0L, trie.getStats().getCount(Operation.LOOKUP));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void testToString() {
+        PatriciaTrie<String, String> trie
+            = new PatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+        trie.setStatsEnabled(true);
+        trie.put("Hello", "World");
+        TestCase.assertTrue(trie.getStats().toString().startsWith("TrieStats[LOOKUP=1/"));
+    }
+}
@@ -0,0 +1,124 @@
+package org.ardverk.collection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+/**
+ * Helpers that compare the Tries with the maps of the JDK
+ */
+final class TrieTestUtils {
+
+    private TrieTestUtils() {}
+
+    /**
+     * Returns a short key of the chars 'a' to 'd'
+     */
+    static String randomKey(Random random) {
+        int length = 1 + random.nextInt(4);
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            buffer.append((char)('a' + random.nextInt(4)));
+        }
+        return buffer.toString();
+    }
+
+    static <K> List<K> keys(Collection<? extends Map.Entry<K, ?>> entries) {
+        List<K> keys = new ArrayList<K>();
+        for (Map.Entry<K, ?> entry : entries) {
+            keys.add(entry.getKey());
+        }
+        return keys;
+    }
+
+    static void assertEntryKey(Map.Entry<?, ?> expected, Map.Entry<?, ?> actual) {
+        if (expected == null) {
+            TestCase.assertNull(actual);
+        } else {
+            TestCase.assertNotNull(actual);
+            TestCase.assertEquals(expected.getKey(), actual.getKey());
+        }
+    }
+
+    static void assertSortedMap(SortedMap<String, String> expected,
+            SortedMap<String, String> actual) {
+        TestCase.assertEquals(expected.size(), actual.size());
+        TestCase.assertEquals(expected.isEmpty(), actual.isEmpty());
+        TestCase.assertEquals(new ArrayList<String>(expected.keySet()),
+                new ArrayList<String>(actual.keySet()));
+
+        if (!expected.isEmpty()) {
+            TestCase.assertEquals(expected.firstKey(), actual.firstKey());
+            TestCase.assertEquals(expected.lastKey(), actual.lastKey());
+        }
+
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            TestCase.assertTrue(actual.containsKey(entry.getKey()));
+            TestCase.assertTrue(actual.entrySet().contains(entry));
+        }
+    }
+
+    static void assertNavigableMap(NavigableMap<String, String> expected,
+            NavigableMap<String, String> actual) {
+        TestCase.assertEquals(expected.size(), actual.size());
+        TestCase.assertEquals(new ArrayList<String>(expected.keySet()),
+                new ArrayList<String>(actual.keySet()));
+        TestCase.assertEquals(new ArrayList<String>(expected.descendingKeySet()),
+                new ArrayList<String>(actual.descendingKeySet()));
+        assertEntryKey(expected.firstEntry(), actual.firstEntry());
+        assertEntryKey(expected.lastEntry(), actual.lastEntry());
+
+        Random random = new Random(expected.size());
+        for (int i = 0; i < 20; i++) {
+            String key = randomKey(random);
+            assertEntryKey(expected.ceilingEntry(key), actual.ceilingEntry(key));
+            assertEntryKey(expected.floorEntry(key), actual.floorEntry(key));
+            assertEntryKey(expected.higherEntry(key), actual.higherEntry(key));
+            assertEntryKey(expected.lowerEntry(key), actual.lowerEntry(key));
+            TestCase.assertEquals(expected.containsKey(key), actual.containsKey(key));
+        }
+    }
+
+    /**
+     * Looks up random keys in both {@link Trie}s and compares the
+     * selects, the longest prefixes, the prefix and range views and
+     * the nearest keys.
+     */
+    static void assertBehavesLikePatriciaTrie(PatriciaTrie<String, String> control,
+            Trie<String, String> trie, Random random, int count) {
+        for (int i = 0; i < count; i++) {
+            String key = randomKey(random);
+            TestCase.assertEquals(control.containsKey(key), trie.containsKey(key));
+            TestCase.assertEquals(control.get(key), trie.get(key));
+            TestCase.assertEquals(control.selectKey(key), trie.selectKey(key));
+            TestCase.assertEquals(control.longestPrefixOf(key), trie.longestPrefixOf(key));
+            assertSortedMap(control.getPrefixedBy(key), trie.getPrefixedBy(key));
+            assertSortedMap(control.getPrefixedBy(key, 1), trie.getPrefixedBy(key, 1));
+            assertSortedMap(control.headMap(key), trie.headMap(key));
+            assertSortedMap(control.tailMap(key), trie.tailMap(key));
+
+            String to = randomKey(random);
+            if (key.compareTo(to) <= 0) {
+                assertSortedMap(control.subMap(key, to), trie.subMap(key, to));
+                assertSortedMap(new TreeMap<String, String>(
+                        control.getPrefixedBy(key, 1)).headMap(to),
+                        trie.getPrefixedBy(key, 1).headMap(to));
+            }
+
+            List<Map.Entry<String, String>> expected
+                = new ArrayList<Map.Entry<String, String>>();
+            List<Map.Entry<String, String>> actual
+                = new ArrayList<Map.Entry<String, String>>();
+            control.selectNearest(key, 10, expected);
+            trie.selectNearest(key, 10, actual);
+            TestCase.assertEquals(keys(expected), keys(actual));
+        }
+    }
+}
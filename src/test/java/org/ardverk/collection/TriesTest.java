@@ -0,0 +1,404 @@
+package org.ardverk.collection;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class TriesTest {
+
+    @Test
+    public void readWriteLockedTrie() {
+        Trie<String, String> trie = Tries.readWriteLockedTrie(
+                new PatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE));
+
+        TestCase.assertSame(trie, Tries.readWriteLockedTrie(trie));
+
+        trie.put("Anna", "Anna");
+        trie.put("Anael", "Anael");
+        trie.put("Andreas", "Andreas");
+        trie.put("Andrea", "Andrea");
+
+        SortedMap<String, String> prefixed = trie.getPrefixedBy("And");
+        TestCase.assertEquals(2, prefixed.size());
+        TestCase.assertEquals("Andrea", prefixed.firstKey());
+
+        Iterator<String> it = prefixed.keySet().iterator();
+        TestCase.assertEquals("Andrea", it.next());
+        it.remove();
+
+        TestCase.assertFalse(trie.containsKey("Andrea"));
+        TestCase.assertEquals(1, prefixed.size());
+        TestCase.assertEquals("Anna", trie.longestPrefixOf("Annabel"));
+    }
+
+    @Test
+    public void readWriteLockedTrieConcurrency() throws InterruptedException {
+        final Trie<Integer, Integer> trie = Tries.readWriteLockedTrie(
+                new PatriciaTrie<Integer, Integer>(IntegerKeyAnalyzer.INSTANCE));
+
+        for (int i = 0; i < 1000; i++) {
+            trie.put(i, i);
+        }
+
+        final SortedMap<Integer, Integer> prefixed
+            = trie.getPrefixedByBits(0, 24);
+
+        final int readers = 4;
+        final CountDownLatch latch = new CountDownLatch(readers + 1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < readers; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 10000; i++) {
+                            Integer value = trie.get(i % 1000);
+                            if (value != null && value != i % 1000) {
+                                throw new AssertionError(value + " != " + (i % 1000));
+                            }
+
+                            trie.select(i);
+
+                            int size = prefixed.size();
+                            if (size < 0 || size > 256) {
+                                throw new AssertionError("size=" + size);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 10000; i++) {
+                        int key = i % 1000;
+                        if (trie.remove(key) == null) {
+                            throw new AssertionError("key=" + key);
+                        }
+                        trie.put(key, key);
+                    }
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                } finally {
+                    latch.countDown();
+                }
+            }
+        });
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        latch.await();
+
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+
+        TestCase.assertEquals(1000, trie.size());
+        for (Map.Entry<Integer, Integer> entry : trie.entrySet()) {
+            TestCase.assertEquals(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Test
+    public void readWriteLockedTrieAtomicDefaults() throws InterruptedException {
+        final Trie<Integer, Integer> trie = Tries.readWriteLockedTrie(
+                new PatriciaTrie<Integer, Integer>(IntegerKeyAnalyzer.INSTANCE));
+
+        final SortedMap<Integer, Integer> view = trie.headMap(1000);
+
+        final BiFunction<Integer, Integer, Integer> sum 
+                = new BiFunction<Integer, Integer, Integer>() {
+            @Override
+            public Integer apply(Integer value, Integer increment) {
+                return value + increment;
+            }
+        };
+
+        final int writers = 4;
+        final int count = 1000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(writers);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final AtomicInteger absent = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < writers; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < count; i++) {
+                            trie.merge(i % 10, 1, sum);
+                            view.merge(i % 10 + 100, 1, sum);
+
+                            if (trie.putIfAbsent(i + 1000, i) == null) {
+                                absent.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        start.countDown();
+        latch.await();
+
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+
+        TestCase.assertEquals(count, absent.get());
+        for (int i = 0; i < 10; i++) {
+            TestCase.assertEquals(writers * count / 10, trie.get(i).intValue());
+            TestCase.assertEquals(writers * count / 10, trie.get(i + 100).intValue());
+        }
+        TestCase.assertEquals(20 + count, trie.size());
+    }
+
+    @Test
+    public void analyze() {
+        PatriciaTrie<String, String> trie
+            = new PatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+        trie.put("", "");
+        for (int i = 0; i < 1000; i++) {
+            trie.put(Integer.toString(i), Integer.toString(i));
+        }
+
+        TrieShape shape = Tries.analyze(trie);
+        TestCase.assertEquals(trie.size(), shape.getSize());
+        TestCase.assertEquals(trie.size() - 1,
+                shape.getInternalNodeCount() + shape.getExternalNodeCount());
+        // Each of the n nodes below the root has two links and
+        // all but one of them have a downlink pointing to them
+        TestCase.assertEquals(trie.size(), shape.getUplinkCount());
+
+        // A lookup of each key visits as many nodes as its depth
+        trie.setStatsEnabled(true);
+        for (String key : trie.keySet()) {
+            trie.get(key);
+        }
+        TrieStats stats = trie.getStats();
+        TestCase.assertEquals(stats.getMeanNodeVisits(TrieStats.Operation.LOOKUP),
+                shape.getMeanDepth(), 0.0001d);
+        TestCase.assertEquals(stats.getMaxDepth(), shape.getMaxDepth());
+        TestCase.assertTrue(shape.getMinDepth() <= shape.getDepthAtPercentile(99d));
+        TestCase.assertTrue(shape.getDepthAtPercentile(99d) <= shape.getMaxDepth());
+
+        int nodes = 0;
+        for (int level = 0; level < shape.getLevelCount(); level++) {
+            nodes += shape.getNodeCount(level);
+            TestCase.assertTrue(shape.getMinBitIndex(level) <= shape.getMeanBitIndex(level));
+            TestCase.assertTrue(shape.getMeanBitIndex(level) <= shape.getMaxBitIndex(level));
+        }
+        TestCase.assertEquals(trie.size() - 1, nodes);
+
+        // The digits only differ in the low byte of their chars
+        TestCase.assertEquals(16, shape.getBitsPerElement());
+        for (int bit = 0; bit < 8; bit++) {
+            TestCase.assertEquals(0, shape.getBitPositionCount(bit));
+        }
+        TestCase.assertTrue(shape.getEstimatedBytesPerEntry() > 48d);
+    }
+
+    @Test
+    public void analyzeEmpty() {
+        PatriciaTrie<String, String> trie
+            = new PatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+
+        TrieShape shape = Tries.analyze(trie);
+        TestCase.assertEquals(0, shape.getSize());
+        TestCase.assertEquals(0, shape.getLevelCount());
+        TestCase.assertEquals(0, shape.getMaxDepth());
+        TestCase.assertEquals(0d, shape.getMeanDepth(), 0d);
+
+        trie.put("", "");
+        shape = Tries.analyze(trie);
+        TestCase.assertEquals(1, shape.getMinDepth());
+        TestCase.assertEquals(1, shape.getMaxDepth());
+
+        try {
+            Tries.analyze(new PersistentPatriciaTrie<String, String>(
+                    StringKeyAnalyzer.INSTANCE));
+            TestCase.fail("Should have thrown IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void fuzzyMatch() {
+        Random random = new Random(17);
+        char[] alphabet = { 'a', 'b', 'c', 'd', '\0' };
+
+        for (int round = 0; round < 20; round++) {
+            PatriciaTrie<String, Integer> trie
+                = new PatriciaTrie<String, Integer>(StringKeyAnalyzer.INSTANCE);
+            for (int i = random.nextInt(round * 50 + 1); i >= 0; --i) {
+                int length = random.nextInt(7);
+                StringBuilder buffer = new StringBuilder();
+                for (int j = 0; j < length; j++) {
+                    buffer.append(alphabet[random.nextInt(round % 2 == 0 ? 4 : 5)]);
+                }
+                trie.put(buffer.toString(), i);
+            }
+
+            for (int i = 0; i < 20; i++) {
+                String query = trie.isEmpty() || random.nextBoolean()
+                    ? Integer.toString(random.nextInt(1000), 4).replace('0', 'a')
+                    : trie.entryAt(random.nextInt(trie.size())).getKey() + "b";
+                int maxEdits = random.nextInt(4);
+
+                List<String> expected = new ArrayList<String>();
+                for (String key : trie.keySet()) {
+                    if (distance(key, query) <= maxEdits) {
+                        expected.add(key);
+                    }
+                }
+
+                List<String> actual = new ArrayList<String>();
+                for (Map.Entry<String, Integer> entry
+                        : Tries.fuzzyMatch(trie, query, maxEdits)) {
+                    actual.add(entry.getKey());
+                }
+                TestCase.assertEquals(expected, actual);
+            }
+        }
+
+        PatriciaTrie<String, String> trie
+            = new PatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+        TestCase.assertTrue(Tries.fuzzyMatch(trie, "Hello", 2).isEmpty());
+
+        trie.put("", "");
+        trie.put("Hello", "World");
+        trie.put("Help", "Me");
+        trie.put("Yellow", "Submarine");
+        TestCase.assertEquals(1, Tries.fuzzyMatch(trie, "Hallo", 1).size());
+        TestCase.assertEquals(1, Tries.fuzzyMatch(trie, "Hallo", 2).size());
+        TestCase.assertEquals(3, Tries.fuzzyMatch(trie, "Hallo", 3).size());
+        TestCase.assertEquals("", Tries.fuzzyMatch(trie, "H", 1).get(0).getKey());
+
+        try {
+            Tries.fuzzyMatch(new PatriciaTrie<String, String>(new StringKeyAnalyzer() {
+                private static final long serialVersionUID = 1L;
+            }), "Hello", -1);
+            TestCase.fail("Should have thrown IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void match() {
+        Random random = new Random(23);
+        char[] alphabet = { 'a', 'b', 'c', ':', '\0' };
+        String[] patterns = { "", "a*", "(ab|c)*", "a[bc]+:.*", "[^a]?b{1,3}c?",
+                ".*:.*:b", "(a|b)*c(a|b)*", "\\w*\\x00", "c{2,}|a" };
+
+        for (int round = 0; round < 20; round++) {
+            PatriciaTrie<String, Integer> trie
+                = new PatriciaTrie<String, Integer>(StringKeyAnalyzer.INSTANCE);
+            for (int i = random.nextInt(round * 50 + 1); i >= 0; --i) {
+                int length = random.nextInt(8);
+                StringBuilder buffer = new StringBuilder();
+                for (int j = 0; j < length; j++) {
+                    buffer.append(alphabet[random.nextInt(round % 2 == 0 ? 4 : 5)]);
+                }
+                trie.put(buffer.toString(), i);
+            }
+
+            for (String pattern : patterns) {
+                List<String> expected = new ArrayList<String>();
+                for (String key : trie.keySet()) {
+                    if (Pattern.matches(pattern, key)) {
+                        expected.add(key);
+                    }
+                }
+
+                List<String> actual = new ArrayList<String>();
+                for (Map.Entry<String, Integer> entry
+                        : Tries.match(trie, Automata.regex(pattern))) {
+                    actual.add(entry.getKey());
+                }
+                TestCase.assertEquals(pattern, expected, actual);
+            }
+        }
+
+        PatriciaTrie<String, String> trie
+            = new PatriciaTrie<String, String>(StringKeyAnalyzer.INSTANCE);
+        TestCase.assertTrue(Tries.match(trie, Automata.glob("*")).isEmpty());
+
+        trie.put("user:1:session", "a");
+        trie.put("user:1:profile", "b");
+        trie.put("user:22:session", "c");
+        trie.put("users", "d");
+        trie.put("user:3:session:old", "e");
+
+        List<Map.Entry<String, String>> matches
+            = Tries.match(trie, Automata.glob("user:*:session"));
+        TestCase.assertEquals(2, matches.size());
+        TestCase.assertEquals("user:1:session", matches.get(0).getKey());
+        TestCase.assertEquals("user:22:session", matches.get(1).getKey());
+
+        TestCase.assertEquals(5, Tries.match(trie, Automata.glob("user*")).size());
+        TestCase.assertEquals(1, Tries.match(trie, Automata.glob("user?")).size());
+        TestCase.assertEquals(3, Tries.match(trie, Automata.glob("user:[!2]:*")).size());
+
+        try {
+            Tries.match(Tries.synchronizedTrie(trie), Automata.glob("*"));
+            TestCase.fail("Should have thrown IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static int distance(String a, String b) {
+        int[] previous = new int[b.length() + 1];
+        int[] row = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+
+        for (int i = 1; i <= a.length(); i++) {
+            row[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                row[j] = Math.min(Math.min(row[j - 1] + 1, previous[j] + 1),
+                        previous[j - 1] + cost);
+            }
+
+            int[] tmp = previous;
+            previous = row;
+            row = tmp;
+        }
+        return previous[b.length()];
+    }
+}